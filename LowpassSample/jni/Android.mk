@@ -8,6 +8,10 @@ include $(CLEAR_VARS)
 LOCAL_MODULE := lowpass
 LOCAL_LDLIBS := -llog
 LOCAL_SRC_FILES := lowpass.c
+# The filter uses vector extensions, which map to NEON on ARMv7 and SSE on x86.
+ifeq ($(TARGET_ARCH_ABI),armeabi-v7a)
+LOCAL_ARM_NEON := true
+endif
 LOCAL_STATIC_LIBRARIES := audiomodule
 include $(BUILD_SHARED_LIBRARY)
 $(call import-module,Patchfield/jni)
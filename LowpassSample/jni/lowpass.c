@@ -14,52 +14,222 @@
  * under the License.
  */
 
+/*
+ * Multichannel state-variable filter (the trapezoidal integrator design by
+ * Andrew Simper), with modes ranging from lowpass to shelving filters. All
+ * channels share the same settings, so that coefficients are computed once
+ * per frame and channels are processed four at a time in SIMD lanes. Settings
+ * arrive as parameter events at the frames where they take effect, and the
+ * coefficients glide towards them sample by sample, so that parameter changes
+ * don't zipper.
+ */
+
 #include "lowpass.h"
 
 #include "audio_module.h"
 
+#include <math.h>
 #include <stddef.h>
 #include <stdlib.h>
 #include <string.h>
 
-#define RANGE 1000000
+// Parameters and modes; these must agree with the constants in
+// LowpassModule.java.
+#define PARAM_CUTOFF 0     // Fraction of the sample rate.
+#define PARAM_RESONANCE 1  // Q.
+#define PARAM_GAIN 2       // Decibels; for bell and shelving modes only.
+#define PARAM_MODE 3
+
+#define MODE_LOWPASS 0
+#define MODE_HIGHPASS 1
+#define MODE_BANDPASS 2
+#define MODE_NOTCH 3
+#define MODE_PEAK 4
+#define MODE_ALLPASS 5
+#define MODE_BELL 6
+#define MODE_LOWSHELF 7
+#define MODE_HIGHSHELF 8
+
+#define LANES 4
+#define CHUNK 64              // Frames per pass over the coefficients.
+#define SMOOTHING_TIME 0.005  // Time constant of parameter glides, in seconds.
+
+typedef float v4sf __attribute__ ((vector_size (16)));
+
+typedef union {
+  v4sf v;
+  float f[LANES];
+} lanes;
 
+// Coefficients of the filter: g and k determine the integrators, m0, m1, m2
+// mix input, bandpass, and lowpass signals into the output.
 typedef struct {
-  int alpha;  // RC lowpass filter coefficient, between 0 and RANGE.
-  float *y;   // Filter values for each channel.
+  float g, k, m0, m1, m2;
+} coefficients;
+
+typedef struct {
+  int channels;
+  int groups;            // Number of groups of four channels.
+  float *state;          // Two integrator states per channel, by group.
+  float smoothing;       // Per-sample glide factor.
+  coefficients current;
+  coefficients goal;     // Coefficients implied by the current settings.
+  double cutoff, resonance, gain;
+  int mode;
 } lowpass_data;
 
+static void compute_coefficients(lowpass_data *data, coefficients *c) {
+  double q = data->resonance > 0.01 ? data->resonance : 0.01;
+  double f = data->cutoff < 0.49 ? data->cutoff : 0.49;
+  double g = tan(M_PI * (f > 0 ? f : 0));
+  double k = 1 / q;
+  double a = pow(10, data->gain / 40);  // Square root of the linear gain.
+  double m0 = 0, m1 = 0, m2 = 0;
+  switch (data->mode) {
+    case MODE_LOWPASS:
+    default:
+      m2 = 1;
+      break;
+    case MODE_HIGHPASS:
+      m0 = 1; m1 = -k; m2 = -1;
+      break;
+    case MODE_BANDPASS:
+      m1 = 1;
+      break;
+    case MODE_NOTCH:
+      m0 = 1; m1 = -k;
+      break;
+    case MODE_PEAK:
+      m0 = 1; m1 = -k; m2 = -2;
+      break;
+    case MODE_ALLPASS:
+      m0 = 1; m1 = -2 * k;
+      break;
+    case MODE_BELL:
+      k = 1 / (q * a);
+      m0 = 1; m1 = k * (a * a - 1);
+      break;
+    case MODE_LOWSHELF:
+      g /= sqrt(a);
+      m0 = 1; m1 = k * (a - 1); m2 = a * a - 1;
+      break;
+    case MODE_HIGHSHELF:
+      g *= sqrt(a);
+      m0 = a * a; m1 = k * (1 - a) * a; m2 = 1 - a * a;
+      break;
+  }
+  c->g = g;
+  c->k = k;
+  c->m0 = m0;
+  c->m1 = m1;
+  c->m2 = m2;
+}
+
+static void apply_event(lowpass_data *data, const am_parameter_event *e) {
+  switch (e->index) {
+    case PARAM_CUTOFF:
+      data->cutoff = e->value;
+      break;
+    case PARAM_RESONANCE:
+      data->resonance = e->value;
+      break;
+    case PARAM_GAIN:
+      data->gain = e->value;
+      break;
+    case PARAM_MODE:
+      data->mode = (int) e->value;
+      break;
+    default:
+      return;
+  }
+  compute_coefficients(data, &data->goal);
+}
+
+static void glide(float *x, float target, float smoothing) {
+  *x += smoothing * (target - *x);
+}
+
 static void process_func(void *context, int sample_rate, int buffer_frames,
     int input_channels, const float *input_buffer,
-    int output_channels, float *output_buffer) {
+    int output_channels, float *output_buffer,
+    int event_count, const am_parameter_event *events) {
   lowpass_data *data = (lowpass_data *) context;
-  float alpha = (float) __sync_fetch_and_or(&data->alpha, 0) / RANGE;
-  int i, j;
-  for (i = 0; i < input_channels; ++i) {
-    float y = data->y[i];
-    for (j = 0; j < buffer_frames; ++j) {
-      float x = alpha * input_buffer[j] + (1 - alpha) * y;
-      output_buffer[j] = y = x;
+  coefficients *target = &data->goal;
+  float a1[CHUNK], a2[CHUNK], a3[CHUNK], m0[CHUNK], m1[CHUNK], m2[CHUNK];
+  int offset, n, i, j, l, e = 0;
+  for (offset = 0; offset < buffer_frames; offset += n) {
+    n = buffer_frames - offset < CHUNK ? buffer_frames - offset : CHUNK;
+    // Coefficients are shared by all channels; compute them once per frame.
+    coefficients *c = &data->current;
+    for (j = 0; j < n; ++j) {
+      // Events are sorted by frame, and so they take effect sample-accurately.
+      while (e < event_count && events[e].frame <= offset + j) {
+        apply_event(data, events + e++);
+      }
+      glide(&c->g, target->g, data->smoothing);
+      glide(&c->k, target->k, data->smoothing);
+      glide(&c->m0, target->m0, data->smoothing);
+      glide(&c->m1, target->m1, data->smoothing);
+      glide(&c->m2, target->m2, data->smoothing);
+      a1[j] = 1 / (1 + c->g * (c->g + c->k));
+      a2[j] = c->g * a1[j];
+      a3[j] = c->g * a2[j];
+      m0[j] = c->m0;
+      m1[j] = c->m1;
+      m2[j] = c->m2;
+    }
+    for (i = 0; i < data->groups; ++i) {
+      int c0 = i * LANES;
+      int m = data->channels - c0 < LANES ? data->channels - c0 : LANES;
+      lanes s1, s2, x, y;
+      memcpy(&s1, data->state + 2 * c0, sizeof(lanes));
+      memcpy(&s2, data->state + 2 * c0 + LANES, sizeof(lanes));
+      for (j = 0; j < n; ++j) {
+        for (l = 0; l < m; ++l) {
+          x.f[l] = input_buffer[(c0 + l) * buffer_frames + offset + j];
+        }
+        for (; l < LANES; ++l) {
+          x.f[l] = 0;
+        }
+        v4sf b1 = {a1[j], a1[j], a1[j], a1[j]};
+        v4sf b2 = {a2[j], a2[j], a2[j], a2[j]};
+        v4sf b3 = {a3[j], a3[j], a3[j], a3[j]};
+        v4sf n0 = {m0[j], m0[j], m0[j], m0[j]};
+        v4sf n1 = {m1[j], m1[j], m1[j], m1[j]};
+        v4sf n2 = {m2[j], m2[j], m2[j], m2[j]};
+        v4sf v3 = x.v - s2.v;
+        v4sf v1 = b1 * s1.v + b2 * v3;
+        v4sf v2 = s2.v + b2 * s1.v + b3 * v3;
+        s1.v = v1 + v1 - s1.v;
+        s2.v = v2 + v2 - s2.v;
+        y.v = n0 * x.v + n1 * v1 + n2 * v2;
+        for (l = 0; l < m; ++l) {
+          output_buffer[(c0 + l) * buffer_frames + offset + j] = y.f[l];
+        }
+      }
+      memcpy(data->state + 2 * c0, &s1, sizeof(lanes));
+      memcpy(data->state + 2 * c0 + LANES, &s2, sizeof(lanes));
     }
-    data->y[i] = y;
-    input_buffer += buffer_frames;
-    output_buffer += buffer_frames;
   }
 }
 
 JNIEXPORT jlong JNICALL
 Java_com_noisepages_nettoyeur_patchfield_lowpass_LowpassModule_configureNativeComponents
-(JNIEnv *env, jobject obj, jlong handle, jint channels) {
-  lowpass_data *data = malloc(sizeof(lowpass_data));
+(JNIEnv *env, jobject obj, jlong handle, jint channels, jint sample_rate) {
+  lowpass_data *data = calloc(1, sizeof(lowpass_data));
   if (data) {
-    data->y = malloc(channels * sizeof(float));
-    if (data->y) {
-      data->alpha = RANGE;
-      int i;
-      for (i = 0; i < channels; ++i) {
-        data->y[i] = 0;
-      }
-      am_configure((void *) handle, process_func, data);
+    data->channels = channels;
+    data->groups = (channels + LANES - 1) / LANES;
+    data->state = calloc(2 * LANES * data->groups, sizeof(float));
+    if (data->state) {
+      data->smoothing = 1 - exp(-1 / (SMOOTHING_TIME * sample_rate));
+      data->cutoff = 0.49;
+      data->resonance = M_SQRT1_2;
+      data->gain = 0;
+      data->mode = MODE_LOWPASS;
+      compute_coefficients(data, &data->goal);
+      data->current = data->goal;
+      am_configure_with_events((void *) handle, process_func, data);
     } else {
       free(data);
       data = NULL;
@@ -72,13 +242,6 @@ JNIEXPORT void JNICALL
 Java_com_noisepages_nettoyeur_patchfield_lowpass_LowpassModule_release
 (JNIEnv *env, jobject obj, jlong p) {
   lowpass_data *data = (lowpass_data *) p;
-  free(data->y);
+  free(data->state);
   free(data);
 }
-
-JNIEXPORT void JNICALL
-Java_com_noisepages_nettoyeur_patchfield_lowpass_LowpassModule_setParameter
-(JNIEnv *env, jobject obj, jlong p, jdouble alpha) {
-  lowpass_data *data = (lowpass_data *) p;
-  __sync_bool_compare_and_swap(&data->alpha, data->alpha, (int) (RANGE * alpha));
-}
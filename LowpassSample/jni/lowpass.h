@@ -10,10 +10,10 @@ extern "C" {
 /*
  * Class:     com_noisepages_nettoyeur_patchfield_lowpass_LowpassModule
  * Method:    configureNativeComponents
- * Signature: (JI)J
+ * Signature: (JII)J
  */
 JNIEXPORT jlong JNICALL Java_com_noisepages_nettoyeur_patchfield_lowpass_LowpassModule_configureNativeComponents
-  (JNIEnv *, jobject, jlong, jint);
+  (JNIEnv *, jobject, jlong, jint, jint);
 
 /*
  * Class:     com_noisepages_nettoyeur_patchfield_lowpass_LowpassModule
@@ -23,14 +23,6 @@ JNIEXPORT jlong JNICALL Java_com_noisepages_nettoyeur_patchfield_lowpass_Lowpass
 JNIEXPORT void JNICALL Java_com_noisepages_nettoyeur_patchfield_lowpass_LowpassModule_release
   (JNIEnv *, jobject, jlong);
 
-/*
- * Class:     com_noisepages_nettoyeur_patchfield_lowpass_LowpassModule
- * Method:    setParameter
- * Signature: (JD)V
- */
-JNIEXPORT void JNICALL Java_com_noisepages_nettoyeur_patchfield_lowpass_LowpassModule_setParameter
-  (JNIEnv *, jobject, jlong, jdouble);
-
 #ifdef __cplusplus
 }
 #endif
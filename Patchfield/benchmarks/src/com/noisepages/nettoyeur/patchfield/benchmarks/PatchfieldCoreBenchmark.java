@@ -0,0 +1,154 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.patchfield.benchmarks;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.noisepages.nettoyeur.patchfield.internal.GraphEdit;
+import com.noisepages.nettoyeur.patchfield.internal.PatchfieldCore;
+import com.noisepages.nettoyeur.patchfield.internal.SimulatedEngine;
+
+/**
+ * JMH benchmarks of the control plane, running {@link PatchfieldCore} on top of a
+ * {@link SimulatedEngine}. The graph is a chain of single-channel modules between the system input
+ * and output, which is the worst case for dependency tracking. Build and run with "make jmh" in the
+ * Patchfield directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PatchfieldCoreBenchmark {
+
+  @Param({"32", "64", "128", "256"})
+  public int modules;
+
+  private PatchfieldCore core;
+  private String[] names;
+  private String first;
+  private String last;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    core = new PatchfieldCore(
+        new SimulatedEngine(1, 1, modules + 2, SimulatedEngine.MAX_CONNECTIONS), 1, 1);
+    names = new String[modules];
+    String previous = PatchfieldCore.SYSTEM_IN;
+    for (int i = 0; i < modules; ++i) {
+      names[i] = "module" + i;
+      check(core.createModule(names[i], 1, 1));
+      check(core.connectPorts(previous, 0, names[i], 0));
+      check(core.activateModule(names[i]));
+      previous = names[i];
+    }
+    check(core.connectPorts(previous, 0, PatchfieldCore.SYSTEM_OUT, 0));
+    first = names[0];
+    last = names[modules - 1];
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    core.release();
+  }
+
+  /**
+   * Adds and removes a shortcut from the head to the tail of the chain, which touches the
+   * dependencies of every module.
+   */
+  @Benchmark
+  public int connectDisconnect() {
+    return core.connectPorts(first, 0, last, 0) + core.disconnectPorts(first, 0, last, 0);
+  }
+
+  /**
+   * Attempts to close the chain into a cycle, which the core must reject.
+   */
+  @Benchmark
+  public int rejectCycle() {
+    return core.connectPorts(last, 0, first, 0);
+  }
+
+  /**
+   * Checks for a dependency against the published state, without locking.
+   */
+  @Benchmark
+  public boolean isDependent() {
+    return core.getState().isDependent(last, first);
+  }
+
+  /**
+   * Swaps the shortcut in and out with two atomic batches.
+   */
+  @Benchmark
+  public int applyEdits() {
+    int result = core.applyEdits(Arrays.asList(GraphEdit.connect(first, 0, last, 0),
+        GraphEdit.deactivate(first)));
+    return result + core.applyEdits(Arrays.asList(GraphEdit.disconnect(first, 0, last, 0),
+        GraphEdit.activate(first)));
+  }
+
+  /**
+   * Reads the published state, as binder threads do for queries.
+   */
+  @Benchmark
+  public int snapshotRead() {
+    PatchfieldCore.State state = core.getState();
+    return state.getConnections().size() + (state.isConnected(first, 0, names[1 % modules], 0)
+        ? 1 : 0);
+  }
+
+  /**
+   * Snapshot reads while another thread keeps re-patching, to expose latency spikes of readers
+   * during live edits.
+   */
+  @Benchmark
+  @Group("repatching")
+  @GroupThreads(3)
+  public boolean repatchingReader() {
+    return core.getState().isConnected(first, 0, last, 0);
+  }
+
+  @Benchmark
+  @Group("repatching")
+  @GroupThreads(1)
+  public int repatchingWriter() {
+    return connectDisconnect();
+  }
+
+  private static void check(int result) {
+    if (result < 0) {
+      throw new IllegalStateException("Setup failed: " + result);
+    }
+  }
+}
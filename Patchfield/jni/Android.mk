@@ -29,7 +29,8 @@ LOCAL_EXPORT_CFLAGS := -Wno-int-to-pointer-cast -Wno-pointer-to-int-cast
 LOCAL_EXPORT_LDLIBS := -lOpenSLES -llog
 LOCAL_SRC_FILES := internal/audio_module_internal.c \
 	internal/simple_barrier.c internal/shared_memory_internal.c \
-	opensl_stream/opensl_stream.c
+	internal/trace_internal.c internal/null_backend.c \
+	internal/opensl_backend.c opensl_stream/opensl_stream.c
 include $(BUILD_STATIC_LIBRARY)
 
 include $(CLEAR_VARS)
@@ -43,7 +44,7 @@ include $(CLEAR_VARS)
 
 LOCAL_MODULE := patchfield
 LOCAL_STATIC_LIBRARIES := audiomoduleinternal
-LOCAL_SRC_FILES := internal/patchfield.c
+LOCAL_SRC_FILES := internal/patchfield.c internal/patchfield_internal.c
 include $(BUILD_SHARED_LIBRARY)
 
 include $(CLEAR_VARS)
@@ -20,6 +20,11 @@
  * audio_module_process_t and hook up the am_configure function in this library
  * to the corresponding configure method in the Java class. See
  * LowpassModule.java and lowpass.{h,c} for an example of this interaction.
+ *
+ * Modules that declare parameters (see AudioModule.getParameterNames) receive
+ * parameter changes as events, tagged with the frame at which they take
+ * effect. Such modules implement a callback of type
+ * audio_module_process_events_t and hook it up with am_configure_with_events.
  */
 
 #ifndef __AUDIO_MODULE_H__
@@ -52,6 +57,92 @@ typedef void (*audio_module_process_t)
  */
 void am_configure(void *handle, audio_module_process_t process, void *context);
 
+/*
+ * Parameter change. The frame is the offset into the current buffer at which
+ * the change takes effect, and the index refers to the list of parameter names
+ * that the module declares on the Java side.
+ */
+typedef struct {
+  int frame;
+  int index;
+  float value;
+} am_parameter_event;
+
+/*
+ * Processing callback with parameter events; same as audio_module_process_t,
+ * except for the parameter events that take effect in the current buffer.
+ * Events are sorted by frame offset, and events with the same offset appear in
+ * the order in which they were posted. Events that were scheduled for an
+ * earlier buffer but arrived late have offset zero.
+ */
+typedef void (*audio_module_process_events_t)
+    (void *context, int sample_rate, int buffer_frames,
+     int input_channels, const float *input_buffer,
+     int output_channels, float *output_buffer,
+     int event_count, const am_parameter_event *events);
+
+/*
+ * Configures the audio module with a processing method that receives parameter
+ * events; otherwise the same as am_configure.
+ */
+void am_configure_with_events(void *handle,
+    audio_module_process_events_t process, void *context);
+
+/*
+ * Message on an event port, e.g., a MIDI message. The frame is the offset into
+ * the current buffer, and the meaning of the data is up to the modules that
+ * exchange events.
+ */
+#define AM_EVENT_DATA_SIZE 12
+
+typedef struct {
+  int frame;
+  unsigned char data[AM_EVENT_DATA_SIZE];
+} am_port_event;
+
+/*
+ * Event ports carry timestamped messages between modules, with the same
+ * connection semantics and dependency ordering as audio ports; see
+ * AudioModule.getEventInputs and getEventOutputs. The following functions may
+ * only be called from within the process callback. Ports are numbered from
+ * zero for each direction.
+ *
+ * am_get_input_events points events at the events that arrived at the given
+ * input port in the current buffer, sorted by frame, and returns their number.
+ *
+ * am_send_event appends an event to the given output port. Frames must not
+ * decrease from one event to the next; earlier frames are moved up, and frames
+ * are clipped to the current buffer. Returns 0 on success, or a negative error
+ * code if the port is out of range or full.
+ */
+int am_get_input_events(void *handle, int port, const am_port_event **events);
+int am_send_event(void *handle, int port, const am_port_event *event);
+
+/*
+ * Number of values per buffer on a control port. The values are evenly spaced
+ * across the buffer, i.e., value i applies at frame
+ * i * buffer_frames / AM_CONTROL_POINTS, and modules may interpolate between
+ * them or just use the first one.
+ */
+#define AM_CONTROL_POINTS 4
+
+/*
+ * Control ports carry modulation signals, such as envelopes and LFOs, at block
+ * rate; see AudioModule.getControlInputs and getControlOutputs. Like audio
+ * inputs, control inputs receive the sum of all sources connected to them, but
+ * they only cost AM_CONTROL_POINTS values per buffer rather than
+ * buffer_frames. The following functions may only be called from within the
+ * process callback.
+ *
+ * am_get_control_inputs points values at the control inputs of the module,
+ * and am_get_control_outputs points values at its control outputs. Both return
+ * the number of ports; the values of port k start at k * AM_CONTROL_POINTS.
+ * Control outputs keep their values from one buffer to the next, and so a
+ * module only needs to write them when they change.
+ */
+int am_get_control_inputs(void *handle, const float **values);
+int am_get_control_outputs(void *handle, float **values);
+
 #ifdef __cplusplus
 }
 #endif
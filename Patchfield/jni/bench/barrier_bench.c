@@ -0,0 +1,274 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+/*
+ * Cross-process wake latency of simple_barrier. The bench forks a ring of
+ * processes that share a memfd segment, as the patchfield and its modules do,
+ * and passes a token around the ring with sb_wake/sb_wait_and_clear. Each
+ * process measures the time from the wake call of its predecessor to its own
+ * return from the wait. Optionally, waiters spin briefly before blocking, run
+ * with SCHED_FIFO, or are pinned to distinct CPUs.
+ *
+ * A second phase measures the latency of passing the shared memory file
+ * descriptor to another process with smi_send/smi_receive.
+ *
+ * Build with "make bench" in the Patchfield directory and run
+ * obj/host/barrier_bench -h for options.
+ */
+
+#include "internal/shared_memory_internal.h"
+#include "internal/simple_barrier.h"
+
+#include <errno.h>
+#include <sched.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/mman.h>
+#include <sys/wait.h>
+#include <time.h>
+#include <unistd.h>
+
+#define ONE_BILLION 1000000000
+#define MAX_PROCESSES 16
+
+typedef struct {
+  simple_barrier_t barriers[MAX_PROCESSES];
+  int64_t wake_times[MAX_PROCESSES];  // Written by the waker before waking.
+  simple_barrier_t ready;
+  simple_barrier_t received;
+  int64_t receive_time;
+} shared_state;
+
+typedef struct {
+  int processes;
+  int rounds;
+  int spin;
+  int priority;
+  int pin;
+  int transfers;
+} bench_config;
+
+static int64_t get_time() {
+  struct timespec t;
+  clock_gettime(CLOCK_MONOTONIC, &t);
+  return (int64_t) t.tv_sec * ONE_BILLION + t.tv_nsec;
+}
+
+static int compare_int64(const void *a, const void *b) {
+  int64_t x = *(const int64_t *) a;
+  int64_t y = *(const int64_t *) b;
+  return x < y ? -1 : (x > y ? 1 : 0);
+}
+
+static void report_distribution(const char *label, int64_t *samples, int n) {
+  if (n <= 0) {
+    return;
+  }
+  qsort(samples, n, sizeof(int64_t), compare_int64);
+  int64_t sum = 0;
+  int i;
+  for (i = 0; i < n; ++i) {
+    sum += samples[i];
+  }
+  printf("%-10s mean %lld  p50 %lld  p90 %lld  p99 %lld  p99.9 %lld  "
+      "max %lld (ns)\n", label, (long long) (sum / n),
+      (long long) samples[n / 2], (long long) samples[n * 90 / 100],
+      (long long) samples[n * 99 / 100], (long long) samples[n * 999 / 1000],
+      (long long) samples[n - 1]);
+}
+
+// Spins for up to the given number of iterations before blocking. Spurious
+// futex wakeups make sb_wait_and_clear fail without a deadline, so we retry.
+static void wait_for_token(simple_barrier_t *b, int spin) {
+  int i;
+  for (i = 0; i < spin && !__sync_or_and_fetch(b, 0); ++i);
+  while (sb_wait_and_clear(b, NULL) == -1);
+}
+
+static void pass_token(shared_state *s, int next) {
+  s->wake_times[next] = get_time();
+  sb_wake(s->barriers + next);
+}
+
+static void configure_process(const bench_config *cfg, int k) {
+  if (cfg->pin) {
+    cpu_set_t cpus;
+    CPU_ZERO(&cpus);
+    CPU_SET(k % sysconf(_SC_NPROCESSORS_ONLN), &cpus);
+    if (sched_setaffinity(0, sizeof(cpu_set_t), &cpus)) {
+      fprintf(stderr, "Unable to set affinity: %s\n", strerror(errno));
+    }
+  }
+  if (cfg->priority > 0) {
+    struct sched_param param;
+    param.sched_priority = cfg->priority;
+    if (sched_setscheduler(0, SCHED_FIFO, &param)) {
+      fprintf(stderr, "Unable to set SCHED_FIFO: %s\n", strerror(errno));
+    }
+  }
+}
+
+// Process k of the ring; process 0 injects the token.
+static void run_ring(const bench_config *cfg, shared_state *s, int k,
+    int64_t *samples) {
+  int next = (k + 1) % cfg->processes;
+  int r;
+  if (k == 0) {
+    pass_token(s, next);
+  }
+  for (r = 0; r < cfg->rounds; ++r) {
+    wait_for_token(s->barriers + k, cfg->spin);
+    samples[r] = get_time() - s->wake_times[k];
+    if (k != 0 || r < cfg->rounds - 1) {
+      pass_token(s, next);
+    }
+  }
+}
+
+static void measure_handoffs(const bench_config *cfg, shared_state *s) {
+  int64_t *samples = mmap(NULL,
+      (size_t) cfg->processes * cfg->rounds * sizeof(int64_t),
+      PROT_READ | PROT_WRITE, MAP_SHARED | MAP_ANONYMOUS, -1, 0);
+  if (samples == MAP_FAILED) {
+    fprintf(stderr, "Unable to allocate samples: %s\n", strerror(errno));
+    return;
+  }
+  pid_t pids[MAX_PROCESSES];
+  int k;
+  fflush(stdout);
+  for (k = 1; k < cfg->processes; ++k) {
+    pids[k] = fork();
+    if (pids[k] == 0) {
+      configure_process(cfg, k);
+      run_ring(cfg, s, k, samples + k * cfg->rounds);
+      _exit(0);
+    }
+  }
+  configure_process(cfg, 0);
+  run_ring(cfg, s, 0, samples);
+  for (k = 1; k < cfg->processes; ++k) {
+    waitpid(pids[k], NULL, 0);
+  }
+  report_distribution("handoff", samples, cfg->processes * cfg->rounds);
+  munmap(samples, (size_t) cfg->processes * cfg->rounds * sizeof(int64_t));
+}
+
+// The receiving end binds its socket inside smi_receive, and so the sender
+// gives it a head start after it signals readiness, and retries if needed.
+static void measure_transfers(const bench_config *cfg, shared_state *s,
+    int fd) {
+  int64_t *samples = malloc(cfg->transfers * sizeof(int64_t));
+  struct timespec head_start = { 0, 200000 };
+  int i;
+  fflush(stdout);
+  pid_t pid = fork();
+  if (pid == 0) {
+    for (i = 0; i < cfg->transfers; ++i) {
+      sb_wake(&s->ready);
+      int received = smi_receive();
+      s->receive_time = get_time();
+      if (received >= 0) {
+        close(received);
+      }
+      sb_wake(&s->received);
+    }
+    _exit(0);
+  }
+  for (i = 0; i < cfg->transfers; ++i) {
+    wait_for_token(&s->ready, 0);
+    nanosleep(&head_start, NULL);
+    int64_t start = get_time();
+    while (smi_send(fd) < 0) {
+      nanosleep(&head_start, NULL);
+      start = get_time();
+    }
+    wait_for_token(&s->received, 0);
+    samples[i] = s->receive_time - start;
+  }
+  waitpid(pid, NULL, 0);
+  report_distribution("fd passing", samples, cfg->transfers);
+  free(samples);
+}
+
+static void usage(const char *name) {
+  fprintf(stderr, "Usage: %s [options]\n"
+      "  -n <processes> processes in the ring, 2 to %d (default 2)\n"
+      "  -i <rounds>    handoffs per process (default 100000)\n"
+      "  -s <count>     spin iterations before blocking (default 0)\n"
+      "  -R <priority>  run with SCHED_FIFO at the given priority\n"
+      "  -a             pin processes to distinct CPUs\n"
+      "  -x <count>     file descriptor transfers (default 1000)\n",
+      name, MAX_PROCESSES);
+}
+
+static int parse_options(int argc, char **argv, bench_config *cfg) {
+  cfg->processes = 2;
+  cfg->rounds = 100000;
+  cfg->spin = 0;
+  cfg->priority = 0;
+  cfg->pin = 0;
+  cfg->transfers = 1000;
+  int opt;
+  while ((opt = getopt(argc, argv, "n:i:s:R:ax:h")) != -1) {
+    switch (opt) {
+      case 'n': cfg->processes = atoi(optarg); break;
+      case 'i': cfg->rounds = atoi(optarg); break;
+      case 's': cfg->spin = atoi(optarg); break;
+      case 'R': cfg->priority = atoi(optarg); break;
+      case 'a': cfg->pin = 1; break;
+      case 'x': cfg->transfers = atoi(optarg); break;
+      default: return -1;
+    }
+  }
+  if (cfg->processes < 2 || cfg->processes > MAX_PROCESSES ||
+      cfg->rounds < 1 || cfg->spin < 0 || cfg->transfers < 0) {
+    return -1;
+  }
+  return 0;
+}
+
+int main(int argc, char **argv) {
+  bench_config cfg;
+  if (parse_options(argc, argv, &cfg)) {
+    usage(argv[0]);
+    return 1;
+  }
+  int fd = smi_create();
+  if (fd < 0) {
+    fprintf(stderr, "Unable to create shared memory.\n");
+    return 1;
+  }
+  shared_state *s = smi_map(fd);
+  if (s == MAP_FAILED) {
+    fprintf(stderr, "Unable to map shared memory.\n");
+    return 1;
+  }
+  memset(s, 0, sizeof(shared_state));
+
+  printf("%d processes, %d rounds, spin %d, priority %d%s\n",
+      cfg.processes, cfg.rounds, cfg.spin, cfg.priority,
+      cfg.pin ? ", pinned" : "");
+  measure_handoffs(&cfg, s);
+  if (cfg.transfers > 0) {
+    measure_transfers(&cfg, s, fd);
+  }
+
+  smi_unmap(s);
+  close(fd);
+  return 0;
+}
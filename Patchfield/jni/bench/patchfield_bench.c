@@ -0,0 +1,460 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+/*
+ * Benchmark for the patchfield engine. It builds the engine against a fake
+ * stream whose callback is driven directly from the main thread, sets up a
+ * graph of dummy modules (some of them optionally in forked processes), and
+ * reports the time per callback, a per-stage breakdown from the trace ring,
+ * and, in paced mode, the lateness of callbacks relative to their schedule.
+ *
+ * Build with "make bench" in the Patchfield directory and run
+ * obj/host/patchfield_bench -h for options.
+ */
+
+#include "audio_module.h"
+#include "internal/audio_module_internal.h"
+#include "internal/patchfield_internal.h"
+
+#include <errno.h>
+#include <sched.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/wait.h>
+#include <time.h>
+#include <unistd.h>
+
+#define ONE_BILLION 1000000000
+#define TRACE_STAGES 8
+
+#define SHAPE_CHAIN 0   // in -> m0 -> m1 -> ... -> out
+#define SHAPE_FANIN 1   // in -> m0, ..., m(n-2) -> m(n-1) -> out
+#define SHAPE_FANOUT 2  // in -> m0 -> m1, ..., m(n-1) -> out
+
+static const char *shape_names[] = { "chain", "fanin", "fanout" };
+
+static const char *stage_names[TRACE_STAGES] = {
+  "report_wait", "input_conversion", "wake", "collect",
+  "process", "output_conversion", "ready_wait", "cleanup"
+};
+
+typedef struct {
+  int modules;
+  int forked;
+  int shape;
+  int channels;
+  int buffer_frames;
+  int sample_rate;
+  int callbacks;
+  int warmup;
+  int work;
+  int paced;
+  int priority;
+} bench_config;
+
+// Fake stream: the bench calls the process callback itself, and so the stream
+// merely records the callback and whether it's supposed to be running.
+typedef struct {
+  audio_backend_process_t process;
+  void *context;
+  int running;
+} fake_stream;
+
+static fake_stream the_stream;
+
+static void *fake_open(int sample_rate, int input_channels,
+    int output_channels, int buffer_frames, audio_backend_process_t process,
+    void *context) {
+  the_stream.process = process;
+  the_stream.context = context;
+  the_stream.running = 0;
+  return &the_stream;
+}
+
+static void fake_close(void *stream) {}
+
+static int fake_start(void *stream) {
+  __sync_bool_compare_and_swap(&((fake_stream *) stream)->running, 0, 1);
+  return 0;
+}
+
+static void fake_pause(void *stream) {
+  __sync_bool_compare_and_swap(&((fake_stream *) stream)->running, 1, 0);
+}
+
+static int fake_is_running(void *stream) {
+  return __sync_or_and_fetch(&((fake_stream *) stream)->running, 0);
+}
+
+static const audio_backend fake_backend = {
+  "fake", fake_open, fake_close, fake_start, fake_pause, fake_is_running
+};
+
+// Dummy module: scales its input, after burning the given number of
+// multiply-adds per sample.
+static void process(void *context, int sample_rate, int buffer_frames,
+    int input_channels, const float *input_buffer,
+    int output_channels, float *output_buffer) {
+  int work = *(int *) context;
+  int i, j, k;
+  for (i = 0; i < output_channels; ++i) {
+    const float *in = input_buffer + (i % input_channels) * buffer_frames;
+    float *out = output_buffer + i * buffer_frames;
+    for (j = 0; j < buffer_frames; ++j) {
+      float v = in[j];
+      for (k = 0; k < work; ++k) {
+        v = v * 0.999f + 1e-6f;
+      }
+      out[j] = 0.5f * v;
+    }
+  }
+}
+
+static int64_t get_time() {
+  struct timespec t;
+  clock_gettime(CLOCK_MONOTONIC, &t);
+  return (int64_t) t.tv_sec * ONE_BILLION + t.tv_nsec;
+}
+
+static void sleep_until(int64_t t) {
+  struct timespec deadline;
+  deadline.tv_sec = t / ONE_BILLION;
+  deadline.tv_nsec = t % ONE_BILLION;
+  while (clock_nanosleep(CLOCK_MONOTONIC, TIMER_ABSTIME, &deadline, NULL));
+}
+
+static int compare_int64(const void *a, const void *b) {
+  int64_t x = *(const int64_t *) a;
+  int64_t y = *(const int64_t *) b;
+  return x < y ? -1 : (x > y ? 1 : 0);
+}
+
+static void report_distribution(const char *label, int64_t *samples, int n) {
+  if (n <= 0) {
+    return;
+  }
+  qsort(samples, n, sizeof(int64_t), compare_int64);
+  int64_t sum = 0;
+  int i;
+  for (i = 0; i < n; ++i) {
+    sum += samples[i];
+  }
+  printf("%-10s mean %lld  p50 %lld  p90 %lld  p99 %lld  p99.9 %lld  "
+      "max %lld (ns)\n", label, (long long) (sum / n),
+      (long long) samples[n / 2], (long long) samples[n * 90 / 100],
+      (long long) samples[n * 99 / 100], (long long) samples[n * 999 / 1000],
+      (long long) samples[n - 1]);
+}
+
+// Accumulates the durations of completed stages from the trace ring. Events
+// are read after each callback, when all modules have finished recording;
+// events at or before the last timestamp seen were counted already.
+typedef struct {
+  int *info;
+  int64_t *timestamps;
+  int64_t last;
+  int64_t begin[256][TRACE_STAGES];
+  int64_t total[TRACE_STAGES];
+} stage_stats;
+
+static void collect_stages(patchfield *pb, stage_stats *s) {
+  int n = pfi_read_trace(pb, s->info, s->timestamps, TRACE_CAPACITY);
+  int64_t last = s->last;
+  int i;
+  for (i = 0; i < n; ++i) {
+    if (s->timestamps[i] <= s->last) {
+      continue;
+    }
+    if (s->timestamps[i] > last) {
+      last = s->timestamps[i];
+    }
+    int module = tri_get_module(s->info[i]) & 0xff;
+    int stage = tri_get_stage(s->info[i]);
+    if (stage < 0 || stage >= TRACE_STAGES) {
+      continue;
+    }
+    if (tri_get_phase(s->info[i]) == TRACE_BEGIN) {
+      s->begin[module][stage] = s->timestamps[i];
+    } else if (s->begin[module][stage]) {
+      s->total[stage] += s->timestamps[i] - s->begin[module][stage];
+      s->begin[module][stage] = 0;
+    }
+  }
+  s->last = last;
+}
+
+static int connect_all(patchfield *pb, int source, int sink, int channels) {
+  int i;
+  for (i = 0; i < channels; ++i) {
+    int result = pfi_connect(pb, source, i, sink, i);
+    if (result < 0) {
+      return result;
+    }
+  }
+  return 0;
+}
+
+static int build_graph(patchfield *pb, const bench_config *cfg,
+    const int *indices) {
+  int n = cfg->modules;
+  int c = cfg->channels;
+  int i, result = 0;
+  switch (cfg->shape) {
+    case SHAPE_CHAIN:
+      result = connect_all(pb, 0, indices[0], c);
+      for (i = 1; i < n && !result; ++i) {
+        result = connect_all(pb, indices[i - 1], indices[i], c);
+      }
+      if (!result) {
+        result = connect_all(pb, indices[n - 1], 1, c);
+      }
+      break;
+    case SHAPE_FANIN:
+      for (i = 0; i < n - 1 && !result; ++i) {
+        result = connect_all(pb, 0, indices[i], c);
+        if (!result) {
+          result = connect_all(pb, indices[i], indices[n - 1], c);
+        }
+      }
+      if (!result) {
+        result = connect_all(pb, indices[n - 1], 1, c);
+      }
+      break;
+    case SHAPE_FANOUT:
+      result = connect_all(pb, 0, indices[0], c);
+      for (i = 1; i < n && !result; ++i) {
+        result = connect_all(pb, indices[0], indices[i], c);
+        if (!result) {
+          result = connect_all(pb, indices[i], 1, c);
+        }
+      }
+      break;
+  }
+  for (i = 0; i < n && !result; ++i) {
+    result = pfi_activate_module(pb, indices[i]);
+  }
+  return result;
+}
+
+// Runs a module in a child process until the parent closes the pipe.
+static pid_t fork_module(patchfield *pb, int index, int *work,
+    const int *pipe_fds) {
+  fflush(stdout);
+  pid_t pid = fork();
+  if (pid == 0) {
+    close(pipe_fds[1]);
+    audio_module_runner *amr = ami_create(PATCHFIELD_PROTOCOL_VERSION,
+        pfi_get_shared_memory_fd(pb), index);
+    if (!amr) {
+      _exit(1);
+    }
+    am_configure(amr, process, work);
+    char c;
+    while (read(pipe_fds[0], &c, 1) < 0 && errno == EINTR);
+    ami_release(amr);
+    _exit(0);
+  }
+  return pid;
+}
+
+static void usage(const char *name) {
+  fprintf(stderr, "Usage: %s [options]\n"
+      "  -n <modules>   number of modules (default 4)\n"
+      "  -f <forked>    number of modules in forked processes (default 0)\n"
+      "  -s <shape>     chain, fanin, or fanout (default chain)\n"
+      "  -c <channels>  channels per module and system port (default 2)\n"
+      "  -b <frames>    buffer size in frames (default 256)\n"
+      "  -r <rate>      sample rate (default 48000)\n"
+      "  -i <count>     number of measured callbacks (default 10000)\n"
+      "  -w <count>     warmup callbacks (default 100)\n"
+      "  -l <count>     multiply-adds per sample per module (default 0)\n"
+      "  -p             pace callbacks at the nominal buffer rate\n"
+      "  -R <priority>  run with SCHED_FIFO at the given priority\n", name);
+}
+
+static int parse_options(int argc, char **argv, bench_config *cfg) {
+  cfg->modules = 4;
+  cfg->forked = 0;
+  cfg->shape = SHAPE_CHAIN;
+  cfg->channels = 2;
+  cfg->buffer_frames = 256;
+  cfg->sample_rate = 48000;
+  cfg->callbacks = 10000;
+  cfg->warmup = 100;
+  cfg->work = 0;
+  cfg->paced = 0;
+  cfg->priority = 0;
+  int opt;
+  while ((opt = getopt(argc, argv, "n:f:s:c:b:r:i:w:l:pR:h")) != -1) {
+    switch (opt) {
+      case 'n': cfg->modules = atoi(optarg); break;
+      case 'f': cfg->forked = atoi(optarg); break;
+      case 's':
+        for (cfg->shape = 2; cfg->shape >= 0; --cfg->shape) {
+          if (!strcmp(optarg, shape_names[cfg->shape])) {
+            break;
+          }
+        }
+        break;
+      case 'c': cfg->channels = atoi(optarg); break;
+      case 'b': cfg->buffer_frames = atoi(optarg); break;
+      case 'r': cfg->sample_rate = atoi(optarg); break;
+      case 'i': cfg->callbacks = atoi(optarg); break;
+      case 'w': cfg->warmup = atoi(optarg); break;
+      case 'l': cfg->work = atoi(optarg); break;
+      case 'p': cfg->paced = 1; break;
+      case 'R': cfg->priority = atoi(optarg); break;
+      default: return -1;
+    }
+  }
+  if (cfg->modules < 1 || cfg->modules > MAX_MODULES - 2 ||
+      cfg->forked < 0 || cfg->forked > cfg->modules || cfg->shape < 0 ||
+      cfg->channels < 1 || cfg->buffer_frames < 1 || cfg->sample_rate < 1 ||
+      cfg->callbacks < 1 || cfg->warmup < 0 || cfg->work < 0) {
+    return -1;
+  }
+  return 0;
+}
+
+int main(int argc, char **argv) {
+  bench_config cfg;
+  if (parse_options(argc, argv, &cfg)) {
+    usage(argv[0]);
+    return 1;
+  }
+  if (cfg.priority > 0) {
+    // Set before creating any threads or processes so that they inherit it.
+    struct sched_param param;
+    param.sched_priority = cfg.priority;
+    if (sched_setscheduler(0, SCHED_FIFO, &param)) {
+      fprintf(stderr, "Unable to set SCHED_FIFO: %s\n", strerror(errno));
+    }
+  }
+
+  patchfield *pb = pfi_create(&fake_backend, cfg.sample_rate,
+      cfg.buffer_frames, cfg.channels, cfg.channels);
+  if (!pb) {
+    fprintf(stderr, "Unable to create patchfield.\n");
+    return 1;
+  }
+  int indices[MAX_MODULES];
+  pid_t pids[MAX_MODULES];
+  audio_module_runner *runners[MAX_MODULES];
+  int pipe_fds[2];
+  if (pipe(pipe_fds)) {
+    fprintf(stderr, "Unable to create pipe: %s\n", strerror(errno));
+    return 1;
+  }
+  int ports[2 * PORT_KINDS] = { 0 };
+  ports[2 * PORT_AUDIO] = cfg.channels;
+  ports[2 * PORT_AUDIO + 1] = cfg.channels;
+  int i;
+  for (i = 0; i < cfg.modules; ++i) {
+    indices[i] = pfi_add_module(pb, ports);
+    if (indices[i] < 0) {
+      fprintf(stderr, "Unable to add module: %d\n", indices[i]);
+      return 1;
+    }
+  }
+  for (i = 0; i < cfg.modules; ++i) {
+    if (i < cfg.forked) {
+      pids[i] = fork_module(pb, indices[i], &cfg.work, pipe_fds);
+      runners[i] = NULL;
+    } else {
+      runners[i] = ami_create(PATCHFIELD_PROTOCOL_VERSION,
+          pfi_get_shared_memory_fd(pb), indices[i]);
+      am_configure(runners[i], process, &cfg.work);
+    }
+  }
+  close(pipe_fds[0]);
+  int result = build_graph(pb, &cfg, indices);
+  if (result < 0) {
+    fprintf(stderr, "Unable to build graph: %d\n", result);
+    return 1;
+  }
+
+  int c = cfg.channels;
+  short *input = calloc(c * cfg.buffer_frames, sizeof(short));
+  short *output = calloc(c * cfg.buffer_frames, sizeof(short));
+  int64_t *durations = malloc(cfg.callbacks * sizeof(int64_t));
+  int64_t *lateness = malloc(cfg.callbacks * sizeof(int64_t));
+  stage_stats *stages = calloc(1, sizeof(stage_stats));
+  stages->info = malloc(TRACE_CAPACITY * sizeof(int));
+  stages->timestamps = malloc(TRACE_CAPACITY * sizeof(int64_t));
+  int64_t period = (int64_t) cfg.buffer_frames * ONE_BILLION / cfg.sample_rate;
+
+  pfi_start(pb);
+  int64_t next = get_time();
+  for (i = -cfg.warmup; i < cfg.callbacks; ++i) {
+    if (i == 0) {
+      pfi_set_trace_flags(pb, TRACE_RING);
+    }
+    if (cfg.paced) {
+      sleep_until(next);
+    }
+    int64_t start = get_time();
+    the_stream.process(the_stream.context, cfg.sample_rate,
+        cfg.buffer_frames, c, input, c, output);
+    int64_t end = get_time();
+    if (i >= 0) {
+      durations[i] = end - start;
+      lateness[i] = start - next;
+      collect_stages(pb, stages);
+    }
+    next = cfg.paced ? next + period : end;
+  }
+  pfi_set_trace_flags(pb, 0);
+  pfi_stop(pb);
+
+  int missed_reports = 0, missed_ready = 0, skipped_inputs = 0;
+  for (i = 0; i < cfg.modules; ++i) {
+    int s[STATS_FIELDS];
+    pfi_read_stats(pb, indices[i], s);
+    missed_reports += s[4];
+    missed_ready += s[5];
+    skipped_inputs += s[6];
+  }
+
+  printf("shape %s, %d modules (%d forked), %d channels, %d frames at %d Hz, "
+      "%d callbacks%s\n", shape_names[cfg.shape], cfg.modules, cfg.forked,
+      c, cfg.buffer_frames, cfg.sample_rate, cfg.callbacks,
+      cfg.paced ? ", paced" : "");
+  printf("buffer period %lld ns\n", (long long) period);
+  report_distribution("callback", durations, cfg.callbacks);
+  if (cfg.paced) {
+    report_distribution("lateness", lateness, cfg.callbacks);
+  }
+  for (i = 0; i < TRACE_STAGES; ++i) {
+    printf("%-18s %lld ns/callback\n", stage_names[i],
+        (long long) (stages->total[i] / cfg.callbacks));
+  }
+  printf("missed reports %d, missed ready %d, skipped inputs %d\n",
+      missed_reports, missed_ready, skipped_inputs);
+
+  for (i = 0; i < cfg.modules; ++i) {
+    if (runners[i]) {
+      ami_release(runners[i]);
+    }
+  }
+  close(pipe_fds[1]);
+  for (i = 0; i < cfg.forked; ++i) {
+    waitpid(pids[i], NULL, 0);
+  }
+  pfi_release(pb);
+  return 0;
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+/*
+ * Pluggable audio stream backends. A backend opens a stream with the given
+ * configuration and invokes the process callback once per buffer, on a thread
+ * of its own, while the stream is running. The callback signature is the same
+ * as that of opensl_stream.
+ *
+ * Two backends are available: opensl_backend, which talks to OpenSL ES and
+ * only exists on Android, and null_backend, which has no audio hardware at all
+ * and runs anywhere. The null backend feeds silence into the callback and
+ * discards its output, either paced by a CLOCK_MONOTONIC timer at the nominal
+ * sample rate (null_backend), or as fast as the callback allows
+ * (null_backend_unpaced). This lets the engine run headless on plain Linux.
+ */
+
+#ifndef __AUDIO_BACKEND_H__
+#define __AUDIO_BACKEND_H__
+
+typedef void (*audio_backend_process_t)(void *context, int sample_rate,
+    int buffer_frames, int input_channels, const short *input_buffer,
+    int output_channels, short *output_buffer);
+
+typedef struct {
+  const char *name;
+  // Returns an opaque stream handle, or NULL on failure.
+  void *(*open)(int sample_rate, int input_channels, int output_channels,
+      int buffer_frames, audio_backend_process_t process, void *context);
+  void (*close)(void *stream);
+  int (*start)(void *stream);  // Returns 0 on success.
+  void (*pause)(void *stream);
+  int (*is_running)(void *stream);
+} audio_backend;
+
+#ifdef __ANDROID__
+extern const audio_backend opensl_backend;
+#endif
+extern const audio_backend null_backend;
+extern const audio_backend null_backend_unpaced;
+
+/*
+ * Returns the native backend of the platform, i.e., OpenSL on Android and the
+ * paced null backend elsewhere.
+ */
+const audio_backend *ab_get_default();
+
+#endif
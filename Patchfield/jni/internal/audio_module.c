@@ -21,5 +21,72 @@
 void am_configure(void *handle, audio_module_process_t process, void *context) {
   audio_module_runner *amr = (audio_module_runner *) handle;
   amr->process = process;
+  amr->process_events = NULL;
   amr->context = context;
 }
+
+void am_configure_with_events(void *handle,
+    audio_module_process_events_t process, void *context) {
+  audio_module_runner *amr = (audio_module_runner *) handle;
+  amr->process = NULL;
+  amr->process_events = process;
+  amr->context = context;
+}
+
+// The functions below only use the data structures in shared memory, so that
+// this library doesn't depend on the internal one.
+static event_port *get_event_port(audio_module_runner *amr, ptrdiff_t offset,
+    int port) {
+  return ((event_port *) ((float *) amr->shm_ptr + offset)) + port;
+}
+
+int am_get_input_events(void *handle, int port,
+    const am_port_event **events) {
+  audio_module_runner *amr = (audio_module_runner *) handle;
+  audio_module *module = ((audio_module *) amr->shm_ptr) + amr->index;
+  if (port < 0 || port >= module->event_inputs) {
+    *events = NULL;
+    return 0;
+  }
+  event_port *ep = get_event_port(amr, module->event_input_buffer, port);
+  *events = ep->events;
+  return ep->count;
+}
+
+int am_send_event(void *handle, int port, const am_port_event *event) {
+  audio_module_runner *amr = (audio_module_runner *) handle;
+  audio_module *module = ((audio_module *) amr->shm_ptr) + amr->index;
+  if (port < 0 || port >= module->event_outputs) {
+    return -6;  // PatchfieldException.PORT_OUT_OF_RANGE
+  }
+  event_port *ep = get_event_port(amr, module->event_output_buffer, port);
+  if (ep->count >= EVENT_PORT_CAPACITY) {
+    return -15;  // PatchfieldException.EVENT_QUEUE_FULL
+  }
+  am_port_event *e = ep->events + ep->count;
+  *e = *event;
+  if (e->frame >= module->buffer_frames) {
+    e->frame = module->buffer_frames - 1;
+  }
+  if (ep->count > 0 && e->frame < e[-1].frame) {
+    e->frame = e[-1].frame;
+  } else if (e->frame < 0) {
+    e->frame = 0;
+  }
+  ++ep->count;
+  return 0;
+}
+
+int am_get_control_inputs(void *handle, const float **values) {
+  audio_module_runner *amr = (audio_module_runner *) handle;
+  audio_module *module = ((audio_module *) amr->shm_ptr) + amr->index;
+  *values = (float *) amr->shm_ptr + module->control_input_buffer;
+  return module->control_inputs;
+}
+
+int am_get_control_outputs(void *handle, float **values) {
+  audio_module_runner *amr = (audio_module_runner *) handle;
+  audio_module *module = ((audio_module *) amr->shm_ptr) + amr->index;
+  *values = (float *) amr->shm_ptr + module->control_output_buffer;
+  return module->control_outputs;
+}
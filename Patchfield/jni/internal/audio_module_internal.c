@@ -16,65 +16,309 @@
 
 #include "audio_module_internal.h"
 
-#include "opensl_stream/opensl_stream.h"
-#include "audio_module_internal.h"
+#include "audio_backend.h"
+#include "log.h"
 #include "shared_memory_internal.h"
 #include "simple_barrier.h"
 
-#include <android/log.h>
 #include <errno.h>
+#include <math.h>
 #include <setjmp.h>
 #include <signal.h>
 #include <stddef.h>
 #include <stdlib.h>
 #include <string.h>
+#include <sys/syscall.h>
 #include <sys/types.h>
 #include <time.h>
 
-#define LOGI(...) \
-  __android_log_print(ANDROID_LOG_INFO, "audio_module_internal", __VA_ARGS__)
-#define LOGW(...) \
-  __android_log_print(ANDROID_LOG_WARN, "audio_module_internal", __VA_ARGS__)
+#define LOGI(...) LOG_INFO("audio_module_internal", __VA_ARGS__)
+#define LOGW(...) LOG_WARN("audio_module_internal", __VA_ARGS__)
+
+// Older versions of glibc don't expose the thread id field of struct sigevent.
+#ifndef sigev_notify_thread_id
+#define sigev_notify_thread_id _sigev_un._tid
+#endif
 
 audio_module *ami_get_audio_module(void *p, int index) {
   return ((audio_module *) p) + index;
 }
 
+// Returns the processing deadline of the module, or NULL if there is none,
+// i.e., while rendering offline without timeouts.
+struct timespec *ami_get_deadline(audio_module *module) {
+  return (module->deadline.tv_sec || module->deadline.tv_nsec) ?
+    &module->deadline : NULL;
+}
+
 float *ami_get_audio_buffer(void *p, ptrdiff_t offset) {
   return ((float *) p) + offset;
 }
 
+event_port *ami_get_event_port(void *p, ptrdiff_t offset, int port) {
+  return ((event_port *) ami_get_audio_buffer(p, offset)) + port;
+}
+
 simple_barrier_t *ami_get_barrier(void *p, ptrdiff_t offset) {
   return ((simple_barrier_t *) p) + offset;
 }
 
+audio_module_stats *ami_get_stats(void *p, int index) {
+  return ((audio_module_stats *) ((char *) p + STATS_OFFSET * MEM_PAGE_SIZE)) +
+    index;
+}
+
+void ami_read_stats(void *p, int index, int *stats) {
+  int *s = (int *) ami_get_stats(p, index);
+  int i;
+  for (i = 0; i < STATS_FIELDS; ++i) {
+    stats[i] = __sync_or_and_fetch(s + i, 0);
+  }
+}
+
+trace_ring *ami_get_trace_ring(void *p) {
+  return (trace_ring *) ((char *) p + TRACE_OFFSET * MEM_PAGE_SIZE);
+}
+
+event_queue *ami_get_event_queue(void *p, int index) {
+  return ((event_queue *) ((char *) p + EVENT_OFFSET * MEM_PAGE_SIZE)) + index;
+}
+
+// Only safe while no module thread is attached to the slot.
+void ami_clear_events(void *p, int index) {
+  event_queue *queue = ami_get_event_queue(p, index);
+  int i;
+  for (i = 0; i < EVENT_QUEUE_SIZE; ++i) {
+    queue->cells[i].sequence = i;
+  }
+  queue->tail = 0;
+  queue->head = 0;
+  __sync_synchronize();
+}
+
+// Producers claim a cell whose sequence number equals the head, and publish it
+// by setting its sequence number to head + 1. The consumer releases the cell by
+// setting its sequence number to tail + EVENT_QUEUE_SIZE.
+int ami_post_event(void *p, int index, int parameter, float value,
+    unsigned int frame) {
+  event_queue *queue = ami_get_event_queue(p, index);
+  unsigned int pos = __sync_or_and_fetch(&queue->head, 0);
+  while (1) {
+    event_cell *cell = queue->cells + (pos & (EVENT_QUEUE_SIZE - 1));
+    int d = (int) (__sync_or_and_fetch(&cell->sequence, 0) - pos);
+    if (d == 0) {
+      unsigned int prev =
+        __sync_val_compare_and_swap(&queue->head, pos, pos + 1);
+      if (prev == pos) {
+        cell->frame = frame;
+        cell->index = parameter;
+        cell->value = value;
+        __sync_bool_compare_and_swap(&cell->sequence, pos, pos + 1);
+        return 0;
+      }
+      pos = prev;
+    } else if (d < 0) {
+      return -15;  // PatchfieldException.EVENT_QUEUE_FULL
+    } else {
+      pos = __sync_or_and_fetch(&queue->head, 0);
+    }
+  }
+}
+
+meter_area *ami_get_meter_area(void *p) {
+  return (meter_area *) ((char *) p + METER_OFFSET * MEM_PAGE_SIZE);
+}
+
+graph_area *ami_get_graph_area(void *p) {
+  return (graph_area *) ((char *) p + GRAPH_OFFSET * MEM_PAGE_SIZE);
+}
+
+// Only safe while no thread updates the meters of the slot.
+void ami_clear_meters(void *p, int index) {
+  port_meters *meters = ami_get_meter_area(p)->modules + index;
+  __sync_fetch_and_add(&meters->sequence, 1);
+  memset((char *) meters + sizeof(meters->sequence), 0,
+      sizeof(port_meters) - sizeof(meters->sequence));
+  __sync_fetch_and_add(&meters->sequence, 1);
+}
+
+// Updates the meters of the inputs or outputs of a module from its current
+// buffers, if metering is enabled.
+void ami_update_meters(void *p, int index, int outputs) {
+  meter_area *area = ami_get_meter_area(p);
+  if (!__sync_or_and_fetch(&area->enabled, 0)) {
+    return;
+  }
+  audio_module *module = ami_get_audio_module(p, index);
+  port_meters *meters = area->modules + index;
+  int frames = module->buffer_frames;
+  int channels = outputs ? module->output_channels : module->input_channels;
+  if (channels > MAX_METER_PORTS) {
+    channels = MAX_METER_PORTS;
+  }
+  const float *buffer = ami_get_audio_buffer(p,
+      outputs ? module->output_buffer : module->input_buffer);
+  float *peak = outputs ? meters->output_peak : meters->input_peak;
+  float *rms = outputs ? meters->output_rms : meters->input_rms;
+  float decay = expf(-frames / (METER_DECAY_TIME * module->sample_rate));
+  int i, j;
+  __sync_fetch_and_add(&meters->sequence, 1);  // Odd: update in progress.
+  if (outputs) {
+    meters->outputs = channels;
+  } else {
+    meters->inputs = channels;
+  }
+  for (i = 0; i < channels; ++i) {
+    const float *b = buffer + i * frames;
+    float max = 0.0f;
+    float sum = 0.0f;
+    for (j = 0; j < frames; ++j) {
+      float a = fabsf(b[j]);
+      if (a > max) {
+        max = a;
+      }
+      sum += b[j] * b[j];
+    }
+    float held = peak[i] * decay;
+    peak[i] = max > held ? max : held;
+    float ms = sum / frames;
+    float r = sqrtf(ms + decay * (rms[i] * rms[i] - ms));
+    rms[i] = r == r ? r : 0.0f;  // Recover from NaNs.
+  }
+  __sync_fetch_and_add(&meters->sequence, 1);
+}
+
+// Moves events from the queue to the pending list, keeping the pending list
+// sorted by frame time, and then hands out the events that fall within the
+// current buffer, as offsets relative to its beginning. If the pending list is
+// full, further events stay in the queue until there is room.
+static int collect_events(audio_module_runner *amr, audio_module *module) {
+  event_queue *queue = ami_get_event_queue(amr->shm_ptr, amr->index);
+  am_parameter_event *pending = amr->pending;
+  while (amr->pending_count < MAX_PENDING_EVENTS) {
+    event_cell *cell = queue->cells + (queue->tail & (EVENT_QUEUE_SIZE - 1));
+    if (__sync_or_and_fetch(&cell->sequence, 0) != queue->tail + 1) {
+      break;
+    }
+    am_parameter_event e;
+    e.frame = cell->frame;
+    e.index = cell->index;
+    e.value = cell->value;
+    __sync_bool_compare_and_swap(&cell->sequence, queue->tail + 1,
+        queue->tail + EVENT_QUEUE_SIZE);
+    ++queue->tail;
+    int i = amr->pending_count++;
+    // Frame times wrap around, and so we compare differences.
+    for (; i > 0 &&
+        (int) ((unsigned int) pending[i - 1].frame - e.frame) > 0; --i) {
+      pending[i] = pending[i - 1];
+    }
+    pending[i] = e;
+  }
+  unsigned int start = module->frame_time;
+  int n = 0;
+  while (n < amr->pending_count &&
+      (int) ((unsigned int) pending[n].frame - start) <
+        module->buffer_frames) {
+    int offset = (int) ((unsigned int) pending[n].frame - start);
+    amr->events[n] = pending[n];
+    amr->events[n].frame = offset > 0 ? offset : 0;
+    ++n;
+  }
+  amr->pending_count -= n;
+  memmove(pending, pending + n, amr->pending_count * sizeof(*pending));
+  return n;
+}
+
+// Inserts the events of a source port into a sink port, keeping the sink
+// sorted by frame; events with the same frame stay in the order of arrival.
+// Events that don't fit are dropped.
+static void merge_events(event_port *sink, const event_port *source) {
+  int i, j;
+  for (i = 0; i < source->count && sink->count < EVENT_PORT_CAPACITY; ++i) {
+    const am_port_event *e = source->events + i;
+    for (j = sink->count++; j > 0 && sink->events[j - 1].frame > e->frame;
+        --j) {
+      sink->events[j] = sink->events[j - 1];
+    }
+    sink->events[j] = *e;
+  }
+}
+
 void ami_collect_input(void *p, int index) {
+  trace_ring *ring = ami_get_trace_ring(p);
+  tri_record(ring, index, TRACE_COLLECT, TRACE_BEGIN);
   audio_module *module = ami_get_audio_module(p, index);
   float *input_buffer = ami_get_audio_buffer(p, module->input_buffer);
   memset(input_buffer, 0,
       module->buffer_frames * module->input_channels * sizeof(float));
   int i, j;
+  for (i = 0; i < module->event_inputs; ++i) {
+    ami_get_event_port(p, module->event_input_buffer, i)->count = 0;
+  }
+  float *control_buffer = ami_get_audio_buffer(p, module->control_input_buffer);
+  memset(control_buffer, 0,
+      module->control_inputs * AM_CONTROL_POINTS * sizeof(float));
+  int first_control = module->input_channels + module->event_inputs;
   for (i = 0; i < MAX_CONNECTIONS; ++i) {
     connection *conn = module->input_connections + i;
     if (conn->in_use) {
       audio_module *source = ami_get_audio_module(p, conn->source_index);
       if (source->in_use) {
-        float *input_channel =
-          input_buffer + conn->sink_port * module->buffer_frames;
-        float *source_channel = ami_get_audio_buffer(p,
-            source->output_buffer) + conn->source_port * module->buffer_frames;
-        if (!sb_wait(ami_get_barrier(p, source->ready), &source->deadline)) {
+        if (sb_wait(ami_get_barrier(p, source->ready),
+              ami_get_deadline(source))) {
+          __sync_fetch_and_add(&ami_get_stats(p, index)->skipped_inputs, 1);
+        } else if (conn->sink_port < module->input_channels) {
+          float *input_channel =
+            input_buffer + conn->sink_port * module->buffer_frames;
+          float *source_channel = ami_get_audio_buffer(p,
+              source->output_buffer) +
+            conn->source_port * module->buffer_frames;
           for (j = 0; j < module->buffer_frames; ++j) {
             input_channel[j] += source_channel[j];
           }
+        } else if (conn->sink_port < first_control) {
+          // Event ports are numbered after audio ports.
+          merge_events(ami_get_event_port(p, module->event_input_buffer,
+                conn->sink_port - module->input_channels),
+              ami_get_event_port(p, source->event_output_buffer,
+                conn->source_port - source->output_channels));
+        } else {
+          // Control ports are numbered after event ports.
+          float *input_control = control_buffer +
+            (conn->sink_port - first_control) * AM_CONTROL_POINTS;
+          float *source_control = ami_get_audio_buffer(p,
+              source->control_output_buffer) +
+            (conn->source_port - source->output_channels -
+             source->event_outputs) * AM_CONTROL_POINTS;
+          for (j = 0; j < AM_CONTROL_POINTS; ++j) {
+            input_control[j] += source_control[j];
+          }
         }
       }
     }
   }
+  ami_update_meters(p, index, 0);
+  tri_record(ring, index, TRACE_COLLECT, TRACE_END);
 }
 
 #define AM_SIG_ALRM SIGRTMAX
 
+#define ONE_BILLION 1000000000
+
+// Only the module thread writes these fields, and so plain stores suffice.
+static void record_process_time(audio_module_stats *stats,
+    const struct timespec *start, const struct timespec *end) {
+  int dt = (end->tv_sec - start->tv_sec) * ONE_BILLION +
+    (end->tv_nsec - start->tv_nsec);
+  stats->process_time_last = dt;
+  if (dt > stats->process_time_max) {
+    stats->process_time_max = dt;
+  }
+  stats->process_time_avg += (dt - stats->process_time_avg) / 16;
+  __sync_fetch_and_add(&stats->buffers, 1);
+}
+
 static __thread sigjmp_buf sig_env;
 
 static void signal_handler(int sig, siginfo_t *info, void *context) {
@@ -87,20 +331,22 @@ static void *run_module(void *arg) {
   audio_module_runner *amr = (audio_module_runner *) arg;
   sb_wake(&amr->launched);
   audio_module *module = ami_get_audio_module(amr->shm_ptr, amr->index);
+  audio_module_stats *stats = ami_get_stats(amr->shm_ptr, amr->index);
+  trace_ring *ring = ami_get_trace_ring(amr->shm_ptr);
+  struct timespec start, end;
+  int i;
 
   timer_t timer;
   struct sigevent evp;
   evp.sigev_notify = SIGEV_THREAD_ID;
   evp.sigev_signo = AM_SIG_ALRM;
   evp.sigev_value.sival_ptr = module;
-  evp.sigev_notify_thread_id = gettid();
+  evp.sigev_notify_thread_id = syscall(__NR_gettid);
   timer_create(CLOCK_MONOTONIC, &evp, &timer);
 
   struct itimerspec timeout;
   timeout.it_interval.tv_sec = 0;
   timeout.it_interval.tv_nsec = 0;
-  timeout.it_value.tv_sec = 1;  // One-second timeout.
-  timeout.it_value.tv_nsec = 0;
 
   struct itimerspec cancel;
   cancel.it_interval.tv_sec = 0;
@@ -116,14 +362,45 @@ static void *run_module(void *arg) {
         break;
       }
       ami_collect_input(amr->shm_ptr, amr->index);
-      timer_settime(timer, 0, &timeout, NULL);  // Arm timer.
-      amr->process(amr->context, module->sample_rate, module->buffer_frames,
-          module->input_channels,
-          ami_get_audio_buffer(amr->shm_ptr, module->input_buffer),
-          module->output_channels,
-          ami_get_audio_buffer(amr->shm_ptr, module->output_buffer));
-      timer_settime(timer, 0, &cancel, NULL);  // Disarm timer.
+      int event_count = collect_events(amr, module);
+      for (i = 0; i < module->event_outputs; ++i) {
+        event_port *ep = ami_get_event_port(amr->shm_ptr,
+            module->event_output_buffer, i);
+        ep->count = 0;
+      }
+      // The callback gets one second past its processing deadline. Without a
+      // deadline, i.e., while rendering offline without timeouts, it may take
+      // as long as it needs.
+      struct timespec *deadline = ami_get_deadline(module);
+      if (deadline) {
+        timeout.it_value.tv_sec = deadline->tv_sec + 1;
+        timeout.it_value.tv_nsec = deadline->tv_nsec;
+        timer_settime(timer, TIMER_ABSTIME, &timeout, NULL);  // Arm timer.
+      }
+      tri_record(ring, amr->index, TRACE_PROCESS, TRACE_BEGIN);
+      clock_gettime(CLOCK_MONOTONIC, &start);
+      if (amr->process_events) {
+        amr->process_events(amr->context, module->sample_rate,
+            module->buffer_frames, module->input_channels,
+            ami_get_audio_buffer(amr->shm_ptr, module->input_buffer),
+            module->output_channels,
+            ami_get_audio_buffer(amr->shm_ptr, module->output_buffer),
+            event_count, amr->events);
+      } else {
+        amr->process(amr->context, module->sample_rate, module->buffer_frames,
+            module->input_channels,
+            ami_get_audio_buffer(amr->shm_ptr, module->input_buffer),
+            module->output_channels,
+            ami_get_audio_buffer(amr->shm_ptr, module->output_buffer));
+      }
+      clock_gettime(CLOCK_MONOTONIC, &end);
+      tri_record(ring, amr->index, TRACE_PROCESS, TRACE_END);
+      if (deadline) {
+        timer_settime(timer, 0, &cancel, NULL);  // Disarm timer.
+      }
       sb_wake(ami_get_barrier(amr->shm_ptr, module->ready));
+      record_process_time(stats, &start, &end);  // After waking the patchfield.
+      ami_update_meters(amr->shm_ptr, amr->index, 1);
     }
   } else {
     __sync_bool_compare_and_swap(&amr->timed_out, 0, 1);
@@ -149,6 +426,7 @@ static void launch_thread(void *context, int sample_rate, int buffer_frames,
   }
 }
 
+// Module slots and the graph description; see BARRIER_OFFSET.
 static size_t get_protected_size() {
   return BARRIER_OFFSET * MEM_PAGE_SIZE;
 }
@@ -163,11 +441,14 @@ audio_module_runner *ami_create(int version, int token, int index) {
     amr->shm_fd = token;
     amr->shm_ptr = smi_map(token);
     smi_protect(amr->shm_ptr, get_protected_size());
+    tri_init_atrace();
     amr->index = index;
     amr->done = 0;
     amr->timed_out = 0;
     amr->process = NULL;
+    amr->process_events = NULL;
     amr->context = NULL;
+    amr->pending_count = 0;
     amr->launch_counter = 3;  // Make sure that this number stays current.
 
     audio_module *module = ami_get_audio_module(amr->shm_ptr, amr->index);
@@ -176,12 +457,13 @@ audio_module_runner *ami_create(int version, int token, int index) {
     sb_clobber(ami_get_barrier(amr->shm_ptr, module->wake));
     sb_clobber(ami_get_barrier(amr->shm_ptr, module->ready));
 
-    OPENSL_STREAM *os = opensl_open(module->sample_rate, 0, 2,
+    const audio_backend *backend = ab_get_default();
+    void *stream = backend->open(module->sample_rate, 0, 2,
         module->buffer_frames, launch_thread, amr);
     sb_clobber(&amr->launched);
-    opensl_start(os);
+    backend->start(stream);
     sb_wait(&amr->launched, NULL);
-    opensl_close(os);
+    backend->close(stream);
 
     struct sigaction act;
     act.sa_sigaction = signal_handler;
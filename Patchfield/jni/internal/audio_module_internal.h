@@ -25,24 +25,58 @@
 #include "audio_module.h"
 
 #include "simple_barrier.h"
+#include "trace_internal.h"
 
 #include <pthread.h>
 #include <stddef.h>
 #include <time.h>
 #include <unistd.h>
 
-#define PATCHFIELD_PROTOCOL_VERSION 6
+#define PATCHFIELD_PROTOCOL_VERSION 14
 
 #define MAX_MODULES 32 
 #define MAX_CONNECTIONS 16 
+#define EVENT_QUEUE_SIZE 128  // Must be a power of two.
+#define MAX_PENDING_EVENTS 256
+#define EVENT_PORT_CAPACITY 64  // Events per port and buffer.
+#define MAX_METER_PORTS 16  // Audio ports beyond this aren't metered.
+#define METER_DECAY_TIME 0.3f  // Time constant of meters, in seconds.
+#define GRAPH_WORDS 4096  // Capacity of the published graph description.
+
+// Port kinds. A module has inputs and outputs of each kind, and port numbers
+// run through all audio ports first, then all event ports, then all control
+// ports. Arrays of port counts hold the number of inputs of kind k at 2 * k and
+// the number of outputs at 2 * k + 1.
+#define PORT_AUDIO 0
+#define PORT_EVENT 1
+#define PORT_CONTROL 2
+#define PORT_KINDS 3
 
 #define MEM_PAGE_SIZE sysconf(_SC_PAGESIZE)
-#define BARRIER_OFFSET (MAX_MODULES * sizeof(audio_module) / MEM_PAGE_SIZE + 1)
-#define BUFFER_OFFSET \
+// Module processes map everything before BARRIER_OFFSET read-only, i.e., the
+// module slots and the graph description.
+#define GRAPH_OFFSET (MAX_MODULES * sizeof(audio_module) / MEM_PAGE_SIZE + 1)
+#define BARRIER_OFFSET (GRAPH_OFFSET + sizeof(graph_area) / MEM_PAGE_SIZE + 1)
+#define STATS_OFFSET \
   (BARRIER_OFFSET + MAX_MODULES * 3 * sizeof(int) / MEM_PAGE_SIZE + 1)
+#define TRACE_OFFSET \
+  (STATS_OFFSET + MAX_MODULES * sizeof(audio_module_stats) / MEM_PAGE_SIZE + 1)
+#define EVENT_OFFSET (TRACE_OFFSET + sizeof(trace_ring) / MEM_PAGE_SIZE + 1)
+#define METER_OFFSET \
+  (EVENT_OFFSET + MAX_MODULES * sizeof(event_queue) / MEM_PAGE_SIZE + 1)
+#define BUFFER_OFFSET (METER_OFFSET + sizeof(meter_area) / MEM_PAGE_SIZE + 1)
+
+// Events of one port in the current buffer, sorted by frame. Like audio
+// buffers, event ports live in the buffer area and are addressed by offsets.
+typedef struct {
+  int count;
+  am_port_event events[EVENT_PORT_CAPACITY];
+} event_port;
+
+#define EVENT_PORT_SIZE (sizeof(event_port) / sizeof(float))
 
 typedef struct {
-  int status;  // 0: none; 1: current; 2: slated for deletion
+  int status;  // 0: none; 1: current; 2: slated for deletion; 3: staged
   int in_use;
 
   int source_index;
@@ -62,15 +96,58 @@ typedef struct {
   ptrdiff_t input_buffer;   // Storing buffers as offsets of type ptrdiff_t
   int output_channels;      // rather than pointers of type float* to render
   ptrdiff_t output_buffer;  // them independent of the shared memory location.
+  int event_inputs;
+  ptrdiff_t event_input_buffer;
+  int event_outputs;
+  ptrdiff_t event_output_buffer;
+  int control_inputs;  // Control ports hold AM_CONTROL_POINTS floats each.
+  ptrdiff_t control_input_buffer;
+  int control_outputs;
+  ptrdiff_t control_output_buffer;
 
   connection input_connections[MAX_CONNECTIONS];
 
-  struct timespec deadline;
+  struct timespec deadline;  // All zero if there is no deadline.
+  unsigned int frame_time;  // Frame time at the beginning of the current buffer
   ptrdiff_t report;
   ptrdiff_t wake;
   ptrdiff_t ready;
 } audio_module;
 
+// Performance counters, one per module slot. They live in a writable page
+// after the barriers because the process time is recorded by the module while
+// the deadline counters are recorded by the patchfield. Each field has exactly
+// one writer; readers must use atomic reads. Times are in nanoseconds.
+typedef struct {
+  int buffers;            // Number of buffers processed.
+  int process_time_last;  // Duration of the most recent process callback.
+  int process_time_max;   // Duration of the longest process callback.
+  int process_time_avg;   // Exponentially weighted moving average.
+  int missed_reports;     // Buffers skipped because the module didn't report.
+  int missed_ready;       // Buffers for which the output was late.
+  int skipped_inputs;     // Source buffers dropped because they were late.
+} audio_module_stats;
+
+#define STATS_FIELDS ((int) (sizeof(audio_module_stats) / sizeof(int)))
+
+// Parameter events, one queue per module slot. Any process that maps the
+// shared memory may post events, and so the queue is a bounded multi-producer
+// queue in which producers claim cells by advancing the head and then publish
+// them by bumping the sequence number of the cell. The module thread is the
+// only consumer. Frames are absolute frame times; see audio_module.frame_time.
+typedef struct {
+  unsigned int sequence;
+  unsigned int frame;
+  int index;
+  float value;
+} event_cell;
+
+typedef struct {
+  unsigned int head;  // Next cell to claim; shared by all producers.
+  unsigned int tail;  // Next cell to read; owned by the module thread.
+  event_cell cells[EVENT_QUEUE_SIZE];
+} event_queue;
+
 typedef struct {
   int shm_fd;
   void *shm_ptr;
@@ -81,12 +158,64 @@ typedef struct {
   int done;
   int timed_out;
   audio_module_process_t process;
+  audio_module_process_events_t process_events;
   void *context;
+  // Events taken from the queue, by absolute frame time, and the events that
+  // are due in the current buffer, by offset.
+  am_parameter_event pending[MAX_PENDING_EVENTS];
+  int pending_count;
+  am_parameter_event events[MAX_PENDING_EVENTS];
 } audio_module_runner;
 
+// Peak and RMS levels of the audio ports of a module, with decay. Each record
+// is protected by a seqlock: the writer makes the sequence number odd while it
+// updates the levels, and readers retry until they see the same even sequence
+// number before and after reading. Only the thread that collects the input of
+// a module writes its record, i.e., the module thread or, for the system
+// modules, the patchfield. The layout must agree with PortMeters.java.
+typedef struct {
+  unsigned int sequence;
+  int inputs;   // Number of metered input ports.
+  int outputs;  // Number of metered output ports.
+  float input_peak[MAX_METER_PORTS];
+  float input_rms[MAX_METER_PORTS];
+  float output_peak[MAX_METER_PORTS];
+  float output_rms[MAX_METER_PORTS];
+} port_meters;
+
+typedef struct {
+  int enabled;  // Metering costs nothing while this is zero.
+  port_meters modules[MAX_MODULES];
+} meter_area;
+
+// Description of the graph, published by the service whenever the graph
+// changes, so that clients can read it without binder transactions. Protected
+// by a seqlock like port_meters; the only writer is the service, and module
+// processes can't forge it because it lives in their read-only prefix. The
+// words are opaque to the native code; they are encoded and decoded by
+// GraphMirror.java.
+typedef struct {
+  unsigned int sequence;
+  int size;  // Number of valid words; 0 if unavailable, -1 if too large.
+  int words[GRAPH_WORDS];
+} graph_area;
+
 audio_module *ami_get_audio_module(void *p, int index);
+struct timespec *ami_get_deadline(audio_module *module);
 float *ami_get_audio_buffer(void *p, ptrdiff_t offset);
+event_port *ami_get_event_port(void *p, ptrdiff_t offset, int port);
 simple_barrier_t *ami_get_barrier(void *p, ptrdiff_t offset);
+audio_module_stats *ami_get_stats(void *p, int index);
+void ami_read_stats(void *p, int index, int *stats);
+trace_ring *ami_get_trace_ring(void *p);
+event_queue *ami_get_event_queue(void *p, int index);
+void ami_clear_events(void *p, int index);
+int ami_post_event(void *p, int index, int parameter, float value,
+    unsigned int frame);
+meter_area *ami_get_meter_area(void *p);
+void ami_clear_meters(void *p, int index);
+void ami_update_meters(void *p, int index, int outputs);
+graph_area *ami_get_graph_area(void *p);
 void ami_collect_input(void *p, int index);
 audio_module_runner *ami_create(int version, int token, int index);
 void ami_release(audio_module_runner *p);
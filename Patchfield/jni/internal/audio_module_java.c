@@ -43,3 +43,34 @@ Java_com_noisepages_nettoyeur_patchfield_AudioModule_hasTimedOut
   audio_module_runner *amr = (audio_module_runner *) p;
   return ami_has_timed_out(amr);
 }
+
+JNIEXPORT jint JNICALL
+Java_com_noisepages_nettoyeur_patchfield_AudioModule_getStats
+(JNIEnv *env, jobject obj, jlong p, jintArray stats) {
+  audio_module_runner *amr = (audio_module_runner *) p;
+  if ((*env)->GetArrayLength(env, stats) < STATS_FIELDS) {
+    return -2;  // PatchfieldException.INVALID_PARAMETERS
+  }
+  int s[STATS_FIELDS];
+  ami_read_stats(amr->shm_ptr, amr->index, s);
+  (*env)->SetIntArrayRegion(env, stats, 0, STATS_FIELDS, s);
+  return 0;
+}
+
+JNIEXPORT jint JNICALL
+Java_com_noisepages_nettoyeur_patchfield_AudioModule_getFrameTime
+(JNIEnv *env, jobject obj, jlong p) {
+  audio_module_runner *amr = (audio_module_runner *) p;
+  audio_module *module = ami_get_audio_module(amr->shm_ptr, amr->index);
+  // The module slot is read-only here, and so an atomic read-modify-write
+  // would fault; a volatile read of an aligned int is atomic, too.
+  return (jint) *(volatile unsigned int *) &module->frame_time;
+}
+
+JNIEXPORT jint JNICALL
+Java_com_noisepages_nettoyeur_patchfield_AudioModule_postEvent
+(JNIEnv *env, jobject obj, jlong p, jint parameter, jfloat value,
+ jint frame) {
+  audio_module_runner *amr = (audio_module_runner *) p;
+  return ami_post_event(amr->shm_ptr, amr->index, parameter, value, frame);
+}
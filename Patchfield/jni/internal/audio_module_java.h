@@ -39,6 +39,30 @@ JNIEXPORT void JNICALL Java_com_noisepages_nettoyeur_patchfield_AudioModule_rele
 JNIEXPORT jboolean JNICALL Java_com_noisepages_nettoyeur_patchfield_AudioModule_hasTimedOut
   (JNIEnv *, jobject, jlong);
 
+/*
+ * Class:     com_noisepages_nettoyeur_patchfield_AudioModule
+ * Method:    getStats
+ * Signature: (J[I)I
+ */
+JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_AudioModule_getStats
+  (JNIEnv *, jobject, jlong, jintArray);
+
+/*
+ * Class:     com_noisepages_nettoyeur_patchfield_AudioModule
+ * Method:    getFrameTime
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_AudioModule_getFrameTime
+  (JNIEnv *, jobject, jlong);
+
+/*
+ * Class:     com_noisepages_nettoyeur_patchfield_AudioModule
+ * Method:    postEvent
+ * Signature: (JIFI)I
+ */
+JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_AudioModule_postEvent
+  (JNIEnv *, jobject, jlong, jint, jfloat, jint);
+
 #ifdef __cplusplus
 }
 #endif
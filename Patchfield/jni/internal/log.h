@@ -0,0 +1,52 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+/*
+ * Logging shim for the native code. On Android, messages go to logcat; on
+ * plain Linux builds, e.g., headless benchmarks and tests, they go to stderr.
+ * Each source file defines LOGI and LOGW in terms of these macros, with its
+ * own tag.
+ */
+
+#ifndef __LOG_H__
+#define __LOG_H__
+
+#ifdef __ANDROID__
+
+#include <android/log.h>
+
+#define LOG_INFO(tag, ...) \
+  __android_log_print(ANDROID_LOG_INFO, tag, __VA_ARGS__)
+#define LOG_WARN(tag, ...) \
+  __android_log_print(ANDROID_LOG_WARN, tag, __VA_ARGS__)
+
+#else
+
+#include <stdio.h>
+
+#define LOG_PRINT(level, tag, ...) \
+  do { \
+    fprintf(stderr, "%s/%s: ", level, tag); \
+    fprintf(stderr, __VA_ARGS__); \
+    fputc('\n', stderr); \
+  } while (0)
+
+#define LOG_INFO(tag, ...) LOG_PRINT("I", tag, __VA_ARGS__)
+#define LOG_WARN(tag, ...) LOG_PRINT("W", tag, __VA_ARGS__)
+
+#endif
+
+#endif
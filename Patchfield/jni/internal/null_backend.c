@@ -0,0 +1,202 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+#include "audio_backend.h"
+
+#include <pthread.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <time.h>
+
+#define ONE_BILLION 1000000000
+
+typedef struct {
+  int sample_rate;
+  int buffer_frames;
+  int input_channels;
+  int output_channels;
+  int paced;
+  audio_backend_process_t process;
+  void *context;
+  short *input_buffer;   // Always silent.
+  short *output_buffer;  // Discarded.
+  pthread_t thread;
+  pthread_mutex_t lock;
+  pthread_cond_t cond;
+  int running;  // Guarded by lock.
+  int active;   // Guarded by lock; 1 while the thread is between callbacks.
+  int done;     // Guarded by lock.
+} null_stream;
+
+static int64_t get_time() {
+  struct timespec t;
+  clock_gettime(CLOCK_MONOTONIC, &t);
+  return (int64_t) t.tv_sec * ONE_BILLION + t.tv_nsec;
+}
+
+static void sleep_until(int64_t t) {
+  struct timespec deadline;
+  deadline.tv_sec = t / ONE_BILLION;
+  deadline.tv_nsec = t % ONE_BILLION;
+  while (clock_nanosleep(CLOCK_MONOTONIC, TIMER_ABSTIME, &deadline, NULL));
+}
+
+static void *run_stream(void *arg) {
+  null_stream *ns = (null_stream *) arg;
+  int64_t period =
+    (int64_t) ns->buffer_frames * ONE_BILLION / ns->sample_rate;
+  int64_t next = 0;
+  pthread_mutex_lock(&ns->lock);
+  while (!ns->done) {
+    if (!ns->running) {
+      ns->active = 0;
+      pthread_cond_broadcast(&ns->cond);
+      pthread_cond_wait(&ns->cond, &ns->lock);
+      next = get_time();
+      continue;
+    }
+    ns->active = 1;
+    pthread_mutex_unlock(&ns->lock);
+    if (ns->paced) {
+      sleep_until(next);
+      next += period;
+      int64_t now = get_time();
+      if (now > next) {
+        next = now;  // Fell behind by more than a buffer; drop the backlog.
+      }
+    }
+    ns->process(ns->context, ns->sample_rate, ns->buffer_frames,
+        ns->input_channels, ns->input_buffer,
+        ns->output_channels, ns->output_buffer);
+    pthread_mutex_lock(&ns->lock);
+  }
+  ns->active = 0;
+  pthread_cond_broadcast(&ns->cond);
+  pthread_mutex_unlock(&ns->lock);
+  return NULL;
+}
+
+static void *open_stream(int sample_rate, int input_channels,
+    int output_channels, int buffer_frames, audio_backend_process_t process,
+    void *context, int paced) {
+  if (sample_rate <= 0 || buffer_frames <= 0) {
+    return NULL;
+  }
+  null_stream *ns = malloc(sizeof(null_stream));
+  if (!ns) {
+    return NULL;
+  }
+  ns->sample_rate = sample_rate;
+  ns->buffer_frames = buffer_frames;
+  ns->input_channels = input_channels;
+  ns->output_channels = output_channels;
+  ns->paced = paced;
+  ns->process = process;
+  ns->context = context;
+  ns->input_buffer = calloc(input_channels * buffer_frames + 1, sizeof(short));
+  ns->output_buffer =
+    calloc(output_channels * buffer_frames + 1, sizeof(short));
+  ns->running = 0;
+  ns->active = 0;
+  ns->done = 0;
+  pthread_mutex_init(&ns->lock, NULL);
+  pthread_cond_init(&ns->cond, NULL);
+  if (!ns->input_buffer || !ns->output_buffer ||
+      pthread_create(&ns->thread, NULL, run_stream, ns)) {
+    pthread_cond_destroy(&ns->cond);
+    pthread_mutex_destroy(&ns->lock);
+    free(ns->input_buffer);
+    free(ns->output_buffer);
+    free(ns);
+    return NULL;
+  }
+  return ns;
+}
+
+static void *ns_open_paced(int sample_rate, int input_channels,
+    int output_channels, int buffer_frames, audio_backend_process_t process,
+    void *context) {
+  return open_stream(sample_rate, input_channels, output_channels,
+      buffer_frames, process, context, 1);
+}
+
+static void *ns_open_unpaced(int sample_rate, int input_channels,
+    int output_channels, int buffer_frames, audio_backend_process_t process,
+    void *context) {
+  return open_stream(sample_rate, input_channels, output_channels,
+      buffer_frames, process, context, 0);
+}
+
+static void ns_close(void *stream) {
+  null_stream *ns = (null_stream *) stream;
+  if (!ns) {
+    return;
+  }
+  pthread_mutex_lock(&ns->lock);
+  ns->done = 1;
+  pthread_cond_broadcast(&ns->cond);
+  pthread_mutex_unlock(&ns->lock);
+  pthread_join(ns->thread, NULL);
+  pthread_cond_destroy(&ns->cond);
+  pthread_mutex_destroy(&ns->lock);
+  free(ns->input_buffer);
+  free(ns->output_buffer);
+  free(ns);
+}
+
+static int ns_start(void *stream) {
+  null_stream *ns = (null_stream *) stream;
+  pthread_mutex_lock(&ns->lock);
+  ns->running = 1;
+  pthread_cond_broadcast(&ns->cond);
+  pthread_mutex_unlock(&ns->lock);
+  return 0;
+}
+
+// Returns only after the current callback, if any, has finished, so that the
+// caller may safely touch state that the callback owns while running.
+static void ns_pause(void *stream) {
+  null_stream *ns = (null_stream *) stream;
+  pthread_mutex_lock(&ns->lock);
+  ns->running = 0;
+  pthread_cond_broadcast(&ns->cond);
+  while (ns->active) {
+    pthread_cond_wait(&ns->cond, &ns->lock);
+  }
+  pthread_mutex_unlock(&ns->lock);
+}
+
+static int ns_is_running(void *stream) {
+  null_stream *ns = (null_stream *) stream;
+  pthread_mutex_lock(&ns->lock);
+  int running = ns->running;
+  pthread_mutex_unlock(&ns->lock);
+  return running;
+}
+
+const audio_backend null_backend = {
+  "null", ns_open_paced, ns_close, ns_start, ns_pause, ns_is_running
+};
+
+const audio_backend null_backend_unpaced = {
+  "null_unpaced", ns_open_unpaced, ns_close, ns_start, ns_pause, ns_is_running
+};
+
+#ifndef __ANDROID__
+const audio_backend *ab_get_default() {
+  return &null_backend;
+}
+#endif
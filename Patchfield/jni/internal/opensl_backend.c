@@ -0,0 +1,49 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+#include "audio_backend.h"
+
+#include "opensl_stream/opensl_stream.h"
+
+static void *os_open(int sample_rate, int input_channels, int output_channels,
+    int buffer_frames, audio_backend_process_t process, void *context) {
+  return opensl_open(sample_rate, input_channels, output_channels,
+      buffer_frames, process, context);
+}
+
+static void os_close(void *stream) {
+  opensl_close((OPENSL_STREAM *) stream);
+}
+
+static int os_start(void *stream) {
+  return opensl_start((OPENSL_STREAM *) stream);
+}
+
+static void os_pause(void *stream) {
+  opensl_pause((OPENSL_STREAM *) stream);
+}
+
+static int os_is_running(void *stream) {
+  return opensl_is_running((OPENSL_STREAM *) stream);
+}
+
+const audio_backend opensl_backend = {
+  "opensl", os_open, os_close, os_start, os_pause, os_is_running
+};
+
+const audio_backend *ab_get_default() {
+  return &opensl_backend;
+}
@@ -1,148 +1,204 @@
 /* DO NOT EDIT THIS FILE - it is machine generated */
 #include <jni.h>
-/* Header for class com_noisepages_nettoyeur_patchfield_Patchfield */
+/* Header for class com_noisepages_nettoyeur_patchfield_internal_NativeEngine */
 
-#ifndef _Included_com_noisepages_nettoyeur_patchfield_Patchfield
-#define _Included_com_noisepages_nettoyeur_patchfield_Patchfield
+#ifndef _Included_com_noisepages_nettoyeur_patchfield_internal_NativeEngine
+#define _Included_com_noisepages_nettoyeur_patchfield_internal_NativeEngine
 #ifdef __cplusplus
 extern "C" {
 #endif
 /*
- * Class:     com_noisepages_nettoyeur_patchfield_Patchfield
+ * Class:     com_noisepages_nettoyeur_patchfield_internal_NativeEngine
  * Method:    createInstance
  * Signature: (IIII)J
  */
-JNIEXPORT jlong JNICALL Java_com_noisepages_nettoyeur_patchfield_Patchfield_createInstance
+JNIEXPORT jlong JNICALL Java_com_noisepages_nettoyeur_patchfield_internal_NativeEngine_createInstance
   (JNIEnv *, jobject, jint, jint, jint, jint);
 
 /*
- * Class:     com_noisepages_nettoyeur_patchfield_Patchfield
+ * Class:     com_noisepages_nettoyeur_patchfield_internal_NativeEngine
  * Method:    sendSharedMemoryFileDescriptor
  * Signature: (J)I
  */
-JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_Patchfield_sendSharedMemoryFileDescriptor
+JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_internal_NativeEngine_sendSharedMemoryFileDescriptor
   (JNIEnv *, jobject, jlong);
 
 /*
- * Class:     com_noisepages_nettoyeur_patchfield_Patchfield
+ * Class:     com_noisepages_nettoyeur_patchfield_internal_NativeEngine
  * Method:    releaseInstance
  * Signature: (J)V
  */
-JNIEXPORT void JNICALL Java_com_noisepages_nettoyeur_patchfield_Patchfield_releaseInstance
+JNIEXPORT void JNICALL Java_com_noisepages_nettoyeur_patchfield_internal_NativeEngine_releaseInstance
   (JNIEnv *, jobject, jlong);
 
 /*
- * Class:     com_noisepages_nettoyeur_patchfield_Patchfield
+ * Class:     com_noisepages_nettoyeur_patchfield_internal_NativeEngine
  * Method:    createModule
- * Signature: (JII)I
+ * Signature: (J[I)I
  */
-JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_Patchfield_createModule
-  (JNIEnv *, jobject, jlong, jint, jint);
+JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_internal_NativeEngine_createModule
+  (JNIEnv *, jobject, jlong, jintArray);
 
 /*
- * Class:     com_noisepages_nettoyeur_patchfield_Patchfield
+ * Class:     com_noisepages_nettoyeur_patchfield_internal_NativeEngine
  * Method:    deleteModule
  * Signature: (JI)I
  */
-JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_Patchfield_deleteModule
+JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_internal_NativeEngine_deleteModule
   (JNIEnv *, jobject, jlong, jint);
 
 /*
- * Class:     com_noisepages_nettoyeur_patchfield_Patchfield
+ * Class:     com_noisepages_nettoyeur_patchfield_internal_NativeEngine
  * Method:    connectPorts
  * Signature: (JIIII)I
  */
-JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_Patchfield_connectPorts
+JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_internal_NativeEngine_connectPorts
   (JNIEnv *, jobject, jlong, jint, jint, jint, jint);
 
 /*
- * Class:     com_noisepages_nettoyeur_patchfield_Patchfield
+ * Class:     com_noisepages_nettoyeur_patchfield_internal_NativeEngine
  * Method:    disconnectPorts
  * Signature: (JIIII)I
  */
-JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_Patchfield_disconnectPorts
+JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_internal_NativeEngine_disconnectPorts
   (JNIEnv *, jobject, jlong, jint, jint, jint, jint);
 
 /*
- * Class:     com_noisepages_nettoyeur_patchfield_Patchfield
+ * Class:     com_noisepages_nettoyeur_patchfield_internal_NativeEngine
+ * Method:    applyEdits
+ * Signature: (J[I)I
+ */
+JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_internal_NativeEngine_applyEdits
+  (JNIEnv *, jobject, jlong, jintArray);
+
+/*
+ * Class:     com_noisepages_nettoyeur_patchfield_internal_NativeEngine
  * Method:    activateModule
  * Signature: (JI)I
  */
-JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_Patchfield_activateModule
+JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_internal_NativeEngine_activateModule
   (JNIEnv *, jobject, jlong, jint);
 
 /*
- * Class:     com_noisepages_nettoyeur_patchfield_Patchfield
+ * Class:     com_noisepages_nettoyeur_patchfield_internal_NativeEngine
  * Method:    deactivateModule
  * Signature: (JI)I
  */
-JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_Patchfield_deactivateModule
+JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_internal_NativeEngine_deactivateModule
   (JNIEnv *, jobject, jlong, jint);
 
 /*
- * Class:     com_noisepages_nettoyeur_patchfield_Patchfield
+ * Class:     com_noisepages_nettoyeur_patchfield_internal_NativeEngine
  * Method:    start
  * Signature: (J)I
  */
-JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_Patchfield_start
+JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_internal_NativeEngine_start
   (JNIEnv *, jobject, jlong);
 
 /*
- * Class:     com_noisepages_nettoyeur_patchfield_Patchfield
+ * Class:     com_noisepages_nettoyeur_patchfield_internal_NativeEngine
  * Method:    stop
  * Signature: (J)V
  */
-JNIEXPORT void JNICALL Java_com_noisepages_nettoyeur_patchfield_Patchfield_stop
+JNIEXPORT void JNICALL Java_com_noisepages_nettoyeur_patchfield_internal_NativeEngine_stop
   (JNIEnv *, jobject, jlong);
 
 /*
- * Class:     com_noisepages_nettoyeur_patchfield_Patchfield
- * Method:    isActive
- * Signature: (JI)Z
- */
-JNIEXPORT jboolean JNICALL Java_com_noisepages_nettoyeur_patchfield_Patchfield_isActive
-  (JNIEnv *, jobject, jlong, jint);
-
-/*
- * Class:     com_noisepages_nettoyeur_patchfield_Patchfield
+ * Class:     com_noisepages_nettoyeur_patchfield_internal_NativeEngine
  * Method:    isRunning
  * Signature: (J)Z
  */
-JNIEXPORT jboolean JNICALL Java_com_noisepages_nettoyeur_patchfield_Patchfield_isRunning
+JNIEXPORT jboolean JNICALL Java_com_noisepages_nettoyeur_patchfield_internal_NativeEngine_isRunning
   (JNIEnv *, jobject, jlong);
 
 /*
- * Class:     com_noisepages_nettoyeur_patchfield_Patchfield
- * Method:    isConnected
- * Signature: (JIIII)Z
+ * Class:     com_noisepages_nettoyeur_patchfield_internal_NativeEngine
+ * Method:    getProtocolVersion
+ * Signature: (J)I
  */
-JNIEXPORT jboolean JNICALL Java_com_noisepages_nettoyeur_patchfield_Patchfield_isConnected
-  (JNIEnv *, jobject, jlong, jint, jint, jint, jint);
+JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_internal_NativeEngine_getProtocolVersion
+  (JNIEnv *, jobject, jlong);
 
 /*
- * Class:     com_noisepages_nettoyeur_patchfield_Patchfield
- * Method:    getInputChannels
- * Signature: (JI)I
+ * Class:     com_noisepages_nettoyeur_patchfield_internal_NativeEngine
+ * Method:    setTraceFlags
+ * Signature: (JI)V
  */
-JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_Patchfield_getInputChannels
+JNIEXPORT void JNICALL Java_com_noisepages_nettoyeur_patchfield_internal_NativeEngine_setTraceFlags
   (JNIEnv *, jobject, jlong, jint);
 
 /*
- * Class:     com_noisepages_nettoyeur_patchfield_Patchfield
- * Method:    getOutputChannels
- * Signature: (JI)I
+ * Class:     com_noisepages_nettoyeur_patchfield_internal_NativeEngine
+ * Method:    readTrace
+ * Signature: (J[I[J)I
  */
-JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_Patchfield_getOutputChannels
-  (JNIEnv *, jobject, jlong, jint);
+JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_internal_NativeEngine_readTrace
+  (JNIEnv *, jobject, jlong, jintArray, jlongArray);
 
 /*
- * Class:     com_noisepages_nettoyeur_patchfield_Patchfield
- * Method:    getProtocolVersion
+ * Class:     com_noisepages_nettoyeur_patchfield_internal_NativeEngine
+ * Method:    setMetering
+ * Signature: (JZ)V
+ */
+JNIEXPORT void JNICALL Java_com_noisepages_nettoyeur_patchfield_internal_NativeEngine_setMetering
+  (JNIEnv *, jobject, jlong, jboolean);
+
+/*
+ * Class:     com_noisepages_nettoyeur_patchfield_internal_NativeEngine
+ * Method:    getMeterLayout
+ * Signature: (J[I)I
+ */
+JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_internal_NativeEngine_getMeterLayout
+  (JNIEnv *, jobject, jlong, jintArray);
+
+/*
+ * Class:     com_noisepages_nettoyeur_patchfield_internal_NativeEngine
+ * Method:    publishGraph
+ * Signature: (J[I)I
+ */
+JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_internal_NativeEngine_publishGraph
+  (JNIEnv *, jobject, jlong, jintArray);
+
+/*
+ * Class:     com_noisepages_nettoyeur_patchfield_internal_NativeEngine
+ * Method:    getGraphLayout
+ * Signature: (J[I)I
+ */
+JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_internal_NativeEngine_getGraphLayout
+  (JNIEnv *, jobject, jlong, jintArray);
+
+/*
+ * Class:     com_noisepages_nettoyeur_patchfield_internal_NativeEngine
+ * Method:    getModuleStats
+ * Signature: (JI[I)I
+ */
+JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_internal_NativeEngine_getModuleStats
+  (JNIEnv *, jobject, jlong, jint, jintArray);
+
+/*
+ * Class:     com_noisepages_nettoyeur_patchfield_internal_NativeEngine
+ * Method:    render
+ * Signature: (J[S[SII)I
+ */
+JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_internal_NativeEngine_render
+  (JNIEnv *, jobject, jlong, jshortArray, jshortArray, jint, jint);
+
+/*
+ * Class:     com_noisepages_nettoyeur_patchfield_internal_NativeEngine
+ * Method:    getFrameTime
  * Signature: (J)I
  */
-JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_Patchfield_getProtocolVersion
+JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_internal_NativeEngine_getFrameTime
   (JNIEnv *, jobject, jlong);
 
+/*
+ * Class:     com_noisepages_nettoyeur_patchfield_internal_NativeEngine
+ * Method:    postParameterEvents
+ * Signature: (JI[I[F[I)I
+ */
+JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_internal_NativeEngine_postParameterEvents
+  (JNIEnv *, jobject, jlong, jint, jintArray, jfloatArray, jintArray);
+
 #ifdef __cplusplus
 }
 #endif
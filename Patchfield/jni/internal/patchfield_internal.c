@@ -0,0 +1,687 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+#include "patchfield_internal.h"
+
+#include "audio_module_internal.h"
+#include "log.h"
+#include "shared_memory_internal.h"
+#include "simple_barrier.h"
+
+#include <limits.h>
+#include <math.h>
+#include <pthread.h>
+#include <stddef.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+
+#define LOGI(...) LOG_INFO("patchfield", __VA_ARGS__)
+#define LOGW(...) LOG_WARN("patchfield", __VA_ARGS__)
+
+#define MAX_EDITS (MAX_MODULES * (2 * MAX_CONNECTIONS + 1))
+
+typedef struct {
+  int type;
+  int index;
+  connection *conn;
+} staged_edit;
+
+struct _patchfield {
+  const audio_backend *backend;
+  void *stream;
+  int sample_rate;
+  int buffer_frames;
+  int shm_fd;
+  void *shm_ptr;
+  ptrdiff_t next_buffer;
+  staged_edit edits[MAX_EDITS];
+  int edit_count;
+  int edits_pending;  // 0: no edits staged; 1: edits staged, waiting for commit
+  int input_channels;
+  int output_channels;
+  pthread_mutex_t render_lock;  // Guards transitions between live and offline.
+  int rendering;      // 1 while pfi_render drives the processing callback
+  int64_t timeout;    // Deadline override in nanoseconds; 0 for live defaults,
+                      // NO_TIMEOUT for no deadlines at all
+  unsigned int frame_time;  // Frames processed so far, modulo 2^32
+};
+
+// Size of the buffers of a module, in floats, given the total numbers of audio,
+// event, and control ports; see pfi_add_module for the layout.
+static ptrdiff_t buffer_size(patchfield *pb, int channels, int event_ports,
+    int control_ports) {
+  return channels * pb->buffer_frames + event_ports * EVENT_PORT_SIZE +
+    control_ports * AM_CONTROL_POINTS;
+}
+
+static void perform_cleanup(patchfield *pb) {
+  int i, j, k;
+  for (i = 0; i < MAX_MODULES; ++i) {
+    audio_module *module = ami_get_audio_module(pb->shm_ptr, i);
+    if (__sync_or_and_fetch(&module->status, 0) == 2) {
+      ptrdiff_t size = buffer_size(pb,
+          module->input_channels + module->output_channels,
+          module->event_inputs + module->event_outputs,
+          module->control_inputs + module->control_outputs);
+      pb->next_buffer -= size;
+      for (j = 0; j < MAX_MODULES; ++j) {
+        audio_module *other = ami_get_audio_module(pb->shm_ptr, j);
+        if (other->input_buffer > module->input_buffer) {
+          other->input_buffer -= size;
+          other->output_buffer -= size;
+          other->event_input_buffer -= size;
+          other->event_output_buffer -= size;
+          other->control_input_buffer -= size;
+          other->control_output_buffer -= size;
+        }
+        for (k = 0; k < MAX_CONNECTIONS; ++k) {
+          connection *conn = other->input_connections + k;
+          if (conn->source_index == i &&
+              __sync_or_and_fetch(&conn->status, 0)) {
+            int val = 1;
+            while (val = __sync_val_compare_and_swap(&conn->status, val, 0));
+          }
+        }
+      }
+      __sync_bool_compare_and_swap(&module->status, 2, 0);
+    } else {
+      for (j = 0; j < MAX_CONNECTIONS; ++j) {
+        connection *conn = module->input_connections + j;
+        __sync_bool_compare_and_swap(&conn->status, 2, 0);
+      }
+    }
+  }
+}
+
+int pfi_is_running(patchfield *pb) {
+  return pb->backend->is_running(pb->stream);
+}
+
+// True if the processing callback may be invoked concurrently, either by the
+// stream or by an offline render.
+static int is_processing(patchfield *pb) {
+  return pfi_is_running(pb) || __sync_or_and_fetch(&pb->rendering, 0);
+}
+
+// Reclaims deleted modules and connections unless the processing callback may
+// be invoked concurrently, in which case the callback takes care of it. The
+// render lock keeps the stream and offline renders from starting between the
+// check and the cleanup.
+static void cleanup_if_idle(patchfield *pb) {
+  pthread_mutex_lock(&pb->render_lock);
+  if (!is_processing(pb)) {
+    perform_cleanup(pb);
+  }
+  pthread_mutex_unlock(&pb->render_lock);
+}
+
+// The buffers of a module are contiguous: audio inputs, audio outputs, event
+// inputs, event outputs, control inputs, control outputs.
+int pfi_add_module(patchfield *pb, const int *ports) {
+  cleanup_if_idle(pb);
+  int input_channels = ports[2 * PORT_AUDIO];
+  int output_channels = ports[2 * PORT_AUDIO + 1];
+  int event_inputs = ports[2 * PORT_EVENT];
+  int event_outputs = ports[2 * PORT_EVENT + 1];
+  int control_inputs = ports[2 * PORT_CONTROL];
+  int control_outputs = ports[2 * PORT_CONTROL + 1];
+  if ((pb->next_buffer + buffer_size(pb, input_channels + output_channels,
+          event_inputs + event_outputs, control_inputs + control_outputs)) *
+      (ptrdiff_t) sizeof(float) > smi_get_size()) {
+    return -9;  // PatchfieldException.OUT_OF_BUFFER_SPACE
+  }
+  int i;
+  for (i = 0; i < MAX_MODULES; ++i) {
+    audio_module *module = ami_get_audio_module(pb->shm_ptr, i);
+    if (__sync_or_and_fetch(&module->status, 0) == 0) {
+      module->active = 0;
+      module->in_use = 0;
+      module->sample_rate = pb->sample_rate;
+      module->buffer_frames = pb->buffer_frames;
+      module->input_channels = input_channels;
+      module->input_buffer = pb->next_buffer;
+      pb->next_buffer += input_channels * pb->buffer_frames;
+      module->output_channels = output_channels;
+      module->output_buffer = pb->next_buffer;
+      pb->next_buffer += output_channels * pb->buffer_frames;
+      module->event_inputs = event_inputs;
+      module->event_input_buffer = pb->next_buffer;
+      pb->next_buffer += event_inputs * EVENT_PORT_SIZE;
+      module->event_outputs = event_outputs;
+      module->event_output_buffer = pb->next_buffer;
+      pb->next_buffer += event_outputs * EVENT_PORT_SIZE;
+      module->control_inputs = control_inputs;
+      module->control_input_buffer = pb->next_buffer;
+      pb->next_buffer += control_inputs * AM_CONTROL_POINTS;
+      module->control_outputs = control_outputs;
+      module->control_output_buffer = pb->next_buffer;
+      pb->next_buffer += control_outputs * AM_CONTROL_POINTS;
+      memset(ami_get_audio_buffer(pb->shm_ptr, module->control_output_buffer),
+          0, control_outputs * AM_CONTROL_POINTS * sizeof(float));
+      module->report =
+        BARRIER_OFFSET * MEM_PAGE_SIZE / sizeof(simple_barrier_t) + i * 3;
+      sb_clobber(ami_get_barrier(pb->shm_ptr, module->report));
+      module->wake = module->report + 1;
+      sb_clobber(ami_get_barrier(pb->shm_ptr, module->wake));
+      module->ready = module->report + 2;
+      sb_clobber(ami_get_barrier(pb->shm_ptr, module->ready));
+      memset(module->input_connections, 0,
+          MAX_CONNECTIONS * sizeof(connection));
+      memset(ami_get_stats(pb->shm_ptr, i), 0, sizeof(audio_module_stats));
+      ami_clear_meters(pb->shm_ptr, i);
+      ami_clear_events(pb->shm_ptr, i);
+      __sync_bool_compare_and_swap(&module->status, 0, 1);
+      return i;
+    }
+  }
+  return -5;  // PatchfieldException.TOO_MANY_MODULES
+}
+
+int pfi_delete_module(patchfield *pb, int index) {
+  audio_module *module = ami_get_audio_module(pb->shm_ptr, index);
+  __sync_bool_compare_and_swap(&module->status, 1, 2);
+  return 0;
+}
+
+int pfi_activate_module(patchfield *pb, int index) {
+  audio_module *module = ami_get_audio_module(pb->shm_ptr, index);
+  __sync_bool_compare_and_swap(&module->active, 0, 1);
+  return 0;
+}
+int pfi_deactivate_module(patchfield *pb, int index) {
+  audio_module *module = ami_get_audio_module(pb->shm_ptr, index);
+  __sync_bool_compare_and_swap(&module->active, 1, 0);
+  return 0;
+}
+
+int pfi_connect(patchfield *pb, int source_index, int source_port,
+   int sink_index, int sink_port) {
+  cleanup_if_idle(pb);
+  audio_module *sink = ami_get_audio_module(pb->shm_ptr, sink_index);
+  int i;
+  for (i = 0; i < MAX_CONNECTIONS; ++i) {
+    connection *input = sink->input_connections + i;
+    if (__sync_or_and_fetch(&input->status, 0) == 0) {
+      input->sink_port = sink_port;
+      input->source_index = source_index;
+      input->source_port = source_port;
+      __sync_bool_compare_and_swap(&input->status, 0, 1);
+      return 0;
+    }
+  }
+  return -7;  // PatchfieldException.TOO_MANY_CONNECTIONS
+}
+
+int pfi_disconnect(patchfield *pb, int source_index, int source_port,
+   int sink_index, int sink_port) {
+  audio_module *sink = ami_get_audio_module(pb->shm_ptr, sink_index);
+  int i;
+  for (i = 0; i < MAX_CONNECTIONS; ++i) {
+    connection *input = sink->input_connections + i;
+    if (input->source_index == source_index &&
+        input->source_port == source_port &&
+        input->sink_port == sink_port &&
+        __sync_bool_compare_and_swap(&input->status, 1, 2)) {
+      break;
+    }
+  }
+  return 0;
+}
+
+// Staged connections are marked with status 3, which reserves the slot without
+// making the connection visible to the processing callback. Staged
+// disconnections and (de)activations leave the shared state untouched until
+// they are committed.
+static void commit_edits(patchfield *pb) {
+  int i;
+  for (i = 0; i < pb->edit_count; ++i) {
+    staged_edit *edit = pb->edits + i;
+    switch (edit->type) {
+      case EDIT_CONNECT:
+        __sync_bool_compare_and_swap(&edit->conn->status, 3, 1);
+        break;
+      case EDIT_DISCONNECT:
+        if (edit->conn) {
+          __sync_bool_compare_and_swap(&edit->conn->status, 1, 2);
+        }
+        break;
+      case EDIT_ACTIVATE:
+        pfi_activate_module(pb, edit->index);
+        break;
+      case EDIT_DEACTIVATE:
+        pfi_deactivate_module(pb, edit->index);
+        break;
+    }
+  }
+  pb->edit_count = 0;
+}
+
+static void discard_edits(patchfield *pb, int n) {
+  int i;
+  for (i = 0; i < n; ++i) {
+    staged_edit *edit = pb->edits + i;
+    if (edit->type == EDIT_CONNECT && edit->conn) {
+      __sync_bool_compare_and_swap(&edit->conn->status, 3, 0);
+    }
+  }
+}
+
+static connection *stage_connection(patchfield *pb, int source_index,
+    int source_port, int sink_index, int sink_port) {
+  audio_module *sink = ami_get_audio_module(pb->shm_ptr, sink_index);
+  int i;
+  for (i = 0; i < MAX_CONNECTIONS; ++i) {
+    connection *input = sink->input_connections + i;
+    if (__sync_or_and_fetch(&input->status, 0) == 0) {
+      input->sink_port = sink_port;
+      input->source_index = source_index;
+      input->source_port = source_port;
+      __sync_bool_compare_and_swap(&input->status, 0, 3);
+      return input;
+    }
+  }
+  return NULL;
+}
+
+static connection *find_connection(patchfield *pb, int source_index,
+    int source_port, int sink_index, int sink_port) {
+  audio_module *sink = ami_get_audio_module(pb->shm_ptr, sink_index);
+  int i;
+  for (i = 0; i < MAX_CONNECTIONS; ++i) {
+    connection *input = sink->input_connections + i;
+    if (input->source_index == source_index &&
+        input->source_port == source_port &&
+        input->sink_port == sink_port &&
+        __sync_or_and_fetch(&input->status, 0) == 1) {
+      return input;
+    }
+  }
+  return NULL;
+}
+
+#define EDIT_TIMEOUT_SECONDS 1
+
+// Stages all edits, failing without side effects if any of them can't be
+// staged, and then waits until the processing callback has committed them at
+// the beginning of the next buffer. If the stream isn't running, the edits are
+// committed right here. If the callback doesn't pick them up within a second,
+// e.g., because the stream has stalled, the edits are withdrawn again.
+int pfi_apply_edits(patchfield *pb, const int *edits, int n) {
+  if (n > MAX_EDITS) {
+    return -2;  // PatchfieldException.INVALID_PARAMETERS
+  }
+  cleanup_if_idle(pb);
+  int i;
+  for (i = 0; i < n; ++i) {
+    const int *e = edits + i * EDIT_SIZE;
+    staged_edit *edit = pb->edits + i;
+    edit->type = e[0];
+    edit->index = e[1];
+    edit->conn = NULL;
+    switch (edit->type) {
+      case EDIT_CONNECT:
+        edit->conn = stage_connection(pb, e[1], e[2], e[3], e[4]);
+        if (!edit->conn) {
+          discard_edits(pb, i);
+          return -7;  // PatchfieldException.TOO_MANY_CONNECTIONS
+        }
+        break;
+      case EDIT_DISCONNECT:
+        edit->conn = find_connection(pb, e[1], e[2], e[3], e[4]);
+        break;
+      case EDIT_ACTIVATE:
+      case EDIT_DEACTIVATE:
+        break;
+      default:
+        discard_edits(pb, i);
+        return -2;  // PatchfieldException.INVALID_PARAMETERS
+    }
+  }
+  pb->edit_count = n;
+  __sync_bool_compare_and_swap(&pb->edits_pending, 0, 1);
+  struct timespec pause = { 0, 1000000 };
+  struct timespec start, now;
+  clock_gettime(CLOCK_MONOTONIC, &start);
+  while (__sync_or_and_fetch(&pb->edits_pending, 0)) {
+    pthread_mutex_lock(&pb->render_lock);
+    int idle = !is_processing(pb);
+    if (idle && __sync_bool_compare_and_swap(&pb->edits_pending, 1, 0)) {
+      commit_edits(pb);
+    }
+    pthread_mutex_unlock(&pb->render_lock);
+    if (!idle) {
+      clock_gettime(CLOCK_MONOTONIC, &now);
+      if (now.tv_sec - start.tv_sec > EDIT_TIMEOUT_SECONDS ||
+          (now.tv_sec - start.tv_sec == EDIT_TIMEOUT_SECONDS &&
+           now.tv_nsec >= start.tv_nsec)) {
+        // Only one of us gets to clear the flag; if the callback got there
+        // first, the edits have been committed after all.
+        if (__sync_bool_compare_and_swap(&pb->edits_pending, 1, 0)) {
+          discard_edits(pb, n);
+          return -1;  // PatchfieldException.FAILURE
+        }
+        break;
+      }
+      nanosleep(&pause, NULL);
+    }
+  }
+  return 0;
+}
+
+void pfi_release(patchfield *pb) {
+  pb->backend->close(pb->stream);
+  smi_unlock(pb->shm_ptr);
+  smi_unmap(pb->shm_ptr);
+  close(pb->shm_fd);
+  pthread_mutex_destroy(&pb->render_lock);
+  free(pb);
+}
+
+#define ONE_BILLION 1000000000
+#define NO_TIMEOUT -1
+
+static void add_nsecs(struct timespec *t, int64_t dt) {
+  t->tv_sec += dt / ONE_BILLION;
+  t->tv_nsec += dt % ONE_BILLION;
+  if (t->tv_nsec >= ONE_BILLION) {
+    ++t->tv_sec;
+    t->tv_nsec -= ONE_BILLION;
+  }
+}
+
+static const float float_to_short = SHRT_MAX;
+static const float short_to_float = 1 / (1 + (float) SHRT_MAX);
+
+static void process(void *context, int sample_rate, int buffer_frames,
+     int input_channels, const short *input_buffer,
+     int output_channels, short *output_buffer) {
+  patchfield *pb = (patchfield *) context;
+  trace_ring *ring = ami_get_trace_ring(pb->shm_ptr);
+  if (__sync_bool_compare_and_swap(&pb->edits_pending, 1, 0)) {
+    commit_edits(pb);
+  }
+  tri_record(ring, TRACE_ENGINE, TRACE_REPORT_WAIT, TRACE_BEGIN);
+  struct timespec deadline;
+  clock_gettime(CLOCK_MONOTONIC, &deadline);
+  // 0.1ms deadline for clients to report, unless overridden.
+  add_nsecs(&deadline, pb->timeout ? pb->timeout : 100000);
+  struct timespec *report_deadline =
+    pb->timeout == NO_TIMEOUT ? NULL : &deadline;
+  int i, j;
+  for (i = 0; i < MAX_MODULES; ++i) {
+    audio_module *module = ami_get_audio_module(pb->shm_ptr, i);
+    module->frame_time = pb->frame_time;
+    module->in_use =
+      __sync_or_and_fetch(&module->status, 0) == 1 &&
+      __sync_or_and_fetch(&module->active, 0);
+    if (module->in_use && i >= 2 && sb_wait_and_clear(
+          ami_get_barrier(pb->shm_ptr, module->report), report_deadline)) {
+      module->in_use = 0;
+      __sync_fetch_and_add(&ami_get_stats(pb->shm_ptr, i)->missed_reports, 1);
+    }
+    if (module->in_use) {
+      sb_clobber(ami_get_barrier(pb->shm_ptr, module->ready));
+      for (j = 0; j < MAX_CONNECTIONS; ++j) {
+        connection *conn = module->input_connections + j;
+        conn->in_use = (__sync_or_and_fetch(&conn->status, 0) == 1);
+      }
+    }
+  }
+  tri_record(ring, TRACE_ENGINE, TRACE_REPORT_WAIT, TRACE_END);
+  audio_module *input = ami_get_audio_module(pb->shm_ptr, 0);
+  if (input->in_use) {
+    tri_record(ring, 0, TRACE_INPUT_CONVERSION, TRACE_BEGIN);
+    float *b = ami_get_audio_buffer(pb->shm_ptr, input->output_buffer);
+    for (i = 0; i < input_channels; ++i) {
+      for (j = 0; j < buffer_frames; ++j) {
+        b[j] = input_buffer[i + j * input_channels] * short_to_float;
+      }
+      b += buffer_frames;
+    }
+    sb_wake(ami_get_barrier(pb->shm_ptr, input->ready));
+    ami_update_meters(pb->shm_ptr, 0, 1);
+    tri_record(ring, 0, TRACE_INPUT_CONVERSION, TRACE_END);
+  }
+  int dt = (ONE_BILLION / sample_rate + 1) * buffer_frames;
+  clock_gettime(CLOCK_MONOTONIC, &deadline);
+  // Two-buffer-period processing deadline, unless overridden.
+  add_nsecs(&deadline, pb->timeout ? pb->timeout : 2 * dt);
+  tri_record(ring, TRACE_ENGINE, TRACE_WAKE, TRACE_BEGIN);
+  if (pb->timeout == NO_TIMEOUT) {
+    deadline.tv_sec = 0;  // See ami_get_deadline.
+    deadline.tv_nsec = 0;
+  }
+  for (i = 2; i < MAX_MODULES; ++i) {
+    audio_module *module = ami_get_audio_module(pb->shm_ptr, i);
+    if (module->in_use) {
+      module->deadline.tv_sec = deadline.tv_sec;
+      module->deadline.tv_nsec = deadline.tv_nsec;
+      sb_wake(ami_get_barrier(pb->shm_ptr, module->wake));
+    }
+  }
+  tri_record(ring, TRACE_ENGINE, TRACE_WAKE, TRACE_END);
+  audio_module *output = ami_get_audio_module(pb->shm_ptr, 1);
+  if (output->in_use) {
+    ami_collect_input(pb->shm_ptr, 1);
+    tri_record(ring, 1, TRACE_OUTPUT_CONVERSION, TRACE_BEGIN);
+    float *b = ami_get_audio_buffer(pb->shm_ptr, output->input_buffer);
+    for (i = 0; i < output_channels; ++i) {
+      for (j = 0; j < buffer_frames; ++j) {
+        float v = b[j];
+        output_buffer[i + j * output_channels] = (short) (float_to_short *
+            (isnan(v) ? 0 : (v < -1.0f ? -1.0f : (v > 1.0f ? 1.0f : v))));
+      }
+      b += buffer_frames;
+    }
+    tri_record(ring, 1, TRACE_OUTPUT_CONVERSION, TRACE_END);
+  }
+  tri_record(ring, TRACE_ENGINE, TRACE_READY_WAIT, TRACE_BEGIN);
+  for (i = 2; i < MAX_MODULES; ++i) {
+    audio_module *module = ami_get_audio_module(pb->shm_ptr, i);
+    if (module->in_use && sb_wait(ami_get_barrier(pb->shm_ptr, module->ready),
+          ami_get_deadline(module))) {
+      __sync_fetch_and_add(&ami_get_stats(pb->shm_ptr, i)->missed_ready, 1);
+    }
+  }
+  tri_record(ring, TRACE_ENGINE, TRACE_READY_WAIT, TRACE_END);
+  tri_record(ring, TRACE_ENGINE, TRACE_CLEANUP, TRACE_BEGIN);
+  perform_cleanup(pb);
+  tri_record(ring, TRACE_ENGINE, TRACE_CLEANUP, TRACE_END);
+  __sync_fetch_and_add(&pb->frame_time, buffer_frames);
+}
+
+patchfield *pfi_create(const audio_backend *backend, int sample_rate,
+    int buffer_frames, int input_channels, int output_channels) {
+  patchfield *pb = malloc(sizeof(patchfield));
+  if (pb) {
+    pb->backend = backend;
+    pb->sample_rate = sample_rate;
+    pb->buffer_frames = buffer_frames;
+    pb->next_buffer = BUFFER_OFFSET * MEM_PAGE_SIZE / sizeof(float);
+    pb->edit_count = 0;
+    pb->edits_pending = 0;
+    pb->input_channels = input_channels;
+    pb->output_channels = output_channels;
+    pthread_mutex_init(&pb->render_lock, NULL);
+    pb->rendering = 0;
+    pb->timeout = 0;
+    pb->frame_time = 0;
+
+    pb->shm_fd = smi_create();
+    if (pb->shm_fd < 0) {
+      LOGW("Unable to create shared memory.");
+      free(pb);
+      return NULL;
+    }
+    pb->shm_ptr = smi_map(pb->shm_fd);
+    if (!pb->shm_ptr) {
+      LOGW("Unable to map shared memory.");
+      close(pb->shm_fd);
+      free(pb);
+      return NULL;
+    }
+    smi_lock(pb->shm_ptr);
+
+    pb->stream = backend->open(sample_rate,
+        input_channels, output_channels, buffer_frames, process, pb);
+    if (!pb->stream) {
+      LOGW("Unable to open %s stream.", backend->name);
+      smi_unlock(pb->shm_ptr);
+      smi_unmap(pb->shm_ptr);
+      close(pb->shm_fd);
+      free(pb);
+      return NULL;
+    }
+
+    int i;
+    for (i = 0; i < MAX_MODULES; ++i) {
+      audio_module *module = ami_get_audio_module(pb->shm_ptr, i);
+      memset(module, 0, sizeof(audio_module));
+      ami_clear_events(pb->shm_ptr, i);
+    }
+    memset(ami_get_trace_ring(pb->shm_ptr), 0, sizeof(trace_ring));
+    tri_init_atrace();
+    int ports[2 * PORT_KINDS] = { 0 };
+    ports[2 * PORT_AUDIO + 1] = input_channels;
+    pfi_activate_module(pb, pfi_add_module(pb, ports));
+    ports[2 * PORT_AUDIO] = output_channels;
+    ports[2 * PORT_AUDIO + 1] = 0;
+    pfi_activate_module(pb, pfi_add_module(pb, ports));
+  }
+  return pb;
+}
+
+int pfi_get_buffer_frames(patchfield *pb) {
+  return pb->buffer_frames;
+}
+
+int pfi_get_input_channels(patchfield *pb) {
+  return pb->input_channels;
+}
+
+int pfi_get_output_channels(patchfield *pb) {
+  return pb->output_channels;
+}
+
+int pfi_get_shared_memory_fd(patchfield *pb) {
+  return pb->shm_fd;
+}
+
+void *pfi_get_shared_memory(patchfield *pb) {
+  return pb->shm_ptr;
+}
+
+int pfi_start(patchfield *pb) {
+  pthread_mutex_lock(&pb->render_lock);
+  int result = __sync_or_and_fetch(&pb->rendering, 0) ?
+    -1 :  // PatchfieldException.FAILURE
+    pb->backend->start(pb->stream);
+  pthread_mutex_unlock(&pb->render_lock);
+  return result;
+}
+
+void pfi_stop(patchfield *pb) {
+  pb->backend->pause(pb->stream);
+}
+
+void pfi_set_trace_flags(patchfield *pb, int flags) {
+  tri_set_flags(ami_get_trace_ring(pb->shm_ptr), flags);
+}
+
+void pfi_set_metering(patchfield *pb, int enabled) {
+  meter_area *area = ami_get_meter_area(pb->shm_ptr);
+  int val = __sync_or_and_fetch(&area->enabled, 0);
+  while (!__sync_bool_compare_and_swap(&area->enabled, val, enabled != 0)) {
+    val = __sync_or_and_fetch(&area->enabled, 0);
+  }
+}
+
+void pfi_get_meter_layout(patchfield *pb, int *layout) {
+  layout[0] = smi_get_size();
+  layout[1] = METER_OFFSET * MEM_PAGE_SIZE + offsetof(meter_area, modules);
+  layout[2] = sizeof(port_meters);
+  layout[3] = MAX_METER_PORTS;
+}
+
+int pfi_publish_graph(patchfield *pb, const int *words, int n) {
+  graph_area *area = ami_get_graph_area(pb->shm_ptr);
+  int fits = n >= 0 && n <= GRAPH_WORDS;
+  __sync_fetch_and_add(&area->sequence, 1);
+  if (fits) {
+    memcpy(area->words, words, n * sizeof(int));
+  }
+  area->size = fits ? n : -1;
+  __sync_fetch_and_add(&area->sequence, 1);
+  return fits ? 0 : -2;  // PatchfieldException.INVALID_PARAMETERS
+}
+
+void pfi_get_graph_layout(patchfield *pb, int *layout) {
+  layout[0] = smi_get_size();
+  layout[1] = GRAPH_OFFSET * MEM_PAGE_SIZE;
+  layout[2] = GRAPH_WORDS;
+}
+
+int pfi_read_trace(patchfield *pb, int *info, int64_t *timestamps, int n) {
+  return tri_read(ami_get_trace_ring(pb->shm_ptr), info, timestamps, n);
+}
+
+void pfi_read_stats(patchfield *pb, int index, int *stats) {
+  ami_read_stats(pb->shm_ptr, index, stats);
+}
+
+unsigned int pfi_get_frame_time(patchfield *pb) {
+  return __sync_or_and_fetch(&pb->frame_time, 0);
+}
+
+int pfi_post_events(patchfield *pb, int index, const int *parameters,
+    const float *values, const int *frames, int n) {
+  if (index < 0 || index >= MAX_MODULES) {
+    return -2;  // PatchfieldException.INVALID_PARAMETERS
+  }
+  int i;
+  for (i = 0; i < n; ++i) {
+    if (ami_post_event(pb->shm_ptr, index, parameters[i], values[i],
+          frames[i])) {
+      break;
+    }
+  }
+  return i;
+}
+
+int pfi_render(patchfield *pb, const short *input, short *output, int buffers,
+    int timeout_ms) {
+  pthread_mutex_lock(&pb->render_lock);
+  if (pfi_is_running(pb) ||
+      !__sync_bool_compare_and_swap(&pb->rendering, 0, 1)) {
+    pthread_mutex_unlock(&pb->render_lock);
+    return -1;  // PatchfieldException.FAILURE
+  }
+  pthread_mutex_unlock(&pb->render_lock);
+  pb->timeout = timeout_ms > 0 ? (int64_t) timeout_ms * 1000000 : NO_TIMEOUT;
+  int input_size = pb->input_channels * pb->buffer_frames;
+  int output_size = pb->output_channels * pb->buffer_frames;
+  int i;
+  for (i = 0; i < buffers; ++i) {
+    process(pb, pb->sample_rate, pb->buffer_frames,
+        pb->input_channels, input + i * input_size,
+        pb->output_channels, output + i * output_size);
+  }
+  pb->timeout = 0;
+  __sync_bool_compare_and_swap(&pb->rendering, 1, 0);
+  return 0;
+}
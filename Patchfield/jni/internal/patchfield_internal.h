@@ -0,0 +1,144 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+/*
+ * The patchfield engine: shared memory setup, module and connection
+ * management, and the processing callback that drives all modules. The engine
+ * doesn't depend on JNI, and it talks to the audio hardware through a pluggable
+ * backend (see audio_backend.h), so that it can run headless, e.g., in
+ * benchmarks on plain Linux. The JNI glue in patchfield.c merely forwards to
+ * the functions declared here.
+ *
+ * Functions that return an int return 0 or a nonnegative index on success and
+ * a negative error code, as defined in PatchfieldException.java, on failure.
+ */
+
+#ifndef __PATCHFIELD_INTERNAL_H__
+#define __PATCHFIELD_INTERNAL_H__
+
+#include "audio_backend.h"
+
+#include <stdint.h>
+
+// Edit types; these must agree with the constants in PatchfieldEdit.java.
+#define EDIT_CONNECT 0
+#define EDIT_DISCONNECT 1
+#define EDIT_ACTIVATE 2
+#define EDIT_DEACTIVATE 3
+
+#define EDIT_SIZE 5  // type, source index, source port, sink index, sink port
+
+#define METER_LAYOUT_SIZE 4
+#define GRAPH_LAYOUT_SIZE 3
+
+typedef struct _patchfield patchfield;
+
+/*
+ * Creates a patchfield instance with the given backend, or returns NULL on
+ * failure. Modules 0 and 1 are the system input and output, respectively.
+ */
+patchfield *pfi_create(const audio_backend *backend, int sample_rate,
+    int buffer_frames, int input_channels, int output_channels);
+void pfi_release(patchfield *pb);
+
+int pfi_get_buffer_frames(patchfield *pb);
+int pfi_get_input_channels(patchfield *pb);
+int pfi_get_output_channels(patchfield *pb);
+
+int pfi_get_shared_memory_fd(patchfield *pb);
+void *pfi_get_shared_memory(patchfield *pb);
+
+int pfi_start(patchfield *pb);
+void pfi_stop(patchfield *pb);
+int pfi_is_running(patchfield *pb);
+
+/*
+ * Adds a module with the given numbers of ports, given as an array of
+ * 2 * PORT_KINDS counts; see audio_module_internal.h.
+ */
+int pfi_add_module(patchfield *pb, const int *ports);
+int pfi_delete_module(patchfield *pb, int index);
+int pfi_activate_module(patchfield *pb, int index);
+int pfi_deactivate_module(patchfield *pb, int index);
+int pfi_connect(patchfield *pb, int source_index, int source_port,
+    int sink_index, int sink_port);
+int pfi_disconnect(patchfield *pb, int source_index, int source_port,
+    int sink_index, int sink_port);
+
+/*
+ * Applies n edits, given as consecutive groups of EDIT_SIZE ints, atomically
+ * with respect to the processing callback.
+ */
+int pfi_apply_edits(patchfield *pb, const int *edits, int n);
+
+/*
+ * Returns the number of frames processed so far, modulo 2^32. Parameter events
+ * are scheduled in terms of this frame time.
+ */
+unsigned int pfi_get_frame_time(patchfield *pb);
+
+/*
+ * Posts n parameter events to the queue of the given module. Returns the number
+ * of events posted, which is less than n if the queue is full.
+ */
+int pfi_post_events(patchfield *pb, int index, const int *parameters,
+    const float *values, const int *frames, int n);
+
+/*
+ * Renders the given number of buffers offline, i.e., invokes the processing
+ * callback back to back on the calling thread rather than from the stream.
+ * The input holds interleaved frames for the system input, and the output
+ * receives interleaved frames from the system output. Deadlines for modules
+ * are stretched to the given timeout, or turned off if the timeout isn't
+ * positive. Fails if the stream is running or another render is in progress;
+ * while rendering, the stream can't be started.
+ */
+int pfi_render(patchfield *pb, const short *input, short *output, int buffers,
+    int timeout_ms);
+
+/*
+ * Enables or disables metering of all audio ports; see meter_area in
+ * audio_module_internal.h.
+ */
+void pfi_set_metering(patchfield *pb, int enabled);
+
+/*
+ * Writes METER_LAYOUT_SIZE ints describing the metering area to the given
+ * array: the size of the shared memory, the offset of the first record, the
+ * size of a record, and the maximum number of metered ports per direction.
+ */
+void pfi_get_meter_layout(patchfield *pb, int *layout);
+
+/*
+ * Publishes n words describing the graph to clients; see graph_area in
+ * audio_module_internal.h. If the description doesn't fit, clients are told
+ * that it is unavailable, and an error code is returned. Only one thread at a
+ * time may publish.
+ */
+int pfi_publish_graph(patchfield *pb, const int *words, int n);
+
+/*
+ * Writes GRAPH_LAYOUT_SIZE ints describing the graph area to the given array:
+ * the size of the shared memory, the offset of the graph area, and its
+ * capacity in words.
+ */
+void pfi_get_graph_layout(patchfield *pb, int *layout);
+
+void pfi_set_trace_flags(patchfield *pb, int flags);
+int pfi_read_trace(patchfield *pb, int *info, int64_t *timestamps, int n);
+void pfi_read_stats(patchfield *pb, int index, int *stats);
+
+#endif
@@ -16,7 +16,8 @@
 
 #include "shared_memory_internal.h"
 
-#include <android/log.h>
+#include "log.h"
+
 #include <errno.h>
 #include <fcntl.h>
 #include <stdlib.h>
@@ -25,24 +26,66 @@
 #include <sys/mman.h>
 #include <sys/socket.h>
 #include <sys/un.h>
-#include <linux/ashmem.h>
+#include <unistd.h>
 
-#define LOGI(...) \
-  __android_log_print(ANDROID_LOG_INFO, "shared_memory_internal", __VA_ARGS__)
-#define LOGW(...) \
-  __android_log_print(ANDROID_LOG_WARN, "shared_memory_internal", __VA_ARGS__)
+#ifdef __ANDROID__
+#include <linux/ashmem.h>
+#else
+#include <sys/syscall.h>
+// Sealing constants, for C libraries that predate them.
+#ifndef MFD_ALLOW_SEALING
+#define MFD_ALLOW_SEALING 0x0002U
+#endif
+#ifndef F_ADD_SEALS
+#define F_ADD_SEALS 1033
+#define F_SEAL_SEAL 0x0001
+#define F_SEAL_SHRINK 0x0002
+#define F_SEAL_GROW 0x0004
+#define F_SEAL_WRITE 0x0008
+#endif
+#endif
+
+#define LOGI(...) LOG_INFO("shared_memory_internal", __VA_ARGS__)
+#define LOGW(...) LOG_WARN("shared_memory_internal", __VA_ARGS__)
 
 #define ASHMEM_MODULE "/dev/ashmem"
-#define SHARED_MEM_SIZE 262144
+#define MEMFD_NAME "patchfield"
+#define SHARED_MEM_SIZE 430080
 #define SOCK_NAME "patchfield_shm_socket"
 
-int smi_create() {
+#ifdef __ANDROID__
+int smi_create_region(size_t size) {
   int fd = open(ASHMEM_MODULE, O_RDWR);
   if (fd < 0) {
     LOGW("Failed to open ashmem: %s", strerror(errno));
     return -1;
   }
-  if (ioctl(fd, ASHMEM_SET_SIZE, SHARED_MEM_SIZE) < 0) {
+  if (ioctl(fd, ASHMEM_SET_SIZE, size) < 0) {
+    LOGW("Failed to allocate shared memory: %s", strerror(errno));
+    close(fd);
+    return -1;
+  }
+  return fd;
+}
+
+int smi_seal_region(int fd) {
+  // Existing mappings keep their protection; new ones can only be read-only.
+  if (ioctl(fd, ASHMEM_SET_PROT_MASK, PROT_READ) < 0) {
+    LOGW("Failed to seal shared memory: %s", strerror(errno));
+    return -1;
+  }
+  return 0;
+}
+#else
+// Plain Linux has no ashmem; memfd provides the same anonymous, fd-backed
+// shared memory. We go through syscall since older C libraries lack a wrapper.
+int smi_create_region(size_t size) {
+  int fd = syscall(__NR_memfd_create, MEMFD_NAME, MFD_ALLOW_SEALING);
+  if (fd < 0) {
+    LOGW("Failed to create memfd: %s", strerror(errno));
+    return -1;
+  }
+  if (ftruncate(fd, size) < 0) {
     LOGW("Failed to allocate shared memory: %s", strerror(errno));
     close(fd);
     return -1;
@@ -50,6 +93,20 @@ int smi_create() {
   return fd;
 }
 
+int smi_seal_region(int fd) {
+  if (fcntl(fd, F_ADD_SEALS,
+        F_SEAL_SHRINK | F_SEAL_GROW | F_SEAL_WRITE | F_SEAL_SEAL) < 0) {
+    LOGW("Failed to seal shared memory: %s", strerror(errno));
+    return -1;
+  }
+  return 0;
+}
+#endif
+
+int smi_create() {
+  return smi_create_region(SHARED_MEM_SIZE);
+}
+
 void *smi_map(int fd) {
   return mmap(NULL, SHARED_MEM_SIZE, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
 }
@@ -157,6 +214,15 @@ int smi_receive() {
   return smi_transmit(-1);
 }
 
+void *smi_map_region(int fd, size_t size, int writable) {
+  return mmap(NULL, size, writable ? PROT_READ | PROT_WRITE : PROT_READ,
+      MAP_SHARED, fd, 0);
+}
+
+int smi_unmap_region(void *p, size_t size) {
+  return munmap(p, size);
+}
+
 long smi_get_size() {
   return SHARED_MEM_SIZE;
 }
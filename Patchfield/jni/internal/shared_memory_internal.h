@@ -15,9 +15,10 @@
  */
 
 /*
- * Tools for handling shared memory with ashmem. Most functions simply wrap
- * basic system calls, except for smi_{send,receive}, which serve to pass the
- * ashmem file descriptor across process boundaries using Unix domain sockets.
+ * Tools for handling shared memory with ashmem (memfd on plain Linux). Most
+ * functions simply wrap basic system calls, except for smi_{send,receive},
+ * which serve to pass the file descriptor across process boundaries using Unix
+ * domain sockets.
  */
 
 #ifndef __SHARED_MEMORY_INTERNAL_H__
@@ -35,4 +36,17 @@ int smi_send(int fd);
 int smi_receive();
 long smi_get_size();
 
+/*
+ * Regions of arbitrary size, e.g., for the sample pool. A region is writable
+ * until it is sealed; after that, it can only be mapped read-only. On plain
+ * Linux, sealing fails while writable mappings of the region exist; on
+ * Android, writable mappings that already exist stay writable, and so only
+ * regions that have never been mapped writable by another process are
+ * guaranteed to be immutable once sealed.
+ */
+int smi_create_region(size_t size);
+void *smi_map_region(int fd, size_t size, int writable);
+int smi_unmap_region(void *p, size_t size);
+int smi_seal_region(int fd);
+
 #endif
@@ -18,8 +18,11 @@
 
 #include "internal/shared_memory_internal.h"
 
+#include <sys/mman.h>
 #include <unistd.h>
 
+#define MAX_RETRIES 1000
+
 JNIEXPORT jint JNICALL
 Java_com_noisepages_nettoyeur_patchfield_internal_SharedMemoryUtils_receiveSharedMemoryFileDescriptor
 (JNIEnv *env, jclass cls) {
@@ -31,3 +34,91 @@ Java_com_noisepages_nettoyeur_patchfield_internal_SharedMemoryUtils_closeSharedM
 (JNIEnv *env, jclass cls, jint fd) {
   return close(fd);
 }
+
+JNIEXPORT jint JNICALL
+Java_com_noisepages_nettoyeur_patchfield_internal_SharedMemoryUtils_createRegion
+(JNIEnv *env, jclass cls, jlong size) {
+  if (size <= 0 || (jlong) (size_t) size != size) {
+    return -1;
+  }
+  return smi_create_region(size);
+}
+
+JNIEXPORT jobject JNICALL
+Java_com_noisepages_nettoyeur_patchfield_internal_SharedMemoryUtils_mapRegion
+(JNIEnv *env, jclass cls, jint fd, jlong size, jboolean writable) {
+  if (size <= 0 || (jlong) (size_t) size != size) {
+    return NULL;
+  }
+  void *p = smi_map_region(fd, size, writable);
+  if (p == MAP_FAILED) {
+    return NULL;
+  }
+  jobject buffer = (*env)->NewDirectByteBuffer(env, p, size);
+  if (!buffer) {
+    smi_unmap_region(p, size);
+  }
+  return buffer;
+}
+
+JNIEXPORT jint JNICALL
+Java_com_noisepages_nettoyeur_patchfield_internal_SharedMemoryUtils_unmapRegion
+(JNIEnv *env, jclass cls, jobject buffer) {
+  void *p = (*env)->GetDirectBufferAddress(env, buffer);
+  jlong size = (*env)->GetDirectBufferCapacity(env, buffer);
+  return p ? smi_unmap_region(p, size) : -1;
+}
+
+JNIEXPORT jint JNICALL
+Java_com_noisepages_nettoyeur_patchfield_internal_SharedMemoryUtils_sealRegion
+(JNIEnv *env, jclass cls, jint fd) {
+  return smi_seal_region(fd);
+}
+
+// Reads a record that is protected by a seqlock, i.e., a sequence number that
+// is odd while the writer updates the record, followed by the given number of
+// words. Returns the sequence number of the snapshot, or -1 on failure.
+JNIEXPORT jint JNICALL
+Java_com_noisepages_nettoyeur_patchfield_internal_SharedMemoryUtils_readSequenced
+(JNIEnv *env, jclass cls, jobject buffer, jint offset, jintArray words) {
+  char *p = (*env)->GetDirectBufferAddress(env, buffer);
+  jlong size = (*env)->GetDirectBufferCapacity(env, buffer);
+  int n = (*env)->GetArrayLength(env, words);
+  if (!p || offset < 0 || offset % sizeof(int) ||
+      offset + (n + 1) * (jlong) sizeof(int) > size) {
+    return -1;
+  }
+  volatile unsigned int *sequence = (unsigned int *) (p + offset);
+  volatile int *payload = (int *) (sequence + 1);
+  // Copy straight into the array, so that payloads of any size can be read;
+  // the critical section is short because writers never block.
+  jint *w = (*env)->GetPrimitiveArrayCritical(env, words, NULL);
+  if (!w) {
+    return -1;
+  }
+  int result = -1;
+  int i, k;
+  for (k = 0; k < MAX_RETRIES && result < 0; ++k) {
+    unsigned int s = *sequence;
+    if (s & 1) {
+      continue;
+    }
+    __sync_synchronize();
+    for (i = 0; i < n; ++i) {
+      w[i] = payload[i];
+    }
+    __sync_synchronize();
+    if (*sequence == s) {
+      result = s & 0x7fffffff;
+    }
+  }
+  (*env)->ReleasePrimitiveArrayCritical(env, words, w,
+      result >= 0 ? 0 : JNI_ABORT);
+  return result;
+}
+
+JNIEXPORT jint JNICALL
+Java_com_noisepages_nettoyeur_patchfield_internal_SharedMemoryUtils_sendFileDescriptor
+(JNIEnv *env, jclass cls, jint fd) {
+  return smi_send(fd);
+}
@@ -23,6 +23,54 @@ JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_internal_SharedM
 JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_internal_SharedMemoryUtils_closeSharedMemoryFileDescriptor
   (JNIEnv *, jclass, jint);
 
+/*
+ * Class:     com_noisepages_nettoyeur_patchfield_internal_SharedMemoryUtils
+ * Method:    createRegion
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_internal_SharedMemoryUtils_createRegion
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     com_noisepages_nettoyeur_patchfield_internal_SharedMemoryUtils
+ * Method:    mapRegion
+ * Signature: (IJZ)Ljava/nio/ByteBuffer;
+ */
+JNIEXPORT jobject JNICALL Java_com_noisepages_nettoyeur_patchfield_internal_SharedMemoryUtils_mapRegion
+  (JNIEnv *, jclass, jint, jlong, jboolean);
+
+/*
+ * Class:     com_noisepages_nettoyeur_patchfield_internal_SharedMemoryUtils
+ * Method:    unmapRegion
+ * Signature: (Ljava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_internal_SharedMemoryUtils_unmapRegion
+  (JNIEnv *, jclass, jobject);
+
+/*
+ * Class:     com_noisepages_nettoyeur_patchfield_internal_SharedMemoryUtils
+ * Method:    sealRegion
+ * Signature: (I)I
+ */
+JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_internal_SharedMemoryUtils_sealRegion
+  (JNIEnv *, jclass, jint);
+
+/*
+ * Class:     com_noisepages_nettoyeur_patchfield_internal_SharedMemoryUtils
+ * Method:    sendFileDescriptor
+ * Signature: (I)I
+ */
+JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_internal_SharedMemoryUtils_sendFileDescriptor
+  (JNIEnv *, jclass, jint);
+
+/*
+ * Class:     com_noisepages_nettoyeur_patchfield_internal_SharedMemoryUtils
+ * Method:    readSequenced
+ * Signature: (Ljava/nio/ByteBuffer;I[I)I
+ */
+JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_internal_SharedMemoryUtils_readSequenced
+  (JNIEnv *, jclass, jobject, jint, jintArray);
+
 #ifdef __cplusplus
 }
 #endif
@@ -18,7 +18,7 @@
 
 #include <limits.h>
 #include <linux/futex.h>
-#include <sys/linux-syscalls.h>
+#include <sys/syscall.h>
 #include <unistd.h>
 
 #define ONE_BILLION 1000000000
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+#include "trace_internal.h"
+
+#include <fcntl.h>
+#include <stdio.h>
+#include <time.h>
+#include <unistd.h>
+
+#define ATRACE_MARKER "/sys/kernel/debug/tracing/trace_marker"
+#define ONE_BILLION ((int64_t) 1000000000)
+
+static const char *stage_names[] = {
+  "report_wait", "input_conversion", "wake", "collect", "process",
+  "output_conversion", "ready_wait", "cleanup"
+};
+
+static int marker_fd = -1;
+
+void tri_init_atrace() {
+  if (marker_fd < 0) {
+    marker_fd = open(ATRACE_MARKER, O_WRONLY);
+  }
+}
+
+void tri_set_flags(trace_ring *ring, int flags) {
+  int val = __sync_or_and_fetch(&ring->flags, 0);
+  while (!__sync_bool_compare_and_swap(&ring->flags, val, flags)) {
+    val = __sync_or_and_fetch(&ring->flags, 0);
+  }
+}
+
+static void atrace(int module, int stage, int phase) {
+  char buf[64];
+  int n;
+  if (phase == TRACE_BEGIN) {
+    if (module == TRACE_ENGINE) {
+      n = snprintf(buf, sizeof(buf), "B|%d|patchfield:%s", getpid(),
+          stage_names[stage]);
+    } else {
+      n = snprintf(buf, sizeof(buf), "B|%d|module %d:%s", getpid(), module,
+          stage_names[stage]);
+    }
+  } else {
+    n = snprintf(buf, sizeof(buf), "E");
+  }
+  write(marker_fd, buf, n);
+}
+
+void tri_record(trace_ring *ring, int module, int stage, int phase) {
+  // A plain read is good enough here; a stale flag costs at most one event.
+  int flags = ((volatile trace_ring *) ring)->flags;
+  if (!flags) {
+    return;
+  }
+  if (flags & TRACE_RING) {
+    struct timespec t;
+    clock_gettime(CLOCK_MONOTONIC, &t);
+    unsigned int n = __sync_fetch_and_add(&ring->head, 1);
+    trace_event *e = ring->events + (n & (TRACE_CAPACITY - 1));
+    e->sequence = 0;
+    __sync_synchronize();
+    e->info = (module & 0xff) | (stage << 8) | (phase << 16);
+    e->timestamp = t.tv_sec * ONE_BILLION + t.tv_nsec;
+    __sync_synchronize();
+    e->sequence = n + 1;
+  }
+  if ((flags & TRACE_ATRACE) && marker_fd >= 0) {
+    atrace(module & 0xff, stage, phase);
+  }
+}
+
+int tri_read(trace_ring *ring, int *info, int64_t *timestamps, int n) {
+  unsigned int head = __sync_or_and_fetch(&ring->head, 0);
+  unsigned int count = n > 0 ? (n < TRACE_CAPACITY ? n : TRACE_CAPACITY) : 0;
+  if (count > head) {
+    count = head;  // Slots that have never been written hold no events.
+  }
+  unsigned int i = head - count;
+  int k = 0;
+  for (; i != head; ++i) {
+    volatile trace_event *e = ring->events + (i & (TRACE_CAPACITY - 1));
+    unsigned int sequence = e->sequence;
+    __sync_synchronize();
+    info[k] = e->info;
+    timestamps[k] = e->timestamp;
+    __sync_synchronize();
+    if (sequence == i + 1 && e->sequence == sequence) {
+      ++k;  // Keep the event unless it was overwritten while we copied it.
+    }
+  }
+  return k;
+}
+
+int tri_get_module(int info) {
+  return info & 0xff;
+}
+
+int tri_get_stage(int info) {
+  return (info >> 8) & 0xff;
+}
+
+int tri_get_phase(int info) {
+  return (info >> 16) & 0xff;
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+/*
+ * Lock-free ring of timestamped trace events in shared memory. The patchfield
+ * and the audio module threads record begin and end events for each stage of
+ * the processing cycle, and readers copy the ring without blocking writers,
+ * discarding entries that were overwritten while being copied. Optionally,
+ * stages are also emitted as ATrace sections, so that they show up in systrace
+ * alongside the rest of the system.
+ */
+
+#ifndef __TRACE_INTERNAL_H__
+#define __TRACE_INTERNAL_H__
+
+#include <stdint.h>
+
+#define TRACE_CAPACITY 2048  // Must be a power of two.
+
+// Flags; these must agree with the constants in PatchfieldTrace.java.
+#define TRACE_RING 1
+#define TRACE_ATRACE 2
+
+// Stages; these must agree with the constants in PatchfieldTrace.java.
+#define TRACE_REPORT_WAIT 0
+#define TRACE_INPUT_CONVERSION 1
+#define TRACE_WAKE 2
+#define TRACE_COLLECT 3
+#define TRACE_PROCESS 4
+#define TRACE_OUTPUT_CONVERSION 5
+#define TRACE_READY_WAIT 6
+#define TRACE_CLEANUP 7
+
+#define TRACE_BEGIN 0
+#define TRACE_END 1
+
+#define TRACE_ENGINE 0xff  // Module index of events that concern all modules.
+
+typedef struct {
+  unsigned int sequence;  // Event number plus one; 0 while being written.
+  int info;               // Module index, stage, and phase.
+  int64_t timestamp;      // CLOCK_MONOTONIC, in nanoseconds.
+} trace_event;
+
+typedef struct {
+  int flags;
+  unsigned int head;  // Number of events recorded so far.
+  int padding[2];
+  trace_event events[TRACE_CAPACITY];
+} trace_ring;
+
+/*
+ * Opens the ATrace marker file of the current process, if available. Call this
+ * once per process before enabling TRACE_ATRACE.
+ */
+void tri_init_atrace();
+
+void tri_set_flags(trace_ring *ring, int flags);
+
+/*
+ * Records an event if tracing is enabled; safe to call on the audio thread.
+ */
+void tri_record(trace_ring *ring, int module, int stage, int phase);
+
+/*
+ * Copies up to n of the most recent events, oldest first, and returns the
+ * number of events copied. The info array receives the packed module index,
+ * stage, and phase of each event (see tri_get_{module,stage,phase}).
+ */
+int tri_read(trace_ring *ring, int *info, int64_t *timestamps, int n);
+
+int tri_get_module(int info);
+int tri_get_stage(int info);
+int tri_get_phase(int info);
+
+#endif
@@ -33,6 +33,8 @@ struct _buffer_size_adapter {
   audio_module_process_t user_process;
   bsa_ring_buffer *input_buffer;
   bsa_ring_buffer *output_buffer;
+  int divisible;  // Host buffer size is a multiple of the user buffer size.
+  float *block;   // Scratch space for one user buffer of input and output.
 };
 
 static int lcm(int a, int b) {
@@ -76,11 +78,47 @@ static void transfer_buffers(int nframes, int nchannels,
   }
 }
 
+// If the host buffer size is a multiple of the user buffer size, we process
+// host buffers in place, one user buffer at a time, without the latency of the
+// ring buffers. Buffers are non-interleaved, and so only mono buffers can be
+// handed to the user callback directly; slices of multichannel buffers are
+// gathered into a contiguous block, which takes as many copies as going
+// through the ring buffers would.
+static void process_in_place(buffer_size_adapter *adapter, int sample_rate,
+    int input_channels, const float *input_buffer,
+    int output_channels, float *output_buffer) {
+  int host_frames = adapter->host_buffer_frames;
+  int user_frames = adapter->user_buffer_frames;
+  int i, c;
+  for (i = 0; i < host_frames; i += user_frames) {
+    if (!adapter->block) {
+      adapter->user_process(adapter->user_context, sample_rate, user_frames,
+          input_channels, input_buffer + i, output_channels, output_buffer + i);
+    } else {
+      float *ib = adapter->block;
+      float *ob = ib + input_channels * user_frames;
+      for (c = 0; c < input_channels; ++c) {
+        memcpy(ib + c * user_frames, input_buffer + c * host_frames + i,
+            user_frames * sizeof(float));
+      }
+      adapter->user_process(adapter->user_context, sample_rate, user_frames,
+          input_channels, ib, output_channels, ob);
+      for (c = 0; c < output_channels; ++c) {
+        memcpy(output_buffer + c * host_frames + i, ob + c * user_frames,
+            user_frames * sizeof(float));
+      }
+    }
+  }
+}
+
 static void bsa_process(void *context, int sample_rate, int buffer_frames,
     int input_channels, const float *input_buffer,
     int output_channels, float *output_buffer) {
   buffer_size_adapter *adapter = (buffer_size_adapter *) context;
-  if (adapter->host_buffer_frames != adapter->user_buffer_frames) {
+  if (adapter->divisible) {
+    process_in_place(adapter, sample_rate, input_channels, input_buffer,
+        output_channels, output_buffer);
+  } else if (adapter->host_buffer_frames != adapter->user_buffer_frames) {
     bsa_ring_buffer *ib = adapter->input_buffer;
     bsa_ring_buffer *ob = adapter->output_buffer;
     transfer_buffers(buffer_frames, input_channels,
@@ -148,7 +186,21 @@ buffer_size_adapter *bsa_create(
     adapter->user_buffer_frames = user_buffer_frames;
     adapter->user_process = user_process;
     adapter->user_context = user_context;
-    if (host_buffer_frames != user_buffer_frames) {
+    adapter->input_buffer = NULL;
+    adapter->output_buffer = NULL;
+    adapter->divisible = host_buffer_frames != user_buffer_frames &&
+      host_buffer_frames % user_buffer_frames == 0;
+    adapter->block = NULL;
+    if (adapter->divisible) {
+      if (input_channels > 1 || output_channels > 1) {
+        adapter->block = malloc(user_buffer_frames *
+            (input_channels + output_channels) * sizeof(float));
+        if (!adapter->block) {
+          free(adapter);
+          adapter = NULL;
+        }
+      }
+    } else if (host_buffer_frames != user_buffer_frames) {
       adapter->input_buffer =
         create_buffer(host_buffer_frames, user_buffer_frames, input_channels);
       if (adapter->input_buffer) {
@@ -179,9 +231,6 @@ buffer_size_adapter *bsa_create(
         free(adapter);
         adapter = NULL;
       }
-    } else {
-      adapter->input_buffer = NULL;
-      adapter->output_buffer = NULL;
     }
   }
   am_configure(handle, bsa_process, adapter);
@@ -191,5 +240,6 @@ buffer_size_adapter *bsa_create(
 void bsa_release(buffer_size_adapter *adapter) {
   release_buffer(adapter->input_buffer);
   release_buffer(adapter->output_buffer);
+  free(adapter->block);
   free(adapter);
 }
@@ -16,7 +16,13 @@
 
 /*
  * An adapter that allows audio modules to operate at buffer sizes that differ
- * from the buffer size of the Patchfield service.
+ * from the buffer size of the Patchfield service. If the host buffer size is a
+ * multiple of the user buffer size, the adapter invokes the user callback
+ * several times per host buffer, without added latency. Only mono buffers are
+ * passed through without copying, though; multichannel buffers are gathered
+ * into a scratch block one user buffer at a time, which costs one copy per
+ * direction, just like the ring buffers. Otherwise, the adapter goes through
+ * ring buffers, with one copy per direction and added latency.
  */
 #ifndef __BUFFER_SIZE_ADAPTER_H__
 #define __BUFFER_SIZE_ADAPTER_H__
@@ -35,6 +35,14 @@ import com.noisepages.nettoyeur.patchfield.internal.SharedMemoryUtils;
  * assume that the buffer size is a power of two. Multiples of three, such as
  * 144, 192, and 384, have been seen in the wild.
  * 
+ * Modules may declare parameters by overriding getParameterNames. Parameter
+ * changes travel through a lock-free event queue in shared memory, tagged with
+ * the frame time at which they take effect, and the native process callback
+ * receives them as frame offsets into the current buffer; see
+ * audio_module_process_events_t in audio_module.h. The module itself posts
+ * events with setParameter and scheduleParameter, without involving the
+ * Patchfield service, and other processes post them through the service.
+ * 
  * If an app is unable to run at the native buffer size, the buffer size adapter
  * utility in Patchfield/jni/utils/buffer_size_adapter.{h,c} can be used. For an
  * example of the buffer size adapter in action, see the PatchfieldPd library
@@ -51,6 +59,7 @@ public abstract class AudioModule {
   private String name = null;
   private int token = -1;
   private long handle = 0;
+  private int parameterCount = 0;
 
   private final Notification notification;
 
@@ -119,8 +128,9 @@ public abstract class AudioModule {
     if (token < 0) {
       return token;
     }
-    int index = patchfield.createModule(name, getInputChannels(),
-        getOutputChannels(), notification);
+    int[] ports = { getInputChannels(), getOutputChannels(), getEventInputs(),
+        getEventOutputs(), getControlInputs(), getControlOutputs() };
+    int index = patchfield.createModuleWithPorts(name, ports, notification);
     if (index < 0) {
       SharedMemoryUtils.closeSharedMemoryFileDescriptor(token);
       return index;
@@ -131,14 +141,25 @@ public abstract class AudioModule {
       SharedMemoryUtils.closeSharedMemoryFileDescriptor(token);
       return PatchfieldException.FAILURE;
     }
+    String[] parameters = getParameterNames();
+    int result = patchfield.declareParameters(name, parameters);
+    if (result < 0) {
+      release(handle);
+      handle = 0;
+      patchfield.deleteModule(name);
+      SharedMemoryUtils.closeSharedMemoryFileDescriptor(token);
+      return result;
+    }
     if (!configure(name, handle, patchfield.getSampleRate(),
         patchfield.getBufferSize())) {
       release(handle);
+      handle = 0;
       patchfield.deleteModule(name);
       SharedMemoryUtils.closeSharedMemoryFileDescriptor(token);
       return PatchfieldException.FAILURE;
     }
     this.name = name;
+    this.parameterCount = parameters.length;
     return PatchfieldException.SUCCESS;
   }
 
@@ -150,7 +171,8 @@ public abstract class AudioModule {
    *            Stub for communicating with the Patchfield service.
    * @throws RemoteException
    */
-  public void release(IPatchfieldService patchfield) throws RemoteException {
+  public synchronized void release(IPatchfieldService patchfield)
+      throws RemoteException {
     if (handle != 0) {
       patchfield.deleteModule(name);
       release(handle);
@@ -159,6 +181,7 @@ public abstract class AudioModule {
       name = null;
       handle = 0;
       token = -1;
+      parameterCount = 0;
     } else {
       Log.w(TAG, "Not configured; nothing to release.");
     }
@@ -186,6 +209,78 @@ public abstract class AudioModule {
     return handle != 0 && hasTimedOut(handle);
   }
 
+  /**
+   * Reads the performance counters of this module straight from shared memory, without involving
+   * the Patchfield service.
+   * 
+   * @return The current counters, or null if the module isn't configured.
+   */
+  public final synchronized ModuleStats getStats() {
+    if (handle == 0) {
+      return null;
+    }
+    int[] stats = new int[ModuleStats.FIELDS];
+    return getStats(handle, stats) == 0 ? new ModuleStats(stats) : null;
+  }
+
+  /**
+   * Subclasses that accept parameter events override this method to declare
+   * their parameters. Parameters are identified by their index in this array,
+   * and the names are published by the Patchfield service so that controllers
+   * in other processes can find them. The default is no parameters.
+   * 
+   * @return The names of the parameters of this module, in index order.
+   */
+  public String[] getParameterNames() {
+    return new String[0];
+  }
+
+  /**
+   * @return The frame time at the beginning of the current buffer, i.e., the
+   *         number of frames that the patchfield has processed, modulo 2^32.
+   */
+  public final synchronized int getFrameTime() {
+    if (handle == 0) {
+      throw new IllegalStateException("Module is not configured.");
+    }
+    return getFrameTime(handle);
+  }
+
+  /**
+   * Schedules a parameter change at the given frame time, straight through
+   * shared memory, without involving the Patchfield service. Changes whose
+   * frame time has already passed take effect at the beginning of the next
+   * buffer.
+   * 
+   * @param parameter
+   *            Index of the parameter; see getParameterNames.
+   * @param value
+   * @param frame
+   *            Frame time at which the change takes effect; see getFrameTime.
+   * @return 0 on success, a negative error on failure; use
+   *         {@link PatchfieldException} to interpret the return value.
+   */
+  public final synchronized int scheduleParameter(int parameter, float value,
+      int frame) {
+    if (handle == 0) {
+      throw new IllegalStateException("Module is not configured.");
+    }
+    if (parameter < 0 || parameter >= parameterCount) {
+      return PatchfieldException.PARAMETER_OUT_OF_RANGE;
+    }
+    return postEvent(handle, parameter, value, frame);
+  }
+
+  /**
+   * Changes a parameter at the beginning of the next buffer.
+   * 
+   * @return 0 on success, a negative error on failure; use
+   *         {@link PatchfieldException} to interpret the return value.
+   */
+  public final synchronized int setParameter(int parameter, float value) {
+    return scheduleParameter(parameter, value, getFrameTime());
+  }
+
   /**
    * @return The number of input channels of this module.
    */
@@ -196,6 +291,47 @@ public abstract class AudioModule {
    */
   public abstract int getOutputChannels();
 
+  /**
+   * Event ports carry timestamped messages, such as MIDI messages, between
+   * modules; see am_port_event in audio_module.h. They are numbered after the
+   * audio ports, i.e., the first event input of a module with two input
+   * channels is input port 2, and they can only be connected to event ports.
+   * The default is no event ports.
+   * 
+   * @return The number of event inputs of this module.
+   */
+  public int getEventInputs() {
+    return 0;
+  }
+
+  /**
+   * @return The number of event outputs of this module; see getEventInputs.
+   */
+  public int getEventOutputs() {
+    return 0;
+  }
+
+  /**
+   * Control ports carry modulation signals, such as envelopes and LFOs, at
+   * block rate, i.e., a few values per buffer rather than one per frame; see
+   * am_get_control_inputs in audio_module.h. They are numbered after the event
+   * ports, and they can only be connected to control ports. Like audio inputs,
+   * control inputs receive the sum of all sources connected to them. The
+   * default is no control ports.
+   * 
+   * @return The number of control inputs of this module.
+   */
+  public int getControlInputs() {
+    return 0;
+  }
+
+  /**
+   * @return The number of control outputs of this module; see getControlInputs.
+   */
+  public int getControlOutputs() {
+    return 0;
+  }
+
   /**
    * This method is called by the public configure method. It is responsible
    * to setting up the native components of an audio module implementation,
@@ -229,4 +365,11 @@ public abstract class AudioModule {
   private native void release(long handle);
 
   private native boolean hasTimedOut(long handle);
+
+  private native int getStats(long handle, int[] stats);
+
+  private native int getFrameTime(long handle);
+
+  private native int postEvent(long handle, int parameter, float value,
+      int frame);
 }
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.patchfield;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.noisepages.nettoyeur.patchfield.internal.SharedMemoryUtils;
+
+/**
+ * Read-only mirror of the graph of the Patchfield service. The service publishes a compact
+ * description of the graph, i.e., all modules with their indices, channel counts, and activity
+ * flags, as well as all connections and the running state, to shared memory whenever the graph
+ * changes, so that UIs and controllers can query it at any rate without binder transactions.
+ *
+ * Snapshots obtained from a mirror carry no notifications; clients that need notifications should
+ * call {@link IPatchfieldService#getGraphSnapshot()} instead.
+ */
+public final class GraphMirror {
+
+  private static final String TAG = "GraphMirror";
+
+  // Layout as reported by the service; must agree with pfi_get_graph_layout.
+  static final int LAYOUT_SIZE = 3;
+  private static final int SHARED_MEMORY_SIZE = 0;
+  private static final int AREA_OFFSET = 1;
+  private static final int CAPACITY = 2;
+
+  // Encoding of the graph: a header, one record per module followed by its name, with two UTF-16
+  // characters per word, and one record per connection, with modules given by their position in
+  // the list of modules.
+  private static final int HEADER_WORDS = 5;  // version (2 words), running, #modules, #connections
+  private static final int MODULE_WORDS = 5;  // index, inputs, outputs, active, name length
+  private static final int CONNECTION_WORDS = 4;  // source, source port, sink, sink port
+
+  private static final int MAX_ATTEMPTS = 16;  // Reads before falling back to a binder call.
+
+  private final IPatchfieldService patchfield;
+  private final int offset;
+  private final int capacity;
+  private final int[] header = new int[1];
+  private int[] words = null;
+  private ByteBuffer buffer;
+  private int sequence = -1;
+  private PatchfieldSnapshot snapshot = null;
+
+  private GraphMirror(IPatchfieldService patchfield, int[] layout, ByteBuffer buffer) {
+    this.patchfield = patchfield;
+    offset = layout[AREA_OFFSET];
+    capacity = layout[CAPACITY];
+    this.buffer = buffer;
+  }
+
+  /**
+   * Maps the graph area of the service into the current process.
+   *
+   * @return The mirror; release it when done.
+   * @throws PatchfieldException if the graph isn't published or the shared memory can't be mapped.
+   */
+  public static GraphMirror open(IPatchfieldService patchfield) throws RemoteException,
+      PatchfieldException {
+    int[] layout = patchfield.getGraphLayout();
+    if (layout == null) {
+      throw new PatchfieldException(PatchfieldException.FAILURE);
+    }
+    ByteBuffer buffer = PortMeters.mapSharedMemory(patchfield, layout[SHARED_MEMORY_SIZE]);
+    if (buffer == null) {
+      throw new PatchfieldException(PatchfieldException.FAILURE);
+    }
+    return new GraphMirror(patchfield, layout, buffer);
+  }
+
+  /**
+   * Unmaps the graph area.
+   */
+  public synchronized void release() {
+    if (buffer != null) {
+      SharedMemoryUtils.unmapRegion(buffer);
+      buffer = null;
+      snapshot = null;
+    } else {
+      Log.w(TAG, "Already released.");
+    }
+  }
+
+  /**
+   * Returns the current state of the graph. As long as the graph doesn't change, this method
+   * returns the same instance without decoding anything, and so it is cheap enough to be called
+   * whenever a UI needs to know the state of the graph. In the rare event that the graph is too
+   * large for shared memory or changes too rapidly to be read, this method falls back to
+   * {@link IPatchfieldService#getGraphSnapshot()}.
+   *
+   * @return A snapshot of the graph without notifications, or null if the service has shut down.
+   */
+  public synchronized PatchfieldSnapshot getSnapshot() throws RemoteException {
+    if (buffer == null) {
+      throw new IllegalStateException("Mirror has been released.");
+    }
+    for (int i = 0; i < MAX_ATTEMPTS; ++i) {
+      int s = SharedMemoryUtils.readSequenced(buffer, offset, header);
+      if (s < 0) {
+        break;
+      }
+      if (s == sequence) {
+        return snapshot;
+      }
+      int size = header[0];
+      if (size <= 0 || size > capacity) {
+        sequence = s;
+        snapshot = size == 0 ? null : patchfield.getGraphSnapshot();
+        return snapshot;
+      }
+      if (words == null || words.length != size + 1) {
+        words = new int[size + 1];  // The size, followed by the description.
+      }
+      if (SharedMemoryUtils.readSequenced(buffer, offset, words) == s && words[0] == size) {
+        sequence = s;
+        snapshot = decode(words, 1);
+        return snapshot;
+      }
+    }
+    sequence = -1;
+    snapshot = patchfield.getGraphSnapshot();
+    return snapshot;
+  }
+
+  // Encodes the given snapshot for publication by the service; notifications are dropped.
+  static int[] encode(PatchfieldSnapshot snapshot) {
+    List<String> modules = snapshot.getModules();
+    List<PatchfieldSnapshot.Connection> connections = snapshot.getConnections();
+    int size = HEADER_WORDS + CONNECTION_WORDS * connections.size();
+    for (String module : modules) {
+      size += MODULE_WORDS + (module.length() + 1) / 2;
+    }
+    int[] w = new int[size];
+    w[0] = (int) snapshot.getVersion();
+    w[1] = (int) (snapshot.getVersion() >>> 32);
+    w[2] = snapshot.isRunning() ? 1 : 0;
+    w[3] = modules.size();
+    w[4] = connections.size();
+    int k = HEADER_WORDS;
+    Map<String, Integer> positions = new HashMap<String, Integer>();
+    for (String module : modules) {
+      PatchfieldSnapshot.Module m = snapshot.getModule(module);
+      positions.put(module, positions.size());
+      w[k++] = m.getIndex();
+      w[k++] = m.getInputChannels();
+      w[k++] = m.getOutputChannels();
+      w[k++] = m.isActive() ? 1 : 0;
+      w[k++] = module.length();
+      for (int i = 0; i < module.length(); i += 2) {
+        int c = module.charAt(i);
+        if (i + 1 < module.length()) {
+          c |= module.charAt(i + 1) << 16;
+        }
+        w[k++] = c;
+      }
+    }
+    for (PatchfieldSnapshot.Connection c : connections) {
+      w[k++] = positions.get(c.getSource());
+      w[k++] = c.getSourcePort();
+      w[k++] = positions.get(c.getSink());
+      w[k++] = c.getSinkPort();
+    }
+    return w;
+  }
+
+  private static PatchfieldSnapshot decode(int[] w, int k) {
+    long version = (w[k] & 0xffffffffL) | ((long) w[k + 1] << 32);
+    boolean running = w[k + 2] != 0;
+    int moduleCount = w[k + 3];
+    int connectionCount = w[k + 4];
+    k += HEADER_WORDS;
+    List<PatchfieldSnapshot.Module> modules =
+        new ArrayList<PatchfieldSnapshot.Module>(moduleCount);
+    String[] names = new String[moduleCount];
+    for (int j = 0; j < moduleCount; ++j) {
+      int index = w[k++];
+      int inputChannels = w[k++];
+      int outputChannels = w[k++];
+      boolean active = w[k++] != 0;
+      char[] name = new char[w[k++]];
+      for (int i = 0; i < name.length; i += 2) {
+        int c = w[k++];
+        name[i] = (char) c;
+        if (i + 1 < name.length) {
+          name[i + 1] = (char) (c >>> 16);
+        }
+      }
+      names[j] = new String(name);
+      modules.add(new PatchfieldSnapshot.Module(names[j], index, inputChannels, outputChannels,
+          active, null));
+    }
+    List<PatchfieldSnapshot.Connection> connections =
+        new ArrayList<PatchfieldSnapshot.Connection>(connectionCount);
+    for (int j = 0; j < connectionCount; ++j) {
+      connections.add(new PatchfieldSnapshot.Connection(names[w[k]], w[k + 1], names[w[k + 2]],
+          w[k + 3]));
+      k += CONNECTION_WORDS;
+    }
+    return new PatchfieldSnapshot(version, running, modules, connections);
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.patchfield;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Performance counters of an audio module, as recorded on the audio path. Counters start at zero
+ * when the module is created; times are in nanoseconds. The process time is measured by the module
+ * itself, while missed deadlines are recorded by the Patchfield service. A module that keeps missing
+ * its deadlines is likely the cause of audible glitches; modules downstream of it will show skipped
+ * inputs.
+ */
+public final class ModuleStats implements Parcelable {
+
+  // WARNING: The order of the counters must agree with audio_module_stats in
+  // audio_module_internal.h.
+  static final int FIELDS = 7;
+
+  private final int[] stats;
+
+  ModuleStats(int[] stats) {
+    this.stats = stats;
+  }
+
+  /**
+   * @return The number of buffers that the module has processed.
+   */
+  public int getProcessedBuffers() {
+    return stats[0];
+  }
+
+  /**
+   * @return The duration of the most recent invocation of the process callback.
+   */
+  public int getLastProcessTimeNanos() {
+    return stats[1];
+  }
+
+  /**
+   * @return The duration of the longest invocation of the process callback.
+   */
+  public int getMaxProcessTimeNanos() {
+    return stats[2];
+  }
+
+  /**
+   * @return The exponentially weighted moving average of the duration of the process callback.
+   */
+  public int getAverageProcessTimeNanos() {
+    return stats[3];
+  }
+
+  /**
+   * @return The number of buffers that the module missed because it wasn't ready to start
+   *         processing before the report deadline.
+   */
+  public int getMissedReportDeadlines() {
+    return stats[4];
+  }
+
+  /**
+   * @return The number of buffers for which the module didn't finish processing before the ready
+   *         deadline.
+   */
+  public int getMissedReadyDeadlines() {
+    return stats[5];
+  }
+
+  /**
+   * @return The number of input buffers that the module skipped because one of its sources missed
+   *         its ready deadline.
+   */
+  public int getSkippedInputBuffers() {
+    return stats[6];
+  }
+
+  @Override
+  public String toString() {
+    return "buffers: " + getProcessedBuffers() + ", process time (ns): last "
+        + getLastProcessTimeNanos() + ", max " + getMaxProcessTimeNanos() + ", avg "
+        + getAverageProcessTimeNanos() + ", missed report deadlines: "
+        + getMissedReportDeadlines() + ", missed ready deadlines: " + getMissedReadyDeadlines()
+        + ", skipped inputs: " + getSkippedInputBuffers();
+  }
+
+  @Override
+  public int describeContents() {
+    return 0;
+  }
+
+  @Override
+  public void writeToParcel(Parcel dest, int flags) {
+    dest.writeIntArray(stats);
+  }
+
+  public static final Parcelable.Creator<ModuleStats> CREATOR =
+      new Parcelable.Creator<ModuleStats>() {
+        @Override
+        public ModuleStats createFromParcel(Parcel source) {
+          return new ModuleStats(source.createIntArray());
+        }
+
+        @Override
+        public ModuleStats[] newArray(int size) {
+          return new ModuleStats[size];
+        }
+      };
+}
@@ -15,8 +15,10 @@
 package com.noisepages.nettoyeur.patchfield;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -29,56 +31,145 @@ import android.os.RemoteCallbackList;
 import android.os.RemoteException;
 import android.util.Log;
 
+import com.noisepages.nettoyeur.patchfield.internal.EventDispatcher;
+import com.noisepages.nettoyeur.patchfield.internal.GraphEdit;
+import com.noisepages.nettoyeur.patchfield.internal.GraphIndex;
+import com.noisepages.nettoyeur.patchfield.internal.NativeEngine;
 import com.noisepages.nettoyeur.patchfield.internal.OpenSlParams;
+import com.noisepages.nettoyeur.patchfield.internal.PatchfieldCore;
+import com.noisepages.nettoyeur.patchfield.internal.SamplePool;
 
 /**
- * The Java part of the Patchfield service implementation. This is mostly boilerplate; the action is
- * in the native code, Patchfield/jni/patchfield.c.
+ * The Java part of the Patchfield service implementation. This is mostly boilerplate; the graph
+ * logic lives in {@link PatchfieldCore}, and the action is in the native code,
+ * Patchfield/jni/internal/patchfield_internal.c. This class adds the Android-specific parts, i.e.,
+ * notifications and binder callbacks.
  */
 public class Patchfield implements IPatchfieldService {
 
   private static final String TAG = "Patchfield";
 
-  static {
-    System.loadLibrary("patchfield");
-  }
-
   private final OpenSlParams params;
-  private long streamPtr;
-  private final Map<String, Integer> modules = new LinkedHashMap<String, Integer>();
+  private final NativeEngine engine;
+  private final PatchfieldCore core;
   private final Map<String, Notification> notifications = new LinkedHashMap<String, Notification>();
-  private Notification masterNotification = null;
+  private Notification pendingNotification = null;  // Notification of the module being created.
+  private volatile Notification masterNotification = null;
   private final RemoteCallbackList<IPatchfieldClient> clients =
       new RemoteCallbackList<IPatchfieldClient>();
+  private final EventDispatcher dispatcher;
+  private final SamplePool samplePool = new SamplePool(SamplePool.DEFAULT_CAPACITY);
+  private final Object renderLock = new Object();  // Keeps release from racing offline renders.
+  private static final int RENDER_CHUNK = 16;  // Buffers per native call when rendering streams.
+
+  // Immutable view of the current state for queries that don't take the monitor; a new instance is
+  // published after every change, while the core holds its monitor, and mirrored to shared memory
+  // for clients; see GraphMirror.
+  private volatile PatchfieldSnapshot snapshot;
+
+  // Turns changes of the core into events for clients. Changes only happen while this instance
+  // holds its own monitor, and so the notification map needs no further synchronization.
+  private final PatchfieldCore.Listener coreListener = new PatchfieldCore.Listener() {
+    @Override
+    public void onModuleCreated(PatchfieldCore.State state, String module) {
+      notifications.put(module, pendingNotification);
+      publish(state, PatchfieldEvent.moduleCreated(state.getVersion(), module,
+          state.getInputChannels(module), state.getOutputChannels(module), pendingNotification));
+    }
+
+    @Override
+    public void onModuleDeleted(PatchfieldCore.State state, String module) {
+      Notification notification = notifications.remove(module);
+      if (notification != null && notification.deleteIntent != null) {
+        try {
+          notification.deleteIntent.send();
+        } catch (CanceledException e) {
+          // Do nothing.
+        }
+      }
+      publish(state, PatchfieldEvent.moduleDeleted(state.getVersion(), module));
+    }
+
+    @Override
+    public void onModuleActivated(PatchfieldCore.State state, String module, boolean active) {
+      publish(state, PatchfieldEvent.moduleActivated(state.getVersion(), module, active));
+    }
+
+    @Override
+    public void onPortsConnected(PatchfieldCore.State state, String source, int sourcePort,
+        String sink, int sinkPort, boolean connected) {
+      publish(state, PatchfieldEvent.portsConnected(state.getVersion(), source, sourcePort, sink,
+          sinkPort, connected));
+    }
+
+    @Override
+    public void onRunningChanged(PatchfieldCore.State state, boolean running) {
+      publish(state, PatchfieldEvent.started(state.getVersion(), running));
+    }
+
+    @Override
+    public void onEditsApplied(PatchfieldCore.State state, List<GraphEdit> edits) {
+      long sequence = state.getVersion() - edits.size();
+      List<PatchfieldEvent> events = new ArrayList<PatchfieldEvent>(edits.size());
+      List<PatchfieldEdit> applied = new ArrayList<PatchfieldEdit>(edits.size());
+      for (GraphEdit edit : edits) {
+        switch (edit.getType()) {
+          case GraphEdit.CONNECT:
+          case GraphEdit.DISCONNECT:
+            boolean connect = edit.getType() == GraphEdit.CONNECT;
+            events.add(PatchfieldEvent.portsConnected(++sequence, edit.getSource(),
+                edit.getSourcePort(), edit.getSink(), edit.getSinkPort(), connect));
+            applied.add(connect
+                ? PatchfieldEdit.connect(edit.getSource(), edit.getSourcePort(), edit.getSink(),
+                    edit.getSinkPort())
+                : PatchfieldEdit.disconnect(edit.getSource(), edit.getSourcePort(),
+                    edit.getSink(), edit.getSinkPort()));
+            break;
+          default:
+            boolean activate = edit.getType() == GraphEdit.ACTIVATE;
+            events.add(PatchfieldEvent.moduleActivated(++sequence, edit.getModule(), activate));
+            applied.add(activate
+                ? PatchfieldEdit.activate(edit.getModule())
+                : PatchfieldEdit.deactivate(edit.getModule()));
+            break;
+        }
+      }
+      updateSnapshot(state);
+      dispatcher.post(events, applied);
+    }
+  };
 
   public Patchfield(Context context, int inputChannels, int outputChannels) throws IOException {
     params = OpenSlParams.createInstance(context);
-    streamPtr =
-        createInstance(params.getSampleRate(), params.getBufferSize(), inputChannels,
-            outputChannels);
-    if (streamPtr == 0) {
-      throw new IOException("Unable to open opensl_stream.");
-    }
-    Log.i(TAG, "Created stream with ptr " + streamPtr);
-    modules.put("system_in", 0);
-    modules.put("system_out", 1);
+    engine = new NativeEngine(params.getSampleRate(), params.getBufferSize(), inputChannels,
+        outputChannels);
+    Log.i(TAG, "Created stream with ptr " + engine.getStreamPtr());
+    core = new PatchfieldCore(engine, inputChannels, outputChannels);
     Notification micNotification = new Notification.Builder(context)
         .setSmallIcon(R.drawable.perm_group_microphone)
         .setContentTitle("Microphones")
         .build();
-    notifications.put("system_in", micNotification);
+    notifications.put(PatchfieldCore.SYSTEM_IN, micNotification);
     Notification speakerNotification = new Notification.Builder(context)
         .setSmallIcon(R.drawable.perm_group_audio_settings)
         .setContentTitle("Speakers")
         .build();
-    notifications.put("system_out", speakerNotification);
+    notifications.put(PatchfieldCore.SYSTEM_OUT, speakerNotification);
+    updateSnapshot(core.getState());
+    dispatcher = new EventDispatcher(this, clients);
+    core.addListener(coreListener);
   }
 
   public synchronized void release() {
-    if (streamPtr != 0) {
-      releaseInstance(streamPtr);
-      streamPtr = 0;
-      clients.kill();
+    synchronized (renderLock) {
+      if (!core.isReleased()) {
+        dispatcher.close();
+        engine.publishGraph(new int[0]);  // Tells mirrors that the graph is gone.
+        core.release();
+        snapshot = null;
+        clients.kill();
+        samplePool.close();
+      }
     }
   }
 
@@ -93,391 +184,421 @@ public class Patchfield implements IPatchfieldService {
   }
 
   @Override
-  public synchronized int getSampleRate() {
+  public void registerEventListener(IPatchfieldEventListener listener) throws RemoteException {
+    dispatcher.addListener(listener);
+  }
+
+  @Override
+  public void unregisterEventListener(IPatchfieldEventListener listener) throws RemoteException {
+    dispatcher.removeListener(listener);
+  }
+
+  @Override
+  public int getSampleRate() {
     return params.getSampleRate();
   }
 
   @Override
-  public synchronized int getBufferSize() {
+  public int getBufferSize() {
     return params.getBufferSize();
   }
 
   @Override
   public synchronized int sendSharedMemoryFileDescriptor() {
-    if (streamPtr == 0) {
-      throw new IllegalStateException("Stream closed.");
-    }
-    return PatchfieldException.successOrFailure(sendSharedMemoryFileDescriptor(streamPtr));
+    core.getState();  // Throws if closed.
+    return PatchfieldException.successOrFailure(engine.sendSharedMemoryFileDescriptor());
+  }
+
+  @Override
+  public int allocateSample(String key, int channels, int frames, int sampleRate) {
+    core.getState();  // Throws if closed.
+    return samplePool.allocate(key, channels, frames, sampleRate);
+  }
+
+  @Override
+  public int sendSampleFileDescriptor(String key) {
+    core.getState();  // Throws if closed.
+    return samplePool.sendFileDescriptor(key);
+  }
+
+  @Override
+  public int commitSample(String key) {
+    core.getState();  // Throws if closed.
+    return samplePool.commit(key);
+  }
+
+  @Override
+  public int abortSample(String key) {
+    core.getState();  // Throws if closed.
+    return samplePool.abort(key);
+  }
+
+  @Override
+  public int acquireSample(String key, IBinder token) {
+    core.getState();  // Throws if closed.
+    return samplePool.acquire(key, token);
+  }
+
+  @Override
+  public int releaseSample(String key, IBinder token) {
+    core.getState();  // Throws if closed.
+    return samplePool.release(key, token);
+  }
+
+  @Override
+  public int[] getSampleInfo(String key) {
+    core.getState();  // Throws if closed.
+    return samplePool.getInfo(key);
+  }
+
+  @Override
+  public String[] getParameters(String module) {
+    return core.getParameters(module);
+  }
+
+  @Override
+  public int getFrameTime() {
+    return core.getFrameTime();
+  }
+
+  @Override
+  public int postParameterEvents(String module, int[] parameters, float[] values, int[] frames) {
+    return core.postParameterEvents(module, parameters, values, frames);
+  }
+
+  @Override
+  public int declareParameters(String module, String[] parameters) {
+    return core.declareParameters(module, parameters);
   }
 
   @Override
   public synchronized int start() {
-    if (streamPtr == 0) {
-      throw new IllegalStateException("Stream closed.");
-    }
-    int result = start(streamPtr);
-    if (result == 0) {
-      int i = clients.beginBroadcast();
-      while (--i >= 0) {
-        try {
-          clients.getBroadcastItem(i).onStart();
-        } catch (RemoteException e) {
-          // Do nothing; RemoteCallbackList will take care of the cleanup.
-        }
-      }
-      clients.finishBroadcast();
-    }
-    return PatchfieldException.successOrFailure(result);
+    return PatchfieldException.successOrFailure(core.start());
   }
 
   @Override
   public synchronized void stop() {
-    if (streamPtr == 0) {
-      throw new IllegalStateException("Stream closed.");
-    }
-    stop(streamPtr);
-    int i = clients.beginBroadcast();
-    while (--i >= 0) {
-      try {
-        clients.getBroadcastItem(i).onStop();
-      } catch (RemoteException e) {
-        // Do nothing; RemoteCallbackList will take care of the cleanup.
-      }
-    }
-    clients.finishBroadcast();
+    core.stop();
   }
 
   @Override
-  public synchronized boolean isRunning() {
-    if (streamPtr == 0) {
-      throw new IllegalStateException("Stream closed.");
-    }
-    return isRunning(streamPtr);
+  public boolean isRunning() {
+    return getSnapshot().isRunning();
   }
 
   @Override
   public synchronized int createModule(String module, int inputChannels, int outputChannels,
       Notification notification) {
-    if (streamPtr == 0) {
-      throw new IllegalStateException("Stream closed.");
+    pendingNotification = notification;
+    try {
+      return core.createModule(module, inputChannels, outputChannels);
+    } finally {
+      pendingNotification = null;
     }
-    if (inputChannels < 0 || outputChannels < 0 || (inputChannels == 0 && outputChannels == 0)) {
-      return PatchfieldException.INVALID_PARAMETERS;
-    }
-    if (modules.containsKey(module)) {
-      return PatchfieldException.MODULE_NAME_TAKEN;
-    }
-    int index = createModule(streamPtr, inputChannels, outputChannels);
-    if (index >= 0) {
-      modules.put(module, index);
-      notifications.put(module, notification);
-      int i = clients.beginBroadcast();
-      while (--i >= 0) {
-        try {
-          clients.getBroadcastItem(i)
-              .onModuleCreated(module, inputChannels, outputChannels, notification);
-        } catch (RemoteException e) {
-          // Do nothing; RemoteCallbackList will take care of the cleanup.
-        }
-      }
-      clients.finishBroadcast();
+  }
+
+  @Override
+  public synchronized int createModuleWithPorts(String module, int[] ports,
+      Notification notification) {
+    pendingNotification = notification;
+    try {
+      return core.createModule(module, ports);
+    } finally {
+      pendingNotification = null;
     }
-    return index;
   }
 
   @Override
   public synchronized int deleteModule(String module) {
-    if (streamPtr == 0) {
-      throw new IllegalStateException("Stream closed.");
-    }
-    if (!modules.containsKey(module)) {
-      return PatchfieldException.NO_SUCH_MODULE;
-    }
-    int result = deleteModule(streamPtr, modules.get(module));
-    if (result == 0) {
-      modules.remove(module);
-      Notification notification = notifications.remove(module);
-      if (notification != null && notification.deleteIntent != null) {
-        try {
-          notification.deleteIntent.send();
-        } catch (CanceledException e) {
-          // Do nothing.
-        }
-      }
-      int i = clients.beginBroadcast();
-      while (--i >= 0) {
-        try {
-          clients.getBroadcastItem(i).onModuleDeleted(module);
-        } catch (RemoteException e) {
-          // Do nothing; RemoteCallbackList will take care of the cleanup.
-        }
-      }
-      clients.finishBroadcast();
-    }
-    return result;
+    return core.deleteModule(module);
   }
 
   @Override
   public synchronized int connectPorts(String source, int sourcePort, String sink, int sinkPort) {
-    if (streamPtr == 0) {
-      throw new IllegalStateException("Stream closed.");
-    }
-    if (!modules.containsKey(source)) {
-      return PatchfieldException.NO_SUCH_MODULE;
-    }
-    if (!modules.containsKey(sink)) {
-      return PatchfieldException.NO_SUCH_MODULE;
-    }
-    if (sourcePort < 0 || sourcePort >= getOutputChannels(source)) {
-      return PatchfieldException.PORT_OUT_OF_RANGE;
-    }
-    if (sinkPort < 0 || sinkPort >= getInputChannels(sink)) {
-      return PatchfieldException.PORT_OUT_OF_RANGE;
-    }
-    if (isConnected(source, sourcePort, sink, sinkPort)) {
-      return PatchfieldException.SUCCESS;
-    }
-    if (isDependent(source, sink)) {
-      return PatchfieldException.CYCLIC_DEPENDENCY;
-    }
-    int result =
-        connectPorts(streamPtr, modules.get(source), sourcePort, modules.get(sink), sinkPort);
-    if (result == 0) {
-      int i = clients.beginBroadcast();
-      while (--i >= 0) {
-        try {
-          clients.getBroadcastItem(i).onPortsConnected(source, sourcePort, sink, sinkPort);
-        } catch (RemoteException e) {
-          // Do nothing; RemoteCallbackList will take care of the cleanup.
-        }
-      }
-      clients.finishBroadcast();
-    }
-    return result;
+    return core.connectPorts(source, sourcePort, sink, sinkPort);
   }
 
   @Override
   public synchronized int disconnectPorts(String source, int sourcePort, String sink, int sinkPort) {
-    if (streamPtr == 0) {
-      throw new IllegalStateException("Stream closed.");
-    }
-    if (!modules.containsKey(source)) {
-      return PatchfieldException.NO_SUCH_MODULE;
-    }
-    if (!modules.containsKey(sink)) {
-      return PatchfieldException.NO_SUCH_MODULE;
-    }
-    if (sourcePort < 0 || sourcePort >= getOutputChannels(source)) {
-      return PatchfieldException.PORT_OUT_OF_RANGE;
-    }
-    if (sinkPort < 0 || sinkPort >= getInputChannels(sink)) {
-      return PatchfieldException.PORT_OUT_OF_RANGE;
-    }
-    if (!isConnected(source, sourcePort, sink, sinkPort)) {
-      return 0;
-    }
-    int result =
-        disconnectPorts(streamPtr, modules.get(source), sourcePort, modules.get(sink), sinkPort);
-    if (result == 0) {
-      int i = clients.beginBroadcast();
-      while (--i >= 0) {
-        try {
-          clients.getBroadcastItem(i).onPortsDisconnected(source, sourcePort, sink, sinkPort);
-        } catch (RemoteException e) {
-          // Do nothing; RemoteCallbackList will take care of the cleanup.
-        }
-      }
-      clients.finishBroadcast();
-    }
-    return result;
+    return core.disconnectPorts(source, sourcePort, sink, sinkPort);
   }
 
   @Override
-  public synchronized boolean isConnected(String source, int sourcePort, String sink, int sinkPort) {
-    if (streamPtr == 0) {
-      throw new IllegalStateException("Stream closed.");
-    }
-    return modules.containsKey(source) && modules.containsKey(sink)
-        && isConnected(streamPtr, modules.get(source), sourcePort, modules.get(sink), sinkPort);
+  public synchronized int applyEdits(List<PatchfieldEdit> edits) {
+    if (edits == null) {
+      return core.applyEdits(null);
+    }
+    List<GraphEdit> graphEdits = new ArrayList<GraphEdit>(edits.size());
+    for (PatchfieldEdit edit : edits) {
+      graphEdits.add(edit != null
+          ? new GraphEdit(edit.getType(), edit.getSource(), edit.getSourcePort(), edit.getSink(),
+              edit.getSinkPort())
+          : null);
+    }
+    return core.applyEdits(graphEdits);
   }
 
   @Override
-  public synchronized boolean isDependent(String sink, String source) {
-    List<String> dependents = getDependents(source);
-    return dependents.contains(sink);
+  public boolean isConnected(String source, int sourcePort, String sink, int sinkPort) {
+    return getSnapshot().isConnected(source, sourcePort, sink, sinkPort);
   }
 
   @Override
-  public synchronized List<String> getModules() {
-    return Collections.unmodifiableList(new ArrayList<String>(modules.keySet()));
+  public boolean isDependent(String sink, String source) {
+    return core.getState().isDependent(sink, source);
   }
 
   @Override
-  public synchronized int getInputChannels(String module) {
-    if (streamPtr == 0) {
-      throw new IllegalStateException("Stream closed.");
-    }
-    if (!modules.containsKey(module)) {
-      return PatchfieldException.NO_SUCH_MODULE;
-    }
-    return getInputChannels(streamPtr, modules.get(module));
+  public PatchfieldSnapshot getGraphSnapshot() {
+    return getSnapshot();
   }
 
   @Override
-  public synchronized int getOutputChannels(String module) {
-    if (streamPtr == 0) {
-      throw new IllegalStateException("Stream closed.");
-    }
-    if (!modules.containsKey(module)) {
-      return PatchfieldException.NO_SUCH_MODULE;
-    }
-    return getOutputChannels(streamPtr, modules.get(module));
+  public ModuleStats getModuleStats(String module) {
+    int[] stats = new int[ModuleStats.FIELDS];
+    return core.getModuleStats(module, stats) == 0 ? new ModuleStats(stats) : null;
   }
 
   @Override
-  public synchronized Notification getNotification(String module) {
-    return module == null ? masterNotification : notifications.get(module);
+  public synchronized void setTraceFlags(int flags) {
+    core.getState();  // Throws if closed.
+    engine.setTraceFlags(flags);
   }
 
   @Override
-  public synchronized boolean isActive(String module) {
-    if (streamPtr == 0) {
-      throw new IllegalStateException("Stream closed.");
-    }
-    return modules.containsKey(module) && isActive(streamPtr, modules.get(module));
+  public synchronized void setMetering(boolean enabled) {
+    core.getState();  // Throws if closed.
+    engine.setMetering(enabled);
   }
 
   @Override
-  public synchronized int activateModule(String module) {
-    if (streamPtr == 0) {
-      throw new IllegalStateException("Stream closed.");
-    }
-    if (!modules.containsKey(module)) {
-      return PatchfieldException.NO_SUCH_MODULE;
-    }
-    if (isActive(module)) {
-      return 0;
-    }
-    int result = activateModule(streamPtr, modules.get(module));
-    if (result == 0) {
-      int i = clients.beginBroadcast();
-      while (--i >= 0) {
-        try {
-          clients.getBroadcastItem(i).onModuleActivated(module);
-        } catch (RemoteException e) {
-          // Do nothing; RemoteCallbackList will take care of the cleanup.
-        }
-      }
-      clients.finishBroadcast();
-    }
-    return PatchfieldException.successOrFailure(result);
+  public synchronized int[] getMeterLayout() {
+    core.getState();  // Throws if closed.
+    int[] layout = new int[PortMeters.LAYOUT_SIZE];
+    return engine.getMeterLayout(layout) == 0 ? layout : null;
   }
 
   @Override
-  public synchronized int deactivateModule(String module) {
-    if (streamPtr == 0) {
-      throw new IllegalStateException("Stream closed.");
-    }
-    if (!modules.containsKey(module)) {
-      return PatchfieldException.NO_SUCH_MODULE;
+  public synchronized int[] getGraphLayout() {
+    core.getState();  // Throws if closed.
+    int[] layout = new int[GraphMirror.LAYOUT_SIZE];
+    return engine.getGraphLayout(layout) == 0 ? layout : null;
+  }
+
+  @Override
+  public synchronized PatchfieldTrace getTrace() {
+    PatchfieldCore.State state = core.getState();
+    int[] info = new int[PatchfieldTrace.CAPACITY];
+    long[] timestamps = new long[PatchfieldTrace.CAPACITY];
+    int n = engine.readTrace(info, timestamps);
+    if (n < 0) {
+      n = 0;
+    }
+    int maxIndex = -1;
+    for (String module : state.getModules()) {
+      maxIndex = Math.max(maxIndex, state.getIndex(module));
+    }
+    String[] modules = new String[maxIndex + 1];
+    for (String module : state.getModules()) {
+      modules[state.getIndex(module)] = module;
+    }
+    return new PatchfieldTrace(Arrays.copyOf(info, n), Arrays.copyOf(timestamps, n), modules);
+  }
+
+  /**
+   * Renders the current patch offline, i.e., back to back on the calling thread rather than in real
+   * time, using the same protocol as the live stream, so that modules in other processes take part
+   * as usual. The patch may be modified while rendering. The stream must not be running, and it
+   * can't be started until the render is done.
+   * 
+   * @param input Interleaved 16-bit frames for system_in; its length must be at least buffers times
+   *        the buffer size times the number of input channels.
+   * @param output Receives interleaved 16-bit frames from system_out; its length must be at least
+   *        buffers times the buffer size times the number of output channels.
+   * @param buffers Number of buffers to render.
+   * @param timeoutMillis Deadline for modules for each buffer; nonpositive values turn deadlines
+   *        off, so that slow modules stall the render rather than being skipped.
+   * @return 0 on success, or an error code.
+   */
+  public int render(short[] input, short[] output, int buffers, int timeoutMillis) {
+    synchronized (renderLock) {
+      core.getState();  // Throws if closed.
+      return engine.render(input, output, buffers, timeoutMillis);
     }
-    if (!isActive(module)) {
-      return 0;
+  }
+
+  /**
+   * Renders offline from a stream to a stream, as in {@link #render(short[], short[], int, int)}.
+   * Both streams carry raw interleaved 16-bit little-endian PCM at the sample rate of the
+   * patchfield, with the channel counts of system_in and system_out, respectively.
+   * 
+   * @param input Source of input frames, or null for silence; ignored if system_in has no channels.
+   * @param output Destination of output frames.
+   * @param frames Number of frames to render, or a negative value to render until the input ends,
+   *        which requires input channels.
+   * @param timeoutMillis Deadline for modules for each buffer; nonpositive values turn deadlines
+   *        off.
+   * @return The number of frames rendered, or a negative error code.
+   */
+  public long render(InputStream input, OutputStream output, long frames, int timeoutMillis)
+      throws IOException {
+    PatchfieldCore.State state = core.getState();
+    int inputChannels = state.getOutputChannels(PatchfieldCore.SYSTEM_IN);
+    int outputChannels = state.getInputChannels(PatchfieldCore.SYSTEM_OUT);
+    if (inputChannels == 0) {
+      input = null;  // There are no input frames to read.
+    }
+    if (output == null || (input == null && frames < 0)) {
+      return PatchfieldException.INVALID_PARAMETERS;
     }
-    int result = deactivateModule(streamPtr, modules.get(module));
-    if (result == 0) {
-      int i = clients.beginBroadcast();
-      while (--i >= 0) {
-        try {
-          clients.getBroadcastItem(i).onModuleDeactivated(module);
-        } catch (RemoteException e) {
-          // Do nothing; RemoteCallbackList will take care of the cleanup.
+    int chunkFrames = RENDER_CHUNK * params.getBufferSize();
+    short[] in = new short[chunkFrames * inputChannels];
+    short[] out = new short[chunkFrames * outputChannels];
+    byte[] inBytes = new byte[2 * in.length];
+    byte[] outBytes = new byte[2 * out.length];
+    long rendered = 0;
+    while (frames < 0 || rendered < frames) {
+      int n = frames < 0 ? chunkFrames : (int) Math.min(chunkFrames, frames - rendered);
+      if (input != null) {
+        int available = readFully(input, inBytes, 2 * n * inputChannels) / (2 * inputChannels);
+        Arrays.fill(inBytes, 2 * available * inputChannels, inBytes.length, (byte) 0);
+        for (int i = 0; i < in.length; ++i) {
+          in[i] = (short) ((inBytes[2 * i] & 0xff) | (inBytes[2 * i + 1] << 8));
+        }
+        if (frames < 0) {
+          n = available;
         }
       }
-      clients.finishBroadcast();
+      if (n == 0) {
+        break;
+      }
+      int result = render(in, out, (n + params.getBufferSize() - 1) / params.getBufferSize(),
+          timeoutMillis);
+      if (result < 0) {
+        return result;
+      }
+      for (int i = 0; i < n * outputChannels; ++i) {
+        outBytes[2 * i] = (byte) out[i];
+        outBytes[2 * i + 1] = (byte) (out[i] >> 8);
+      }
+      output.write(outBytes, 0, 2 * n * outputChannels);
+      rendered += n;
+      if (frames < 0 && n < chunkFrames) {
+        break;
+      }
     }
-    return PatchfieldException.successOrFailure(result);
+    output.flush();
+    return rendered;
   }
 
   @Override
-  public synchronized void setMasterNotification(Notification notification) {
-    masterNotification = notification;
+  public List<String> getModules() {
+    return getSnapshot().getModules();
   }
 
   @Override
-  public synchronized int getProtocolVersion() throws RemoteException {
-    if (streamPtr == 0) {
-      throw new IllegalStateException("Stream closed.");
-    }
-    return getProtocolVersion(streamPtr);
+  public int getInputChannels(String module) {
+    return getSnapshot().getInputChannels(module);
   }
 
-  private native long createInstance(int sampleRate, int bufferSize, int inputChannels,
-      int outputChannels);
-
-  private native int sendSharedMemoryFileDescriptor(long streamPtr);
-
-  private native void releaseInstance(long streamPtr);
-
-  private native int createModule(long streamPtr, int inputChannels, int outputChannels);
-
-  private native int deleteModule(long streamPtr, int index);
-
-  private native int connectPorts(long streamPtr, int sourceIndex, int sourcePort, int sinkIndex,
-      int sinkPort);
-
-  private native int disconnectPorts(long streamPtr, int sourceIndex, int sourcePort,
-      int sinkIndex, int sinkPort);
-
-  private native int activateModule(long streamPtr, int index);
-
-  private native int deactivateModule(long streamPtr, int index);
-
-  private native int start(long streamPtr);
+  @Override
+  public int getOutputChannels(String module) {
+    return getSnapshot().getOutputChannels(module);
+  }
 
-  private native void stop(long streamPtr);
+  @Override
+  public int[] getPorts(String module) {
+    return core.getState().getPorts(module);
+  }
 
-  private native boolean isActive(long streamPtr, int index);
+  @Override
+  public Notification getNotification(String module) {
+    if (module == null) {
+      return masterNotification;
+    }
+    PatchfieldSnapshot s = snapshot;
+    return s != null ? s.getNotification(module) : null;
+  }
 
-  private native boolean isRunning(long streamPtr);
+  @Override
+  public boolean isActive(String module) {
+    return getSnapshot().isActive(module);
+  }
 
-  private native boolean isConnected(long streamPtr, int sourceIndex, int sourcePort,
-      int sinkIndex, int sinkPort);
+  @Override
+  public synchronized int activateModule(String module) {
+    int result = core.activateModule(module);
+    return result == PatchfieldException.NO_SUCH_MODULE
+        ? result : PatchfieldException.successOrFailure(result);
+  }
 
-  private native int getInputChannels(long streamPtr, int index);
+  @Override
+  public synchronized int deactivateModule(String module) {
+    int result = core.deactivateModule(module);
+    return result == PatchfieldException.NO_SUCH_MODULE
+        ? result : PatchfieldException.successOrFailure(result);
+  }
 
-  private native int getOutputChannels(long streamPtr, int index);
+  @Override
+  public synchronized void setMasterNotification(Notification notification) {
+    masterNotification = notification;
+  }
 
-  private native int getProtocolVersion(long streamPtr);
+  @Override
+  public synchronized int getProtocolVersion() throws RemoteException {
+    core.getState();  // Throws if closed.
+    return engine.getProtocolVersion();
+  }
 
   @Override
   public IBinder asBinder() {
     throw new UnsupportedOperationException("Not implemented for local patchfield.");
   }
 
-  private List<String> getDependents(String source) {
-    List<String> dependents = new ArrayList<String>();
-    collectDependents(source, dependents);
-    return dependents;
+  // Reads until the buffer holds n bytes or the stream ends; returns the number of bytes read.
+  private static int readFully(InputStream input, byte[] buffer, int n) throws IOException {
+    int total = 0;
+    while (total < n) {
+      int count = input.read(buffer, total, n - total);
+      if (count < 0) {
+        break;
+      }
+      total += count;
+    }
+    return total;
   }
 
-  private void collectDependents(String source, List<String> dependents) {
-    dependents.add(source);
-    for (String sink : modules.keySet()) {
-      if (!dependents.contains(sink) && isDirectDependent(sink, source)) {
-        collectDependents(sink, dependents);
-      }
+  private PatchfieldSnapshot getSnapshot() {
+    PatchfieldSnapshot s = snapshot;
+    if (s == null) {
+      throw new IllegalStateException("Stream closed.");
     }
+    return s;
   }
 
-  private boolean isDirectDependent(String sink, String source) {
-    for (int i = 0; i < getOutputChannels(source); ++i) {
-      for (int j = 0; j < getInputChannels(sink); ++j) {
-        if (isConnected(source, i, sink, j)) {
-          return true;
-        }
-      }
+  // Publishes the given state to readers and listeners; called by the core listener, in order.
+  private void publish(PatchfieldCore.State state, PatchfieldEvent event) {
+    updateSnapshot(state);
+    dispatcher.post(event);
+  }
+
+  private void updateSnapshot(PatchfieldCore.State state) {
+    List<PatchfieldSnapshot.Module> moduleList = new ArrayList<PatchfieldSnapshot.Module>();
+    for (String module : state.getModules()) {
+      moduleList.add(new PatchfieldSnapshot.Module(module, state.getIndex(module),
+          state.getInputChannels(module), state.getOutputChannels(module), state.isActive(module),
+          notifications.get(module)));
+    }
+    List<PatchfieldSnapshot.Connection> connections =
+        new ArrayList<PatchfieldSnapshot.Connection>();
+    for (GraphIndex.Connection c : state.getConnections()) {
+      connections.add(new PatchfieldSnapshot.Connection(c.getSource(), c.getSourcePort(),
+          c.getSink(), c.getSinkPort()));
+    }
+    snapshot =
+        new PatchfieldSnapshot(state.getVersion(), state.isRunning(), moduleList, connections);
+    if (engine.publishGraph(GraphMirror.encode(snapshot)) != 0) {
+      Log.w(TAG, "Graph too large for shared memory; mirrors will fall back to binder calls.");
     }
-    return false;
   }
 }
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.patchfield;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.noisepages.nettoyeur.patchfield.internal.GraphEdit;
+
+/**
+ * A single graph operation, to be applied as part of a batch with
+ * {@link IPatchfieldService#applyEdits(java.util.List)}. Instances are immutable; use the static
+ * factory methods to create them.
+ */
+public final class PatchfieldEdit implements Parcelable {
+
+  public static final int CONNECT = GraphEdit.CONNECT;
+  public static final int DISCONNECT = GraphEdit.DISCONNECT;
+  public static final int ACTIVATE = GraphEdit.ACTIVATE;
+  public static final int DEACTIVATE = GraphEdit.DEACTIVATE;
+
+  private final int type;
+  private final String source;
+  private final int sourcePort;
+  private final String sink;
+  private final int sinkPort;
+
+  private PatchfieldEdit(int type, String source, int sourcePort, String sink, int sinkPort) {
+    this.type = type;
+    this.source = source;
+    this.sourcePort = sourcePort;
+    this.sink = sink;
+    this.sinkPort = sinkPort;
+  }
+
+  /**
+   * @return An edit that connects the given source port to the given sink port.
+   */
+  public static PatchfieldEdit connect(String source, int sourcePort, String sink, int sinkPort) {
+    return new PatchfieldEdit(CONNECT, source, sourcePort, sink, sinkPort);
+  }
+
+  /**
+   * @return An edit that disconnects the given source port from the given sink port.
+   */
+  public static PatchfieldEdit disconnect(String source, int sourcePort, String sink,
+      int sinkPort) {
+    return new PatchfieldEdit(DISCONNECT, source, sourcePort, sink, sinkPort);
+  }
+
+  /**
+   * @return An edit that activates the given module.
+   */
+  public static PatchfieldEdit activate(String module) {
+    return new PatchfieldEdit(ACTIVATE, module, -1, null, -1);
+  }
+
+  /**
+   * @return An edit that deactivates the given module.
+   */
+  public static PatchfieldEdit deactivate(String module) {
+    return new PatchfieldEdit(DEACTIVATE, module, -1, null, -1);
+  }
+
+  /**
+   * @return The type of this edit, i.e., one of CONNECT, DISCONNECT, ACTIVATE, DEACTIVATE.
+   */
+  public int getType() {
+    return type;
+  }
+
+  /**
+   * @return The module to be activated or deactivated; same as the source for connection edits.
+   */
+  public String getModule() {
+    return source;
+  }
+
+  public String getSource() {
+    return source;
+  }
+
+  public int getSourcePort() {
+    return sourcePort;
+  }
+
+  public String getSink() {
+    return sink;
+  }
+
+  public int getSinkPort() {
+    return sinkPort;
+  }
+
+  /**
+   * @return True if this edit connects or disconnects ports, false if it (de)activates a module.
+   */
+  public boolean isConnectionEdit() {
+    return type == CONNECT || type == DISCONNECT;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof PatchfieldEdit)) {
+      return false;
+    }
+    PatchfieldEdit e = (PatchfieldEdit) o;
+    return type == e.type && sourcePort == e.sourcePort && sinkPort == e.sinkPort
+        && (source == null ? e.source == null : source.equals(e.source))
+        && (sink == null ? e.sink == null : sink.equals(e.sink));
+  }
+
+  @Override
+  public int hashCode() {
+    int h = type;
+    h = 31 * h + (source == null ? 0 : source.hashCode());
+    h = 31 * h + sourcePort;
+    h = 31 * h + (sink == null ? 0 : sink.hashCode());
+    h = 31 * h + sinkPort;
+    return h;
+  }
+
+  @Override
+  public String toString() {
+    switch (type) {
+      case CONNECT:
+        return "connect " + source + ":" + sourcePort + " -> " + sink + ":" + sinkPort;
+      case DISCONNECT:
+        return "disconnect " + source + ":" + sourcePort + " -> " + sink + ":" + sinkPort;
+      case ACTIVATE:
+        return "activate " + source;
+      case DEACTIVATE:
+        return "deactivate " + source;
+      default:
+        return "invalid edit";
+    }
+  }
+
+  @Override
+  public int describeContents() {
+    return 0;
+  }
+
+  @Override
+  public void writeToParcel(Parcel dest, int flags) {
+    dest.writeInt(type);
+    dest.writeString(source);
+    dest.writeInt(sourcePort);
+    dest.writeString(sink);
+    dest.writeInt(sinkPort);
+  }
+
+  public static final Parcelable.Creator<PatchfieldEdit> CREATOR =
+      new Parcelable.Creator<PatchfieldEdit>() {
+        @Override
+        public PatchfieldEdit createFromParcel(Parcel source) {
+          return new PatchfieldEdit(source.readInt(), source.readString(), source.readInt(),
+              source.readString(), source.readInt());
+        }
+
+        @Override
+        public PatchfieldEdit[] newArray(int size) {
+          return new PatchfieldEdit[size];
+        }
+      };
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.patchfield;
+
+import android.app.Notification;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * A single change of the state of the patchfield, as delivered to an
+ * {@link IPatchfieldEventListener}. Each event carries a sequence number; consecutive events have
+ * consecutive sequence numbers, and the sequence number of the last event that a snapshot reflects
+ * is the version of the snapshot.
+ */
+public final class PatchfieldEvent implements Parcelable {
+
+  public static final int MODULE_CREATED = 0;
+  public static final int MODULE_DELETED = 1;
+  public static final int MODULE_ACTIVATED = 2;
+  public static final int MODULE_DEACTIVATED = 3;
+  public static final int PORTS_CONNECTED = 4;
+  public static final int PORTS_DISCONNECTED = 5;
+  public static final int STARTED = 6;
+  public static final int STOPPED = 7;
+
+  private final int type;
+  private final long sequence;
+  private final String source;
+  private final int sourcePort;
+  private final String sink;
+  private final int sinkPort;
+  private final int inputChannels;
+  private final int outputChannels;
+  private final Notification notification;
+
+  private PatchfieldEvent(int type, long sequence, String source, int sourcePort, String sink,
+      int sinkPort, int inputChannels, int outputChannels, Notification notification) {
+    this.type = type;
+    this.sequence = sequence;
+    this.source = source;
+    this.sourcePort = sourcePort;
+    this.sink = sink;
+    this.sinkPort = sinkPort;
+    this.inputChannels = inputChannels;
+    this.outputChannels = outputChannels;
+    this.notification = notification;
+  }
+
+  static PatchfieldEvent moduleCreated(long sequence, String module, int inputChannels,
+      int outputChannels, Notification notification) {
+    return new PatchfieldEvent(MODULE_CREATED, sequence, module, -1, null, -1, inputChannels,
+        outputChannels, notification);
+  }
+
+  static PatchfieldEvent moduleDeleted(long sequence, String module) {
+    return new PatchfieldEvent(MODULE_DELETED, sequence, module, -1, null, -1, -1, -1, null);
+  }
+
+  static PatchfieldEvent moduleActivated(long sequence, String module, boolean active) {
+    return new PatchfieldEvent(active ? MODULE_ACTIVATED : MODULE_DEACTIVATED, sequence, module,
+        -1, null, -1, -1, -1, null);
+  }
+
+  static PatchfieldEvent portsConnected(long sequence, String source, int sourcePort,
+      String sink, int sinkPort, boolean connected) {
+    return new PatchfieldEvent(connected ? PORTS_CONNECTED : PORTS_DISCONNECTED, sequence, source,
+        sourcePort, sink, sinkPort, -1, -1, null);
+  }
+
+  static PatchfieldEvent started(long sequence, boolean running) {
+    return new PatchfieldEvent(running ? STARTED : STOPPED, sequence, null, -1, null, -1, -1, -1,
+        null);
+  }
+
+  /**
+   * @return The type of this event, i.e., one of the constants defined in this class.
+   */
+  public int getType() {
+    return type;
+  }
+
+  /**
+   * @return The sequence number of this event.
+   */
+  public long getSequence() {
+    return sequence;
+  }
+
+  /**
+   * @return The module that was created, deleted, activated, or deactivated; same as the source for
+   *         connection events.
+   */
+  public String getModule() {
+    return source;
+  }
+
+  public String getSource() {
+    return source;
+  }
+
+  public int getSourcePort() {
+    return sourcePort;
+  }
+
+  public String getSink() {
+    return sink;
+  }
+
+  public int getSinkPort() {
+    return sinkPort;
+  }
+
+  /**
+   * @return The number of input channels of a newly created module.
+   */
+  public int getInputChannels() {
+    return inputChannels;
+  }
+
+  /**
+   * @return The number of output channels of a newly created module.
+   */
+  public int getOutputChannels() {
+    return outputChannels;
+  }
+
+  /**
+   * @return The notification of a newly created module.
+   */
+  public Notification getNotification() {
+    return notification;
+  }
+
+  @Override
+  public String toString() {
+    switch (type) {
+      case MODULE_CREATED:
+        return sequence + ": created " + source + " (" + inputChannels + ", " + outputChannels
+            + ")";
+      case MODULE_DELETED:
+        return sequence + ": deleted " + source;
+      case MODULE_ACTIVATED:
+        return sequence + ": activated " + source;
+      case MODULE_DEACTIVATED:
+        return sequence + ": deactivated " + source;
+      case PORTS_CONNECTED:
+        return sequence + ": connected " + source + ":" + sourcePort + " -> " + sink + ":"
+            + sinkPort;
+      case PORTS_DISCONNECTED:
+        return sequence + ": disconnected " + source + ":" + sourcePort + " -> " + sink + ":"
+            + sinkPort;
+      case STARTED:
+        return sequence + ": started";
+      case STOPPED:
+        return sequence + ": stopped";
+      default:
+        return sequence + ": invalid event";
+    }
+  }
+
+  @Override
+  public int describeContents() {
+    return 0;
+  }
+
+  @Override
+  public void writeToParcel(Parcel dest, int flags) {
+    dest.writeInt(type);
+    dest.writeLong(sequence);
+    dest.writeString(source);
+    dest.writeInt(sourcePort);
+    dest.writeString(sink);
+    dest.writeInt(sinkPort);
+    dest.writeInt(inputChannels);
+    dest.writeInt(outputChannels);
+    dest.writeParcelable(notification, flags);
+  }
+
+  public static final Parcelable.Creator<PatchfieldEvent> CREATOR =
+      new Parcelable.Creator<PatchfieldEvent>() {
+        @Override
+        public PatchfieldEvent createFromParcel(Parcel source) {
+          return new PatchfieldEvent(source.readInt(), source.readLong(), source.readString(),
+              source.readInt(), source.readString(), source.readInt(), source.readInt(),
+              source.readInt(),
+              (Notification) source.readParcelable(Notification.class.getClassLoader()));
+        }
+
+        @Override
+        public PatchfieldEvent[] newArray(int size) {
+          return new PatchfieldEvent[size];
+        }
+      };
+}
@@ -22,7 +22,7 @@ package com.noisepages.nettoyeur.patchfield;
  */
 public class PatchfieldException extends Exception {
 
-  // WARNING: Do not change these constants without updating references in patchfield.c.
+  // WARNING: Do not change these constants without updating references in patchfield_internal.c.
   public static final int SUCCESS = 0;
   public static final int FAILURE = -1;
   public static final int INVALID_PARAMETERS = -2;
@@ -34,6 +34,12 @@ public class PatchfieldException extends Exception {
   public static final int CYCLIC_DEPENDENCY = -8;
   public static final int OUT_OF_BUFFER_SPACE = -9;
   public static final int PROTOCOL_VERSION_MISMATCH = -10;
+  public static final int NO_SUCH_SAMPLE = -11;
+  public static final int SAMPLE_KEY_TAKEN = -12;
+  public static final int SAMPLE_POOL_FULL = -13;
+  public static final int PARAMETER_OUT_OF_RANGE = -14;
+  public static final int EVENT_QUEUE_FULL = -15;
+  public static final int PORT_KIND_MISMATCH = -16;
 
   private static final long serialVersionUID = 1L;
   private final int code;
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.patchfield;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.app.Notification;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Immutable snapshot of the entire signal processing graph, i.e., all modules with their channel
+ * counts, activity flags, and notifications, as well as all connections and the running state of
+ * the patchfield. Snapshots are tagged with a version number that increases whenever the state
+ * changes, so that clients can tell whether two snapshots describe the same state. The version is
+ * the sequence number of the last {@link PatchfieldEvent} that the snapshot reflects.
+ *
+ * Clients that need to build a representation of the whole graph should use a snapshot rather than
+ * querying the service module by module and port by port.
+ */
+public final class PatchfieldSnapshot implements Parcelable {
+
+  /**
+   * Description of an audio module in a snapshot.
+   */
+  public static final class Module {
+    private final String name;
+    private final int index;
+    private final int inputChannels;
+    private final int outputChannels;
+    private final boolean active;
+    private final Notification notification;
+
+    public Module(String name, int inputChannels, int outputChannels, boolean active,
+        Notification notification) {
+      this(name, -1, inputChannels, outputChannels, active, notification);
+    }
+
+    public Module(String name, int index, int inputChannels, int outputChannels, boolean active,
+        Notification notification) {
+      this.name = name;
+      this.index = index;
+      this.inputChannels = inputChannels;
+      this.outputChannels = outputChannels;
+      this.active = active;
+      this.notification = notification;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @return The index of the module in the Patchfield service, as used by {@link PortMeters}, or
+     *         -1 if unknown. Indices of deleted modules are reused.
+     */
+    public int getIndex() {
+      return index;
+    }
+
+    public int getInputChannels() {
+      return inputChannels;
+    }
+
+    public int getOutputChannels() {
+      return outputChannels;
+    }
+
+    public boolean isActive() {
+      return active;
+    }
+
+    public Notification getNotification() {
+      return notification;
+    }
+  }
+
+  /**
+   * Description of a connection from an output port to an input port in a snapshot.
+   */
+  public static final class Connection {
+    private final String source;
+    private final int sourcePort;
+    private final String sink;
+    private final int sinkPort;
+
+    public Connection(String source, int sourcePort, String sink, int sinkPort) {
+      this.source = source;
+      this.sourcePort = sourcePort;
+      this.sink = sink;
+      this.sinkPort = sinkPort;
+    }
+
+    public String getSource() {
+      return source;
+    }
+
+    public int getSourcePort() {
+      return sourcePort;
+    }
+
+    public String getSink() {
+      return sink;
+    }
+
+    public int getSinkPort() {
+      return sinkPort;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Connection)) {
+        return false;
+      }
+      Connection c = (Connection) o;
+      return sourcePort == c.sourcePort && sinkPort == c.sinkPort && source.equals(c.source)
+          && sink.equals(c.sink);
+    }
+
+    @Override
+    public int hashCode() {
+      return ((source.hashCode() * 31 + sourcePort) * 31 + sink.hashCode()) * 31 + sinkPort;
+    }
+
+    @Override
+    public String toString() {
+      return source + ":" + sourcePort + " -> " + sink + ":" + sinkPort;
+    }
+  }
+
+  private final long version;
+  private final boolean running;
+  private final Map<String, Module> modules = new LinkedHashMap<String, Module>();
+  private final Set<Connection> connections = new LinkedHashSet<Connection>();
+
+  public PatchfieldSnapshot(long version, boolean running, List<Module> modules,
+      List<Connection> connections) {
+    this.version = version;
+    this.running = running;
+    for (Module module : modules) {
+      this.modules.put(module.getName(), module);
+    }
+    this.connections.addAll(connections);
+  }
+
+  /**
+   * @return The version of the graph that this snapshot describes.
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * @return True if the patchfield was rendering audio at the time of the snapshot.
+   */
+  public boolean isRunning() {
+    return running;
+  }
+
+  /**
+   * @return The names of all modules, in the order in which they were created.
+   */
+  public List<String> getModules() {
+    return Collections.unmodifiableList(new ArrayList<String>(modules.keySet()));
+  }
+
+  /**
+   * @return The description of the given module, or null if the module doesn't exist.
+   */
+  public Module getModule(String module) {
+    return modules.get(module);
+  }
+
+  /**
+   * @return The number of input channels of the given module, or a negative error code if the
+   *         module doesn't exist.
+   */
+  public int getInputChannels(String module) {
+    Module m = modules.get(module);
+    return m != null ? m.getInputChannels() : PatchfieldException.NO_SUCH_MODULE;
+  }
+
+  /**
+   * @return The number of output channels of the given module, or a negative error code if the
+   *         module doesn't exist.
+   */
+  public int getOutputChannels(String module) {
+    Module m = modules.get(module);
+    return m != null ? m.getOutputChannels() : PatchfieldException.NO_SUCH_MODULE;
+  }
+
+  /**
+   * @return True if the given module was active at the time of the snapshot.
+   */
+  public boolean isActive(String module) {
+    Module m = modules.get(module);
+    return m != null && m.isActive();
+  }
+
+  /**
+   * @return The notification associated with the given module, or null if the module doesn't exist.
+   */
+  public Notification getNotification(String module) {
+    Module m = modules.get(module);
+    return m != null ? m.getNotification() : null;
+  }
+
+  /**
+   * @return True if the source port was directly connected to the sink port at the time of the
+   *         snapshot.
+   */
+  public boolean isConnected(String source, int sourcePort, String sink, int sinkPort) {
+    return connections.contains(new Connection(source, sourcePort, sink, sinkPort));
+  }
+
+  /**
+   * @return All connections in the graph.
+   */
+  public List<Connection> getConnections() {
+    return Collections.unmodifiableList(new ArrayList<Connection>(connections));
+  }
+
+  @Override
+  public int describeContents() {
+    return 0;
+  }
+
+  @Override
+  public void writeToParcel(Parcel dest, int flags) {
+    dest.writeLong(version);
+    dest.writeInt(running ? 1 : 0);
+    dest.writeInt(modules.size());
+    for (Module module : modules.values()) {
+      dest.writeString(module.getName());
+      dest.writeInt(module.getIndex());
+      dest.writeInt(module.getInputChannels());
+      dest.writeInt(module.getOutputChannels());
+      dest.writeInt(module.isActive() ? 1 : 0);
+      dest.writeParcelable(module.getNotification(), flags);
+    }
+    dest.writeInt(connections.size());
+    for (Connection connection : connections) {
+      dest.writeString(connection.getSource());
+      dest.writeInt(connection.getSourcePort());
+      dest.writeString(connection.getSink());
+      dest.writeInt(connection.getSinkPort());
+    }
+  }
+
+  public static final Parcelable.Creator<PatchfieldSnapshot> CREATOR =
+      new Parcelable.Creator<PatchfieldSnapshot>() {
+        @Override
+        public PatchfieldSnapshot createFromParcel(Parcel source) {
+          long version = source.readLong();
+          boolean running = source.readInt() != 0;
+          int n = source.readInt();
+          List<Module> modules = new ArrayList<Module>(n);
+          for (int i = 0; i < n; ++i) {
+            String name = source.readString();
+            int index = source.readInt();
+            int inputChannels = source.readInt();
+            int outputChannels = source.readInt();
+            boolean active = source.readInt() != 0;
+            Notification notification =
+                source.readParcelable(Notification.class.getClassLoader());
+            modules.add(new Module(name, index, inputChannels, outputChannels, active,
+                notification));
+          }
+          n = source.readInt();
+          List<Connection> connections = new ArrayList<Connection>(n);
+          for (int i = 0; i < n; ++i) {
+            connections.add(new Connection(source.readString(), source.readInt(),
+                source.readString(), source.readInt()));
+          }
+          return new PatchfieldSnapshot(version, running, modules, connections);
+        }
+
+        @Override
+        public PatchfieldSnapshot[] newArray(int size) {
+          return new PatchfieldSnapshot[size];
+        }
+      };
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.patchfield;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Contents of the trace ring of the Patchfield service, i.e., timestamped begin and end events for
+ * each stage of the processing cycle, oldest first. Events are attributed to the module slot whose
+ * thread recorded them, or to the engine as a whole (see {@link #ENGINE}). Use
+ * {@link TraceExporter} to convert a trace to the Chrome trace format.
+ */
+public final class PatchfieldTrace implements Parcelable {
+
+  // Flags for IPatchfieldService.setTraceFlags; these must agree with trace_internal.h.
+  public static final int RING = 1;
+  public static final int ATRACE = 2;
+
+  // Stages; these must agree with trace_internal.h.
+  public static final int REPORT_WAIT = 0;
+  public static final int INPUT_CONVERSION = 1;
+  public static final int WAKE = 2;
+  public static final int COLLECT = 3;
+  public static final int PROCESS = 4;
+  public static final int OUTPUT_CONVERSION = 5;
+  public static final int READY_WAIT = 6;
+  public static final int CLEANUP = 7;
+
+  /**
+   * Module index of events that concern the processing cycle as a whole.
+   */
+  public static final int ENGINE = 0xff;
+
+  /**
+   * Maximum number of events in a trace.
+   */
+  public static final int CAPACITY = 2048;
+
+  private static final String[] STAGE_NAMES = {"report_wait", "input_conversion", "wake",
+      "collect", "process", "output_conversion", "ready_wait", "cleanup"};
+
+  private final int[] info;
+  private final long[] timestamps;
+  private final String[] modules;
+
+  PatchfieldTrace(int[] info, long[] timestamps, String[] modules) {
+    this.info = info;
+    this.timestamps = timestamps;
+    this.modules = modules;
+  }
+
+  /**
+   * @return The number of events in this trace.
+   */
+  public int size() {
+    return info.length;
+  }
+
+  /**
+   * @return The module index of the given event, or ENGINE.
+   */
+  public int getModuleIndex(int event) {
+    return info[event] & 0xff;
+  }
+
+  /**
+   * @return The name of the module with the given index at the time the trace was read, or null if
+   *         the index was not in use.
+   */
+  public String getModuleName(int index) {
+    return index >= 0 && index < modules.length ? modules[index] : null;
+  }
+
+  /**
+   * @return The stage of the given event.
+   */
+  public int getStage(int event) {
+    return (info[event] >> 8) & 0xff;
+  }
+
+  /**
+   * @return True if the given event marks the beginning of a stage, false if it marks the end.
+   */
+  public boolean isBegin(int event) {
+    return ((info[event] >> 16) & 0xff) == 0;
+  }
+
+  /**
+   * @return The time of the given event in nanoseconds, measured with CLOCK_MONOTONIC.
+   */
+  public long getTimestampNanos(int event) {
+    return timestamps[event];
+  }
+
+  /**
+   * @return A human-readable name of the given stage.
+   */
+  public static String getStageName(int stage) {
+    return stage >= 0 && stage < STAGE_NAMES.length ? STAGE_NAMES[stage] : "unknown";
+  }
+
+  @Override
+  public int describeContents() {
+    return 0;
+  }
+
+  @Override
+  public void writeToParcel(Parcel dest, int flags) {
+    dest.writeIntArray(info);
+    dest.writeLongArray(timestamps);
+    dest.writeStringArray(modules);
+  }
+
+  public static final Parcelable.Creator<PatchfieldTrace> CREATOR =
+      new Parcelable.Creator<PatchfieldTrace>() {
+        @Override
+        public PatchfieldTrace createFromParcel(Parcel source) {
+          return new PatchfieldTrace(source.createIntArray(), source.createLongArray(),
+              source.createStringArray());
+        }
+
+        @Override
+        public PatchfieldTrace[] newArray(int size) {
+          return new PatchfieldTrace[size];
+        }
+      };
+}
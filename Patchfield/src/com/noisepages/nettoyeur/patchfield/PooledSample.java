@@ -0,0 +1,255 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.patchfield;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.security.MessageDigest;
+
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.noisepages.nettoyeur.patchfield.internal.SamplePool;
+import com.noisepages.nettoyeur.patchfield.internal.SharedMemoryUtils;
+
+/**
+ * A sample in the sample pool of the Patchfield service, mapped read-only into the current process.
+ * Samples are stored as planar 32-bit floats and identified by the hash of their format and
+ * contents, so that modules in any number of processes that load the same material share a single
+ * copy. The pool keeps referenced samples and evicts unreferenced ones as needed; always release
+ * samples when done with them.
+ */
+public final class PooledSample {
+
+  private static final String TAG = "PooledSample";
+
+  // Identifies this process to the sample pool, which drops its references when the process dies.
+  private static final IBinder TOKEN = new Binder();
+  private static final long UPLOAD_POLL_MILLIS = 20;  // While another process uploads a sample.
+
+  private final String key;
+  private final int channels;
+  private final int frames;
+  private final int sampleRate;
+  private ByteBuffer buffer;
+
+  private static class FdReceiverThread extends Thread {
+    private int fd = -1;
+
+    @Override
+    public void run() {
+      fd = SharedMemoryUtils.receiveSharedMemoryFileDescriptor();
+    }
+  }
+
+  private PooledSample(String key, int channels, int frames, int sampleRate, ByteBuffer buffer) {
+    this.key = key;
+    this.channels = channels;
+    this.frames = frames;
+    this.sampleRate = sampleRate;
+    this.buffer = buffer;
+  }
+
+  /**
+   * Looks up the given audio in the sample pool, uploading it if the pool doesn't have it yet, and
+   * maps it into the current process.
+   * 
+   * @param patchfield Stub for communicating with the Patchfield service.
+   * @param interleaved Audio data as interleaved 32-bit floats in native byte order.
+   * @param channels Number of channels.
+   * @param sampleRate Sample rate of the data.
+   * @return The pooled sample; release it when done.
+   * @throws PatchfieldException if the sample can't be added to the pool or mapped.
+   */
+  public static PooledSample load(IPatchfieldService patchfield, ByteBuffer interleaved,
+      int channels, int sampleRate) throws RemoteException, PatchfieldException {
+    FloatBuffer source = interleaved.duplicate().order(ByteOrder.nativeOrder()).asFloatBuffer();
+    int frames = source.remaining() / channels;
+    MessageDigest digest = SamplePool.newDigest(channels, frames, sampleRate);
+    copyPlanar(source, channels, frames, null, digest);
+    String key = SamplePool.toKey(digest);
+    // If another process is uploading the same audio, wait until it has committed the sample, or
+    // until its upload has gone away and we can make our own.
+    long deadline = System.nanoTime() + 2 * SamplePool.UPLOAD_TIMEOUT_NANOS;
+    while (true) {
+      int result = patchfield.acquireSample(key, TOKEN);
+      if (result == PatchfieldException.SUCCESS) {
+        return map(patchfield, key);
+      } else if (result != PatchfieldException.NO_SUCH_SAMPLE) {
+        throw new PatchfieldException(result);
+      }
+      result = patchfield.allocateSample(key, channels, frames, sampleRate);
+      if (result == PatchfieldException.SUCCESS) {
+        upload(patchfield, key, source, channels, frames);
+      } else if (result != PatchfieldException.SAMPLE_KEY_TAKEN || System.nanoTime() > deadline) {
+        throw new PatchfieldException(result);
+      } else {
+        try {
+          Thread.sleep(UPLOAD_POLL_MILLIS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new PatchfieldException(PatchfieldException.FAILURE);
+        }
+      }
+    }
+  }
+
+  /**
+   * Maps a sample that is already in the pool, e.g., one whose key was handed over by another
+   * module.
+   * 
+   * @return The pooled sample; release it when done.
+   * @throws PatchfieldException if there is no such sample, or if it can't be mapped.
+   */
+  public static PooledSample acquire(IPatchfieldService patchfield, String key)
+      throws RemoteException, PatchfieldException {
+    PatchfieldException.throwOnError(patchfield.acquireSample(key, TOKEN));
+    return map(patchfield, key);
+  }
+
+  // Maps a sample that the current process has acquired, releasing it on failure.
+  private static PooledSample map(IPatchfieldService patchfield, String key)
+      throws RemoteException, PatchfieldException {
+    int[] info = patchfield.getSampleInfo(key);
+    int fd = info != null ? receive(patchfield, key) : -1;
+    ByteBuffer buffer = null;
+    if (fd >= 0) {
+      buffer = SharedMemoryUtils.mapRegion(fd, 4L * info[0] * info[1], false);
+      SharedMemoryUtils.closeSharedMemoryFileDescriptor(fd);  // The mapping stays valid.
+    }
+    if (buffer == null) {
+      patchfield.releaseSample(key, TOKEN);
+      throw new PatchfieldException(info != null ? PatchfieldException.FAILURE
+          : PatchfieldException.NO_SUCH_SAMPLE);
+    }
+    return new PooledSample(key, info[0], info[1], info[2], buffer);
+  }
+
+  /**
+   * Unmaps the sample and releases its reference in the pool.
+   */
+  public synchronized void release(IPatchfieldService patchfield) throws RemoteException {
+    if (buffer != null) {
+      SharedMemoryUtils.unmapRegion(buffer);
+      buffer = null;
+      patchfield.releaseSample(key, TOKEN);
+    } else {
+      Log.w(TAG, "Already released.");
+    }
+  }
+
+  /**
+   * @return The key of this sample, which other modules can use to acquire it.
+   */
+  public String getKey() {
+    return key;
+  }
+
+  public int getChannels() {
+    return channels;
+  }
+
+  public int getFrames() {
+    return frames;
+  }
+
+  public int getSampleRate() {
+    return sampleRate;
+  }
+
+  /**
+   * @return A read-only direct buffer holding the planar samples; it must not be used after the
+   *         sample has been released.
+   */
+  public synchronized ByteBuffer getBuffer() {
+    if (buffer == null) {
+      throw new IllegalStateException("Sample has been released.");
+    }
+    return buffer.asReadOnlyBuffer().order(ByteOrder.nativeOrder());
+  }
+
+  private static void upload(IPatchfieldService patchfield, String key, FloatBuffer source,
+      int channels, int frames) throws RemoteException, PatchfieldException {
+    boolean uploaded = false;
+    try {
+      int fd = receive(patchfield, key);
+      ByteBuffer region =
+          fd >= 0 ? SharedMemoryUtils.mapRegion(fd, 4L * channels * frames, true) : null;
+      if (fd >= 0) {
+        SharedMemoryUtils.closeSharedMemoryFileDescriptor(fd);
+      }
+      if (region == null) {
+        throw new PatchfieldException(PatchfieldException.FAILURE);
+      }
+      copyPlanar(source, channels, frames, region.order(ByteOrder.nativeOrder()).asFloatBuffer(),
+          null);
+      SharedMemoryUtils.unmapRegion(region);
+      uploaded = true;
+    } finally {
+      if (!uploaded) {
+        patchfield.abortSample(key);  // Frees the region; the commit cleans up after itself.
+      }
+    }
+    PatchfieldException.throwOnError(patchfield.commitSample(key));
+  }
+
+  // Deinterleaves the source into the sink and/or the digest, channel by channel.
+  private static void copyPlanar(FloatBuffer source, int channels, int frames, FloatBuffer sink,
+      MessageDigest digest) {
+    ByteBuffer scratch = ByteBuffer.allocate(4096).order(ByteOrder.nativeOrder());
+    FloatBuffer floats = scratch.asFloatBuffer();
+    int offset = source.position();
+    for (int i = 0; i < channels; ++i) {
+      for (int j = 0; j < frames; ++j) {
+        float x = source.get(offset + j * channels + i);
+        if (sink != null) {
+          sink.put(x);
+        }
+        if (digest != null) {
+          floats.put(x);
+          if (!floats.hasRemaining()) {
+            digest.update(scratch.array(), 0, 4 * floats.position());
+            floats.clear();
+          }
+        }
+      }
+    }
+    if (digest != null) {
+      digest.update(scratch.array(), 0, 4 * floats.position());
+    }
+  }
+
+  // Receives the file descriptor of a sample, following the same choreography as AudioModule.
+  private static int receive(IPatchfieldService patchfield, String key) throws RemoteException {
+    FdReceiverThread t = new FdReceiverThread();
+    t.start();
+    while (patchfield.sendSampleFileDescriptor(key) != 0 && t.isAlive()) {
+      try {
+        Thread.sleep(10); // Wait for receiver thread to spin up.
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    try {
+      t.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return t.fd;
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.patchfield;
+
+import java.nio.ByteBuffer;
+
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.noisepages.nettoyeur.patchfield.internal.SharedMemoryUtils;
+
+/**
+ * Peak and RMS levels of the audio ports of all modules, read straight from the shared memory of
+ * the Patchfield service, so that meters can be refreshed at frame rate without any binder
+ * transactions. The service computes levels once per buffer, with a decay time of about 300ms,
+ * while metering is enabled; see {@link IPatchfieldService#setMetering(boolean)}. Levels are
+ * linear amplitudes. Modules are identified by their index, as reported by
+ * {@link PatchfieldSnapshot.Module#getIndex()}, and only the first few ports of a module are
+ * metered; see {@link #getMaxPorts()}.
+ */
+public final class PortMeters {
+
+  private static final String TAG = "PortMeters";
+
+  // Layout as reported by the service; must agree with pfi_get_meter_layout.
+  static final int LAYOUT_SIZE = 4;
+  private static final int SHARED_MEMORY_SIZE = 0;
+  private static final int RECORD_OFFSET = 1;
+  private static final int RECORD_SIZE = 2;
+  private static final int MAX_PORTS = 3;
+
+  private final int offset;
+  private final int recordSize;
+  private final int maxPorts;
+  private final int[] words;
+  private ByteBuffer buffer;
+
+  private static class FdReceiverThread extends Thread {
+    private int fd = -1;
+
+    @Override
+    public void run() {
+      fd = SharedMemoryUtils.receiveSharedMemoryFileDescriptor();
+    }
+  }
+
+  private PortMeters(int[] layout, ByteBuffer buffer) {
+    offset = layout[RECORD_OFFSET];
+    recordSize = layout[RECORD_SIZE];
+    maxPorts = layout[MAX_PORTS];
+    words = new int[2 + 4 * maxPorts];  // Port counts, then four arrays of levels.
+    this.buffer = buffer;
+  }
+
+  /**
+   * Maps the metering area of the service into the current process.
+   *
+   * @return The meters; release them when done.
+   * @throws PatchfieldException if metering is unavailable or the shared memory can't be mapped.
+   */
+  public static PortMeters open(IPatchfieldService patchfield) throws RemoteException,
+      PatchfieldException {
+    int[] layout = patchfield.getMeterLayout();
+    if (layout == null) {
+      throw new PatchfieldException(PatchfieldException.FAILURE);
+    }
+    ByteBuffer buffer = mapSharedMemory(patchfield, layout[SHARED_MEMORY_SIZE]);
+    if (buffer == null) {
+      throw new PatchfieldException(PatchfieldException.FAILURE);
+    }
+    return new PortMeters(layout, buffer);
+  }
+
+  /**
+   * Unmaps the metering area.
+   */
+  public synchronized void release() {
+    if (buffer != null) {
+      SharedMemoryUtils.unmapRegion(buffer);
+      buffer = null;
+    } else {
+      Log.w(TAG, "Already released.");
+    }
+  }
+
+  /**
+   * @return The maximum number of metered ports per module and direction.
+   */
+  public int getMaxPorts() {
+    return maxPorts;
+  }
+
+  /**
+   * Copies the current levels of the input or output ports of the given module. The arrays must
+   * hold at least {@link #getMaxPorts()} values.
+   *
+   * @param index Index of the module.
+   * @param outputs True for output ports, false for input ports.
+   * @param peak Receives the peak levels.
+   * @param rms Receives the RMS levels.
+   * @return The number of metered ports on success, or a negative error code on failure.
+   */
+  public synchronized int read(int index, boolean outputs, float[] peak, float[] rms) {
+    if (buffer == null) {
+      throw new IllegalStateException("Meters have been released.");
+    }
+    if (index < 0 || offset + (long) (index + 1) * recordSize > buffer.capacity()
+        || peak.length < maxPorts || rms.length < maxPorts) {
+      return PatchfieldException.INVALID_PARAMETERS;
+    }
+    if (SharedMemoryUtils.readSequenced(buffer, offset + index * recordSize, words) < 0) {
+      return PatchfieldException.FAILURE;
+    }
+    int n = outputs ? words[1] : words[0];
+    int base = 2 + (outputs ? 2 * maxPorts : 0);
+    for (int i = 0; i < n; ++i) {
+      peak[i] = Float.intBitsToFloat(words[base + i]);
+      rms[i] = Float.intBitsToFloat(words[base + maxPorts + i]);
+    }
+    return n;
+  }
+
+  // Maps the shared memory of the service read-only; also used by GraphMirror.
+  static ByteBuffer mapSharedMemory(IPatchfieldService patchfield, int size)
+      throws RemoteException {
+    int fd = receive(patchfield);
+    if (fd < 0) {
+      return null;
+    }
+    ByteBuffer buffer = SharedMemoryUtils.mapRegion(fd, size, false);
+    SharedMemoryUtils.closeSharedMemoryFileDescriptor(fd);  // The mapping stays valid.
+    return buffer;
+  }
+
+  private static int receive(IPatchfieldService patchfield) throws RemoteException {
+    FdReceiverThread t = new FdReceiverThread();
+    t.start();
+    while (patchfield.sendSharedMemoryFileDescriptor() != 0 && t.isAlive()) {
+      try {
+        Thread.sleep(10); // Wait for receiver thread to spin up.
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    try {
+      t.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return t.fd;
+  }
+}
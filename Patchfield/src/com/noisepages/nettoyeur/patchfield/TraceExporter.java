@@ -0,0 +1,66 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.patchfield;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Converts a {@link PatchfieldTrace} to the JSON format of the Chrome trace viewer, which can also
+ * be loaded into Perfetto (ui.perfetto.dev). Each module slot shows up as a thread of its own, and
+ * stages that concern the processing cycle as a whole show up on a thread named "patchfield".
+ * 
+ * The Patchfield service dumps its trace in this format when invoked as follows:
+ * 
+ * adb shell dumpsys activity service
+ * com.noisepages.nettoyeur.patchfield/.service.PatchfieldService trace
+ */
+public class TraceExporter {
+
+  private TraceExporter() {
+    // Not instantiable.
+  }
+
+  public static void writeChromeTrace(PatchfieldTrace trace, Writer writer) throws IOException {
+    writer.write("{\"displayTimeUnit\":\"ns\",\"traceEvents\":[\n");
+    writer.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":0,\"tid\":"
+        + PatchfieldTrace.ENGINE + ",\"args\":{\"name\":\"patchfield\"}}");
+    boolean[] named = new boolean[PatchfieldTrace.ENGINE];
+    for (int i = 0; i < trace.size(); ++i) {
+      int index = trace.getModuleIndex(i);
+      if (index < named.length && !named[index]) {
+        named[index] = true;
+        String name = trace.getModuleName(index);
+        writer.write(",\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":0,\"tid\":" + index
+            + ",\"args\":{\"name\":\"" + escape(name != null ? name : "module " + index)
+            + "\"}}");
+      }
+    }
+    for (int i = 0; i < trace.size(); ++i) {
+      writer.write(String.format(Locale.US,
+          ",\n{\"name\":\"%s\",\"cat\":\"patchfield\",\"ph\":\"%s\",\"ts\":%.3f,\"pid\":0,"
+              + "\"tid\":%d}", PatchfieldTrace.getStageName(trace.getStage(i)),
+          trace.isBegin(i) ? "B" : "E", trace.getTimestampNanos(i) / 1000.0,
+          trace.getModuleIndex(i)));
+    }
+    writer.write("\n]}\n");
+    writer.flush();
+  }
+
+  private static String escape(String s) {
+    return s.replace("\\", "\\\\").replace("\"", "\\\"");
+  }
+}
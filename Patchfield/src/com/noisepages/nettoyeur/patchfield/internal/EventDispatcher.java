@@ -0,0 +1,302 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.patchfield.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.os.IBinder;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.noisepages.nettoyeur.patchfield.IPatchfieldClient;
+import com.noisepages.nettoyeur.patchfield.IPatchfieldEventListener;
+import com.noisepages.nettoyeur.patchfield.IPatchfieldService;
+import com.noisepages.nettoyeur.patchfield.PatchfieldEdit;
+import com.noisepages.nettoyeur.patchfield.PatchfieldEvent;
+import com.noisepages.nettoyeur.patchfield.PatchfieldSnapshot;
+
+/**
+ * Delivers state changes of the patchfield to clients and event listeners on a dedicated thread, so
+ * that the service never performs binder transactions while holding its monitor.
+ * 
+ * Clients receive one callback per change, as before. Event listeners receive sequenced events in
+ * batches, with at most one transaction per listener per dispatch interval. A new listener, as well
+ * as a listener whose queue overflows because it cannot keep up, receives a snapshot of the whole
+ * graph instead, followed by the events that happened after the snapshot was taken.
+ */
+public class EventDispatcher implements Runnable {
+
+  private static final String TAG = "EventDispatcher";
+
+  /**
+   * Minimum time between two batches sent to the same event listener, roughly one display frame.
+   */
+  public static final long DISPATCH_INTERVAL_MILLIS = 16;
+
+  /**
+   * Maximum number of events queued for a listener before it needs to be resynchronized.
+   */
+  public static final int MAX_QUEUED_EVENTS = 256;
+
+  private static class Batch {
+    private final List<PatchfieldEvent> events;
+    private final List<PatchfieldEdit> edits;  // Only set if the batch comes from applyEdits.
+
+    private Batch(List<PatchfieldEvent> events, List<PatchfieldEdit> edits) {
+      this.events = events;
+      this.edits = edits;
+    }
+  }
+
+  private class Listener implements IBinder.DeathRecipient {
+    private final IPatchfieldEventListener listener;
+    private final List<PatchfieldEvent> queue = new ArrayList<PatchfieldEvent>();
+    private boolean resync = true;
+    private long sequence = -1;  // Sequence number of the last event that the listener has seen.
+
+    private Listener(IPatchfieldEventListener listener) {
+      this.listener = listener;
+    }
+
+    @Override
+    public void binderDied() {
+      removeListener(listener);
+    }
+  }
+
+  private final IPatchfieldService service;
+  private final RemoteCallbackList<IPatchfieldClient> clients;
+  private final List<Batch> batches = new ArrayList<Batch>();
+  private final Map<IBinder, Listener> listeners = new HashMap<IBinder, Listener>();
+  private boolean dirty = false;
+  private boolean closed = false;
+
+  /**
+   * Creates a dispatcher and starts its thread.
+   * 
+   * @param service The patchfield whose snapshots are sent to listeners that need to resync.
+   * @param clients The clients to be notified of every change; only the dispatcher will broadcast
+   *        to them.
+   */
+  public EventDispatcher(IPatchfieldService service,
+      RemoteCallbackList<IPatchfieldClient> clients) {
+    this.service = service;
+    this.clients = clients;
+    new Thread(this, TAG).start();
+  }
+
+  /**
+   * Stops the dispatcher thread. Pending notifications will be dropped.
+   */
+  public synchronized void close() {
+    closed = true;
+    for (Map.Entry<IBinder, Listener> entry : listeners.entrySet()) {
+      entry.getKey().unlinkToDeath(entry.getValue(), 0);
+    }
+    listeners.clear();
+    notifyAll();
+  }
+
+  public synchronized void addListener(IPatchfieldEventListener listener) {
+    IBinder binder = listener.asBinder();
+    if (closed || listeners.containsKey(binder)) {
+      return;
+    }
+    Listener state = new Listener(listener);
+    try {
+      binder.linkToDeath(state, 0);
+    } catch (RemoteException e) {
+      return;  // The listener is already dead.
+    }
+    listeners.put(binder, state);
+    dirty = true;
+    notifyAll();
+  }
+
+  public synchronized void removeListener(IPatchfieldEventListener listener) {
+    IBinder binder = listener.asBinder();
+    Listener state = listeners.remove(binder);
+    if (state != null) {
+      binder.unlinkToDeath(state, 0);
+    }
+  }
+
+  /**
+   * Queues a single event. Events must be posted in order of their sequence numbers.
+   */
+  public void post(PatchfieldEvent event) {
+    post(Collections.singletonList(event), null);
+  }
+
+  /**
+   * Queues a list of events that result from one call to applyEdits. Clients will receive the given
+   * edits in a single callback, and event listeners will receive the events.
+   */
+  public synchronized void post(List<PatchfieldEvent> events, List<PatchfieldEdit> edits) {
+    if (closed) {
+      return;
+    }
+    batches.add(new Batch(events, edits));
+    for (Listener listener : listeners.values()) {
+      listener.queue.addAll(events);
+      if (listener.queue.size() > MAX_QUEUED_EVENTS) {
+        listener.queue.clear();
+        listener.resync = true;
+      }
+      dirty = true;
+    }
+    notifyAll();
+  }
+
+  @Override
+  public void run() {
+    long nextFlush = 0;
+    while (true) {
+      List<Batch> pending;
+      List<Listener> ready = null;
+      synchronized (this) {
+        long now = SystemClock.uptimeMillis();
+        while (!closed && batches.isEmpty() && !(dirty && now >= nextFlush)) {
+          try {
+            if (dirty) {
+              wait(nextFlush - now);
+            } else {
+              wait();
+            }
+          } catch (InterruptedException e) {
+            return;
+          }
+          now = SystemClock.uptimeMillis();
+        }
+        if (closed) {
+          return;
+        }
+        pending = new ArrayList<Batch>(batches);
+        batches.clear();
+        if (dirty && now >= nextFlush) {
+          ready = new ArrayList<Listener>(listeners.values());
+          dirty = false;
+          nextFlush = now + DISPATCH_INTERVAL_MILLIS;
+        }
+      }
+      for (Batch batch : pending) {
+        broadcast(batch);
+      }
+      if (ready != null) {
+        for (Listener listener : ready) {
+          flush(listener);
+        }
+      }
+    }
+  }
+
+  private void broadcast(Batch batch) {
+    int i = clients.beginBroadcast();
+    while (--i >= 0) {
+      IPatchfieldClient client = clients.getBroadcastItem(i);
+      try {
+        if (batch.edits != null) {
+          client.onEditsApplied(batch.edits);
+        } else {
+          for (PatchfieldEvent event : batch.events) {
+            notifyClient(client, event);
+          }
+        }
+      } catch (RemoteException e) {
+        // Do nothing; RemoteCallbackList will take care of the cleanup.
+      }
+    }
+    clients.finishBroadcast();
+  }
+
+  private void notifyClient(IPatchfieldClient client, PatchfieldEvent event)
+      throws RemoteException {
+    switch (event.getType()) {
+      case PatchfieldEvent.MODULE_CREATED:
+        client.onModuleCreated(event.getModule(), event.getInputChannels(),
+            event.getOutputChannels(), event.getNotification());
+        break;
+      case PatchfieldEvent.MODULE_DELETED:
+        client.onModuleDeleted(event.getModule());
+        break;
+      case PatchfieldEvent.MODULE_ACTIVATED:
+        client.onModuleActivated(event.getModule());
+        break;
+      case PatchfieldEvent.MODULE_DEACTIVATED:
+        client.onModuleDeactivated(event.getModule());
+        break;
+      case PatchfieldEvent.PORTS_CONNECTED:
+        client.onPortsConnected(event.getSource(), event.getSourcePort(), event.getSink(),
+            event.getSinkPort());
+        break;
+      case PatchfieldEvent.PORTS_DISCONNECTED:
+        client.onPortsDisconnected(event.getSource(), event.getSourcePort(), event.getSink(),
+            event.getSinkPort());
+        break;
+      case PatchfieldEvent.STARTED:
+        client.onStart();
+        break;
+      case PatchfieldEvent.STOPPED:
+        client.onStop();
+        break;
+      default:
+        Log.w(TAG, "Unknown event: " + event);
+        break;
+    }
+  }
+
+  private void flush(Listener listener) {
+    boolean resync;
+    synchronized (this) {
+      resync = listener.resync;
+      listener.resync = false;
+    }
+    try {
+      if (resync) {
+        // Events posted while the snapshot is being sent remain queued and are filtered below.
+        PatchfieldSnapshot snapshot = service.getGraphSnapshot();
+        listener.listener.onResync(snapshot);
+        synchronized (this) {
+          listener.sequence = snapshot.getVersion();
+        }
+      }
+      List<PatchfieldEvent> events = new ArrayList<PatchfieldEvent>();
+      synchronized (this) {
+        for (PatchfieldEvent event : listener.queue) {
+          if (event.getSequence() > listener.sequence) {
+            events.add(event);
+          }
+        }
+        listener.queue.clear();
+        if (!events.isEmpty()) {
+          listener.sequence = events.get(events.size() - 1).getSequence();
+        }
+      }
+      if (!events.isEmpty()) {
+        listener.listener.onEvents(events);
+      }
+    } catch (RemoteException e) {
+      removeListener(listener.listener);
+    } catch (IllegalStateException e) {
+      // The patchfield has been released; the dispatcher is about to be closed.
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.patchfield.internal;
+
+/**
+ * Plain-Java counterpart of PatchfieldEdit, for use by {@link PatchfieldCore}, which can't depend on
+ * Android classes such as Parcelable.
+ */
+public final class GraphEdit {
+
+  // WARNING: Do not change these constants without updating references in
+  // patchfield_internal.h.
+  public static final int CONNECT = 0;
+  public static final int DISCONNECT = 1;
+  public static final int ACTIVATE = 2;
+  public static final int DEACTIVATE = 3;
+
+  private final int type;
+  private final String source;
+  private final int sourcePort;
+  private final String sink;
+  private final int sinkPort;
+
+  public GraphEdit(int type, String source, int sourcePort, String sink, int sinkPort) {
+    this.type = type;
+    this.source = source;
+    this.sourcePort = sourcePort;
+    this.sink = sink;
+    this.sinkPort = sinkPort;
+  }
+
+  public static GraphEdit connect(String source, int sourcePort, String sink, int sinkPort) {
+    return new GraphEdit(CONNECT, source, sourcePort, sink, sinkPort);
+  }
+
+  public static GraphEdit disconnect(String source, int sourcePort, String sink, int sinkPort) {
+    return new GraphEdit(DISCONNECT, source, sourcePort, sink, sinkPort);
+  }
+
+  public static GraphEdit activate(String module) {
+    return new GraphEdit(ACTIVATE, module, -1, null, -1);
+  }
+
+  public static GraphEdit deactivate(String module) {
+    return new GraphEdit(DEACTIVATE, module, -1, null, -1);
+  }
+
+  public int getType() {
+    return type;
+  }
+
+  public String getModule() {
+    return source;
+  }
+
+  public String getSource() {
+    return source;
+  }
+
+  public int getSourcePort() {
+    return sourcePort;
+  }
+
+  public String getSink() {
+    return sink;
+  }
+
+  public int getSinkPort() {
+    return sinkPort;
+  }
+
+  public boolean isConnectionEdit() {
+    return type == CONNECT || type == DISCONNECT;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof GraphEdit)) {
+      return false;
+    }
+    GraphEdit e = (GraphEdit) o;
+    return type == e.type && sourcePort == e.sourcePort && sinkPort == e.sinkPort
+        && (source == null ? e.source == null : source.equals(e.source))
+        && (sink == null ? e.sink == null : sink.equals(e.sink));
+  }
+
+  @Override
+  public int hashCode() {
+    int h = type;
+    h = 31 * h + (source == null ? 0 : source.hashCode());
+    h = 31 * h + sourcePort;
+    h = 31 * h + (sink == null ? 0 : sink.hashCode());
+    h = 31 * h + sinkPort;
+    return h;
+  }
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.patchfield.internal;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Java-side mirror of the native signal processing graph. Modules are stored by their native
+ * index, and for each module the index keeps the set of modules that depend on its output,
+ * directly or indirectly, as a bit set that is updated incrementally when connections are added or
+ * removed. This turns cycle checks into a single bit lookup.
+ * 
+ * This class is not thread-safe; callers are responsible for synchronization.
+ */
+public class GraphIndex {
+
+  // Port kinds; these must agree with the constants in audio_module_internal.h. A module has inputs
+  // and outputs of each kind, and port numbers run through all audio ports first, then all event
+  // ports, then all control ports. Arrays of port counts hold the number of inputs of kind k at
+  // 2 * k and the number of outputs at 2 * k + 1.
+  public static final int AUDIO = 0;
+  public static final int EVENT = 1;
+  public static final int CONTROL = 2;
+  public static final int PORT_KINDS = 3;
+
+  /**
+   * Connection from an output port of one module to an input port of another.
+   */
+  public static final class Connection {
+    private final String source;
+    private final int sourcePort;
+    private final String sink;
+    private final int sinkPort;
+
+    private Connection(String source, int sourcePort, String sink, int sinkPort) {
+      this.source = source;
+      this.sourcePort = sourcePort;
+      this.sink = sink;
+      this.sinkPort = sinkPort;
+    }
+
+    public String getSource() {
+      return source;
+    }
+
+    public int getSourcePort() {
+      return sourcePort;
+    }
+
+    public String getSink() {
+      return sink;
+    }
+
+    public int getSinkPort() {
+      return sinkPort;
+    }
+  }
+
+  private static final class Module {
+    private final String name;
+    private final int[] ports;
+    private boolean active = false;
+    // Input connections as triples (source index, source port, sink port).
+    private final List<int[]> inputs = new ArrayList<int[]>();
+
+    private Module(String name, int[] ports) {
+      this.name = name;
+      this.ports = ports;
+    }
+
+    private Module(Module other) {
+      this(other.name, other.ports);
+      active = other.active;
+      for (int[] input : other.inputs) {
+        inputs.add(input.clone());
+      }
+    }
+  }
+
+  private final Map<String, Integer> indices = new LinkedHashMap<String, Integer>();
+  private Module[] modules = new Module[0];
+  private int[][] edges = new int[0][0];  // Number of port connections between two modules.
+  private BitSet[] reach = new BitSet[0];  // Modules that depend on the output of a module.
+
+  public GraphIndex() {
+    // Nothing to do.
+  }
+
+  /**
+   * Copy constructor, e.g., for validating a sequence of edits on a scratch copy.
+   */
+  public GraphIndex(GraphIndex other) {
+    indices.putAll(other.indices);
+    ensureCapacity(other.modules.length);
+    for (int i = 0; i < modules.length; ++i) {
+      if (other.modules[i] != null) {
+        modules[i] = new Module(other.modules[i]);
+      }
+      System.arraycopy(other.edges[i], 0, edges[i], 0, modules.length);
+      reach[i] = (BitSet) other.reach[i].clone();
+    }
+  }
+
+  /**
+   * @return An array of port counts for a module with audio ports only.
+   */
+  public static int[] audioPorts(int inputChannels, int outputChannels) {
+    int[] ports = new int[2 * PORT_KINDS];
+    ports[2 * AUDIO] = inputChannels;
+    ports[2 * AUDIO + 1] = outputChannels;
+    return ports;
+  }
+
+  public void addModule(String name, int index, int[] ports) {
+    ensureCapacity(index + 1);
+    modules[index] = new Module(name, ports.clone());
+    indices.put(name, index);
+  }
+
+  public void removeModule(String name) {
+    Integer index = indices.remove(name);
+    if (index == null) {
+      return;
+    }
+    Module module = modules[index];
+    for (int[] input : module.inputs.toArray(new int[0][])) {
+      removeEdge(input[0], index);
+    }
+    module.inputs.clear();
+    for (Module sink : modules) {
+      if (sink != null && sink != module) {
+        for (int k = sink.inputs.size() - 1; k >= 0; --k) {
+          if (sink.inputs.get(k)[0] == index) {
+            sink.inputs.remove(k);
+            removeEdge(index, indices.get(sink.name));
+          }
+        }
+      }
+    }
+    modules[index] = null;
+  }
+
+  public boolean contains(String name) {
+    return indices.containsKey(name);
+  }
+
+  /**
+   * @return The native index of the given module, or -1 if it doesn't exist.
+   */
+  public int getIndex(String name) {
+    Integer index = indices.get(name);
+    return index != null ? index : -1;
+  }
+
+  /**
+   * @return The names of all modules, in the order in which they were added.
+   */
+  public List<String> getModules() {
+    return Collections.unmodifiableList(new ArrayList<String>(indices.keySet()));
+  }
+
+  /**
+   * @return The number of input channels, or -1 if the module doesn't exist.
+   */
+  public int getInputChannels(String name) {
+    Module module = getModule(name);
+    return module != null ? module.ports[2 * AUDIO] : -1;
+  }
+
+  /**
+   * @return The number of output channels, or -1 if the module doesn't exist.
+   */
+  public int getOutputChannels(String name) {
+    Module module = getModule(name);
+    return module != null ? module.ports[2 * AUDIO + 1] : -1;
+  }
+
+  /**
+   * @return A copy of the port counts of the module, or null if the module doesn't exist.
+   */
+  public int[] getPorts(String name) {
+    Module module = getModule(name);
+    return module != null ? module.ports.clone() : null;
+  }
+
+  /**
+   * @return The kind of the given input port, or -1 if the module or port doesn't exist.
+   */
+  public int getInputKind(String name, int port) {
+    return getKind(getModule(name), port, 0);
+  }
+
+  /**
+   * @return The kind of the given output port, or -1 if the module or port doesn't exist.
+   */
+  public int getOutputKind(String name, int port) {
+    return getKind(getModule(name), port, 1);
+  }
+
+  public boolean isActive(String name) {
+    Module module = getModule(name);
+    return module != null && module.active;
+  }
+
+  public void setActive(String name, boolean active) {
+    Module module = getModule(name);
+    if (module != null) {
+      module.active = active;
+    }
+  }
+
+  public boolean isConnected(String source, int sourcePort, String sink, int sinkPort) {
+    int sourceIndex = getIndex(source);
+    Module module = getModule(sink);
+    return sourceIndex >= 0 && module != null
+        && findInput(module, sourceIndex, sourcePort, sinkPort) >= 0;
+  }
+
+  /**
+   * Adds a connection, assuming that both modules exist and that the connection doesn't create a
+   * cycle; use isDependent to check this beforehand.
+   */
+  public void connect(String source, int sourcePort, String sink, int sinkPort) {
+    int sourceIndex = getIndex(source);
+    Module module = getModule(sink);
+    if (findInput(module, sourceIndex, sourcePort, sinkPort) < 0) {
+      module.inputs.add(new int[] {sourceIndex, sourcePort, sinkPort});
+      addEdge(sourceIndex, indices.get(sink));
+    }
+  }
+
+  public void disconnect(String source, int sourcePort, String sink, int sinkPort) {
+    int sourceIndex = getIndex(source);
+    Module module = getModule(sink);
+    if (sourceIndex < 0 || module == null) {
+      return;
+    }
+    int k = findInput(module, sourceIndex, sourcePort, sinkPort);
+    if (k >= 0) {
+      module.inputs.remove(k);
+      removeEdge(sourceIndex, indices.get(sink));
+    }
+  }
+
+  /**
+   * @return True if the input of the sink depends on the output of the source, directly or
+   *         indirectly, or if sink and source are the same module.
+   */
+  public boolean isDependent(String sink, String source) {
+    int sinkIndex = getIndex(sink);
+    int sourceIndex = getIndex(source);
+    if (sinkIndex < 0 || sourceIndex < 0) {
+      return false;
+    }
+    return sinkIndex == sourceIndex || reach[sourceIndex].get(sinkIndex);
+  }
+
+  /**
+   * @return All connections, grouped by sink in the order in which modules were added.
+   */
+  public List<Connection> getConnections() {
+    List<Connection> connections = new ArrayList<Connection>();
+    for (Map.Entry<String, Integer> entry : indices.entrySet()) {
+      for (int[] input : modules[entry.getValue()].inputs) {
+        connections.add(new Connection(modules[input[0]].name, input[1], entry.getKey(),
+            input[2]));
+      }
+    }
+    return connections;
+  }
+
+  private Module getModule(String name) {
+    Integer index = indices.get(name);
+    return index != null ? modules[index] : null;
+  }
+
+  private static int getKind(Module module, int port, int direction) {
+    if (module == null || port < 0) {
+      return -1;
+    }
+    for (int kind = 0; kind < PORT_KINDS; ++kind) {
+      port -= module.ports[2 * kind + direction];
+      if (port < 0) {
+        return kind;
+      }
+    }
+    return -1;
+  }
+
+  private int findInput(Module module, int sourceIndex, int sourcePort, int sinkPort) {
+    for (int k = 0; k < module.inputs.size(); ++k) {
+      int[] input = module.inputs.get(k);
+      if (input[0] == sourceIndex && input[1] == sourcePort && input[2] == sinkPort) {
+        return k;
+      }
+    }
+    return -1;
+  }
+
+  private void addEdge(int source, int sink) {
+    if (edges[source][sink]++ > 0) {
+      return;
+    }
+    // Everything that depends on the source now also depends on the sink and its dependents.
+    for (int i = 0; i < modules.length; ++i) {
+      if (i == source || reach[i].get(source)) {
+        reach[i].set(sink);
+        reach[i].or(reach[sink]);
+      }
+    }
+  }
+
+  private void removeEdge(int source, int sink) {
+    if (--edges[source][sink] > 0) {
+      return;
+    }
+    // Only the source and the modules it depends on can lose dependents; recompute their bit sets
+    // from their direct successors, in topological order.
+    BitSet affected = new BitSet(modules.length);
+    for (int i = 0; i < modules.length; ++i) {
+      if (i == source || reach[i].get(source)) {
+        affected.set(i);
+        reach[i].clear();
+      }
+    }
+    BitSet done = new BitSet(modules.length);
+    for (int i = affected.nextSetBit(0); i >= 0; i = affected.nextSetBit(i + 1)) {
+      updateReach(i, affected, done);
+    }
+  }
+
+  private void updateReach(int i, BitSet affected, BitSet done) {
+    if (done.get(i)) {
+      return;
+    }
+    for (int j = 0; j < modules.length; ++j) {
+      if (edges[i][j] > 0) {
+        if (affected.get(j)) {
+          updateReach(j, affected, done);
+        }
+        reach[i].set(j);
+        reach[i].or(reach[j]);
+      }
+    }
+    done.set(i);
+  }
+
+  private void ensureCapacity(int n) {
+    if (n <= modules.length) {
+      return;
+    }
+    int m = Math.max(n, 2 * modules.length);
+    Module[] newModules = new Module[m];
+    System.arraycopy(modules, 0, newModules, 0, modules.length);
+    int[][] newEdges = new int[m][m];
+    BitSet[] newReach = new BitSet[m];
+    for (int i = 0; i < m; ++i) {
+      if (i < modules.length) {
+        System.arraycopy(edges[i], 0, newEdges[i], 0, modules.length);
+        newReach[i] = reach[i];
+      } else {
+        newReach[i] = new BitSet(m);
+      }
+    }
+    modules = newModules;
+    edges = newEdges;
+    reach = newReach;
+  }
+}
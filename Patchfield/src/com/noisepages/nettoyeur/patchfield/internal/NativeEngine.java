@@ -0,0 +1,216 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.patchfield.internal;
+
+import java.io.IOException;
+
+/**
+ * Engine implementation that forwards to the native code in Patchfield/jni/internal; see
+ * patchfield_internal.h for details.
+ */
+public class NativeEngine implements PatchfieldEngine {
+
+  static {
+    System.loadLibrary("patchfield");
+  }
+
+  private long streamPtr;
+
+  public NativeEngine(int sampleRate, int bufferSize, int inputChannels, int outputChannels)
+      throws IOException {
+    streamPtr = createInstance(sampleRate, bufferSize, inputChannels, outputChannels);
+    if (streamPtr == 0) {
+      throw new IOException("Unable to open opensl_stream.");
+    }
+  }
+
+  /**
+   * @return The address of the native patchfield instance, for logging.
+   */
+  public long getStreamPtr() {
+    return streamPtr;
+  }
+
+  @Override
+  public int createModule(int[] ports) {
+    return createModule(streamPtr, ports);
+  }
+
+  @Override
+  public int deleteModule(int index) {
+    return deleteModule(streamPtr, index);
+  }
+
+  @Override
+  public int connectPorts(int sourceIndex, int sourcePort, int sinkIndex, int sinkPort) {
+    return connectPorts(streamPtr, sourceIndex, sourcePort, sinkIndex, sinkPort);
+  }
+
+  @Override
+  public int disconnectPorts(int sourceIndex, int sourcePort, int sinkIndex, int sinkPort) {
+    return disconnectPorts(streamPtr, sourceIndex, sourcePort, sinkIndex, sinkPort);
+  }
+
+  @Override
+  public int applyEdits(int[] edits) {
+    return applyEdits(streamPtr, edits);
+  }
+
+  @Override
+  public int activateModule(int index) {
+    return activateModule(streamPtr, index);
+  }
+
+  @Override
+  public int deactivateModule(int index) {
+    return deactivateModule(streamPtr, index);
+  }
+
+  @Override
+  public int start() {
+    return start(streamPtr);
+  }
+
+  @Override
+  public void stop() {
+    stop(streamPtr);
+  }
+
+  @Override
+  public boolean isRunning() {
+    return isRunning(streamPtr);
+  }
+
+  @Override
+  public int getProtocolVersion() {
+    return getProtocolVersion(streamPtr);
+  }
+
+  @Override
+  public int sendSharedMemoryFileDescriptor() {
+    return sendSharedMemoryFileDescriptor(streamPtr);
+  }
+
+  @Override
+  public void setTraceFlags(int flags) {
+    setTraceFlags(streamPtr, flags);
+  }
+
+  @Override
+  public int readTrace(int[] info, long[] timestamps) {
+    return readTrace(streamPtr, info, timestamps);
+  }
+
+  @Override
+  public int getModuleStats(int index, int[] stats) {
+    return getModuleStats(streamPtr, index, stats);
+  }
+
+  @Override
+  public void setMetering(boolean enabled) {
+    setMetering(streamPtr, enabled);
+  }
+
+  @Override
+  public int getMeterLayout(int[] layout) {
+    return getMeterLayout(streamPtr, layout);
+  }
+
+  @Override
+  public int publishGraph(int[] words) {
+    return publishGraph(streamPtr, words);
+  }
+
+  @Override
+  public int getGraphLayout(int[] layout) {
+    return getGraphLayout(streamPtr, layout);
+  }
+
+  @Override
+  public int render(short[] input, short[] output, int buffers, int timeoutMillis) {
+    return render(streamPtr, input, output, buffers, timeoutMillis);
+  }
+
+  @Override
+  public int getFrameTime() {
+    return getFrameTime(streamPtr);
+  }
+
+  @Override
+  public int postParameterEvents(int index, int[] parameters, float[] values, int[] frames) {
+    return postParameterEvents(streamPtr, index, parameters, values, frames);
+  }
+
+  @Override
+  public void release() {
+    if (streamPtr != 0) {
+      releaseInstance(streamPtr);
+      streamPtr = 0;
+    }
+  }
+
+  private native long createInstance(int sampleRate, int bufferSize, int inputChannels,
+      int outputChannels);
+
+  private native int sendSharedMemoryFileDescriptor(long streamPtr);
+
+  private native void releaseInstance(long streamPtr);
+
+  private native int createModule(long streamPtr, int[] ports);
+
+  private native int deleteModule(long streamPtr, int index);
+
+  private native int connectPorts(long streamPtr, int sourceIndex, int sourcePort, int sinkIndex,
+      int sinkPort);
+
+  private native int disconnectPorts(long streamPtr, int sourceIndex, int sourcePort,
+      int sinkIndex, int sinkPort);
+
+  private native int applyEdits(long streamPtr, int[] edits);
+
+  private native int activateModule(long streamPtr, int index);
+
+  private native int deactivateModule(long streamPtr, int index);
+
+  private native int start(long streamPtr);
+
+  private native void stop(long streamPtr);
+
+  private native boolean isRunning(long streamPtr);
+
+  private native int getProtocolVersion(long streamPtr);
+
+  private native void setTraceFlags(long streamPtr, int flags);
+
+  private native void setMetering(long streamPtr, boolean enabled);
+
+  private native int getMeterLayout(long streamPtr, int[] layout);
+
+  private native int publishGraph(long streamPtr, int[] words);
+
+  private native int getGraphLayout(long streamPtr, int[] layout);
+
+  private native int readTrace(long streamPtr, int[] info, long[] timestamps);
+
+  private native int getModuleStats(long streamPtr, int index, int[] stats);
+
+  private native int render(long streamPtr, short[] input, short[] output, int buffers,
+      int timeoutMillis);
+
+  private native int getFrameTime(long streamPtr);
+
+  private native int postParameterEvents(long streamPtr, int index, int[] parameters,
+      float[] values, int[] frames);
+}
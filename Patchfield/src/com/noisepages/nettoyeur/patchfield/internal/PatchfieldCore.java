@@ -0,0 +1,608 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.patchfield.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.noisepages.nettoyeur.patchfield.PatchfieldException;
+
+/**
+ * Control plane of the patchfield: module registry, validation of graph operations, cycle checks,
+ * and change notification. It only depends on plain Java, and it talks to the audio engine through
+ * the {@link PatchfieldEngine} interface, so that it can run on a desktop JVM with a
+ * {@link SimulatedEngine}. The Android-specific parts, such as notifications and binder callbacks,
+ * live in the Patchfield class, which registers itself as a listener.
+ * 
+ * Mutators are synchronized. After every change, the core publishes a new immutable {@link State}
+ * and then notifies listeners while still holding the monitor, so that listeners see changes in
+ * order. Queries read the most recently published state without locking. Parameter automation
+ * doesn't take the monitor either, so that it never waits for a batch of edits to take effect; it
+ * only holds the read lock that keeps the engine from being released underneath it. The same goes
+ * for performance counters.
+ */
+public class PatchfieldCore {
+
+  public static final String SYSTEM_IN = "system_in";
+  public static final String SYSTEM_OUT = "system_out";
+
+  /**
+   * Receives changes, in order, while the core holds its monitor. Listeners must not call mutators
+   * of the core.
+   */
+  public interface Listener {
+    void onModuleCreated(State state, String module);
+
+    void onModuleDeleted(State state, String module);
+
+    void onModuleActivated(State state, String module, boolean active);
+
+    void onPortsConnected(State state, String source, int sourcePort, String sink, int sinkPort,
+        boolean connected);
+
+    void onRunningChanged(State state, boolean running);
+
+    /**
+     * Reports a batch of edits that took effect at once; the edits have consecutive versions, with
+     * the last one equal to the version of the state.
+     */
+    void onEditsApplied(State state, List<GraphEdit> edits);
+  }
+
+  /**
+   * Immutable view of the graph at a given version.
+   */
+  public static final class State {
+    private final long version;
+    private final boolean running;
+    private final GraphIndex graph;  // Private copy; never modified after publication.
+    private final Map<String, String[]> parameters;  // Ditto.
+
+    private State(long version, boolean running, GraphIndex graph,
+        Map<String, String[]> parameters) {
+      this.version = version;
+      this.running = running;
+      this.graph = graph;
+      this.parameters = parameters;
+    }
+
+    public long getVersion() {
+      return version;
+    }
+
+    public boolean isRunning() {
+      return running;
+    }
+
+    public List<String> getModules() {
+      return graph.getModules();
+    }
+
+    public boolean contains(String module) {
+      return graph.contains(module);
+    }
+
+    public int getIndex(String module) {
+      return graph.getIndex(module);
+    }
+
+    public int getInputChannels(String module) {
+      return graph.getInputChannels(module);
+    }
+
+    public int getOutputChannels(String module) {
+      return graph.getOutputChannels(module);
+    }
+
+    public int[] getPorts(String module) {
+      return graph.getPorts(module);
+    }
+
+    public boolean isActive(String module) {
+      return graph.isActive(module);
+    }
+
+    public boolean isConnected(String source, int sourcePort, String sink, int sinkPort) {
+      return graph.isConnected(source, sourcePort, sink, sinkPort);
+    }
+
+    public boolean isDependent(String sink, String source) {
+      return graph.isDependent(sink, source);
+    }
+
+    public List<GraphIndex.Connection> getConnections() {
+      return graph.getConnections();
+    }
+
+    /**
+     * @return The parameters of the given module, in index order, or null if the module doesn't
+     *         exist.
+     */
+    public String[] getParameters(String module) {
+      if (!graph.contains(module)) {
+        return null;
+      }
+      String[] names = parameters.get(module);
+      return names != null ? names.clone() : new String[0];
+    }
+
+    private int getParameterCount(String module) {
+      String[] names = parameters.get(module);
+      return names != null ? names.length : 0;
+    }
+  }
+
+  private final PatchfieldEngine engine;
+  private final GraphIndex graph = new GraphIndex();
+  private final Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+  private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+  private long version = 0;
+  private volatile State state;
+  // Keeps release from racing the engine calls that don't take the monitor.
+  private final ReadWriteLock releaseLock = new ReentrantReadWriteLock();
+
+  /**
+   * Creates a core on top of the given engine, whose slots 0 and 1 must hold the system input and
+   * output.
+   */
+  public PatchfieldCore(PatchfieldEngine engine, int inputChannels, int outputChannels) {
+    this.engine = engine;
+    graph.addModule(SYSTEM_IN, 0, GraphIndex.audioPorts(0, inputChannels));
+    graph.setActive(SYSTEM_IN, true);
+    graph.addModule(SYSTEM_OUT, 1, GraphIndex.audioPorts(outputChannels, 0));
+    graph.setActive(SYSTEM_OUT, true);
+    updateState();
+  }
+
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+
+  public PatchfieldEngine getEngine() {
+    return engine;
+  }
+
+  /**
+   * @return The most recently published state.
+   * @throws IllegalStateException if the core has been released.
+   */
+  public State getState() {
+    State s = state;
+    if (s == null) {
+      throw new IllegalStateException("Stream closed.");
+    }
+    return s;
+  }
+
+  public boolean isReleased() {
+    return state == null;
+  }
+
+  public synchronized void release() {
+    releaseLock.writeLock().lock();
+    try {
+      if (state != null) {
+        engine.release();
+        state = null;
+      }
+    } finally {
+      releaseLock.writeLock().unlock();
+    }
+  }
+
+  public synchronized int start() {
+    checkOpen();
+    int result = engine.start();
+    if (result == 0) {
+      ++version;
+      updateState();
+      for (Listener listener : listeners) {
+        listener.onRunningChanged(state, true);
+      }
+    }
+    return result;
+  }
+
+  public synchronized void stop() {
+    checkOpen();
+    engine.stop();
+    ++version;
+    updateState();
+    for (Listener listener : listeners) {
+      listener.onRunningChanged(state, false);
+    }
+  }
+
+  public synchronized int createModule(String module, int inputChannels, int outputChannels) {
+    return createModule(module, GraphIndex.audioPorts(inputChannels, outputChannels));
+  }
+
+  /**
+   * Creates a module with the given port counts, indexed as in {@link GraphIndex}; missing
+   * trailing counts are zero.
+   */
+  public synchronized int createModule(String module, int[] ports) {
+    checkOpen();
+    if (ports == null || ports.length > 2 * GraphIndex.PORT_KINDS) {
+      return PatchfieldException.INVALID_PARAMETERS;
+    }
+    int[] counts = Arrays.copyOf(ports, 2 * GraphIndex.PORT_KINDS);
+    int total = 0;
+    for (int count : counts) {
+      if (count < 0) {
+        return PatchfieldException.INVALID_PARAMETERS;
+      }
+      total += count;
+    }
+    if (total == 0) {
+      return PatchfieldException.INVALID_PARAMETERS;
+    }
+    if (graph.contains(module)) {
+      return PatchfieldException.MODULE_NAME_TAKEN;
+    }
+    int index = engine.createModule(counts);
+    if (index >= 0) {
+      graph.addModule(module, index, counts);
+      ++version;
+      updateState();
+      for (Listener listener : listeners) {
+        listener.onModuleCreated(state, module);
+      }
+    }
+    return index;
+  }
+
+  public synchronized int deleteModule(String module) {
+    checkOpen();
+    if (!graph.contains(module)) {
+      return PatchfieldException.NO_SUCH_MODULE;
+    }
+    int result = engine.deleteModule(graph.getIndex(module));
+    if (result == 0) {
+      graph.removeModule(module);
+      parameters.remove(module);
+      ++version;
+      updateState();
+      for (Listener listener : listeners) {
+        listener.onModuleDeleted(state, module);
+      }
+    }
+    return result;
+  }
+
+  public synchronized int connectPorts(String source, int sourcePort, String sink, int sinkPort) {
+    checkOpen();
+    int result = checkPorts(graph, source, sourcePort, sink, sinkPort);
+    if (result != PatchfieldException.SUCCESS) {
+      return result;
+    }
+    if (graph.isConnected(source, sourcePort, sink, sinkPort)) {
+      return PatchfieldException.SUCCESS;
+    }
+    if (graph.isDependent(source, sink)) {
+      return PatchfieldException.CYCLIC_DEPENDENCY;
+    }
+    result =
+        engine.connectPorts(graph.getIndex(source), sourcePort, graph.getIndex(sink), sinkPort);
+    if (result == 0) {
+      graph.connect(source, sourcePort, sink, sinkPort);
+      publishConnection(source, sourcePort, sink, sinkPort, true);
+    }
+    return result;
+  }
+
+  public synchronized int disconnectPorts(String source, int sourcePort, String sink,
+      int sinkPort) {
+    checkOpen();
+    int result = checkPorts(graph, source, sourcePort, sink, sinkPort);
+    if (result != PatchfieldException.SUCCESS) {
+      return result;
+    }
+    if (!graph.isConnected(source, sourcePort, sink, sinkPort)) {
+      return PatchfieldException.SUCCESS;
+    }
+    result =
+        engine.disconnectPorts(graph.getIndex(source), sourcePort, graph.getIndex(sink), sinkPort);
+    if (result == 0) {
+      graph.disconnect(source, sourcePort, sink, sinkPort);
+      publishConnection(source, sourcePort, sink, sinkPort, false);
+    }
+    return result;
+  }
+
+  public synchronized int activateModule(String module) {
+    return setActive(module, true);
+  }
+
+  public synchronized int deactivateModule(String module) {
+    return setActive(module, false);
+  }
+
+  /**
+   * Validates a batch of edits as a whole, reduces it to the changes that actually need to be made,
+   * and applies them atomically.
+   */
+  public synchronized int applyEdits(List<GraphEdit> edits) {
+    checkOpen();
+    if (edits == null) {
+      return PatchfieldException.INVALID_PARAMETERS;
+    }
+    // Validate the whole batch against the current graph plus the edits that precede each edit,
+    // and reduce it to the set of changes that actually need to be made.
+    GraphIndex scratch = new GraphIndex(graph);
+    Set<GraphEdit> added = new LinkedHashSet<GraphEdit>();
+    Set<GraphEdit> removed = new LinkedHashSet<GraphEdit>();
+    Map<String, Boolean> activity = new LinkedHashMap<String, Boolean>();
+    for (GraphEdit edit : edits) {
+      if (edit == null) {
+        return PatchfieldException.INVALID_PARAMETERS;
+      }
+      int result = edit.isConnectionEdit()
+          ? validateConnectionEdit(edit, scratch, added, removed)
+          : validateActivationEdit(edit, activity);
+      if (result != PatchfieldException.SUCCESS) {
+        return result;
+      }
+    }
+    List<GraphEdit> applied = new ArrayList<GraphEdit>();
+    for (GraphEdit edit : removed) {
+      applied.add(GraphEdit.disconnect(edit.getSource(), edit.getSourcePort(), edit.getSink(),
+          edit.getSinkPort()));
+    }
+    applied.addAll(added);
+    for (Map.Entry<String, Boolean> entry : activity.entrySet()) {
+      if (entry.getValue() != graph.isActive(entry.getKey())) {
+        applied.add(entry.getValue()
+            ? GraphEdit.activate(entry.getKey())
+            : GraphEdit.deactivate(entry.getKey()));
+      }
+    }
+    if (applied.isEmpty()) {
+      return PatchfieldException.SUCCESS;
+    }
+    int[] ops = new int[applied.size() * 5];
+    int k = 0;
+    for (GraphEdit edit : applied) {
+      ops[k++] = edit.getType();
+      ops[k++] = graph.getIndex(edit.getSource());
+      ops[k++] = edit.getSourcePort();
+      ops[k++] = edit.isConnectionEdit() ? graph.getIndex(edit.getSink()) : -1;
+      ops[k++] = edit.getSinkPort();
+    }
+    int result = engine.applyEdits(ops);
+    if (result == 0) {
+      for (GraphEdit edit : applied) {
+        switch (edit.getType()) {
+          case GraphEdit.CONNECT:
+            graph.connect(edit.getSource(), edit.getSourcePort(), edit.getSink(),
+                edit.getSinkPort());
+            break;
+          case GraphEdit.DISCONNECT:
+            graph.disconnect(edit.getSource(), edit.getSourcePort(), edit.getSink(),
+                edit.getSinkPort());
+            break;
+          default:
+            graph.setActive(edit.getModule(), edit.getType() == GraphEdit.ACTIVATE);
+            break;
+        }
+      }
+      version += applied.size();
+      updateState();
+      List<GraphEdit> appliedView = Collections.unmodifiableList(applied);
+      for (Listener listener : listeners) {
+        listener.onEditsApplied(state, appliedView);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Reads the performance counters of the given module.
+   * 
+   * @return 0 on success, or an error code.
+   */
+  public int getModuleStats(String module, int[] stats) {
+    releaseLock.readLock().lock();
+    try {
+      int index = getState().getIndex(module);
+      if (index < 0) {
+        return PatchfieldException.NO_SUCH_MODULE;
+      }
+      return engine.getModuleStats(index, stats);  // Atomic reads from shared memory.
+    } finally {
+      releaseLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Declares the parameters of a module, in index order, replacing any previous declaration.
+   * 
+   * @return 0 on success, or an error code.
+   */
+  public synchronized int declareParameters(String module, String[] names) {
+    checkOpen();
+    if (names == null) {
+      return PatchfieldException.INVALID_PARAMETERS;
+    }
+    if (!graph.contains(module)) {
+      return PatchfieldException.NO_SUCH_MODULE;
+    }
+    parameters.put(module, names.clone());
+    updateState();  // Parameters aren't part of the graph; the version stays the same.
+    return PatchfieldException.SUCCESS;
+  }
+
+  /**
+   * @return The parameters of the given module, in index order, or null if the module doesn't
+   *         exist.
+   */
+  public String[] getParameters(String module) {
+    return getState().getParameters(module);
+  }
+
+  public int getFrameTime() {
+    releaseLock.readLock().lock();
+    try {
+      checkOpen();
+      return engine.getFrameTime();
+    } finally {
+      releaseLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Posts parameter events to the given module; the three arrays hold parameter indices, values,
+   * and frame times.
+   * 
+   * @return The number of events posted, which is less than the number of events if the event
+   *         queue of the module is full, or an error code.
+   */
+  public int postParameterEvents(String module, int[] indices, float[] values, int[] frames) {
+    if (indices == null || values == null || frames == null || values.length != indices.length
+        || frames.length != indices.length) {
+      return PatchfieldException.INVALID_PARAMETERS;
+    }
+    releaseLock.readLock().lock();
+    try {
+      State s = getState();
+      if (!s.contains(module)) {
+        return PatchfieldException.NO_SUCH_MODULE;
+      }
+      int n = s.getParameterCount(module);
+      for (int index : indices) {
+        if (index < 0 || index >= n) {
+          return PatchfieldException.PARAMETER_OUT_OF_RANGE;
+        }
+      }
+      // The event queue accepts concurrent producers, and so no further locking is needed.
+      return engine.postParameterEvents(s.getIndex(module), indices, values, frames);
+    } finally {
+      releaseLock.readLock().unlock();
+    }
+  }
+
+  private void checkOpen() {
+    if (state == null) {
+      throw new IllegalStateException("Stream closed.");
+    }
+  }
+
+  private void updateState() {
+    state = new State(version, engine.isRunning(), new GraphIndex(graph),
+        new LinkedHashMap<String, String[]>(parameters));
+  }
+
+  private void publishConnection(String source, int sourcePort, String sink, int sinkPort,
+      boolean connected) {
+    ++version;
+    updateState();
+    for (Listener listener : listeners) {
+      listener.onPortsConnected(state, source, sourcePort, sink, sinkPort, connected);
+    }
+  }
+
+  private int setActive(String module, boolean active) {
+    checkOpen();
+    if (!graph.contains(module)) {
+      return PatchfieldException.NO_SUCH_MODULE;
+    }
+    if (graph.isActive(module) == active) {
+      return PatchfieldException.SUCCESS;
+    }
+    int index = graph.getIndex(module);
+    int result = active ? engine.activateModule(index) : engine.deactivateModule(index);
+    if (result == 0) {
+      graph.setActive(module, active);
+      ++version;
+      updateState();
+      for (Listener listener : listeners) {
+        listener.onModuleActivated(state, module, active);
+      }
+    }
+    return result;
+  }
+
+  private static int checkPorts(GraphIndex g, String source, int sourcePort, String sink,
+      int sinkPort) {
+    if (!g.contains(source) || !g.contains(sink)) {
+      return PatchfieldException.NO_SUCH_MODULE;
+    }
+    int sourceKind = g.getOutputKind(source, sourcePort);
+    int sinkKind = g.getInputKind(sink, sinkPort);
+    if (sourceKind < 0 || sinkKind < 0) {
+      return PatchfieldException.PORT_OUT_OF_RANGE;
+    }
+    if (sourceKind != sinkKind) {
+      return PatchfieldException.PORT_KIND_MISMATCH;
+    }
+    return PatchfieldException.SUCCESS;
+  }
+
+  private int validateConnectionEdit(GraphEdit edit, GraphIndex scratch, Set<GraphEdit> added,
+      Set<GraphEdit> removed) {
+    String source = edit.getSource();
+    String sink = edit.getSink();
+    int sourcePort = edit.getSourcePort();
+    int sinkPort = edit.getSinkPort();
+    int result = checkPorts(scratch, source, sourcePort, sink, sinkPort);
+    if (result != PatchfieldException.SUCCESS) {
+      return result;
+    }
+    GraphEdit key = GraphEdit.connect(source, sourcePort, sink, sinkPort);
+    if (edit.getType() == GraphEdit.CONNECT) {
+      if (scratch.isConnected(source, sourcePort, sink, sinkPort)) {
+        return PatchfieldException.SUCCESS;
+      }
+      if (scratch.isDependent(source, sink)) {
+        return PatchfieldException.CYCLIC_DEPENDENCY;
+      }
+      scratch.connect(source, sourcePort, sink, sinkPort);
+      if (!removed.remove(key)) {
+        added.add(key);
+      }
+    } else if (scratch.isConnected(source, sourcePort, sink, sinkPort)) {
+      scratch.disconnect(source, sourcePort, sink, sinkPort);
+      if (!added.remove(key)) {
+        removed.add(key);
+      }
+    }
+    return PatchfieldException.SUCCESS;
+  }
+
+  private int validateActivationEdit(GraphEdit edit, Map<String, Boolean> activity) {
+    if (edit.getType() != GraphEdit.ACTIVATE && edit.getType() != GraphEdit.DEACTIVATE) {
+      return PatchfieldException.INVALID_PARAMETERS;
+    }
+    if (!graph.contains(edit.getModule())) {
+      return PatchfieldException.NO_SUCH_MODULE;
+    }
+    activity.remove(edit.getModule());  // Keep the order of the most recent edit.
+    activity.put(edit.getModule(), edit.getType() == GraphEdit.ACTIVATE);
+    return PatchfieldException.SUCCESS;
+  }
+}
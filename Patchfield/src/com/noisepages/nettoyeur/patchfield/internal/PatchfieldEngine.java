@@ -0,0 +1,124 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.patchfield.internal;
+
+/**
+ * The audio engine underneath the patchfield, i.e., the part that owns the module slots in shared
+ * memory and runs the processing callback. Modules are identified by slot index; slots 0 and 1 are
+ * the system input and output, and they are created and activated along with the engine. Methods
+ * that return an int return a nonnegative value on success and an error code as defined in
+ * PatchfieldException on failure.
+ * 
+ * Implementations need not be thread-safe; {@link PatchfieldCore} serializes all calls, with the
+ * exception of {@link #render(short[], short[], int, int)}, {@link #getFrameTime()},
+ * {@link #postParameterEvents(int, int[], float[], int[])}, and
+ * {@link #getModuleStats(int, int[])}, which may run concurrently with all
+ * other methods except {@link #release()}, so that the graph can be edited during long renders and
+ * automation never waits for edits.
+ */
+public interface PatchfieldEngine {
+
+  /**
+   * Creates a module with the given port counts; see {@link GraphIndex} for the layout of the
+   * array, which always holds a count for each kind of port.
+   * 
+   * @return The index of the new module, or an error code.
+   */
+  int createModule(int[] ports);
+
+  int deleteModule(int index);
+
+  int connectPorts(int sourceIndex, int sourcePort, int sinkIndex, int sinkPort);
+
+  int disconnectPorts(int sourceIndex, int sourcePort, int sinkIndex, int sinkPort);
+
+  /**
+   * Applies a batch of edits atomically with respect to the processing callback. Each edit takes
+   * five consecutive entries: type (as in PatchfieldEdit), source index, source port, sink index,
+   * and sink port.
+   */
+  int applyEdits(int[] edits);
+
+  int activateModule(int index);
+
+  int deactivateModule(int index);
+
+  int start();
+
+  void stop();
+
+  boolean isRunning();
+
+  int getProtocolVersion();
+
+  /**
+   * Sends the file descriptor of the shared memory to the next client that asks for it.
+   */
+  int sendSharedMemoryFileDescriptor();
+
+  void setTraceFlags(int flags);
+
+  /**
+   * Copies recent trace events, oldest first, and returns the number of events copied.
+   */
+  int readTrace(int[] info, long[] timestamps);
+
+  int getModuleStats(int index, int[] stats);
+
+  void setMetering(boolean enabled);
+
+  /**
+   * Copies the layout of the metering area in shared memory; see PortMeters.
+   * 
+   * @return 0 on success, or a negative error code if there is no shared memory.
+   */
+  int getMeterLayout(int[] layout);
+
+  /**
+   * Publishes an encoded description of the graph to clients through shared memory; see
+   * GraphMirror.
+   * 
+   * @return 0 on success, or a negative error code if the description doesn't fit or there is no
+   *         shared memory.
+   */
+  int publishGraph(int[] words);
+
+  /**
+   * Copies the layout of the graph area in shared memory; see GraphMirror.
+   * 
+   * @return 0 on success, or a negative error code if there is no shared memory.
+   */
+  int getGraphLayout(int[] layout);
+
+  /**
+   * Renders the given number of buffers offline, on the calling thread, from interleaved input
+   * frames to interleaved output frames. Module deadlines are stretched to the given timeout, or
+   * turned off if the timeout isn't positive. Fails if the engine is running.
+   */
+  int render(short[] input, short[] output, int buffers, int timeoutMillis);
+
+  /**
+   * @return The number of frames processed so far, modulo 2^32.
+   */
+  int getFrameTime();
+
+  /**
+   * Posts parameter events, scheduled in terms of the frame time, to the event queue of the given
+   * module. Returns the number of events posted, which is less than requested if the queue is full.
+   */
+  int postParameterEvents(int index, int[] parameters, float[] values, int[] frames);
+
+  void release();
+}
@@ -0,0 +1,424 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.patchfield.internal;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.os.IBinder;
+import android.os.RemoteException;
+
+import com.noisepages.nettoyeur.patchfield.PatchfieldException;
+
+/**
+ * Pool of read-only samples in shared memory, hosted by the Patchfield service. Each sample lives
+ * in a region of its own that holds planar 32-bit floats, and it is identified by a key that is
+ * the SHA-256 hash of its format and contents (see {@link #newDigest(int, int, int)}), so that
+ * modules that load the same material share a single copy.
+ * 
+ * A sample is uploaded by allocating a region, filling it in the uploading process, and
+ * committing it. The pool then copies the contents into a sealed region of its own, which no other
+ * process has ever mapped writable, and checks the key against the copy, so that uploaders can't
+ * modify a sample after the check. Uploads that are neither committed nor aborted expire after
+ * {@link #UPLOAD_TIMEOUT_NANOS}. Modules acquire a reference to a committed sample before mapping
+ * it, and release it when done. References are held on behalf of a client token, i.e., a binder
+ * object of the client process, and the references of a client are dropped when it dies.
+ * Unreferenced samples are evicted in LRU order when space is needed. Eviction only drops the
+ * pool's file descriptor, so mappings that still exist remain valid.
+ * 
+ * This class is thread-safe. It has a lock of its own, so that uploads don't hold up changes to the
+ * graph, and it copies and checks samples outside of that lock.
+ */
+public class SamplePool {
+
+  public static final long DEFAULT_CAPACITY = 64L << 20;
+  public static final long UPLOAD_TIMEOUT_NANOS = 60L * 1000 * 1000 * 1000;
+
+  private static final class Sample {
+    private int fd;
+    private final int channels;
+    private final int frames;
+    private final int sampleRate;
+    private final long bytes;
+    private int references = 0;
+    private boolean committed = false;
+    private boolean committing = false;  // Being copied and checked, outside the lock.
+    private final long allocated = System.nanoTime();
+
+    private Sample(int fd, int channels, int frames, int sampleRate, long bytes) {
+      this.fd = fd;
+      this.channels = channels;
+      this.frames = frames;
+      this.sampleRate = sampleRate;
+      this.bytes = bytes;
+    }
+  }
+
+  // References held by one client; dropped when the client process dies.
+  private final class Client implements IBinder.DeathRecipient {
+    private final IBinder token;
+    private final Map<String, Integer> references = new HashMap<String, Integer>();
+
+    private Client(IBinder token) {
+      this.token = token;
+    }
+
+    @Override
+    public void binderDied() {
+      dropClient(token);
+    }
+  }
+
+  private final long capacity;
+  private long size = 0;
+  private boolean closed = false;
+  private final Map<IBinder, Client> clients = new HashMap<IBinder, Client>();
+  // In access order, so that the least recently used sample comes first.
+  private final Map<String, Sample> samples = new LinkedHashMap<String, Sample>(16, 0.75f, true);
+
+  public SamplePool(long capacity) {
+    this.capacity = capacity;
+  }
+
+  /**
+   * @return A digest that has absorbed the format of a sample; update it with the contents of the
+   *         sample, channel by channel, as native-order floats, and convert the result with
+   *         {@link #toKey(MessageDigest)}.
+   */
+  public static MessageDigest newDigest(int channels, int frames, int sampleRate) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(channels).putInt(frames).putInt(sampleRate).flip();
+    digest.update(header);
+    return digest;
+  }
+
+  public static String toKey(MessageDigest digest) {
+    StringBuilder sb = new StringBuilder();
+    for (byte b : digest.digest()) {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Creates a writable region for a new sample, evicting unused samples if necessary.
+   * 
+   * @return 0 on success, or a negative error code.
+   */
+  public synchronized int allocate(String key, int channels, int frames, int sampleRate) {
+    if (key == null || channels <= 0 || frames <= 0 || sampleRate <= 0) {
+      return PatchfieldException.INVALID_PARAMETERS;
+    }
+    if (closed) {
+      return PatchfieldException.FAILURE;
+    }
+    expireUploads();
+    if (samples.containsKey(key)) {
+      return PatchfieldException.SAMPLE_KEY_TAKEN;
+    }
+    long bytes = 4L * channels * frames;
+    evict(capacity - bytes);
+    if (size + bytes > capacity) {
+      return PatchfieldException.SAMPLE_POOL_FULL;
+    }
+    int fd = SharedMemoryUtils.createRegion(bytes);
+    if (fd < 0) {
+      return PatchfieldException.FAILURE;
+    }
+    samples.put(key, new Sample(fd, channels, frames, sampleRate, bytes));
+    size += bytes;
+    return PatchfieldException.SUCCESS;
+  }
+
+  /**
+   * Passes the file descriptor of a sample to the calling process; committed samples can only be
+   * mapped read-only.
+   * 
+   * @return 0 on success, or a negative error code.
+   */
+  public synchronized int sendFileDescriptor(String key) {
+    Sample sample = samples.get(key);
+    if (sample == null) {
+      return PatchfieldException.NO_SUCH_SAMPLE;
+    }
+    return PatchfieldException.successOrFailure(SharedMemoryUtils.sendFileDescriptor(sample.fd));
+  }
+
+  /**
+   * Copies a newly allocated sample into a sealed region of the pool's own and checks that the
+   * copy matches its key. The copy counts against the capacity of the pool until the uploaded
+   * region is dropped. If anything fails, the sample is removed.
+   * 
+   * @return 0 on success, or a negative error code.
+   */
+  public int commit(String key) {
+    Sample sample;
+    synchronized (this) {
+      sample = samples.get(key);
+      if (sample == null) {
+        return PatchfieldException.NO_SUCH_SAMPLE;
+      }
+      if (sample.committed) {
+        return PatchfieldException.SUCCESS;
+      }
+      if (sample.committing) {
+        return PatchfieldException.FAILURE;
+      }
+      evict(capacity - sample.bytes);
+      if (size + sample.bytes > capacity) {
+        remove(key);
+        return PatchfieldException.SAMPLE_POOL_FULL;
+      }
+      size += sample.bytes;
+      sample.committing = true;
+    }
+    // The uploading process may still have the original region mapped writable, and on Android,
+    // sealing doesn't revoke existing mappings. Only the copy is safe to check and to hand out.
+    // Copying and hashing take a while for large samples, and so they happen outside the lock;
+    // the committing flag keeps the sample and its file descriptor in place meanwhile.
+    int fd = copyRegion(sample.fd, sample.bytes);
+    boolean valid = fd >= 0 && key.equals(computeKey(fd, sample));
+    synchronized (this) {
+      sample.committing = false;
+      if (samples.get(key) != sample) {  // The pool was closed.
+        SharedMemoryUtils.closeSharedMemoryFileDescriptor(sample.fd);
+        if (fd >= 0) {
+          SharedMemoryUtils.closeSharedMemoryFileDescriptor(fd);
+        }
+        return PatchfieldException.FAILURE;
+      }
+      size -= sample.bytes;  // Either the upload or the copy goes away.
+      if (!valid) {
+        if (fd >= 0) {
+          SharedMemoryUtils.closeSharedMemoryFileDescriptor(fd);
+        }
+        remove(key);
+        return fd >= 0 ? PatchfieldException.INVALID_PARAMETERS : PatchfieldException.FAILURE;
+      }
+      SharedMemoryUtils.closeSharedMemoryFileDescriptor(sample.fd);
+      sample.fd = fd;
+      sample.committed = true;
+      return PatchfieldException.SUCCESS;
+    }
+  }
+
+  /**
+   * Removes a sample whose upload failed; committed samples are left alone.
+   * 
+   * @return 0 on success, or a negative error code.
+   */
+  public synchronized int abort(String key) {
+    Sample sample = samples.get(key);
+    if (sample == null) {
+      return PatchfieldException.NO_SUCH_SAMPLE;
+    }
+    if (sample.committed || sample.committing) {
+      return PatchfieldException.INVALID_PARAMETERS;
+    }
+    remove(key);
+    return PatchfieldException.SUCCESS;
+  }
+
+  /**
+   * Adds a reference to a committed sample on behalf of the given client, protecting the sample
+   * from eviction until the client releases it or dies.
+   * 
+   * @return 0 on success, or a negative error code.
+   */
+  public synchronized int acquire(String key, IBinder token) {
+    Sample sample = samples.get(key);
+    if (sample == null || !sample.committed) {
+      return PatchfieldException.NO_SUCH_SAMPLE;
+    }
+    if (token == null) {
+      return PatchfieldException.INVALID_PARAMETERS;
+    }
+    Client client = clients.get(token);
+    if (client == null) {
+      client = new Client(token);
+      try {
+        token.linkToDeath(client, 0);
+      } catch (RemoteException e) {
+        return PatchfieldException.FAILURE;  // The client is already dead.
+      }
+      clients.put(token, client);
+    }
+    Integer n = client.references.get(key);
+    client.references.put(key, n != null ? n + 1 : 1);
+    ++sample.references;
+    return PatchfieldException.SUCCESS;
+  }
+
+  /**
+   * Releases a reference that the given client holds.
+   * 
+   * @return 0 on success, or a negative error code.
+   */
+  public synchronized int release(String key, IBinder token) {
+    Client client = clients.get(token);
+    Integer n = client != null ? client.references.get(key) : null;
+    if (n == null) {
+      return PatchfieldException.NO_SUCH_SAMPLE;
+    }
+    if (n > 1) {
+      client.references.put(key, n - 1);
+    } else {
+      client.references.remove(key);
+      if (client.references.isEmpty()) {
+        token.unlinkToDeath(client, 0);
+        clients.remove(token);
+      }
+    }
+    Sample sample = samples.get(key);
+    if (sample != null && sample.references > 0) {
+      --sample.references;
+    }
+    return PatchfieldException.SUCCESS;
+  }
+
+  /**
+   * @return The number of channels, frames, sample rate, and references of a committed sample, or
+   *         null if there is no such sample.
+   */
+  public synchronized int[] getInfo(String key) {
+    Sample sample = samples.get(key);
+    if (sample == null || !sample.committed) {
+      return null;
+    }
+    return new int[] {sample.channels, sample.frames, sample.sampleRate, sample.references};
+  }
+
+  /**
+   * @return The number of bytes currently held by the pool.
+   */
+  public synchronized long getSize() {
+    return size;
+  }
+
+  /**
+   * Drops all samples, regardless of references, and turns down further allocations. Samples that
+   * are being committed are closed when their commit finishes.
+   */
+  public synchronized void close() {
+    closed = true;
+    for (Client client : clients.values()) {
+      client.token.unlinkToDeath(client, 0);
+    }
+    clients.clear();
+    for (Sample sample : samples.values()) {
+      if (!sample.committing) {
+        SharedMemoryUtils.closeSharedMemoryFileDescriptor(sample.fd);
+      }
+    }
+    samples.clear();
+    size = 0;
+  }
+
+  // Evicts unreferenced samples, least recently used first, until the size is at most the limit.
+  // Samples that are still being uploaded are left alone.
+  private void evict(long limit) {
+    Iterator<Sample> it = samples.values().iterator();
+    while (size > limit && it.hasNext()) {
+      Sample sample = it.next();
+      if (sample.committed && sample.references == 0) {
+        SharedMemoryUtils.closeSharedMemoryFileDescriptor(sample.fd);
+        size -= sample.bytes;
+        it.remove();
+      }
+    }
+  }
+
+  private synchronized void dropClient(IBinder token) {
+    Client client = clients.remove(token);
+    if (client == null) {
+      return;
+    }
+    for (Map.Entry<String, Integer> entry : client.references.entrySet()) {
+      Sample sample = samples.get(entry.getKey());
+      if (sample != null) {
+        sample.references = Math.max(0, sample.references - entry.getValue());
+      }
+    }
+  }
+
+  // Removes uploads that have been pending for too long, e.g., because the uploader died.
+  private void expireUploads() {
+    long now = System.nanoTime();
+    Iterator<Sample> it = samples.values().iterator();
+    while (it.hasNext()) {
+      Sample sample = it.next();
+      if (!sample.committed && !sample.committing
+          && now - sample.allocated > UPLOAD_TIMEOUT_NANOS) {
+        SharedMemoryUtils.closeSharedMemoryFileDescriptor(sample.fd);
+        size -= sample.bytes;
+        it.remove();
+      }
+    }
+  }
+
+  // Copies the given region into a new sealed region and returns its file descriptor, or -1 on
+  // failure.
+  private static int copyRegion(int fd, long bytes) {
+    ByteBuffer source = SharedMemoryUtils.mapRegion(fd, bytes, false);
+    if (source == null) {
+      return -1;
+    }
+    int copyFd = SharedMemoryUtils.createRegion(bytes);
+    ByteBuffer copy = copyFd >= 0 ? SharedMemoryUtils.mapRegion(copyFd, bytes, true) : null;
+    if (copy != null) {
+      copy.put(source);
+      SharedMemoryUtils.unmapRegion(copy);  // Sealing fails while writable mappings exist.
+    }
+    SharedMemoryUtils.unmapRegion(source);
+    if (copy == null || SharedMemoryUtils.sealRegion(copyFd) != 0) {
+      if (copyFd >= 0) {
+        SharedMemoryUtils.closeSharedMemoryFileDescriptor(copyFd);
+      }
+      return -1;
+    }
+    return copyFd;
+  }
+
+  // Computes the key of a sample from the contents of the given region, or returns null if the
+  // region can't be mapped.
+  private static String computeKey(int fd, Sample sample) {
+    ByteBuffer buffer = SharedMemoryUtils.mapRegion(fd, sample.bytes, false);
+    if (buffer == null) {
+      return null;
+    }
+    MessageDigest digest = newDigest(sample.channels, sample.frames, sample.sampleRate);
+    digest.update(buffer);
+    SharedMemoryUtils.unmapRegion(buffer);
+    return toKey(digest);
+  }
+
+  private void remove(String key) {
+    Sample sample = samples.remove(key);
+    SharedMemoryUtils.closeSharedMemoryFileDescriptor(sample.fd);
+    size -= sample.bytes;
+  }
+}
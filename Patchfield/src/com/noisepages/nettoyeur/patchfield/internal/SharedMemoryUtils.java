@@ -14,8 +14,11 @@
 
 package com.noisepages.nettoyeur.patchfield.internal;
 
+import java.nio.ByteBuffer;
+
 /**
- * Utilities for receiving file descriptors from the Patchfield service.
+ * Utilities for receiving file descriptors from the Patchfield service, and for handling shared
+ * memory regions of arbitrary size, as used by the sample pool.
  */
 public class SharedMemoryUtils {
 
@@ -26,4 +29,42 @@ public class SharedMemoryUtils {
   public static native int receiveSharedMemoryFileDescriptor();
 
   public static native int closeSharedMemoryFileDescriptor(int fd);
+
+  /**
+   * @return The file descriptor of a new writable region of the given size, or -1 on failure.
+   */
+  public static native int createRegion(long size);
+
+  /**
+   * @return A direct buffer mapping the given region, or null on failure. Unmap with
+   *         {@link #unmapRegion(ByteBuffer)}; the buffer must not be used afterwards.
+   */
+  public static native ByteBuffer mapRegion(int fd, long size, boolean writable);
+
+  public static native int unmapRegion(ByteBuffer buffer);
+
+  /**
+   * Makes a region read-only for all future mappings. On plain Linux, this fails while writable
+   * mappings exist; on Android, writable mappings that already exist stay writable.
+   * 
+   * @return 0 on success, -1 on failure.
+   */
+  public static native int sealRegion(int fd);
+
+  /**
+   * Passes a file descriptor to a process that is waiting in
+   * {@link #receiveSharedMemoryFileDescriptor()}.
+   * 
+   * @return 0 on success, -1 on failure.
+   */
+  public static native int sendFileDescriptor(int fd);
+
+  /**
+   * Reads a record that is protected by a seqlock, i.e., a sequence number that is odd while the
+   * writer updates the record, followed by as many ints as the given array holds, and retries until
+   * it gets a consistent copy. On failure, the contents of the array are unspecified.
+   * 
+   * @return The sequence number of the copy, or -1 on failure.
+   */
+  public static native int readSequenced(ByteBuffer buffer, int offset, int[] words);
 }
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.patchfield.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.noisepages.nettoyeur.patchfield.PatchfieldException;
+
+/**
+ * Pure-Java stand-in for the native engine. It keeps the same slot and connection bookkeeping and
+ * returns the same error codes as the native code, but it doesn't process any audio. This makes it
+ * possible to run the control plane, e.g., {@link PatchfieldCore}, on a desktop JVM for testing and
+ * benchmarking.
+ */
+public class SimulatedEngine implements PatchfieldEngine {
+
+  // Limits of the native engine; see audio_module_internal.h.
+  public static final int MAX_MODULES = 32;
+  public static final int MAX_CONNECTIONS = 16;
+
+  private static final int EDIT_SIZE = 5;
+
+  private final int maxConnections;
+  private final boolean[] inUse;
+  private final boolean[] active;
+  private final List<List<int[]>> inputs;  // (source index, source port, sink port) per sink.
+  private volatile boolean running = false;  // Read by concurrent renders.
+
+  /**
+   * Creates an engine with the same limits as the native engine.
+   */
+  public SimulatedEngine(int inputChannels, int outputChannels) {
+    this(inputChannels, outputChannels, MAX_MODULES, MAX_CONNECTIONS);
+  }
+
+  /**
+   * Creates an engine with custom limits, e.g., for benchmarking graphs that are larger than the
+   * native engine supports.
+   */
+  public SimulatedEngine(int inputChannels, int outputChannels, int maxModules,
+      int maxConnections) {
+    this.maxConnections = maxConnections;
+    inUse = new boolean[maxModules];
+    active = new boolean[maxModules];
+    inputs = new ArrayList<List<int[]>>(maxModules);
+    for (int i = 0; i < maxModules; ++i) {
+      inputs.add(new ArrayList<int[]>());
+    }
+    activateModule(createModule(GraphIndex.audioPorts(0, inputChannels)));
+    activateModule(createModule(GraphIndex.audioPorts(outputChannels, 0)));
+  }
+
+  @Override
+  public int createModule(int[] ports) {
+    for (int i = 0; i < inUse.length; ++i) {
+      if (!inUse[i]) {
+        inUse[i] = true;
+        active[i] = false;
+        inputs.get(i).clear();
+        return i;
+      }
+    }
+    return PatchfieldException.TOO_MANY_MODULES;
+  }
+
+  @Override
+  public int deleteModule(int index) {
+    inUse[index] = false;
+    active[index] = false;
+    inputs.get(index).clear();
+    for (List<int[]> sinkInputs : inputs) {
+      for (int k = sinkInputs.size() - 1; k >= 0; --k) {
+        if (sinkInputs.get(k)[0] == index) {
+          sinkInputs.remove(k);
+        }
+      }
+    }
+    return PatchfieldException.SUCCESS;
+  }
+
+  @Override
+  public int connectPorts(int sourceIndex, int sourcePort, int sinkIndex, int sinkPort) {
+    List<int[]> sinkInputs = inputs.get(sinkIndex);
+    if (sinkInputs.size() >= maxConnections) {
+      return PatchfieldException.TOO_MANY_CONNECTIONS;
+    }
+    sinkInputs.add(new int[] {sourceIndex, sourcePort, sinkPort});
+    return PatchfieldException.SUCCESS;
+  }
+
+  @Override
+  public int disconnectPorts(int sourceIndex, int sourcePort, int sinkIndex, int sinkPort) {
+    List<int[]> sinkInputs = inputs.get(sinkIndex);
+    for (int k = 0; k < sinkInputs.size(); ++k) {
+      int[] input = sinkInputs.get(k);
+      if (input[0] == sourceIndex && input[1] == sourcePort && input[2] == sinkPort) {
+        sinkInputs.remove(k);
+        break;
+      }
+    }
+    return PatchfieldException.SUCCESS;
+  }
+
+  @Override
+  public int applyEdits(int[] edits) {
+    // Check capacity and types first so that a failing batch has no side effects.
+    int[] added = new int[inUse.length];
+    for (int i = 0; i < edits.length; i += EDIT_SIZE) {
+      switch (edits[i]) {
+        case GraphEdit.CONNECT:
+          int sink = edits[i + 3];
+          if (inputs.get(sink).size() + ++added[sink] > maxConnections) {
+            return PatchfieldException.TOO_MANY_CONNECTIONS;
+          }
+          break;
+        case GraphEdit.DISCONNECT:  // Slots are only freed after the batch is committed.
+        case GraphEdit.ACTIVATE:
+        case GraphEdit.DEACTIVATE:
+          break;
+        default:
+          return PatchfieldException.INVALID_PARAMETERS;
+      }
+    }
+    for (int i = 0; i < edits.length; i += EDIT_SIZE) {
+      switch (edits[i]) {
+        case GraphEdit.CONNECT:
+          connectPorts(edits[i + 1], edits[i + 2], edits[i + 3], edits[i + 4]);
+          break;
+        case GraphEdit.DISCONNECT:
+          disconnectPorts(edits[i + 1], edits[i + 2], edits[i + 3], edits[i + 4]);
+          break;
+        case GraphEdit.ACTIVATE:
+          activateModule(edits[i + 1]);
+          break;
+        default:
+          deactivateModule(edits[i + 1]);
+          break;
+      }
+    }
+    return PatchfieldException.SUCCESS;
+  }
+
+  @Override
+  public int activateModule(int index) {
+    active[index] = true;
+    return PatchfieldException.SUCCESS;
+  }
+
+  @Override
+  public int deactivateModule(int index) {
+    active[index] = false;
+    return PatchfieldException.SUCCESS;
+  }
+
+  @Override
+  public int start() {
+    running = true;
+    return PatchfieldException.SUCCESS;
+  }
+
+  @Override
+  public void stop() {
+    running = false;
+  }
+
+  @Override
+  public boolean isRunning() {
+    return running;
+  }
+
+  @Override
+  public int getProtocolVersion() {
+    return 0;  // Audio modules can't attach to a simulated engine.
+  }
+
+  @Override
+  public int sendSharedMemoryFileDescriptor() {
+    return PatchfieldException.FAILURE;
+  }
+
+  @Override
+  public void setTraceFlags(int flags) {
+    // Nothing to trace.
+  }
+
+  @Override
+  public int readTrace(int[] info, long[] timestamps) {
+    return 0;
+  }
+
+  @Override
+  public int getModuleStats(int index, int[] stats) {
+    Arrays.fill(stats, 0);
+    return PatchfieldException.SUCCESS;
+  }
+
+  @Override
+  public void setMetering(boolean enabled) {
+    // Nothing to meter.
+  }
+
+  @Override
+  public int getMeterLayout(int[] layout) {
+    return PatchfieldException.FAILURE;  // No shared memory.
+  }
+
+  @Override
+  public int publishGraph(int[] words) {
+    return PatchfieldException.FAILURE;  // No shared memory.
+  }
+
+  @Override
+  public int getGraphLayout(int[] layout) {
+    return PatchfieldException.FAILURE;  // No shared memory.
+  }
+
+  @Override
+  public int render(short[] input, short[] output, int buffers, int timeoutMillis) {
+    if (running) {
+      return PatchfieldException.FAILURE;
+    }
+    Arrays.fill(output, (short) 0);  // No audio processing here.
+    return PatchfieldException.SUCCESS;
+  }
+
+  @Override
+  public int getFrameTime() {
+    return 0;  // Time stands still without audio processing.
+  }
+
+  @Override
+  public int postParameterEvents(int index, int[] parameters, float[] values, int[] frames) {
+    return parameters.length;  // Nobody listens, and so the queue never fills up.
+  }
+
+  @Override
+  public void release() {
+    running = false;
+  }
+}
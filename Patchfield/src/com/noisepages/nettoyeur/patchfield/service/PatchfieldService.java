@@ -14,7 +14,9 @@
 
 package com.noisepages.nettoyeur.patchfield.service;
 
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.List;
 
 import android.app.Notification;
@@ -24,8 +26,14 @@ import android.os.IBinder;
 import android.os.RemoteException;
 
 import com.noisepages.nettoyeur.patchfield.IPatchfieldClient;
+import com.noisepages.nettoyeur.patchfield.IPatchfieldEventListener;
 import com.noisepages.nettoyeur.patchfield.IPatchfieldService;
+import com.noisepages.nettoyeur.patchfield.ModuleStats;
 import com.noisepages.nettoyeur.patchfield.Patchfield;
+import com.noisepages.nettoyeur.patchfield.PatchfieldEdit;
+import com.noisepages.nettoyeur.patchfield.PatchfieldSnapshot;
+import com.noisepages.nettoyeur.patchfield.PatchfieldTrace;
+import com.noisepages.nettoyeur.patchfield.TraceExporter;
 
 /**
  * Boilerplate for turning {@link Patchfield} into an Android service.
@@ -41,6 +49,62 @@ public class PatchfieldService extends Service {
       return patchfield.sendSharedMemoryFileDescriptor();
     }
 
+    @Override
+    public int allocateSample(String key, int channels, int frames, int sampleRate) {
+      return patchfield.allocateSample(key, channels, frames, sampleRate);
+    }
+
+    @Override
+    public int sendSampleFileDescriptor(String key) {
+      return patchfield.sendSampleFileDescriptor(key);
+    }
+
+    @Override
+    public int commitSample(String key) {
+      return patchfield.commitSample(key);
+    }
+
+    @Override
+    public int abortSample(String key) {
+      return patchfield.abortSample(key);
+    }
+
+    @Override
+    public int acquireSample(String key, IBinder token) {
+      return patchfield.acquireSample(key, token);
+    }
+
+    @Override
+    public int releaseSample(String key, IBinder token) {
+      return patchfield.releaseSample(key, token);
+    }
+
+    @Override
+    public int[] getSampleInfo(String key) {
+      return patchfield.getSampleInfo(key);
+    }
+
+    @Override
+    public String[] getParameters(String module) {
+      return patchfield.getParameters(module);
+    }
+
+    @Override
+    public int getFrameTime() {
+      return patchfield.getFrameTime();
+    }
+
+    @Override
+    public int postParameterEvents(String module, int[] parameters, float[] values,
+        int[] frames) {
+      return patchfield.postParameterEvents(module, parameters, values, frames);
+    }
+
+    @Override
+    public int declareParameters(String module, String[] parameters) {
+      return patchfield.declareParameters(module, parameters);
+    }
+
     @Override
     public void unregisterClient(IPatchfieldClient client) throws RemoteException {
       patchfield.unregisterClient(client);
@@ -51,6 +115,17 @@ public class PatchfieldService extends Service {
       patchfield.registerClient(client);
     }
 
+    @Override
+    public void registerEventListener(IPatchfieldEventListener listener) throws RemoteException {
+      patchfield.registerEventListener(listener);
+    }
+
+    @Override
+    public void unregisterEventListener(IPatchfieldEventListener listener)
+        throws RemoteException {
+      patchfield.unregisterEventListener(listener);
+    }
+
     @Override
     public int getSampleRate() {
       return patchfield.getSampleRate();
@@ -72,6 +147,11 @@ public class PatchfieldService extends Service {
       return patchfield.createModule(module, inputChannels, outputChannels, notification);
     }
 
+    @Override
+    public int createModuleWithPorts(String module, int[] ports, Notification notification) {
+      return patchfield.createModuleWithPorts(module, ports, notification);
+    }
+
     @Override
     public int connectPorts(String source, int sourcePort, String sink, int sinkPort)
         throws RemoteException {
@@ -84,6 +164,46 @@ public class PatchfieldService extends Service {
       return patchfield.disconnectPorts(source, sourcePort, sink, sinkPort);
     }
 
+    @Override
+    public int applyEdits(List<PatchfieldEdit> edits) throws RemoteException {
+      return patchfield.applyEdits(edits);
+    }
+
+    @Override
+    public PatchfieldSnapshot getGraphSnapshot() throws RemoteException {
+      return patchfield.getGraphSnapshot();
+    }
+
+    @Override
+    public ModuleStats getModuleStats(String module) throws RemoteException {
+      return patchfield.getModuleStats(module);
+    }
+
+    @Override
+    public void setTraceFlags(int flags) throws RemoteException {
+      patchfield.setTraceFlags(flags);
+    }
+
+    @Override
+    public void setMetering(boolean enabled) throws RemoteException {
+      patchfield.setMetering(enabled);
+    }
+
+    @Override
+    public int[] getMeterLayout() throws RemoteException {
+      return patchfield.getMeterLayout();
+    }
+
+    @Override
+    public int[] getGraphLayout() throws RemoteException {
+      return patchfield.getGraphLayout();
+    }
+
+    @Override
+    public PatchfieldTrace getTrace() throws RemoteException {
+      return patchfield.getTrace();
+    }
+
     @Override
     public List<String> getModules() throws RemoteException {
       return patchfield.getModules();
@@ -99,6 +219,11 @@ public class PatchfieldService extends Service {
       return patchfield.getOutputChannels(module);
     }
 
+    @Override
+    public int[] getPorts(String module) {
+      return patchfield.getPorts(module);
+    }
+
     @Override
     public Notification getNotification(String module) throws RemoteException {
       return patchfield.getNotification(module);
@@ -172,6 +297,23 @@ public class PatchfieldService extends Service {
     return (patchfield != null) ? binder : null;
   }
 
+  // Usage: adb shell dumpsys activity service <component> trace > trace.json
+  @Override
+  protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+    if (patchfield == null) {
+      writer.println("Patchfield not available.");
+    } else if (args.length > 0 && args[0].equals("trace")) {
+      try {
+        TraceExporter.writeChromeTrace(patchfield.getTrace(), writer);
+      } catch (IOException e) {
+        writer.println("Unable to write trace: " + e);
+      }
+    } else {
+      writer.println(patchfield.getGraphSnapshot().getModules());
+      writer.println("Use the argument 'trace' to dump the trace ring in Chrome trace format.");
+    }
+  }
+
   @Override
   public void onDestroy() {
     super.onDestroy();
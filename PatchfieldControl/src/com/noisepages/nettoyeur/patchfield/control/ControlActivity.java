@@ -29,8 +29,11 @@ import android.widget.FrameLayout;
 import android.widget.Switch;
 import android.widget.TextView;
 
+import com.noisepages.nettoyeur.patchfield.GraphMirror;
 import com.noisepages.nettoyeur.patchfield.IPatchfieldClient;
 import com.noisepages.nettoyeur.patchfield.PatchfieldActivity;
+import com.noisepages.nettoyeur.patchfield.PatchfieldEdit;
+import com.noisepages.nettoyeur.patchfield.PatchfieldException;
 
 public class ControlActivity extends PatchfieldActivity implements OnCheckedChangeListener {
 
@@ -39,6 +42,7 @@ public class ControlActivity extends PatchfieldActivity implements OnCheckedChan
   private TextView displayLine;
   private Switch playButton;
   private PatchView patchView;
+  private GraphMirror mirror = null;
 
   private IPatchfieldClient.Stub receiver = new IPatchfieldClient.Stub() {
 
@@ -124,6 +128,33 @@ public class ControlActivity extends PatchfieldActivity implements OnCheckedChan
         }
       });
     }
+
+    @Override
+    public void onEditsApplied(final List<PatchfieldEdit> edits) throws RemoteException {
+      runOnUiThread(new Runnable() {
+        @Override
+        public void run() {
+          for (PatchfieldEdit edit : edits) {
+            switch (edit.getType()) {
+              case PatchfieldEdit.CONNECT:
+                patchView.addConnection(edit.getSource(), edit.getSourcePort(), edit.getSink(),
+                    edit.getSinkPort());
+                break;
+              case PatchfieldEdit.DISCONNECT:
+                patchView.removeConnection(edit.getSource(), edit.getSourcePort(),
+                    edit.getSink(), edit.getSinkPort());
+                break;
+              case PatchfieldEdit.ACTIVATE:
+                patchView.activateModule(edit.getModule());
+                break;
+              case PatchfieldEdit.DEACTIVATE:
+                patchView.deactivateModule(edit.getModule());
+                break;
+            }
+          }
+        }
+      });
+    }
   };
 
   @Override
@@ -143,14 +174,18 @@ public class ControlActivity extends PatchfieldActivity implements OnCheckedChan
       playButton.setChecked(patchfield.isRunning());
       displayLine.setText("Sample rate: " + patchfield.getSampleRate() + ", buffer size: "
           + patchfield.getBufferSize() + ", protocol version: " + patchfield.getProtocolVersion());
-      List<String> modules = patchfield.getModules();
-      for (String module : modules) {
-        patchView.addModule(module, patchfield.getInputChannels(module),
-            patchfield.getOutputChannels(module), patchfield.getNotification(module));
-      }
+      patchView.setSnapshot(patchfield.getGraphSnapshot());
     } catch (RemoteException e) {
       e.printStackTrace();
     }
+    try {
+      mirror = GraphMirror.open(patchfield);
+      patchView.setGraphMirror(mirror);
+    } catch (RemoteException e) {
+      e.printStackTrace();
+    } catch (PatchfieldException e) {
+      Log.w(TAG, "Graph mirror unavailable; querying the service instead.");
+    }
   }
 
   protected void onPatchfieldDisconnected() {
@@ -171,6 +206,11 @@ public class ControlActivity extends PatchfieldActivity implements OnCheckedChan
 
   @Override
   protected void onDestroy() {
+    if (mirror != null) {
+      patchView.setGraphMirror(null);
+      mirror.release();
+      mirror = null;
+    }
     if (patchfield != null) {
       try {
         patchfield.unregisterClient(receiver);
@@ -41,11 +41,14 @@ import android.widget.Space;
 import android.widget.Toast;
 import android.widget.ToggleButton;
 
+import com.noisepages.nettoyeur.patchfield.GraphMirror;
 import com.noisepages.nettoyeur.patchfield.IPatchfieldService;
+import com.noisepages.nettoyeur.patchfield.PatchfieldSnapshot;
 
 public final class PatchView extends GridLayout {
 
   private IPatchfieldService patchfield;
+  private GraphMirror mirror = null;
   private final List<String> modules = new ArrayList<String>();
   private final Map<Pair<String, Integer>, List<Pair<String, Integer>>> connections =
       new HashMap<Pair<String, Integer>, List<Pair<String, Integer>>>();
@@ -58,47 +61,37 @@ public final class PatchView extends GridLayout {
     this.patchfield = patchfield;
   }
 
-  public void addModule(String module, int inputChannels, int outputChannels,
-      Notification notification) {
-    for (String u : modules) {
-      int sinks = 0;
-      try {
-        sinks = patchfield.getInputChannels(u);
-      } catch (RemoteException e) {
-        e.printStackTrace();
-        continue;
-      }
-      for (int i = 0; i < outputChannels; ++i) {
-        for (int j = 0; j < sinks; ++j) {
-          try {
-            if (patchfield.isConnected(module, i, u, j)) {
-              addConnection(module, i, u, j);
-            }
-          } catch (RemoteException e) {
-            e.printStackTrace();
-          }
-        }
-      }
-      int sources = 0;
-      try {
-        sources = patchfield.getOutputChannels(u);
-      } catch (RemoteException e) {
-        e.printStackTrace();
-        continue;
-      }
-      for (int i = 0; i < inputChannels; ++i) {
-        for (int j = 0; j < sources; ++j) {
-          try {
-            if (patchfield.isConnected(u, j, module, i)) {
-              addConnection(u, j, module, i);
-            }
-          } catch (RemoteException e) {
-            e.printStackTrace();
-          }
-        }
-      }
+  /**
+   * Sets the mirror from which the view reads the state of the graph, or null to query the service.
+   */
+  public void setGraphMirror(GraphMirror mirror) {
+    this.mirror = mirror;
+  }
+
+  private PatchfieldSnapshot getGraph() throws RemoteException {
+    PatchfieldSnapshot snapshot = mirror != null ? mirror.getSnapshot() : null;
+    return snapshot != null ? snapshot : patchfield.getGraphSnapshot();
+  }
+
+  /**
+   * Replaces the current contents of the view with the given snapshot of the graph.
+   */
+  public void setSnapshot(PatchfieldSnapshot snapshot) {
+    for (String module : new ArrayList<String>(modules)) {
+      deleteModule(module);
+    }
+    for (String module : snapshot.getModules()) {
+      PatchfieldSnapshot.Module m = snapshot.getModule(module);
+      addModule(module, m.getInputChannels(), m.getOutputChannels(), m.getNotification());
+      updateModuleView(module, m.isActive());
+    }
+    for (PatchfieldSnapshot.Connection c : snapshot.getConnections()) {
+      addConnection(c.getSource(), c.getSourcePort(), c.getSink(), c.getSinkPort());
     }
+  }
 
+  public void addModule(String module, int inputChannels, int outputChannels,
+      Notification notification) {
     modules.add(module);
 
     if (notification == null) {
@@ -259,7 +252,7 @@ public final class PatchView extends GridLayout {
     }
     if (inputButton != null && outputButton != null) {
       try {
-        if (patchfield.isConnected(outputModule, outputPort, inputModule, inputPort)) {
+        if (getGraph().isConnected(outputModule, outputPort, inputModule, inputPort)) {
           patchfield.disconnectPorts(outputModule, outputPort, inputModule, inputPort);
         } else {
           patchfield.connectPorts(outputModule, outputPort, inputModule, inputPort);
@@ -328,7 +321,7 @@ public final class PatchView extends GridLayout {
       @Override
       public void onClick(View v) {
         try {
-          if (patchfield.isActive(module)) {
+          if (getGraph().isActive(module)) {
             patchfield.deactivateModule(module);
           } else {
             patchfield.activateModule(module);
@@ -343,13 +336,7 @@ public final class PatchView extends GridLayout {
     buttonLayout = (LinearLayout) moduleView.findViewById(R.id.outputPorts);
     outputPorts.put(module, createPorts(module, outputChannels, buttonLayout, true));
 
-    boolean isActive = false;
-    try {
-      isActive = patchfield.isActive(module);
-    } catch (RemoteException e) {
-      e.printStackTrace();
-    }
-    updateModuleView(module, isActive);
+    updateModuleView(module, false);  // New modules are inactive.
   }
 
   private ArrayList<View> createPorts(final String module, int channels, LinearLayout buttonLayout,
@@ -1,2 +1,4 @@
 APP_OPTIM := release
 APP_ABI := armeabi armeabi-v7a x86
+# Multiple Pd instances, each running on its own module thread.
+APP_CFLAGS += -DPDINSTANCE -DPDTHREADS
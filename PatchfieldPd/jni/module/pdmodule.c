@@ -17,10 +17,191 @@
 #include "pdmodule.h"
 
 #include "../libpd/jni/z_jni_native_hooks.h"
+#include "../libpd/libpd_wrapper/z_libpd.h"
+#include "../libpd/pure-data/src/m_pd.h"
+#include "../libpd/pure-data/src/s_stuff.h"
 #include "audio_module.h"
 #include "utils/buffer_size_adapter.h"
 
+#include <pthread.h>
 #include <stddef.h>
+#include <stdlib.h>
+#include <string.h>
+
+#define RING_SIZE 64  // Must be a power of two.
+#define NAME_SIZE 32  // Including the terminating zero.
+#define MAX_ATOMS 8
+
+#if PD_FLOATSIZE != 32
+#error "Port buffers are copied straight into Pd's sound buffers."
+#endif
+
+typedef struct {
+  char type;  // 'f' or 's'
+  float f;
+  char s[NAME_SIZE];
+} ring_atom;
+
+// Bangs, floats, and symbols have an empty selector, lists have the selector
+// "list", and all other messages have their own selector.
+typedef struct {
+  char receiver[NAME_SIZE];
+  char selector[NAME_SIZE];
+  int argc;
+  ring_atom argv[MAX_ATOMS];
+} ring_message;
+
+// Single-producer, single-consumer ring of messages. Only the producer writes
+// the head, and only the consumer writes the tail; both are free-running.
+typedef struct {
+  unsigned int head;
+  unsigned int tail;
+  ring_message messages[RING_SIZE];
+} message_ring;
+
+// A secondary Pd instance. Since libpd is built with PDINSTANCE and PDTHREADS,
+// the current instance is a property of the calling thread, and so instances
+// can run on separate module threads concurrently. The lock serializes the
+// processing callback with calls into the instance from other threads; it
+// takes the place of the global lock of libpd_sync_process_raw, which only
+// protects the main instance.
+//
+// Messages from Java go through the incoming ring, which the processing
+// callback drains at the beginning of each block, and messages from Pd go
+// through the outgoing ring, which the Java side polls. Neither ring blocks or
+// allocates memory, although Pd itself allocates when a symbol is used for the
+// first time.
+//
+// The context is freed by freeInstance. PdModule serializes postMessage,
+// pollMessage, enterInstance, and freeInstance under its own lock and never
+// calls into a freed context, and it releases the module, which stops the
+// processing callback, before freeing the instance.
+typedef struct {
+  t_pdinstance *instance;
+  pthread_mutex_t lock;
+  message_ring incoming;  // Producer: Java; consumer: processing callback.
+  message_ring outgoing;  // Producer: Pd hooks; consumer: Java.
+} pd_instance_context;
+
+// Returned by configureModule, so that release knows what to free.
+typedef struct {
+  buffer_size_adapter *adapter;  // NULL if Pd runs on the host buffers.
+} pd_module;
+
+// The instance whose hooks may fire on the current thread, i.e., the instance
+// being processed or the instance entered with enterInstance.
+static __thread pd_instance_context *current_instance = NULL;
+
+static ring_message *begin_write(message_ring *ring) {
+  if (ring->head - __sync_or_and_fetch(&ring->tail, 0) >= RING_SIZE) {
+    return NULL;
+  }
+  return ring->messages + (ring->head & (RING_SIZE - 1));
+}
+
+static void end_write(message_ring *ring) {
+  __sync_fetch_and_add(&ring->head, 1);  // Publishes the message.
+}
+
+static ring_message *begin_read(message_ring *ring) {
+  if (ring->tail == __sync_or_and_fetch(&ring->head, 0)) {
+    return NULL;
+  }
+  return ring->messages + (ring->tail & (RING_SIZE - 1));
+}
+
+static void end_read(message_ring *ring) {
+  __sync_fetch_and_add(&ring->tail, 1);  // Releases the slot.
+}
+
+// Copies a string into a name field; returns 0 on success, or -1 if the
+// string doesn't fit.
+static int copy_name(char *name, const char *s) {
+  size_t n = strlen(s);
+  if (n >= NAME_SIZE) {
+    return -1;
+  }
+  memcpy(name, s, n + 1);
+  return 0;
+}
+
+static void send_message(const ring_message *m) {
+  t_atom argv[MAX_ATOMS];
+  int i;
+  for (i = 0; i < m->argc; ++i) {
+    if (m->argv[i].type == 's') {
+      libpd_set_symbol(argv + i, m->argv[i].s);
+    } else {
+      libpd_set_float(argv + i, m->argv[i].f);
+    }
+  }
+  if (*m->selector) {
+    if (!strcmp(m->selector, "list")) {
+      libpd_list(m->receiver, m->argc, argv);
+    } else {
+      libpd_message(m->receiver, m->selector, m->argc, argv);
+    }
+  } else if (m->argc == 0) {
+    libpd_bang(m->receiver);
+  } else if (m->argv[0].type == 's') {
+    libpd_symbol(m->receiver, m->argv[0].s);
+  } else {
+    libpd_float(m->receiver, m->argv[0].f);
+  }
+}
+
+// Messages that don't fit into the outgoing ring are dropped.
+static void post_outgoing(const char *recv, const char *sel, int argc,
+    t_atom *argv) {
+  pd_instance_context *pic = current_instance;
+  if (!pic || argc > MAX_ATOMS) {
+    return;
+  }
+  ring_message *m = begin_write(&pic->outgoing);
+  if (!m || copy_name(m->receiver, recv) || copy_name(m->selector, sel)) {
+    return;
+  }
+  int i;
+  for (i = 0; i < argc; ++i) {
+    ring_atom *a = m->argv + i;
+    if (libpd_is_symbol(argv + i)) {
+      a->type = 's';
+      if (copy_name(a->s, libpd_get_symbol(argv + i))) {
+        return;
+      }
+    } else {
+      a->type = 'f';
+      a->f = libpd_get_float(argv + i);
+    }
+  }
+  m->argc = argc;
+  end_write(&pic->outgoing);
+}
+
+static void hook_bang(const char *recv) {
+  post_outgoing(recv, "", 0, NULL);
+}
+
+static void hook_float(const char *recv, float x) {
+  t_atom a;
+  libpd_set_float(&a, x);
+  post_outgoing(recv, "", 1, &a);
+}
+
+static void hook_symbol(const char *recv, const char *sym) {
+  t_atom a;
+  libpd_set_symbol(&a, sym);
+  post_outgoing(recv, "", 1, &a);
+}
+
+static void hook_list(const char *recv, int argc, t_atom *argv) {
+  post_outgoing(recv, "list", argc, argv);
+}
+
+static void hook_message(const char *recv, const char *msg, int argc,
+    t_atom *argv) {
+  post_outgoing(recv, msg, argc, argv);
+}
 
 static void process_pd(void *context, int sample_rate, int buffer_frames,
     int input_channels, const float *input_buffer,
@@ -28,6 +209,48 @@ static void process_pd(void *context, int sample_rate, int buffer_frames,
   libpd_sync_process_raw(input_buffer, output_buffer);
 }
 
+// Does the work of libpd_process_raw, one tick after another, but copies each
+// channel's slice of the port buffers straight into and out of the sound
+// buffers of the instance, without going through a contiguous buffer. It
+// takes any multiple of the tick size, so that a secondary instance only
+// needs the buffer size adapter if the host buffer size isn't a multiple.
+static void process_instance(void *context, int sample_rate,
+    int buffer_frames, int input_channels, const float *input_buffer,
+    int output_channels, float *output_buffer) {
+  pd_instance_context *pic = (pd_instance_context *) context;
+  // Never wait for another thread on the audio thread; if another thread is
+  // inside the instance, e.g., opening a patch, we skip this block.
+  if (pthread_mutex_trylock(&pic->lock)) {
+    memset(output_buffer, 0, buffer_frames * output_channels * sizeof(float));
+    return;
+  }
+  libpd_set_instance(pic->instance);
+  current_instance = pic;
+  ring_message *m;
+  while ((m = begin_read(&pic->incoming))) {
+    send_message(m);
+    end_read(&pic->incoming);
+  }
+  sys_pollgui();
+  int i, c;
+  for (i = 0; i < buffer_frames; i += DEFDACBLKSIZE) {
+    for (c = 0; c < input_channels; ++c) {
+      memcpy(STUFF->st_soundin + c * DEFDACBLKSIZE,
+          input_buffer + c * buffer_frames + i, DEFDACBLKSIZE * sizeof(float));
+    }
+    memset(STUFF->st_soundout, 0,
+        output_channels * DEFDACBLKSIZE * sizeof(float));
+    sched_tick();
+    for (c = 0; c < output_channels; ++c) {
+      memcpy(output_buffer + c * buffer_frames + i,
+          STUFF->st_soundout + c * DEFDACBLKSIZE,
+          DEFDACBLKSIZE * sizeof(float));
+    }
+  }
+  current_instance = NULL;
+  pthread_mutex_unlock(&pic->lock);
+}
+
 JNIEXPORT void JNICALL
 Java_com_noisepages_nettoyeur_patchfield_pd_PdModule_pdInitAudio
 (JNIEnv *env, jobject obj, jint input_channels, jint output_channels,
@@ -35,19 +258,165 @@ Java_com_noisepages_nettoyeur_patchfield_pd_PdModule_pdInitAudio
   libpd_sync_init_audio(input_channels, output_channels, sample_rate);
 }
 
+JNIEXPORT jlong JNICALL
+Java_com_noisepages_nettoyeur_patchfield_pd_PdModule_newPdInstance
+(JNIEnv *env, jobject obj, jint input_channels, jint output_channels,
+ jint sample_rate) {
+  pd_instance_context *pic = malloc(sizeof(pd_instance_context));
+  if (!pic) {
+    return 0;
+  }
+  pic->instance = libpd_new_instance();
+  if (!pic->instance) {
+    free(pic);
+    return 0;
+  }
+  pthread_mutex_init(&pic->lock, NULL);
+  pic->incoming.head = pic->incoming.tail = 0;
+  pic->outgoing.head = pic->outgoing.tail = 0;
+  libpd_set_instance(pic->instance);
+  libpd_sync_init_audio(input_channels, output_channels, sample_rate);
+  // Hooks are per instance when libpd is built with PDINSTANCE.
+  libpd_set_banghook(hook_bang);
+  libpd_set_floathook(hook_float);
+  libpd_set_symbolhook(hook_symbol);
+  libpd_set_listhook(hook_list);
+  libpd_set_messagehook(hook_message);
+  libpd_set_instance(libpd_main_instance());
+  return (jlong) pic;
+}
+
+JNIEXPORT void JNICALL
+Java_com_noisepages_nettoyeur_patchfield_pd_PdModule_enterInstance
+(JNIEnv *env, jobject obj, jlong p) {
+  pd_instance_context *pic = (pd_instance_context *) p;
+  pthread_mutex_lock(&pic->lock);
+  libpd_set_instance(pic->instance);
+  current_instance = pic;
+}
+
+JNIEXPORT void JNICALL
+Java_com_noisepages_nettoyeur_patchfield_pd_PdModule_exitInstance
+(JNIEnv *env, jobject obj, jlong p) {
+  pd_instance_context *pic = (pd_instance_context *) p;
+  current_instance = NULL;
+  libpd_set_instance(libpd_main_instance());
+  pthread_mutex_unlock(&pic->lock);
+}
+
+JNIEXPORT jint JNICALL
+Java_com_noisepages_nettoyeur_patchfield_pd_PdModule_postMessage
+(JNIEnv *env, jobject obj, jlong p, jstring receiver, jstring selector,
+ jfloatArray floats, jobjectArray symbols) {
+  pd_instance_context *pic = (pd_instance_context *) p;
+  int argc = (*env)->GetArrayLength(env, floats);
+  ring_message *m = begin_write(&pic->incoming);
+  if (!m || argc > MAX_ATOMS) {
+    return -1;
+  }
+  const char *s = (*env)->GetStringUTFChars(env, receiver, NULL);
+  int err = copy_name(m->receiver, s);
+  (*env)->ReleaseStringUTFChars(env, receiver, s);
+  s = (*env)->GetStringUTFChars(env, selector, NULL);
+  err |= copy_name(m->selector, s);
+  (*env)->ReleaseStringUTFChars(env, selector, s);
+  int i;
+  for (i = 0; i < argc; ++i) {
+    ring_atom *a = m->argv + i;
+    jstring sym = (*env)->GetObjectArrayElement(env, symbols, i);
+    if (sym) {
+      a->type = 's';
+      s = (*env)->GetStringUTFChars(env, sym, NULL);
+      err |= copy_name(a->s, s);
+      (*env)->ReleaseStringUTFChars(env, sym, s);
+      (*env)->DeleteLocalRef(env, sym);
+    } else {
+      a->type = 'f';
+      (*env)->GetFloatArrayRegion(env, floats, i, 1, &a->f);
+    }
+  }
+  if (err) {
+    return -1;
+  }
+  m->argc = argc;
+  end_write(&pic->incoming);
+  return 0;
+}
+
+JNIEXPORT jint JNICALL
+Java_com_noisepages_nettoyeur_patchfield_pd_PdModule_pollMessage
+(JNIEnv *env, jobject obj, jlong p, jobjectArray names, jfloatArray floats,
+ jobjectArray symbols) {
+  pd_instance_context *pic = (pd_instance_context *) p;
+  ring_message *m = begin_read(&pic->outgoing);
+  if (!m) {
+    return -1;
+  }
+  int argc = m->argc;
+  (*env)->SetObjectArrayElement(env, names, 0,
+      (*env)->NewStringUTF(env, m->receiver));
+  (*env)->SetObjectArrayElement(env, names, 1,
+      *m->selector ? (*env)->NewStringUTF(env, m->selector) : NULL);
+  int i;
+  for (i = 0; i < argc; ++i) {
+    ring_atom *a = m->argv + i;
+    if (a->type == 's') {
+      (*env)->SetObjectArrayElement(env, symbols, i,
+          (*env)->NewStringUTF(env, a->s));
+    } else {
+      (*env)->SetObjectArrayElement(env, symbols, i, NULL);
+      (*env)->SetFloatArrayRegion(env, floats, i, 1, &a->f);
+    }
+  }
+  end_read(&pic->outgoing);
+  return argc;
+}
+
+JNIEXPORT void JNICALL
+Java_com_noisepages_nettoyeur_patchfield_pd_PdModule_freeInstance
+(JNIEnv *env, jobject obj, jlong p) {
+  pd_instance_context *pic = (pd_instance_context *) p;
+  // Wait for any thread that is still inside the instance.
+  pthread_mutex_lock(&pic->lock);
+  pthread_mutex_unlock(&pic->lock);
+  libpd_free_instance(pic->instance);
+  pthread_mutex_destroy(&pic->lock);
+  free(pic);
+}
+
 JNIEXPORT jlong JNICALL
 Java_com_noisepages_nettoyeur_patchfield_pd_PdModule_configureModule
 (JNIEnv *env, jobject obj, jlong handle,
  jint host_buffer_size, jint user_buffer_size,
- jint input_channels, jint output_channels) {
-  return (jlong) bsa_create((void *) handle,
+ jint input_channels, jint output_channels, jlong instance) {
+  pd_module *pm = malloc(sizeof(pd_module));
+  if (!pm) {
+    return 0;
+  }
+  if (instance && host_buffer_size % user_buffer_size == 0) {
+    pm->adapter = NULL;
+    am_configure((void *) handle, process_instance, (void *) instance);
+    return (jlong) pm;
+  }
+  // The main instance always goes through the adapter, because its sound
+  // buffers are guarded by the lock inside libpd_sync_process_raw.
+  pm->adapter = bsa_create((void *) handle,
       host_buffer_size, user_buffer_size,
       input_channels, output_channels,
-      process_pd, NULL);     
+      instance ? process_instance : process_pd, (void *) instance);
+  if (!pm->adapter) {
+    free(pm);
+    return 0;
+  }
+  return (jlong) pm;
 }
 
 JNIEXPORT void JNICALL
 Java_com_noisepages_nettoyeur_patchfield_pd_PdModule_release
 (JNIEnv *env, jobject obj, jlong p) {
-  bsa_release((buffer_size_adapter *) p);
+  pd_module *pm = (pd_module *) p;
+  if (pm->adapter) {
+    bsa_release(pm->adapter);
+  }
+  free(pm);
 }
@@ -15,13 +15,61 @@ extern "C" {
 JNIEXPORT void JNICALL Java_com_noisepages_nettoyeur_patchfield_pd_PdModule_pdInitAudio
   (JNIEnv *, jobject, jint, jint, jint);
 
+/*
+ * Class:     com_noisepages_nettoyeur_patchfield_pd_PdModule
+ * Method:    newPdInstance
+ * Signature: (III)J
+ */
+JNIEXPORT jlong JNICALL Java_com_noisepages_nettoyeur_patchfield_pd_PdModule_newPdInstance
+  (JNIEnv *, jobject, jint, jint, jint);
+
+/*
+ * Class:     com_noisepages_nettoyeur_patchfield_pd_PdModule
+ * Method:    enterInstance
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_com_noisepages_nettoyeur_patchfield_pd_PdModule_enterInstance
+  (JNIEnv *, jobject, jlong);
+
+/*
+ * Class:     com_noisepages_nettoyeur_patchfield_pd_PdModule
+ * Method:    exitInstance
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_com_noisepages_nettoyeur_patchfield_pd_PdModule_exitInstance
+  (JNIEnv *, jobject, jlong);
+
+/*
+ * Class:     com_noisepages_nettoyeur_patchfield_pd_PdModule
+ * Method:    postMessage
+ * Signature: (JLjava/lang/String;Ljava/lang/String;[F[Ljava/lang/String;)I
+ */
+JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_pd_PdModule_postMessage
+  (JNIEnv *, jobject, jlong, jstring, jstring, jfloatArray, jobjectArray);
+
+/*
+ * Class:     com_noisepages_nettoyeur_patchfield_pd_PdModule
+ * Method:    pollMessage
+ * Signature: (J[Ljava/lang/String;[F[Ljava/lang/String;)I
+ */
+JNIEXPORT jint JNICALL Java_com_noisepages_nettoyeur_patchfield_pd_PdModule_pollMessage
+  (JNIEnv *, jobject, jlong, jobjectArray, jfloatArray, jobjectArray);
+
+/*
+ * Class:     com_noisepages_nettoyeur_patchfield_pd_PdModule
+ * Method:    freeInstance
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_com_noisepages_nettoyeur_patchfield_pd_PdModule_freeInstance
+  (JNIEnv *, jobject, jlong);
+
 /*
  * Class:     com_noisepages_nettoyeur_patchfield_pd_PdModule
  * Method:    configureModule
- * Signature: (JIIII)J
+ * Signature: (JIIIIJ)J
  */
 JNIEXPORT jlong JNICALL Java_com_noisepages_nettoyeur_patchfield_pd_PdModule_configureModule
-  (JNIEnv *, jobject, jlong, jint, jint, jint, jint);
+  (JNIEnv *, jobject, jlong, jint, jint, jint, jint, jlong);
 
 /*
  * Class:     com_noisepages_nettoyeur_patchfield_pd_PdModule
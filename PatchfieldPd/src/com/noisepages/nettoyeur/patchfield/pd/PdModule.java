@@ -15,6 +15,7 @@
 package com.noisepages.nettoyeur.patchfield.pd;
 
 import org.puredata.core.PdBase;
+import org.puredata.core.PdReceiver;
 
 import android.app.Notification;
 
@@ -23,10 +24,24 @@ import com.noisepages.nettoyeur.patchfield.AudioModule;
 /**
  * An audio module implementation that uses Pure Data (via libpd) internally.
  * 
- * Since Pd is currently limited to one instance per process, PdModule is a singleton of sorts. When
- * it is first created, the channel counts are configurable; once it has been created, the
+ * The module returned by getInstance runs the main Pd instance, and so it is a singleton of sorts.
+ * When it is first created, the channel counts are configurable; once it has been created, the
  * configuration is fixed for the lifetime of the process.
  * 
+ * Modules returned by newInstance run independent Pd instances, each with its own patches and DSP
+ * graph. Each of them is a separate module in the Patchfield service, and so they run in parallel
+ * on separate module threads and can be routed independently. If the buffer size of the service is
+ * a multiple of the Pd block size, they process the port buffers directly rather than through a
+ * buffer size adapter. PdBase methods act on the main instance unless they are invoked from within
+ * {@link #runInInstance(Runnable)}.
+ * 
+ * The send methods of this class and {@link #pollMessages(PdReceiver)} exchange messages with the
+ * Pd instance of a module through lock-free rings that are drained at the beginning of each block,
+ * and so they never block, or are blocked by, the audio thread. Messages carry at most eight atoms,
+ * and names and symbols have at most 31 bytes. For the main instance, they simply delegate to
+ * PdBase. Once a module with its own instance has been released, its instance is gone, and these
+ * methods fail.
+ * 
  * PdModule takes care of the initialization of libpd. In particular, make sure to create your
  * PdModule instance before calling any methods on PdBase. Do _not_ call PdBase.openAudio(...) or
  * PdBase.computeAudio(...). After creating your PdModule instance, you can use PdBase as usual.
@@ -38,31 +53,50 @@ public class PdModule extends AudioModule {
     System.loadLibrary("pdmodule");
   }
 
+  private static final int MAX_ATOMS = 8; // Must agree with pdmodule.c.
+
   private static PdModule instance = null;
 
   private long ptr = 0;
+  private long pdInstance = 0; // Zero for the main Pd instance, or once released.
+  private final boolean separate;
 
   private final int sampleRate;
   private final int inputChannels;
   private final int outputChannels;
 
-  private PdModule(int sampleRate, int inputChannels, int outputChannels, Notification notification) {
+  private PdModule(int sampleRate, int inputChannels, int outputChannels,
+      Notification notification, boolean separate) {
     super(notification);
     this.sampleRate = sampleRate;
     this.inputChannels = inputChannels;
     this.outputChannels = outputChannels;
-    pdInitAudio(inputChannels, outputChannels, sampleRate);
-    PdBase.computeAudio(true);
+    this.separate = separate;
+    if (separate) {
+      pdInstance = newPdInstance(inputChannels, outputChannels, sampleRate);
+      if (pdInstance == 0) {
+        throw new IllegalStateException("Unable to create Pd instance.");
+      }
+    } else {
+      pdInitAudio(inputChannels, outputChannels, sampleRate);
+    }
+    runInInstance(new Runnable() {
+      @Override
+      public void run() {
+        PdBase.computeAudio(true);
+      }
+    });
   }
 
   /**
-   * Static factory method for creating PdModule instances. Note that the sample rate must be the
-   * sample rate reported by the Patchfield service.
+   * Static factory method for the module that runs the main Pd instance. Note that the sample rate
+   * must be the sample rate reported by the Patchfield service.
    */
-  public static PdModule getInstance(int sampleRate, int inputChannels, int outputChannels,
-      Notification notification) {
+  public static synchronized PdModule getInstance(int sampleRate, int inputChannels,
+      int outputChannels, Notification notification) {
     if (instance == null) {
-      return new PdModule(sampleRate, inputChannels, outputChannels, notification);
+      instance = new PdModule(sampleRate, inputChannels, outputChannels, notification, false);
+      return instance;
     } else if (instance.getInputChannels() >= inputChannels
         && instance.getOutputChannels() >= outputChannels
         && (notification == null || notification.equals(instance.getNotification()))) {
@@ -72,6 +106,173 @@ public class PdModule extends AudioModule {
     }
   }
 
+  /**
+   * Static factory method for modules that run a new Pd instance of their own. Note that the sample
+   * rate must be the sample rate reported by the Patchfield service. The Pd instance is freed when
+   * the module is released.
+   */
+  public static PdModule newInstance(int sampleRate, int inputChannels, int outputChannels,
+      Notification notification) {
+    return new PdModule(sampleRate, inputChannels, outputChannels, notification, true);
+  }
+
+  /**
+   * Runs the given task with the Pd instance of this module as the current instance of the calling
+   * thread, so that PdBase methods invoked by the task, such as openPatch or subscribe, act on this
+   * instance. While the task runs, this module outputs silence, but other instances keep running,
+   * and so the task should be brief. Messages are best sent with the send methods of this class.
+   * 
+   * @throws IllegalStateException if the module has been released.
+   */
+  public synchronized void runInInstance(Runnable task) {
+    if (!separate) {
+      task.run();
+      return;
+    }
+    if (pdInstance == 0) {
+      throw new IllegalStateException("Pd instance has been released.");
+    }
+    enterInstance(pdInstance);
+    try {
+      task.run();
+    } finally {
+      exitInstance(pdInstance);
+    }
+  }
+
+  /**
+   * Sends a bang to the given receiver in the Pd instance of this module.
+   * 
+   * @return 0 on success, or a negative value if the message ring is full or the module has been
+   *         released.
+   */
+  public int sendBang(String receiver) {
+    if (!separate) {
+      return PdBase.sendBang(receiver);
+    }
+    return send(receiver, "", new Object[0]);
+  }
+
+  /**
+   * Sends a float to the given receiver in the Pd instance of this module.
+   * 
+   * @return 0 on success, or a negative value if the message ring is full or the module has been
+   *         released.
+   */
+  public int sendFloat(String receiver, float value) {
+    if (!separate) {
+      return PdBase.sendFloat(receiver, value);
+    }
+    return send(receiver, "", new Object[] { value });
+  }
+
+  /**
+   * Sends a symbol to the given receiver in the Pd instance of this module.
+   * 
+   * @return 0 on success, or a negative value if the message ring is full, the symbol is too long,
+   *         or the module has been released.
+   */
+  public int sendSymbol(String receiver, String symbol) {
+    if (!separate) {
+      return PdBase.sendSymbol(receiver, symbol);
+    }
+    return send(receiver, "", new Object[] { symbol });
+  }
+
+  /**
+   * Sends a list of Float and String objects to the given receiver in the Pd instance of this
+   * module.
+   * 
+   * @return 0 on success, or a negative value if the message ring is full, the list is invalid, or
+   *         the module has been released.
+   */
+  public int sendList(String receiver, Object... args) {
+    if (!separate) {
+      return PdBase.sendList(receiver, args);
+    }
+    return send(receiver, "list", args);
+  }
+
+  /**
+   * Sends a message with arguments of type Float or String to the given receiver in the Pd instance
+   * of this module.
+   * 
+   * @return 0 on success, or a negative value if the message ring is full, the message is invalid,
+   *         or the module has been released.
+   */
+  public int sendMessage(String receiver, String message, Object... args) {
+    if (!separate) {
+      return PdBase.sendMessage(receiver, message, args);
+    }
+    if (message.length() == 0) {
+      return -1;
+    }
+    return send(receiver, message, args);
+  }
+
+  private synchronized int send(String receiver, String selector, Object[] args) {
+    if (pdInstance == 0 || args.length > MAX_ATOMS) {
+      return -1;
+    }
+    float[] floats = new float[args.length];
+    String[] symbols = new String[args.length];
+    for (int i = 0; i < args.length; ++i) {
+      if (args[i] instanceof Number) {
+        floats[i] = ((Number) args[i]).floatValue();
+      } else if (args[i] instanceof String) {
+        symbols[i] = (String) args[i];
+      } else {
+        return -1;
+      }
+    }
+    return postMessage(pdInstance, receiver, selector, floats, symbols);
+  }
+
+  /**
+   * Delivers the messages that the Pd instance of this module has sent to receivers that have been
+   * subscribed to within {@link #runInInstance(Runnable)}. Messages that arrive while the outgoing
+   * ring is full are dropped. Does nothing for the main instance, whose messages go to the receiver
+   * of PdBase.
+   * 
+   * @return The number of messages delivered, or -1 if the module has been released.
+   */
+  public synchronized int pollMessages(PdReceiver receiver) {
+    if (!separate) {
+      return 0;
+    }
+    if (pdInstance == 0) {
+      return -1;
+    }
+    String[] names = new String[2];
+    float[] floats = new float[MAX_ATOMS];
+    String[] symbols = new String[MAX_ATOMS];
+    int n = 0;
+    int argc;
+    while ((argc = pollMessage(pdInstance, names, floats, symbols)) >= 0) {
+      Object[] args = new Object[argc];
+      for (int i = 0; i < argc; ++i) {
+        args[i] = symbols[i] != null ? symbols[i] : (Object) floats[i];
+      }
+      String source = names[0];
+      String selector = names[1];
+      if (selector == null) {
+        if (argc == 0) {
+          receiver.receiveBang(source);
+        } else if (args[0] instanceof String) {
+          receiver.receiveSymbol(source, (String) args[0]);
+        } else {
+          receiver.receiveFloat(source, (Float) args[0]);
+        }
+      } else if (selector.equals("list")) {
+        receiver.receiveList(source, args);
+      } else {
+        receiver.receiveMessage(source, selector, args);
+      }
+      ++n;
+    }
+    return n;
+  }
+
   @Override
   public int getInputChannels() {
     return inputChannels;
@@ -83,25 +284,50 @@ public class PdModule extends AudioModule {
   }
 
   @Override
-  protected boolean configure(String name, long handle, int sampleRate, int bufferSize) {
+  protected synchronized boolean configure(String name, long handle, int sampleRate,
+      int bufferSize) {
     if (ptr != 0) {
       throw new IllegalStateException("Module has already been configured.");
     }
-    ptr = configureModule(handle, bufferSize, PdBase.blockSize(), inputChannels, outputChannels);
+    if (separate && pdInstance == 0) {
+      throw new IllegalStateException("Pd instance has been released.");
+    }
+    ptr =
+        configureModule(handle, bufferSize, PdBase.blockSize(), inputChannels, outputChannels,
+            pdInstance);
     return ptr != 0;
   }
 
   @Override
-  protected void release() {
+  protected synchronized void release() {
     if (ptr != 0) {
       release(ptr);
+      ptr = 0;
+    }
+    if (pdInstance != 0) {
+      freeInstance(pdInstance);
+      pdInstance = 0;
     }
   }
 
   private native void pdInitAudio(int inputChannels, int outputChannels, int sampleRate);
 
+  private native long newPdInstance(int inputChannels, int outputChannels, int sampleRate);
+
+  private native void enterInstance(long pdInstance);
+
+  private native void exitInstance(long pdInstance);
+
+  private native int postMessage(long pdInstance, String receiver, String selector,
+      float[] floats, String[] symbols);
+
+  private native int pollMessage(long pdInstance, String[] names, float[] floats,
+      String[] symbols);
+
+  private native void freeInstance(long pdInstance);
+
   private native long configureModule(long handle, int bufferSize, int blockSize,
-      int inputChannels, int outputChannels);
+      int inputChannels, int outputChannels, long pdInstance);
 
   private native void release(long ptr);
 }
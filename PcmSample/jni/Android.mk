@@ -7,7 +7,14 @@ include $(CLEAR_VARS)
 
 LOCAL_MODULE := pcmsource
 LOCAL_LDLIBS := -llog
-LOCAL_SRC_FILES := pcmsource.c
+LOCAL_SRC_FILES := pcmsource.c pcmfilesource.c resampler.c
+LOCAL_STATIC_LIBRARIES := audiomodule
+include $(BUILD_SHARED_LIBRARY)
+
+include $(CLEAR_VARS)
+
+LOCAL_MODULE := pcmrecorder
+LOCAL_SRC_FILES := pcmrecorder.c
 LOCAL_STATIC_LIBRARIES := audiomodule
 include $(BUILD_SHARED_LIBRARY)
 $(call import-module,Patchfield/jni)
@@ -0,0 +1,406 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+/*
+ * Streaming PCM source. The file is memory-mapped, and a prefetch thread keeps
+ * a window of a few seconds ahead of the playback position resident, so that
+ * the audio thread never touches pages that aren't in memory. The prefetcher
+ * advises the kernel of the upcoming window, touches its pages, and locks
+ * them if the memlock limit allows; blocks that drop out of the window are
+ * unlocked and released again. Seeks and loop changes are handed to the
+ * prefetcher first, and playback only jumps once the target window is
+ * resident.
+ */
+
+#include "pcmfilesource.h"
+
+#include "audio_module.h"
+
+#include <fcntl.h>
+#include <limits.h>
+#include <pthread.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <time.h>
+#include <unistd.h>
+
+#define BLOCK_BYTES (256 * 1024)  // Granularity of prefetching and locking.
+#define WINDOW_SECONDS 4          // Amount of audio to keep resident.
+
+#define BLOCK_IDLE 0
+#define BLOCK_RESIDENT 1
+#define BLOCK_LOCKED 2
+
+typedef struct {
+  int fd;
+  char *map;
+  size_t map_size;
+  const char *data;  // Start of the audio data within the map.
+  int channels;
+  int bits;          // 16 for signed integers, 32 for floats.
+  int frame_bytes;
+  int frames;
+  int window_frames;
+  // Playback state; the position is owned by the audio thread.
+  int position;
+  int pending_seek;  // Requested by the user, or -1.
+  int ready_seek;    // Prefetched and ready for the audio thread, or -1.
+  int loop_start;    // Loop that playback follows; set by the prefetcher.
+  int loop_end;
+  int looping;
+  // Loop requested by the user; guarded by the lock.
+  int next_loop_start;
+  int next_loop_end;
+  int next_looping;
+  int loop_changed;
+  // Prefetcher state.
+  int block_count;
+  char *blocks;
+  char *wanted;
+  int can_lock;
+  size_t page_size;
+  int done;
+  pthread_t thread;
+  pthread_mutex_t lock;
+  pthread_cond_t cond;
+} pcm_file_source;
+
+// Returns the end of the given loop, or of the file if looping is off or the
+// loop points are invalid; sets *start to the beginning of the loop.
+static int get_bounds(pcm_file_source *fs, int s, int e, int looping,
+    int *start) {
+  if (e <= 0 || e > fs->frames) {
+    e = fs->frames;
+  }
+  if (s < 0 || s >= e) {
+    s = 0;
+  }
+  *start = s;
+  return looping ? e : fs->frames;
+}
+
+// Same as get_bounds, for the loop that playback currently follows.
+static int get_end(pcm_file_source *fs, int *start) {
+  return get_bounds(fs, __sync_or_and_fetch(&fs->loop_start, 0),
+      __sync_or_and_fetch(&fs->loop_end, 0),
+      __sync_or_and_fetch(&fs->looping, 0), start);
+}
+
+// The data need not be aligned, e.g., in float WAV files with a fact chunk,
+// and so samples are read with memcpy.
+static float get_sample(pcm_file_source *fs, int frame, int channel) {
+  const char *p = fs->data + (size_t) frame * fs->frame_bytes;
+  if (fs->bits == 16) {
+    int16_t x;
+    memcpy(&x, p + channel * sizeof(int16_t), sizeof(x));
+    return x / 32768.0f;
+  } else {
+    float x;
+    memcpy(&x, p + channel * sizeof(float), sizeof(x));
+    return x;
+  }
+}
+
+static void process_func(void *context, int sample_rate, int buffer_frames,
+    int input_channels, const float *input_buffer,
+    int output_channels, float *output_buffer) {
+  pcm_file_source *fs = (pcm_file_source *) context;
+  // Publish the target of a seek as the position before consuming the seek,
+  // so that the prefetcher keeps the target window resident throughout.
+  int pos = __sync_or_and_fetch(&fs->ready_seek, 0);
+  if (pos >= 0) {
+    fs->position = pos;
+    __sync_bool_compare_and_swap(&fs->ready_seek, pos, -1);
+  } else {
+    pos = fs->position;
+  }
+  int start;
+  int end = get_end(fs, &start);
+  int looping = __sync_or_and_fetch(&fs->looping, 0);
+  int i, j;
+  for (j = 0; j < buffer_frames; ++j) {
+    if (pos >= end) {
+      if (!looping) {
+        break;
+      }
+      pos = start;
+    }
+    for (i = 0; i < output_channels; ++i) {
+      output_buffer[i * buffer_frames + j] =
+        i < fs->channels ? get_sample(fs, pos, i) : 0;
+    }
+    ++pos;
+  }
+  for (; j < buffer_frames; ++j) {
+    for (i = 0; i < output_channels; ++i) {
+      output_buffer[i * buffer_frames + j] = 0;
+    }
+  }
+  fs->position = pos;
+  __sync_synchronize();
+}
+
+// Marks the blocks that playback will touch in the next window, starting at
+// the given frame and following the given loop the way process_func does.
+static void mark_window(pcm_file_source *fs, int pos, int loop_start,
+    int loop_end, int looping) {
+  int start;
+  int end = get_bounds(fs, loop_start, loop_end, looping, &start);
+  int n = fs->window_frames;
+  while (n > 0) {
+    if (pos >= end) {
+      if (!looping) {
+        break;
+      }
+      pos = start;
+    }
+    int m = end - pos < n ? end - pos : n;
+    size_t a = (fs->data - fs->map) + (size_t) pos * fs->frame_bytes;
+    size_t b = a + (size_t) m * fs->frame_bytes;
+    memset(fs->wanted + a / BLOCK_BYTES, 1,
+        (b - 1) / BLOCK_BYTES - a / BLOCK_BYTES + 1);
+    n -= m;
+    pos += m;
+  }
+}
+
+static void update_blocks(pcm_file_source *fs) {
+  int k;
+  for (k = 0; k < fs->block_count; ++k) {
+    char *p = fs->map + (size_t) k * BLOCK_BYTES;
+    size_t n = fs->map_size - (size_t) k * BLOCK_BYTES;
+    if (n > BLOCK_BYTES) {
+      n = BLOCK_BYTES;
+    }
+    if (fs->wanted[k] && fs->blocks[k] == BLOCK_IDLE) {
+      madvise(p, n, MADV_WILLNEED);
+      if (fs->can_lock && !mlock(p, n)) {
+        fs->blocks[k] = BLOCK_LOCKED;
+      } else {
+        // Fall back to faulting the pages in ourselves.
+        volatile char sum = 0;
+        size_t i;
+        for (i = 0; i < n; i += fs->page_size) {
+          sum += p[i];
+        }
+        fs->can_lock = 0;
+        fs->blocks[k] = BLOCK_RESIDENT;
+      }
+    } else if (!fs->wanted[k] && fs->blocks[k] != BLOCK_IDLE) {
+      if (fs->blocks[k] == BLOCK_LOCKED) {
+        munlock(p, n);
+      }
+      madvise(p, n, MADV_DONTNEED);
+      fs->blocks[k] = BLOCK_IDLE;
+    }
+  }
+}
+
+static void *run_prefetcher(void *arg) {
+  pcm_file_source *fs = (pcm_file_source *) arg;
+  pthread_mutex_lock(&fs->lock);
+  while (!fs->done) {
+    int seek = fs->pending_seek;
+    fs->pending_seek = -1;
+    int loop_changed = fs->loop_changed;
+    fs->loop_changed = 0;
+    int next_start = fs->next_loop_start;
+    int next_end = fs->next_loop_end;
+    int next_looping = fs->next_looping;
+    pthread_mutex_unlock(&fs->lock);
+    int start = fs->loop_start;  // Only the prefetcher writes these.
+    int end = fs->loop_end;
+    int looping = fs->looping;
+    memset(fs->wanted, 0, fs->block_count);
+    // Read the ready seek before the position; since the audio thread
+    // publishes the position before it consumes the seek, the window that it
+    // is about to play from is marked either way.
+    int ready = __sync_or_and_fetch(&fs->ready_seek, 0);
+    int pos = __sync_or_and_fetch(&fs->position, 0);
+    mark_window(fs, pos, start, end, looping);
+    if (ready >= 0) {
+      mark_window(fs, ready, start, end, looping);
+    }
+    if (seek >= 0) {
+      mark_window(fs, seek, start, end, looping);
+    }
+    if (loop_changed) {
+      // The new loop may send playback elsewhere right away, e.g., if the
+      // playhead is past its end. Until the audio thread has seen all of the
+      // new loop points, it may also wrap to the old start with the new end,
+      // and so the windows at both starts are marked, too.
+      int targets[] = { pos, ready, seek };
+      int i;
+      for (i = 0; i < 3; ++i) {
+        if (targets[i] >= 0) {
+          mark_window(fs, targets[i], next_start, next_end, next_looping);
+        }
+      }
+      int wrap;
+      get_bounds(fs, start, end, looping, &wrap);
+      mark_window(fs, wrap, next_start, next_end, next_looping);
+      get_bounds(fs, next_start, next_end, next_looping, &wrap);
+      mark_window(fs, wrap, next_start, next_end, next_looping);
+    }
+    update_blocks(fs);
+    if (loop_changed) {
+      __sync_lock_test_and_set(&fs->loop_start, next_start);
+      __sync_lock_test_and_set(&fs->loop_end, next_end);
+      __sync_lock_test_and_set(&fs->looping, next_looping);
+    }
+    if (seek >= 0) {
+      __sync_lock_test_and_set(&fs->ready_seek, seek);
+    }
+    pthread_mutex_lock(&fs->lock);
+    if (!fs->done && fs->pending_seek < 0 && !fs->loop_changed) {
+      // Wake up four times per window, or when a seek comes in.
+      struct timespec t;
+      clock_gettime(CLOCK_REALTIME, &t);
+      t.tv_nsec += WINDOW_SECONDS * 250000000LL;
+      t.tv_sec += t.tv_nsec / 1000000000;
+      t.tv_nsec %= 1000000000;
+      pthread_cond_timedwait(&fs->cond, &fs->lock, &t);
+    }
+  }
+  pthread_mutex_unlock(&fs->lock);
+  return NULL;
+}
+
+static void release_source(pcm_file_source *fs) {
+  if (fs->map != MAP_FAILED) {
+    munmap(fs->map, fs->map_size);  // Also drops any locks.
+  }
+  if (fs->fd >= 0) {
+    close(fs->fd);
+  }
+  free(fs->blocks);
+  free(fs->wanted);
+  free(fs);
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_noisepages_nettoyeur_patchfield_source_PcmFileSource_createSource
+(JNIEnv *env, jobject obj, jlong p, jstring path, jint channels, jint bits,
+ jlong data_offset, jlong data_bytes, jint sample_rate, jint start_frame) {
+  // Files without a single frame are rejected, since playback would read past
+  // the end of the data.
+  if (channels <= 0 || (bits != 16 && bits != 32) || data_offset < 0 ||
+      data_bytes < channels * bits / 8) {
+    return 0;
+  }
+  pcm_file_source *fs = calloc(1, sizeof(pcm_file_source));
+  if (!fs) {
+    return 0;
+  }
+  fs->map = MAP_FAILED;
+  const char *cpath = (*env)->GetStringUTFChars(env, path, NULL);
+  fs->fd = cpath ? open(cpath, O_RDONLY) : -1;
+  if (cpath) {
+    (*env)->ReleaseStringUTFChars(env, path, cpath);
+  }
+  struct stat st;
+  // Also fails if the file is too large for the address space.
+  if (fs->fd < 0 || fstat(fs->fd, &st) ||
+      data_offset + data_bytes > st.st_size ||
+      (off_t) (size_t) st.st_size != st.st_size) {
+    release_source(fs);
+    return 0;
+  }
+  fs->map_size = st.st_size;
+  fs->map = mmap(NULL, fs->map_size, PROT_READ, MAP_SHARED, fs->fd, 0);
+  fs->block_count = (fs->map_size + BLOCK_BYTES - 1) / BLOCK_BYTES;
+  fs->blocks = calloc(fs->block_count, 1);
+  fs->wanted = calloc(fs->block_count, 1);
+  if (fs->map == MAP_FAILED || !fs->blocks || !fs->wanted) {
+    release_source(fs);
+    return 0;
+  }
+  madvise(fs->map, fs->map_size, MADV_SEQUENTIAL);
+  fs->data = fs->map + data_offset;
+  fs->channels = channels;
+  fs->bits = bits;
+  fs->frame_bytes = channels * bits / 8;
+  fs->frames = data_bytes / fs->frame_bytes < INT_MAX ?
+    data_bytes / fs->frame_bytes : INT_MAX;
+  fs->window_frames = WINDOW_SECONDS * sample_rate;
+  fs->position = start_frame >= 0 && start_frame < fs->frames ? start_frame : 0;
+  fs->pending_seek = -1;
+  fs->ready_seek = -1;
+  fs->looping = 1;
+  fs->next_looping = 1;
+  fs->can_lock = 1;
+  fs->page_size = sysconf(_SC_PAGESIZE);
+  // Make the initial window resident before the first callback.
+  mark_window(fs, fs->position, fs->loop_start, fs->loop_end, fs->looping);
+  update_blocks(fs);
+  pthread_mutex_init(&fs->lock, NULL);
+  pthread_cond_init(&fs->cond, NULL);
+  if (pthread_create(&fs->thread, NULL, run_prefetcher, fs)) {
+    pthread_cond_destroy(&fs->cond);
+    pthread_mutex_destroy(&fs->lock);
+    release_source(fs);
+    return 0;
+  }
+  am_configure((void *) p, process_func, fs);
+  return (jlong) fs;
+}
+
+JNIEXPORT void JNICALL
+Java_com_noisepages_nettoyeur_patchfield_source_PcmFileSource_seek
+(JNIEnv *env, jobject obj, jlong p, jint frame) {
+  pcm_file_source *fs = (pcm_file_source *) p;
+  pthread_mutex_lock(&fs->lock);
+  fs->pending_seek = frame >= 0 && frame < fs->frames ? frame : 0;
+  pthread_cond_signal(&fs->cond);
+  pthread_mutex_unlock(&fs->lock);
+}
+
+JNIEXPORT void JNICALL
+Java_com_noisepages_nettoyeur_patchfield_source_PcmFileSource_setLoop
+(JNIEnv *env, jobject obj, jlong p, jint start, jint end, jboolean looping) {
+  pcm_file_source *fs = (pcm_file_source *) p;
+  pthread_mutex_lock(&fs->lock);
+  fs->next_loop_start = start;
+  fs->next_loop_end = end;
+  fs->next_looping = looping ? 1 : 0;
+  fs->loop_changed = 1;
+  pthread_cond_signal(&fs->cond);  // Takes effect once prefetched.
+  pthread_mutex_unlock(&fs->lock);
+}
+
+JNIEXPORT jint JNICALL
+Java_com_noisepages_nettoyeur_patchfield_source_PcmFileSource_getPosition
+(JNIEnv *env, jobject obj, jlong p) {
+  pcm_file_source *fs = (pcm_file_source *) p;
+  return __sync_or_and_fetch(&fs->position, 0);
+}
+
+JNIEXPORT void JNICALL
+Java_com_noisepages_nettoyeur_patchfield_source_PcmFileSource_release
+(JNIEnv *env, jobject obj, jlong p) {
+  pcm_file_source *fs = (pcm_file_source *) p;
+  pthread_mutex_lock(&fs->lock);
+  fs->done = 1;
+  pthread_cond_signal(&fs->cond);
+  pthread_mutex_unlock(&fs->lock);
+  pthread_join(fs->thread, NULL);
+  pthread_cond_destroy(&fs->cond);
+  pthread_mutex_destroy(&fs->lock);
+  release_source(fs);
+}
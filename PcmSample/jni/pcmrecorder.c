@@ -0,0 +1,288 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+/*
+ * Recording tap. The audio callback only copies each input buffer into a
+ * lock-free single-producer, single-consumer ring. A background thread drains
+ * the ring, interleaves the samples, and appends them to a WAV file (32-bit
+ * float) in chunks of CHUNK_BYTES that are written at chunk-aligned file
+ * offsets; the first chunk starts with the header, and frames may straddle
+ * chunks. The file is grown ahead of the writer in large steps, and the header
+ * is finalized when the recorder is released.
+ */
+
+#include "pcmrecorder.h"
+
+#include "audio_module.h"
+
+#ifdef __ANDROID__
+#include <android/api-level.h>
+#endif
+#include <errno.h>
+#include <fcntl.h>
+#include <pthread.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+
+#define CHUNK_BYTES (256 * 1024)        // Size and alignment of writes.
+#define GROWTH_BYTES (16 * 1024 * 1024) // Granularity of file growth.
+#define RING_SECONDS 2                  // Minimum capacity of the ring.
+#define HEADER_BYTES 58                 // RIFF, fmt (with cbSize), fact, data.
+#define MAX_DATA_BYTES (0xffffffffU - HEADER_BYTES)
+
+typedef struct {
+  int channels;
+  int sample_rate;
+  int buffer_frames;
+  int buffer_samples;   // Number of samples in one ring slot.
+  float *ring;
+  unsigned int slots;   // Number of slots; a power of two.
+  unsigned int write_index;
+  unsigned int read_index;
+  int dropped;          // Buffers that didn't fit into the ring.
+  int done;
+  pthread_t thread;
+  int fd;
+  char *chunk;          // Staging area for the next aligned write, with room
+                        // for the part of a frame that spills over.
+  int chunk_fill;
+  off_t chunk_offset;
+  off_t file_size;      // Current length of the (partly unused) file.
+  uint32_t data_bytes;
+} pcm_recorder;
+
+static void process_func(void *context, int sample_rate, int buffer_frames,
+    int input_channels, const float *input_buffer,
+    int output_channels, float *output_buffer) {
+  pcm_recorder *pr = (pcm_recorder *) context;
+  unsigned int w = pr->write_index;
+  if (w - __sync_or_and_fetch(&pr->read_index, 0) < pr->slots) {
+    memcpy(pr->ring + (w & (pr->slots - 1)) * pr->buffer_samples,
+        input_buffer, pr->buffer_samples * sizeof(float));
+    __sync_fetch_and_add(&pr->write_index, 1);  // Full barrier.
+  } else {
+    __sync_fetch_and_add(&pr->dropped, 1);
+  }
+}
+
+static void put_u16(char *p, uint16_t v) {
+  p[0] = v & 0xff;
+  p[1] = v >> 8;
+}
+
+static void put_u32(char *p, uint32_t v) {
+  put_u16(p, v & 0xffff);
+  put_u16(p + 2, v >> 16);
+}
+
+static void write_header(pcm_recorder *pr, char *p) {
+  uint32_t frames = pr->data_bytes / (pr->channels * sizeof(float));
+  memcpy(p, "RIFF", 4);
+  put_u32(p + 4, HEADER_BYTES - 8 + pr->data_bytes);
+  memcpy(p + 8, "WAVEfmt ", 8);
+  put_u32(p + 16, 18);
+  put_u16(p + 20, 3);  // WAVE_FORMAT_IEEE_FLOAT
+  put_u16(p + 22, pr->channels);
+  put_u32(p + 24, pr->sample_rate);
+  put_u32(p + 28, pr->sample_rate * pr->channels * sizeof(float));
+  put_u16(p + 32, pr->channels * sizeof(float));
+  put_u16(p + 34, 32);
+  put_u16(p + 36, 0);
+  memcpy(p + 38, "fact", 4);
+  put_u32(p + 42, 4);
+  put_u32(p + 46, frames);
+  memcpy(p + 50, "data", 4);
+  put_u32(p + 54, pr->data_bytes);
+}
+
+// Grows the file by GROWTH_BYTES. Where possible, the blocks are allocated
+// right away, so that running out of space shows up here rather than as a
+// failed write later on; file systems without support for preallocation (and
+// Android versions without posix_fallocate) only get a sparse extension.
+static int grow_file(pcm_recorder *pr) {
+#if !defined(__ANDROID__) || __ANDROID_API__ >= 21
+  int err = posix_fallocate(pr->fd, pr->file_size, GROWTH_BYTES);
+  if (!err) {
+    pr->file_size += GROWTH_BYTES;
+    return 0;
+  }
+  if (err != EINVAL && err != EOPNOTSUPP && err != ENOSYS) {
+    return -1;
+  }
+#endif
+  if (ftruncate(pr->fd, pr->file_size + GROWTH_BYTES)) {
+    return -1;
+  }
+  pr->file_size += GROWTH_BYTES;
+  return 0;
+}
+
+// Writes the first n bytes of the staging area at the current chunk offset.
+static int flush_chunk(pcm_recorder *pr, int n) {
+  if (pr->chunk_offset + CHUNK_BYTES > pr->file_size && grow_file(pr)) {
+    return -1;
+  }
+  int k = 0;
+  while (k < n) {
+    ssize_t m = pwrite(pr->fd, pr->chunk + k, n - k, pr->chunk_offset + k);
+    if (m < 0) {
+      return -1;
+    }
+    k += m;
+  }
+  return 0;
+}
+
+// Interleaves one ring slot into the staging area, writing full chunks and
+// carrying the excess over to the next chunk. If a write fails, the chunk is
+// kept for another attempt and the rest of the slot is dropped, so that the
+// file never has gaps and the data size only counts frames that are kept.
+static void append_slot(pcm_recorder *pr, const float *slot) {
+  int frame_bytes = pr->channels * sizeof(float);
+  int i, j;
+  for (i = 0; i < pr->buffer_frames; ++i) {
+    if (pr->chunk_fill >= CHUNK_BYTES) {
+      if (flush_chunk(pr, CHUNK_BYTES)) {
+        __sync_fetch_and_add(&pr->dropped, 1);
+        return;
+      }
+      pr->chunk_fill -= CHUNK_BYTES;
+      memmove(pr->chunk, pr->chunk + CHUNK_BYTES, pr->chunk_fill);
+      pr->chunk_offset += CHUNK_BYTES;
+    }
+    if (pr->data_bytes > MAX_DATA_BYTES - frame_bytes) {
+      __sync_fetch_and_add(&pr->dropped, 1);  // WAV can't hold any more.
+      return;
+    }
+    // The header has an odd number of 16-bit words, so frames in the staging
+    // area are not float-aligned.
+    char *frame = pr->chunk + pr->chunk_fill;
+    for (j = 0; j < pr->channels; ++j) {
+      memcpy(frame + j * sizeof(float), slot + j * pr->buffer_frames + i,
+          sizeof(float));
+    }
+    pr->chunk_fill += frame_bytes;
+    pr->data_bytes += frame_bytes;
+  }
+}
+
+static void drain(pcm_recorder *pr) {
+  unsigned int w = __sync_or_and_fetch(&pr->write_index, 0);
+  unsigned int r = pr->read_index;
+  for (; r != w; ++r) {
+    append_slot(pr, pr->ring + (r & (pr->slots - 1)) * pr->buffer_samples);
+    __sync_fetch_and_add(&pr->read_index, 1);
+  }
+}
+
+static void *run_writer(void *arg) {
+  pcm_recorder *pr = (pcm_recorder *) arg;
+  // Wake up four times per pass through the ring.
+  int64_t period = (int64_t) pr->slots * pr->buffer_frames * 250000000LL /
+      pr->sample_rate;
+  struct timespec t;
+  t.tv_sec = period / 1000000000LL;
+  t.tv_nsec = period % 1000000000LL;
+  while (!__sync_or_and_fetch(&pr->done, 0)) {
+    drain(pr);
+    nanosleep(&t, NULL);
+  }
+  drain(pr);
+  return NULL;
+}
+
+static void release_recorder(pcm_recorder *pr) {
+  if (pr->fd >= 0) {
+    close(pr->fd);
+  }
+  free(pr->chunk);
+  free(pr->ring);
+  free(pr);
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_noisepages_nettoyeur_patchfield_source_PcmRecorder_createRecorder
+(JNIEnv *env, jobject obj, jlong p, jint channels, jint sample_rate,
+ jint buffer_frames, jstring path) {
+  pcm_recorder *pr = calloc(1, sizeof(pcm_recorder));
+  if (!pr) {
+    return 0;
+  }
+  pr->channels = channels;
+  pr->sample_rate = sample_rate;
+  pr->buffer_frames = buffer_frames;
+  pr->buffer_samples = channels * buffer_frames;
+  pr->slots = 1;
+  while (pr->slots * buffer_frames <
+      (unsigned int) (RING_SECONDS * sample_rate)) {
+    pr->slots <<= 1;
+  }
+  pr->ring = malloc(pr->slots * pr->buffer_samples * sizeof(float));
+  pr->chunk = malloc(CHUNK_BYTES + channels * sizeof(float));
+  const char *cpath = (*env)->GetStringUTFChars(env, path, NULL);
+  pr->fd = cpath ? open(cpath, O_WRONLY | O_CREAT | O_TRUNC, 0644) : -1;
+  if (cpath) {
+    (*env)->ReleaseStringUTFChars(env, path, cpath);
+  }
+  if (!pr->ring || !pr->chunk || pr->fd < 0) {
+    release_recorder(pr);
+    return 0;
+  }
+  // The header is a placeholder until the recorder is released.
+  write_header(pr, pr->chunk);
+  pr->chunk_fill = HEADER_BYTES;
+  if (pthread_create(&pr->thread, NULL, run_writer, pr)) {
+    release_recorder(pr);
+    return 0;
+  }
+  am_configure((void *) p, process_func, pr);
+  return (jlong) pr;
+}
+
+JNIEXPORT jint JNICALL
+Java_com_noisepages_nettoyeur_patchfield_source_PcmRecorder_getDroppedBuffers
+(JNIEnv *env, jobject obj, jlong p) {
+  pcm_recorder *pr = (pcm_recorder *) p;
+  return __sync_or_and_fetch(&pr->dropped, 0);
+}
+
+JNIEXPORT jint JNICALL
+Java_com_noisepages_nettoyeur_patchfield_source_PcmRecorder_release
+(JNIEnv *env, jobject obj, jlong p) {
+  pcm_recorder *pr = (pcm_recorder *) p;
+  __sync_bool_compare_and_swap(&pr->done, 0, 1);
+  pthread_join(pr->thread, NULL);
+  int result = 0;
+  if (pr->chunk_fill > 0 && flush_chunk(pr, pr->chunk_fill)) {
+    // Only the frames that made it into the file go into the header.
+    off_t written = pr->chunk_offset > HEADER_BYTES ?
+        pr->chunk_offset - HEADER_BYTES : 0;
+    pr->data_bytes = written - written % (pr->channels * sizeof(float));
+    result = -1;
+  }
+  char header[HEADER_BYTES];
+  write_header(pr, header);
+  if (ftruncate(pr->fd, HEADER_BYTES + pr->data_bytes) ||
+      pwrite(pr->fd, header, HEADER_BYTES, 0) != HEADER_BYTES ||
+      fsync(pr->fd)) {
+    result = -1;
+  }
+  release_recorder(pr);
+  return result;
+}
@@ -17,50 +17,118 @@
 #include "pcmsource.h"
 
 #include "audio_module.h"
+#include "resampler.h"
 
 #include <stddef.h>
 #include <stdlib.h>
+#include <string.h>
 
 typedef struct {
-  float *buffer;
+  float *buffer;  // Planar, at the host sample rate.
+  int channels;
+  int frames;
   int index;
-  int size;
+  int owned;      // Whether the buffer belongs to us or to the sample pool.
 } pcm_source;
 
 static void process_func(void *context, int sample_rate, int buffer_frames,
     int input_channels, const float *input_buffer,
     int output_channels, float *output_buffer) {
   pcm_source *fs = (pcm_source *) context;
-  int n = (fs->size - fs->index) / output_channels;
+  int n = fs->frames - fs->index;
   if (n > buffer_frames) {
     n = buffer_frames;
   }
-  int i, j;
+  int i;
   for (i = 0; i < output_channels; ++i) {
-    for (j = 0; j < n; ++j) {
-      output_buffer[j] = (fs->buffer + fs->index)[i + j * output_channels];
-    }
-    for (; j < buffer_frames; ++j) {
-      output_buffer[j] = 0;
+    if (i < fs->channels) {
+      memcpy(output_buffer, fs->buffer + i * fs->frames + fs->index,
+          n * sizeof(float));
+      memset(output_buffer + n, 0, (buffer_frames - n) * sizeof(float));
+    } else {
+      memset(output_buffer, 0, buffer_frames * sizeof(float));
     }
     output_buffer += buffer_frames;
   }
-  fs->index += n * output_channels;
-  if (fs->index >= fs->size) {
+  fs->index += n;
+  if (fs->index >= fs->frames) {
     fs->index = 0;
   }
 }
 
+// Converts interleaved samples to planar storage at the host rate.
+static float *load_planar(const float *samples, int channels, int frames,
+    int source_rate, int host_rate, int quality, int *host_frames) {
+  int resample = source_rate > 0 && source_rate != host_rate;
+  *host_frames =
+    resample ? rs_output_frames(frames, source_rate, host_rate) : frames;
+  float *planar = malloc((size_t) channels * *host_frames * sizeof(float));
+  float *tmp = resample ? malloc(frames * sizeof(float)) : NULL;
+  if (!planar || (resample && !tmp)) {
+    free(planar);
+    free(tmp);
+    return NULL;
+  }
+  int i, j;
+  for (i = 0; i < channels; ++i) {
+    float *channel = resample ? tmp : planar + i * frames;
+    for (j = 0; j < frames; ++j) {
+      channel[j] = samples[i + j * channels];
+    }
+    if (resample && rs_resample(tmp, frames, source_rate,
+          planar + i * *host_frames, host_rate, quality)) {
+      free(planar);
+      planar = NULL;
+      break;
+    }
+  }
+  free(tmp);
+  return planar;
+}
+
 JNIEXPORT jlong JNICALL
 Java_com_noisepages_nettoyeur_patchfield_source_PcmSource_createSource
-(JNIEnv *env, jobject obj, jlong p, jobject buffer) {
+(JNIEnv *env, jobject obj, jlong p, jobject buffer, jint channels,
+ jint source_rate, jint host_rate, jint quality) {
+  const float *samples = (*env)->GetDirectBufferAddress(env, buffer);
+  int frames =
+    (*env)->GetDirectBufferCapacity(env, buffer) / sizeof(float) / channels;
+  if (!samples || frames <= 0) {
+    return 0;
+  }
   pcm_source *data = malloc(sizeof(pcm_source));
   if (data) {
+    data->buffer = load_planar(samples, channels, frames,
+        source_rate, host_rate, quality, &data->frames);
+    if (!data->buffer) {
+      free(data);
+      return 0;
+    }
+    data->channels = channels;
+    data->index = 0;
+    data->owned = 1;
     am_configure((void *) p, process_func, data);
-    data->buffer = (*env)->GetDirectBufferAddress(env, buffer);
-    data->size =
-      (*env)->GetDirectBufferCapacity(env, buffer) / sizeof(float);
+  }
+  return (jlong) data;
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_noisepages_nettoyeur_patchfield_source_PcmSource_createPooledSource
+(JNIEnv *env, jobject obj, jlong p, jobject buffer, jint channels,
+ jint frames) {
+  float *samples = (*env)->GetDirectBufferAddress(env, buffer);
+  if (!samples || frames <= 0 || (*env)->GetDirectBufferCapacity(env, buffer) <
+      (jlong) channels * frames * (jlong) sizeof(float)) {
+    return 0;
+  }
+  pcm_source *data = malloc(sizeof(pcm_source));
+  if (data) {
+    data->buffer = samples;
+    data->channels = channels;
+    data->frames = frames;
     data->index = 0;
+    data->owned = 0;
+    am_configure((void *) p, process_func, data);
   }
   return (jlong) data;
 }
@@ -69,5 +137,8 @@ JNIEXPORT void JNICALL
 Java_com_noisepages_nettoyeur_patchfield_source_PcmSource_release
 (JNIEnv *env, jobject obj, jlong p) {
   pcm_source *data = (pcm_source *) p;
+  if (data->owned) {
+    free(data->buffer);
+  }
   free(data);
 }
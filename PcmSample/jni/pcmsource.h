@@ -10,10 +10,18 @@ extern "C" {
 /*
  * Class:     com_noisepages_nettoyeur_patchfield_source_PcmSource
  * Method:    createSource
- * Signature: (JLjava/nio/ByteBuffer;)J
+ * Signature: (JLjava/nio/ByteBuffer;IIII)J
  */
 JNIEXPORT jlong JNICALL Java_com_noisepages_nettoyeur_patchfield_source_PcmSource_createSource
-  (JNIEnv *, jobject, jlong, jobject);
+  (JNIEnv *, jobject, jlong, jobject, jint, jint, jint, jint);
+
+/*
+ * Class:     com_noisepages_nettoyeur_patchfield_source_PcmSource
+ * Method:    createPooledSource
+ * Signature: (JLjava/nio/ByteBuffer;II)J
+ */
+JNIEXPORT jlong JNICALL Java_com_noisepages_nettoyeur_patchfield_source_PcmSource_createPooledSource
+  (JNIEnv *, jobject, jlong, jobject, jint, jint);
 
 /*
  * Class:     com_noisepages_nettoyeur_patchfield_source_PcmSource
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+#include "resampler.h"
+
+#include <math.h>
+#include <stdint.h>
+#include <stdlib.h>
+
+#define OVERSAMPLING 512  // Table entries per zero crossing.
+
+static double bessel_i0(double x) {
+  double sum = 1, term = 1;
+  int k;
+  for (k = 1; k < 50 && term > 1e-12 * sum; ++k) {
+    term *= (x / (2 * k)) * (x / (2 * k));
+    sum += term;
+  }
+  return sum;
+}
+
+// Tabulates the right half of a Kaiser-windowed sinc with the given number of
+// zero crossings, plus one guard entry for interpolation.
+static float *create_kernel(int zero_crossings, double beta) {
+  int n = zero_crossings * OVERSAMPLING;
+  float *table = malloc((n + 2) * sizeof(float));
+  if (table) {
+    double norm = bessel_i0(beta);
+    int i;
+    for (i = 0; i <= n; ++i) {
+      double x = (double) i / OVERSAMPLING;
+      double r = (double) i / n;
+      double sinc = i ? sin(M_PI * x) / (M_PI * x) : 1;
+      table[i] = sinc * bessel_i0(beta * sqrt(1 - r * r)) / norm;
+    }
+    table[n + 1] = 0;
+  }
+  return table;
+}
+
+int rs_output_frames(int input_frames, int input_rate, int output_rate) {
+  return ((int64_t) input_frames * output_rate + input_rate - 1) / input_rate;
+}
+
+static void resample_linear(const float *input, int input_frames,
+    int input_rate, float *output, int output_frames, int output_rate) {
+  int i;
+  for (i = 0; i < output_frames; ++i) {
+    int64_t p = (int64_t) i * input_rate;
+    int n = p / output_rate;
+    float f = (float) (p % output_rate) / output_rate;
+    float a = input[n];
+    float b = n + 1 < input_frames ? input[n + 1] : 0;
+    output[i] = a + f * (b - a);
+  }
+}
+
+static void resample_sinc(const float *input, int input_frames,
+    int input_rate, float *output, int output_frames, int output_rate,
+    const float *kernel, int zero_crossings) {
+  // Lower the cutoff when downsampling, widening the kernel accordingly.
+  double cutoff = output_rate < input_rate ?
+    (double) output_rate / input_rate : 1.0;
+  double step = cutoff * OVERSAMPLING;  // Table entries per input sample.
+  int half = (int) ceil(zero_crossings / cutoff);
+  int limit = zero_crossings * OVERSAMPLING;
+  int i, j;
+  for (i = 0; i < output_frames; ++i) {
+    int64_t p = (int64_t) i * input_rate;
+    int n = p / output_rate;
+    double t = (double) (p % output_rate) / output_rate;  // Offset from n.
+    int lo = n - half + 1 < 0 ? 0 : n - half + 1;
+    int hi = n + half < input_frames ? n + half : input_frames - 1;
+    double sum = 0;
+    for (j = lo; j <= hi; ++j) {
+      double x = fabs(t + n - j) * step;
+      int k = (int) x;
+      if (k < limit) {
+        double f = x - k;
+        sum += input[j] * (kernel[k] + f * (kernel[k + 1] - kernel[k]));
+      }
+    }
+    output[i] = sum * cutoff;
+  }
+}
+
+int rs_resample(const float *input, int input_frames, int input_rate,
+    float *output, int output_rate, int quality) {
+  int output_frames =
+    rs_output_frames(input_frames, input_rate, output_rate);
+  int zero_crossings;
+  double beta;
+  switch (quality) {
+    case RS_QUALITY_LINEAR:
+      resample_linear(input, input_frames, input_rate,
+          output, output_frames, output_rate);
+      return 0;
+    case RS_QUALITY_MEDIUM:
+      zero_crossings = 8;
+      beta = 6;
+      break;
+    case RS_QUALITY_HIGH:
+      zero_crossings = 32;
+      beta = 9;
+      break;
+    default:
+      return -1;
+  }
+  float *kernel = create_kernel(zero_crossings, beta);
+  if (!kernel) {
+    return -1;
+  }
+  resample_sinc(input, input_frames, input_rate,
+      output, output_frames, output_rate, kernel, zero_crossings);
+  free(kernel);
+  return 0;
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+/*
+ * Offline sample rate conversion for clips that are loaded into memory, using
+ * a windowed sinc filter whose length is selected by the quality setting.
+ * Samples outside the input are taken to be zero.
+ */
+
+#ifndef __RESAMPLER_H__
+#define __RESAMPLER_H__
+
+// Quality settings; these must agree with the constants in PcmSource.java.
+#define RS_QUALITY_LINEAR 0  // Linear interpolation; cheap, but aliases.
+#define RS_QUALITY_MEDIUM 1  // Windowed sinc, 8 zero crossings per side.
+#define RS_QUALITY_HIGH 2    // Windowed sinc, 32 zero crossings per side.
+
+/*
+ * Returns the number of frames that rs_resample produces for an input of the
+ * given length.
+ */
+int rs_output_frames(int input_frames, int input_rate, int output_rate);
+
+/*
+ * Resamples a single channel from the input rate to the output rate; the
+ * output buffer must hold rs_output_frames(...) samples. Returns 0 on success,
+ * or -1 if the quality setting is invalid or memory is exhausted.
+ */
+int rs_resample(const float *input, int input_frames, int input_rate,
+    float *output, int output_rate, int quality);
+
+#endif
@@ -88,8 +88,10 @@ public class PcmActivity extends PatchfieldActivity {
     Log.i(TAG, "Loading resource for sample rate " + srate + ".");
     // Note that the included wav resources are _headless_ wav files,
     // i.e., they contain only audio, no metadata.
+    // Pick the closest resource; PcmSource resamples it if the rates differ.
+    int resourceRate = srate == 44100 ? 44100 : 48000;
     InputStream is =
-        getResources().openRawResource(srate == 44100 ? R.raw.rst44100 : R.raw.rst48000);
+        getResources().openRawResource(resourceRate == 44100 ? R.raw.rst44100 : R.raw.rst48000);
     ByteBuffer buffer;
     try {
       buffer = ByteBuffer.allocateDirect(is.available());
@@ -104,7 +106,7 @@ public class PcmActivity extends PatchfieldActivity {
     Notification notification =
         new Notification.Builder(PcmActivity.this).setSmallIcon(R.drawable.perm_group_voicemail)
             .setContentTitle("Relaxation Spa Treatment").setContentIntent(pi).build();
-    source = new PcmSource(2, buffer, notification);
+    source = new PcmSource(2, buffer, resourceRate, PcmSource.QUALITY_MEDIUM, notification);
     try {
       source.configure(patchfield, moduleName);
       patchfield.activateModule(moduleName);
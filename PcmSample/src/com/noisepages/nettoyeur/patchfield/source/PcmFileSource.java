@@ -0,0 +1,218 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.patchfield.source;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import android.app.Notification;
+
+import com.noisepages.nettoyeur.patchfield.AudioModule;
+
+/**
+ * Audio module for streaming sound files from storage, for files that are too large to be held in
+ * memory by {@link PcmSource}. The file is memory-mapped, and a background thread keeps the next
+ * few seconds resident so that the audio thread never waits for the disk. Supports WAV files with
+ * 16-bit integer or 32-bit float samples, as well as headless files of interleaved 32-bit floats.
+ * 
+ * Playback loops over the whole file by default; use {@link #setLoop(int, int, boolean)} to change
+ * this. Seeking is cheap, but takes effect only once the new position has been prefetched.
+ */
+public class PcmFileSource extends AudioModule {
+
+  static {
+    System.loadLibrary("pcmsource");
+  }
+
+  private long ptr = 0;
+  private final String path;
+  private final int channels;
+  private final int bits;
+  private final long dataOffset;
+  private final long dataBytes;
+  private int startFrame = 0;
+  private int loopStart = 0;
+  private int loopEnd = 0;
+  private boolean looping = true;
+
+  /**
+   * Creates a new source for a WAV file.
+   * 
+   * @param path Path of a WAV file with 16-bit integer or 32-bit float samples.
+   * @param notification
+   * @throws IOException if the file can't be read or has an unsupported format.
+   */
+  public PcmFileSource(String path, Notification notification) throws IOException {
+    super(notification);
+    this.path = path;
+    RandomAccessFile file = new RandomAccessFile(path, "r");
+    try {
+      if (readInt(file) != tag("RIFF")) {
+        throw new IOException("Not a RIFF file: " + path);
+      }
+      readInt(file);
+      if (readInt(file) != tag("WAVE")) {
+        throw new IOException("Not a WAV file: " + path);
+      }
+      int format = -1;
+      int channels = 0;
+      int bits = 0;
+      while (true) {
+        int id = readInt(file);
+        long size = readInt(file) & 0xffffffffL;
+        long next = file.getFilePointer() + size + (size & 1);
+        if (id == tag("fmt ")) {
+          format = readShort(file);
+          channels = readShort(file);
+          file.skipBytes(10);
+          bits = readShort(file);
+          if (format == 0xfffe && size >= 26) {  // WAVE_FORMAT_EXTENSIBLE
+            file.skipBytes(8);
+            format = readShort(file);
+          }
+        } else if (id == tag("data")) {
+          dataOffset = file.getFilePointer();
+          // Streamed or truncated files may declare more data than they hold.
+          dataBytes = Math.min(size, file.length() - dataOffset);
+          break;
+        }
+        file.seek(next);
+      }
+      if (!(format == 1 && bits == 16) && !(format == 3 && bits == 32) || channels <= 0) {
+        throw new IOException("Unsupported format: " + path);
+      }
+      this.channels = channels;
+      this.bits = bits;
+    } finally {
+      file.close();
+    }
+  }
+
+  /**
+   * Creates a new source for a headless file, i.e., one that contains only audio, no metadata.
+   * 
+   * @param path Path of a file holding PCM data as interleaved 32-bit floats.
+   * @param channels Number of output channels; must be at least one.
+   * @param notification
+   */
+  public PcmFileSource(String path, int channels, Notification notification) {
+    super(notification);
+    if (channels <= 0) {
+      throw new IllegalArgumentException("Channel count must be at least one.");
+    }
+    this.path = path;
+    this.channels = channels;
+    this.bits = 32;
+    this.dataOffset = 0;
+    this.dataBytes = new File(path).length();
+  }
+
+  @Override
+  public int getInputChannels() {
+    return 0;
+  }
+
+  @Override
+  public int getOutputChannels() {
+    return channels;
+  }
+
+  /**
+   * @return The length of the file in frames.
+   */
+  public int getFrames() {
+    return (int) Math.min(dataBytes / (channels * bits / 8), Integer.MAX_VALUE);
+  }
+
+  /**
+   * @return The current playback position in frames.
+   */
+  public synchronized int getPosition() {
+    return ptr != 0 ? getPosition(ptr) : startFrame;
+  }
+
+  /**
+   * Moves the playback position. Before the module is configured, this sets the start offset.
+   * Afterwards, playback continues at the old position until the new one has been prefetched.
+   * 
+   * @param frame New position in frames.
+   */
+  public synchronized void seek(int frame) {
+    if (ptr != 0) {
+      seek(ptr, frame);
+    } else {
+      startFrame = frame;
+    }
+  }
+
+  /**
+   * Sets loop points; playback that reaches the end of the loop continues at its beginning. Like a
+   * seek, the change takes effect once the beginning of the loop has been prefetched.
+   * 
+   * @param start First frame of the loop.
+   * @param end End of the loop (exclusive); nonpositive values denote the end of the file.
+   * @param looping Whether to loop at all; if false, playback stops at the end of the file.
+   */
+  public synchronized void setLoop(int start, int end, boolean looping) {
+    loopStart = start;
+    loopEnd = end;
+    this.looping = looping;
+    if (ptr != 0) {
+      setLoop(ptr, start, end, looping);
+    }
+  }
+
+  @Override
+  protected synchronized boolean configure(String name, long handle, int sampleRate,
+      int bufferSize) {
+    ptr = createSource(handle, path, channels, bits, dataOffset, dataBytes, sampleRate, startFrame);
+    if (ptr != 0) {
+      setLoop(ptr, loopStart, loopEnd, looping);
+    }
+    return ptr != 0;
+  }
+
+  @Override
+  protected synchronized void release() {
+    if (ptr != 0) {
+      release(ptr);
+      ptr = 0;
+    }
+  }
+
+  private static int tag(String s) {
+    return s.charAt(0) | s.charAt(1) << 8 | s.charAt(2) << 16 | s.charAt(3) << 24;
+  }
+
+  private static int readInt(RandomAccessFile file) throws IOException {
+    return Integer.reverseBytes(file.readInt());
+  }
+
+  private static int readShort(RandomAccessFile file) throws IOException {
+    return Short.reverseBytes(file.readShort()) & 0xffff;
+  }
+
+  private native long createSource(long handle, String path, int channels, int bits,
+      long dataOffset, long dataBytes, int sampleRate, int startFrame);
+
+  private native void seek(long ptr, int frame);
+
+  private native void setLoop(long ptr, int start, int end, boolean looping);
+
+  private native int getPosition(long ptr);
+
+  private native void release(long ptr);
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.noisepages.nettoyeur.patchfield.source;
+
+import android.app.Notification;
+import android.util.Log;
+
+import com.noisepages.nettoyeur.patchfield.AudioModule;
+
+/**
+ * Audio module for recording its inputs to a WAV file (32-bit float, interleaved). Connect any
+ * output ports to its input ports to record them.
+ * 
+ * The audio callback only copies each buffer into a lock-free ring; a background thread writes the
+ * ring to disk in large chunks, so that disk latency doesn't cause dropouts. If the writer falls
+ * more than two seconds behind, buffers are dropped rather than stalling the audio thread; see
+ * {@link #getDroppedBuffers()}. The file is complete once the module has been released.
+ */
+public class PcmRecorder extends AudioModule {
+
+  private static final String TAG = "PcmRecorder";
+
+  static {
+    System.loadLibrary("pcmrecorder");
+  }
+
+  private long ptr = 0;
+  private final int channels;
+  private final String path;
+
+  /**
+   * Creates a new PCM recorder.
+   * 
+   * @param channels Number of input channels.
+   * @param path Path of the WAV file to be written; an existing file will be overwritten.
+   * @param notification
+   */
+  public PcmRecorder(int channels, String path, Notification notification) {
+    super(notification);
+    this.channels = channels;
+    this.path = path;
+  }
+
+  @Override
+  public int getInputChannels() {
+    return channels;
+  }
+
+  @Override
+  public int getOutputChannels() {
+    return 0;
+  }
+
+  /**
+   * @return The number of buffers that were lost because the writer fell behind or failed, or -1
+   *         if the module isn't configured.
+   */
+  public synchronized int getDroppedBuffers() {
+    return ptr != 0 ? getDroppedBuffers(ptr) : -1;
+  }
+
+  @Override
+  protected synchronized boolean configure(String name, long handle, int sampleRate,
+      int bufferSize) {
+    ptr = createRecorder(handle, channels, sampleRate, bufferSize, path);
+    return ptr != 0;
+  }
+
+  @Override
+  protected synchronized void release() {
+    if (ptr != 0) {
+      if (release(ptr) != 0) {
+        Log.w(TAG, "Unable to finish writing " + path + ".");
+      }
+      ptr = 0;
+    }
+  }
+
+  private native long createRecorder(long handle, int channels, int sampleRate, int bufferSize,
+      String path);
+
+  private native int getDroppedBuffers(long ptr);
+
+  private native int release(long ptr);
+}
@@ -19,12 +19,26 @@ import java.nio.ByteBuffer;
 import android.app.Notification;
 
 import com.noisepages.nettoyeur.patchfield.AudioModule;
+import com.noisepages.nettoyeur.patchfield.PooledSample;
 
 /**
- * Audio module for playing sound files in PCM format.
+ * Audio module for playing sound files in PCM format. The samples are converted to planar storage
+ * at the sample rate of the patchfield when the module is configured, so that playback is a plain
+ * copy. The buffer is kept so that the module can be configured again, e.g., after it has been
+ * deleted from the patchfield and added back. Alternatively, a PCM source can play a
+ * sample from the sample pool of the Patchfield service, which is already planar, without making a
+ * copy of its own.
  */
 public class PcmSource extends AudioModule {
 
+  // Resampling quality settings; these must agree with the constants in resampler.h.
+  /** Linear interpolation; cheap, but aliases. */
+  public static final int QUALITY_LINEAR = 0;
+  /** Windowed sinc with 8 zero crossings per side. */
+  public static final int QUALITY_MEDIUM = 1;
+  /** Windowed sinc with 32 zero crossings per side. */
+  public static final int QUALITY_HIGH = 2;
+
   static {
     System.loadLibrary("pcmsource");
   }
@@ -32,18 +46,55 @@ public class PcmSource extends AudioModule {
   private long ptr = 0;
   private final int channels;
   private final ByteBuffer buffer;
+  private final int sampleRate;
+  private final int quality;
+  private final PooledSample sample;
 
   /**
-   * Creates a new PCM source.
+   * Creates a new PCM source whose data is at the sample rate of the patchfield.
    * 
    * @param channels Number of output channels.
    * @param buffer Direct byte buffer holding PCM data as interleaved 32-bit floats.
    * @param notification
    */
   public PcmSource(int channels, ByteBuffer buffer, Notification notification) {
+    this(channels, buffer, 0, QUALITY_MEDIUM, notification);
+  }
+
+  /**
+   * Creates a new PCM source whose data will be resampled to the sample rate of the patchfield if
+   * necessary.
+   * 
+   * @param channels Number of output channels.
+   * @param buffer Direct byte buffer holding PCM data as interleaved 32-bit floats.
+   * @param sampleRate Sample rate of the data, or 0 if it matches the patchfield.
+   * @param quality Resampling quality, i.e., one of the QUALITY_* constants.
+   * @param notification
+   */
+  public PcmSource(int channels, ByteBuffer buffer, int sampleRate, int quality,
+      Notification notification) {
     super(notification);
     this.channels = channels;
     this.buffer = buffer;
+    this.sampleRate = sampleRate;
+    this.quality = quality;
+    this.sample = null;
+  }
+
+  /**
+   * Creates a new PCM source that plays straight from the sample pool. The sample must be at the
+   * sample rate of the patchfield, and it must not be released before this module.
+   * 
+   * @param sample Pooled sample to play.
+   * @param notification
+   */
+  public PcmSource(PooledSample sample, Notification notification) {
+    super(notification);
+    this.channels = sample.getChannels();
+    this.buffer = sample.getBuffer();
+    this.sampleRate = sample.getSampleRate();
+    this.quality = QUALITY_LINEAR;
+    this.sample = sample;
   }
 
   @Override
@@ -58,7 +109,14 @@ public class PcmSource extends AudioModule {
 
   @Override
   protected boolean configure(String name, long handle, int sampleRate, int bufferSize) {
-    ptr = createSource(handle, buffer);
+    if (sample != null) {
+      if (this.sampleRate != sampleRate) {
+        return false;
+      }
+      ptr = createPooledSource(handle, buffer, channels, sample.getFrames());
+      return ptr != 0;
+    }
+    ptr = createSource(handle, buffer, channels, this.sampleRate, sampleRate, quality);
     return ptr != 0;
   }
 
@@ -70,7 +128,10 @@ public class PcmSource extends AudioModule {
     }
   }
 
-  private native long createSource(long handle, ByteBuffer buffer);
+  private native long createSource(long handle, ByteBuffer buffer, int channels, int sourceRate,
+      int hostRate, int quality);
+
+  private native long createPooledSource(long handle, ByteBuffer buffer, int channels, int frames);
 
   private native void release(long ptr);
 }